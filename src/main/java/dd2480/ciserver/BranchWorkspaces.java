@@ -0,0 +1,153 @@
+package dd2480.ciserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps one working copy per repository and branch between builds, so that
+ * a build only updates the checkout to the new commit and Maven finds the
+ * {@code target/} directories, and the compiler's state in them, of the
+ * previous build of that branch.
+ *
+ * <p>A workspace is used by one build at a time; a second build of the
+ * same branch waits for the first to release it. The hash of the
+ * {@code pom.xml} files the workspace was last built with is kept in its
+ * {@code .git} directory. When it changes, or when the previous build was
+ * cancelled or failed with an exception, the next build starts with
+ * {@code mvn clean}, so no stale classes or plugin state survive a change
+ * of the build itself.</p>
+ *
+ * <p>These workspaces are not managed by {@link WorkspaceManager}: they do
+ * not count towards {@code CI_WORKSPACE_QUOTA_MB}.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_INCREMENTAL} — build in kept workspaces instead of a new
+ *       temporary directory per build (default false).</li>
+ *   <li>{@code CI_CACHE_DIR} — root directory of the server caches
+ *       (default {@code ci-cache}); workspaces live in
+ *       {@code workspaces/}.</li>
+ * </ul>
+ */
+public class BranchWorkspaces {
+
+    /** File in a workspace's {@code .git} directory holding its pom hash. */
+    private static final String POM_HASH_FILE = "ci-pom-hash";
+
+    private final Path root;
+    private final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the workspaces in {@code CI_CACHE_DIR}.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    public BranchWorkspaces() throws IOException {
+        this(Path.of(Config.get("CI_CACHE_DIR", "ci-cache"), "workspaces"));
+    }
+
+    /**
+     * Creates the workspaces in the given directory. Workspaces left there
+     * by an earlier run are used again.
+     *
+     * @param root the directory holding the workspaces.
+     * @throws IOException if the directory cannot be created.
+     */
+    public BranchWorkspaces(Path root) throws IOException {
+        this.root = root.toAbsolutePath();
+        Files.createDirectories(this.root);
+    }
+
+    /**
+     * Returns the workspace of a branch, creating its directory if needed,
+     * and waits until no other build uses it. Every call must be paired
+     * with a call to {@link #release(Path)} on the same thread.
+     *
+     * @param cloneUrl the clone URL of the repository.
+     * @param branch   the branch.
+     * @return the workspace directory, possibly holding an earlier checkout.
+     * @throws IOException          if the directory cannot be created.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Path acquire(String cloneUrl, String branch) throws IOException, InterruptedException {
+        Path dir = root.resolve(RepositoryCache.hash(cloneUrl + "#" + branch).substring(0, 16));
+        ReentrantLock lock = locks.computeIfAbsent(dir, d -> new ReentrantLock());
+        lock.lockInterruptibly();
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            lock.unlock();
+            throw e;
+        }
+        return dir;
+    }
+
+    /**
+     * Lets the next build of the branch use the workspace.
+     *
+     * @param dir the directory from {@link #acquire}.
+     */
+    public void release(Path dir) {
+        locks.get(dir).unlock();
+    }
+
+    /**
+     * Returns whether a workspace holds a checkout that can be updated.
+     *
+     * @param dir the workspace directory.
+     * @return true if it is a git repository.
+     */
+    public static boolean hasCheckout(Path dir) {
+        return Files.isDirectory(dir.resolve(".git"));
+    }
+
+    /**
+     * Records the {@code pom.xml} files of the checked-out commit and tells
+     * whether they differ from those of the previous build in the
+     * workspace.
+     *
+     * @param dir the workspace directory, checked out at the new commit.
+     * @return true if the build must start clean: the poms changed, or the
+     *         previous build left no record.
+     * @throws IOException if the poms or the record cannot be read or written.
+     */
+    public boolean pomsChanged(Path dir) throws IOException {
+        Path record = dir.resolve(".git").resolve(POM_HASH_FILE);
+        String hash = DependencyCache.hashPoms(dir);
+        String previous = Files.exists(record) ? Files.readString(record, StandardCharsets.UTF_8).trim() : null;
+        Files.writeString(record, hash, StandardCharsets.UTF_8);
+        return !hash.equals(previous);
+    }
+
+    /**
+     * Makes the next build in a workspace start clean, e.g. after a build
+     * that was stopped half-way.
+     *
+     * @param dir the workspace directory.
+     * @throws IOException if the record cannot be deleted.
+     */
+    public void invalidate(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(".git").resolve(POM_HASH_FILE));
+    }
+
+    /**
+     * Deletes everything in a workspace, keeping the directory, so that the
+     * next checkout starts from scratch.
+     *
+     * @param dir the workspace directory.
+     * @throws IOException if a file cannot be deleted.
+     */
+    public static void clear(Path dir) throws IOException {
+        try (Stream<Path> children = Files.list(dir)) {
+            for (Path child : children.toList()) {
+                RepositoryCache.deleteRecursively(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+
+/**
+ * Something that happened to a build, published once on the
+ * {@link BuildEventBus} and delivered to every registered sink.
+ *
+ * @param type         what happened.
+ * @param buildId      the id of the build.
+ * @param repoFullName the full repository name (e.g. {@code "owner/repo"}).
+ * @param branch       the branch being built.
+ * @param commitSHA    the commit being built.
+ * @param result       the result so far, or null for {@link Type#QUEUED},
+ *                     {@link Type#STARTED} and {@link Type#CANCELLED}.
+ * @param detail       a human-readable note, e.g. why a build was
+ *                     cancelled; may be null.
+ * @param timeMillis   when it happened, in epoch milliseconds.
+ */
+public record BuildEvent(Type type, long buildId, String repoFullName, String branch, String commitSHA,
+                         CIResultObject result, String detail, long timeMillis) {
+
+    /** The kinds of build events, in the order a build goes through them. */
+    public enum Type {
+        /** The build was accepted and is waiting for a worker. */
+        QUEUED,
+        /** A worker started the build. */
+        STARTED,
+        /** The compile phase ended; the result tells whether it succeeded. */
+        COMPILED,
+        /** The test phase ended; the result tells whether the tests passed. */
+        TESTED,
+        /** The build ended; its result is saved right after the event is published. */
+        FINISHED,
+        /** The build was dropped before it ran, e.g. superseded by a newer push. */
+        CANCELLED
+    }
+
+    /**
+     * Returns a one-line description for logs, e.g.
+     * {@code build 12 FINISHED (main @ abc123): success}.
+     *
+     * @return the description.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder("build ").append(buildId).append(' ').append(type)
+                .append(" (").append(branch).append(" @ ").append(commitSHA).append(')');
+        if (type == Type.COMPILED && result != null) {
+            text.append(": ").append(result.isBuildSuccessful() ? "ok" : "failed");
+        } else if (type == Type.TESTED && result != null) {
+            text.append(": ").append(result.isTestsSuccessful() ? "passed" : "failed");
+        } else if (type == Type.FINISHED && result != null) {
+            text.append(": ").append(Server.historyStatus(result));
+        }
+        if (detail != null) {
+            text.append(" — ").append(detail);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Creates an event for a job, stamped with the current time.
+     *
+     * @param type   what happened.
+     * @param job    the build.
+     * @param result the result so far, or null.
+     * @param detail a human-readable note, or null.
+     * @return the event.
+     */
+    public static BuildEvent of(Type type, BuildJob job, CIResultObject result, String detail) {
+        WebhookPayload payload = job.getPayload();
+        return new BuildEvent(type, job.getId(), payload.getRepoFullName(), payload.getBranch(),
+                payload.getCommitSHA(), result, detail, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,175 @@
+package dd2480.ciserver;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers {@link BuildEvent}s to the registered {@link BuildEventSink}s
+ * without making the build wait for any of them.
+ *
+ * <p>Every sink has its own bounded queue and its own delivery thread.
+ * {@link #publish} only offers the event to each queue, so it never
+ * blocks. If a sink is slow, its queue fills up and further events for
+ * that sink are dropped and counted, while the other sinks keep up. An
+ * exception thrown by a sink is logged and counted; the sink still gets
+ * the next event.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_EVENT_QUEUE} — events that may wait for each sink
+ *       (default 1000).</li>
+ * </ul>
+ */
+public class BuildEventBus implements Closeable {
+
+    /**
+     * Delivery counts of one sink.
+     *
+     * @param name      the sink name.
+     * @param delivered events the sink handled.
+     * @param failed    events the sink threw on.
+     * @param dropped   events that did not fit in the sink's queue.
+     * @param queued    events waiting now.
+     */
+    public record SinkStats(String name, long delivered, long failed, long dropped, int queued) {
+    }
+
+    /** A sink with its queue and delivery thread. */
+    private static final class Subscription {
+        final String name;
+        final BuildEventSink sink;
+        final BlockingQueue<BuildEvent> queue;
+        final Thread thread;
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong unhandled = new AtomicLong();
+
+        Subscription(String name, BuildEventSink sink, int capacity) {
+            this.name = name;
+            this.sink = sink;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            this.thread = new Thread(this::deliverLoop, "events-" + name);
+            thread.setDaemon(true);
+        }
+
+        void deliverLoop() {
+            while (true) {
+                BuildEvent event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    sink.accept(event);
+                    delivered.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.err.println("Event sink " + name + " failed on " + event.type()
+                            + " of build " + event.buildId() + ": " + e.getMessage());
+                } finally {
+                    unhandled.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final int capacity;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a bus with the {@code CI_EVENT_QUEUE} queue size.
+     */
+    public BuildEventBus() {
+        this(Config.getInt("CI_EVENT_QUEUE", 1000));
+    }
+
+    /**
+     * Creates a bus.
+     *
+     * @param capacity events that may wait for each sink.
+     */
+    public BuildEventBus(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Registers a sink and starts its delivery thread. The sink receives
+     * the events published from now on.
+     *
+     * @param name a short name for logs and statistics, e.g. {@code github}.
+     * @param sink the sink.
+     */
+    public void register(String name, BuildEventSink sink) {
+        Subscription subscription = new Subscription(name, sink, capacity);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+    }
+
+    /**
+     * Offers an event to every sink. Never blocks; a sink whose queue is
+     * full misses the event.
+     *
+     * @param event the event.
+     */
+    public void publish(BuildEvent event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.unhandled.incrementAndGet();
+            if (!subscription.queue.offer(event)) {
+                subscription.unhandled.decrementAndGet();
+                subscription.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the delivery counts of every sink, in registration order.
+     *
+     * @return the statistics.
+     */
+    public List<SinkStats> getStats() {
+        List<SinkStats> stats = new ArrayList<>();
+        for (Subscription s : subscriptions) {
+            stats.add(new SinkStats(s.name, s.delivered.get(), s.failed.get(), s.dropped.get(), s.queue.size()));
+        }
+        return stats;
+    }
+
+    /**
+     * Waits until every sink has handled the events published so far.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if all events were handled.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Subscription subscription : subscriptions) {
+            while (subscription.unhandled.get() > 0) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return false;
+                }
+                Thread.sleep(5);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the delivery threads. Events still waiting are not delivered.
+     */
+    @Override
+    public void close() {
+        for (Subscription subscription : subscriptions) {
+            subscription.thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package dd2480.ciserver;
+
+/**
+ * A receiver of {@link BuildEvent}s registered on the
+ * {@link BuildEventBus}, e.g. one that reports commit statuses to GitHub.
+ *
+ * <p>Each sink is called on its own thread, one event at a time and in
+ * the order the events were published, so a sink may block without
+ * holding up builds or other sinks.</p>
+ */
+@FunctionalInterface
+public interface BuildEventSink {
+
+    /**
+     * Handles one event.
+     *
+     * @param event the event.
+     * @throws Exception if the event could not be handled; the bus logs it
+     *                   and goes on with the next event.
+     */
+    void accept(BuildEvent event) throws Exception;
+}
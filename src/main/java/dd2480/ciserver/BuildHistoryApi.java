@@ -0,0 +1,326 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JSON API over the build history, next to the HTML view of
+ * {@code /builds}.
+ *
+ * <ul>
+ *   <li>{@code GET /api/builds?branch=&status=&before=&limit=} lists builds,
+ *       newest first. {@code before} is the cursor: the response's
+ *       {@code nextCursor} (and the ready-made {@code next} link) continues
+ *       with the following page.</li>
+ *   <li>{@code GET /api/builds/{id}} returns the saved document of one
+ *       build.</li>
+ * </ul>
+ *
+ * <p>Responses carry an {@code ETag} and a {@code Last-Modified} header.
+ * The history is append-only, so a listing can only change when a build is
+ * added: the ETag is derived from the newest build id, and a request with a
+ * matching {@code If-None-Match} (or an {@code If-Modified-Since} not older
+ * than the newest build) is answered with {@code 304 Not Modified} without
+ * reading the history. A saved build never changes, so its document has a
+ * fixed ETag.</p>
+ */
+public class BuildHistoryApi {
+
+    /** Page size when no {@code limit} is given. */
+    static final int DEFAULT_LIMIT = 50;
+
+    /** Largest accepted {@code limit}. */
+    static final int MAX_LIMIT = 200;
+
+    private static final Pattern BUILD_PATH = Pattern.compile("/api/builds/(\\d+)/?");
+
+    private final BuildHistoryStore store;
+
+    /**
+     * Creates the API for a history store.
+     *
+     * @param store the build history.
+     */
+    public BuildHistoryApi(BuildHistoryStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Handles a request below {@code /api/builds}.
+     *
+     * @param exchange the HTTP exchange.
+     * @throws IOException if the history cannot be read or the response
+     *                     cannot be sent.
+     */
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+            sendError(exchange, 405, "Method not allowed");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/builds") || path.equals("/api/builds/")) {
+            handleList(exchange);
+            return;
+        }
+        Matcher matcher = BUILD_PATH.matcher(path);
+        if (matcher.matches()) {
+            handleBuild(exchange, matcher.group(1));
+            return;
+        }
+        sendError(exchange, 404, "Not found");
+    }
+
+    /**
+     * Answers {@code GET /api/builds}.
+     */
+    private void handleList(HttpExchange exchange) throws IOException {
+        List<BuildHistoryStore.Entry> newest = store.list(Long.MAX_VALUE, 1);
+        long newestId = newest.isEmpty() ? 0 : newest.get(0).id();
+        String etag = "\"" + newestId + "\"";
+        Long lastModified = newest.isEmpty() ? null : newest.get(0).timeMillis();
+        if (notModified(exchange.getRequestHeaders(), etag, lastModified)) {
+            sendNotModified(exchange, etag, lastModified);
+            return;
+        }
+
+        String query = exchange.getRequestURI().getRawQuery();
+        String branch = param(query, "branch");
+        String status = param(query, "status");
+        long before;
+        int limit;
+        try {
+            String beforeParam = param(query, "before");
+            String limitParam = param(query, "limit");
+            before = beforeParam == null ? Long.MAX_VALUE : Long.parseLong(beforeParam);
+            limit = limitParam == null ? DEFAULT_LIMIT : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "before and limit must be numbers");
+            return;
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            sendError(exchange, 400, "limit must be between 1 and " + MAX_LIMIT);
+            return;
+        }
+
+        // One extra entry tells whether there is a next page
+        List<BuildHistoryStore.Entry> entries = store.find(branch, status, before, limit + 1);
+        boolean more = entries.size() > limit;
+        if (more) {
+            entries = entries.subList(0, limit);
+        }
+
+        JSONArray builds = new JSONArray();
+        for (BuildHistoryStore.Entry entry : entries) {
+            builds.put(toJson(entry));
+        }
+        JSONObject body = new JSONObject().put("builds", builds);
+        if (more) {
+            long cursor = entries.get(entries.size() - 1).id();
+            body.put("nextCursor", cursor);
+            body.put("next", nextLink(branch, status, cursor, limit));
+        } else {
+            body.put("nextCursor", JSONObject.NULL);
+            body.put("next", JSONObject.NULL);
+        }
+        sendJson(exchange, body, etag, lastModified);
+    }
+
+    /**
+     * Answers {@code GET /api/builds/{id}}.
+     */
+    private void handleBuild(HttpExchange exchange, String idText) throws IOException {
+        long id;
+        try {
+            id = Long.parseLong(idText);
+        } catch (NumberFormatException e) {
+            sendError(exchange, 404, "Not found");
+            return;
+        }
+        String etag = "\"build-" + id + "\"";
+        if (notModified(exchange.getRequestHeaders(), etag, null)) {
+            sendNotModified(exchange, etag, null);
+            return;
+        }
+        Optional<JSONObject> build = store.get(id);
+        if (build.isEmpty()) {
+            sendError(exchange, 404, "No build with id " + id);
+            return;
+        }
+        Long savedAt = build.get().has("time") ? build.get().getLong("time") : null;
+        sendJson(exchange, build.get(), etag, savedAt);
+    }
+
+    /**
+     * Converts an index entry to its JSON form. {@code jobId} and
+     * {@code log} are null for builds saved without their job id.
+     *
+     * @param entry the entry.
+     * @return the JSON object.
+     */
+    static JSONObject toJson(BuildHistoryStore.Entry entry) {
+        boolean hasJob = entry.jobId() > 0;
+        return new JSONObject()
+                .put("id", entry.id())
+                .put("jobId", hasJob ? entry.jobId() : JSONObject.NULL)
+                .put("time", entry.timeMillis())
+                .put("commitSHA", entry.commitSHA())
+                .put("branch", entry.branch())
+                .put("status", entry.status())
+                .put("url", "/api/builds/" + entry.id())
+                .put("log", hasJob ? "/builds/" + entry.jobId() + "/log" : JSONObject.NULL);
+    }
+
+    /**
+     * Returns the link to the page after the given cursor, with the same
+     * filters.
+     *
+     * @param branch the branch filter, or null.
+     * @param status the status filter, or null.
+     * @param cursor the id of the last build on the current page.
+     * @param limit  the page size.
+     * @return the relative URL of the next page.
+     */
+    static String nextLink(String branch, String status, long cursor, int limit) {
+        StringBuilder link = new StringBuilder("/api/builds?before=").append(cursor)
+                .append("&limit=").append(limit);
+        if (branch != null) {
+            link.append("&branch=").append(URLEncoder.encode(branch, StandardCharsets.UTF_8));
+        }
+        if (status != null) {
+            link.append("&status=").append(URLEncoder.encode(status, StandardCharsets.UTF_8));
+        }
+        return link.toString();
+    }
+
+    /**
+     * Decides whether the client's cached copy is still current.
+     * {@code If-None-Match} takes precedence over {@code If-Modified-Since}.
+     *
+     * @param request      the request headers.
+     * @param etag         the current ETag.
+     * @param lastModified the current modification time in epoch
+     *                     milliseconds, or null if unknown.
+     * @return true if a 304 response should be sent.
+     */
+    static boolean notModified(Headers request, String etag, Long lastModified) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                // HTTP dates have whole seconds
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Formats epoch milliseconds as an HTTP date.
+     *
+     * @param millis the time.
+     * @return the RFC 1123 date in GMT.
+     */
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Returns a URL-decoded query parameter.
+     */
+    private static String param(String query, String name) {
+        String value = LogTailer.queryParam(query, name);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the validator headers of a response.
+     */
+    private static void setValidators(HttpExchange exchange, String etag, Long lastModified) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", etag);
+        if (lastModified != null) {
+            headers.set("Last-Modified", httpDate(lastModified));
+        }
+        // Caches may keep the response but must check it with the server
+        headers.set("Cache-Control", "no-cache");
+    }
+
+    /**
+     * Sends a 304 response without a body.
+     */
+    private static void sendNotModified(HttpExchange exchange, String etag, Long lastModified) throws IOException {
+        setValidators(exchange, etag, lastModified);
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+    }
+
+    /**
+     * Sends a 200 JSON response; HEAD requests get the headers only.
+     */
+    private static void sendJson(HttpExchange exchange, JSONObject body, String etag, Long lastModified)
+            throws IOException {
+        setValidators(exchange, etag, lastModified);
+        send(exchange, 200, body);
+    }
+
+    /**
+     * Sends a JSON error of the form {@code {"error": message}}.
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, new JSONObject().put("error", message));
+    }
+
+    /**
+     * Writes a JSON body with the given status and closes the exchange.
+     */
+    private static void send(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package dd2480.ciserver;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Storage for the results of finished builds.
+ *
+ * <p>Every saved build gets an id that is larger than the ids of all builds
+ * saved before it, so ids double as a cursor: listings are newest first and
+ * continue from the last id of the previous page.</p>
+ */
+public interface BuildHistoryStore extends Closeable {
+
+    /**
+     * The indexed fields of a saved build. The full document is loaded with
+     * {@link #get(long)}.
+     *
+     * @param id         the id given by the store.
+     * @param timeMillis when the build was saved, in epoch milliseconds.
+     * @param commitSHA  the SHA of the built commit.
+     * @param branch     the built branch.
+     * @param status     the outcome, e.g. {@code success} or {@code failure};
+     *                   empty if it was not recorded.
+     * @param jobId      the id the build had while queued and running, as
+     *                   used by {@code /builds/{jobId}/log}; 0 if it was not
+     *                   recorded.
+     */
+    record Entry(long id, long timeMillis, String commitSHA, String branch, String status, long jobId) {
+    }
+
+    /**
+     * Saves a build. The store adds the fields {@code id} and {@code time}
+     * to the document.
+     *
+     * @param build the build document; {@code commitSHA}, {@code branch},
+     *              {@code status} and {@code jobId} are indexed.
+     * @return the index entry of the saved build.
+     * @throws IOException if the build cannot be written.
+     */
+    Entry append(JSONObject build) throws IOException;
+
+    /**
+     * Loads the full document of a saved build.
+     *
+     * @param id the build id.
+     * @return the document, or empty if there is no build with that id.
+     * @throws IOException if the build cannot be read.
+     */
+    Optional<JSONObject> get(long id) throws IOException;
+
+    /**
+     * Lists saved builds, newest first.
+     *
+     * @param beforeId only builds with a smaller id are listed; use
+     *                 {@link Long#MAX_VALUE} for the first page.
+     * @param limit    the maximum number of entries.
+     * @return the entries.
+     */
+    List<Entry> list(long beforeId, int limit);
+
+    /**
+     * Lists saved builds of one branch, newest first.
+     *
+     * @param branch   the branch name.
+     * @param beforeId only builds with a smaller id are listed.
+     * @param limit    the maximum number of entries.
+     * @return the entries.
+     */
+    List<Entry> listByBranch(String branch, long beforeId, int limit);
+
+    /**
+     * Lists saved builds matching the given filters, newest first.
+     *
+     * @param branch   the branch name, or null for any branch.
+     * @param status   the outcome, or null for any outcome.
+     * @param beforeId only builds with a smaller id are listed.
+     * @param limit    the maximum number of entries.
+     * @return the entries.
+     */
+    List<Entry> find(String branch, String status, long beforeId, int limit);
+
+    /**
+     * Lists saved builds of one commit, newest first.
+     *
+     * @param commitSHA the commit SHA.
+     * @return the entries.
+     */
+    List<Entry> findBySha(String commitSHA);
+
+    /**
+     * Lists builds saved in a time range, newest first.
+     *
+     * @param fromMillis the start of the range, inclusive.
+     * @param toMillis   the end of the range, exclusive.
+     * @param limit      the maximum number of entries.
+     * @return the entries.
+     */
+    List<Entry> listBetween(long fromMillis, long toMillis, int limit);
+
+    /**
+     * Returns the number of saved builds.
+     *
+     * @return the build count.
+     */
+    int size();
+}
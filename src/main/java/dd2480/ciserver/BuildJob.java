@@ -0,0 +1,149 @@
+package dd2480.ciserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single build request waiting in, or taken from, the
+ * {@link BuildScheduler} queue. Holds the parsed webhook payload together
+ * with the timestamps needed for queue wait-time metrics.
+ */
+public class BuildJob {
+
+    /** Seeded with the start-up time so ids stay unique across restarts. */
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+
+    private final long id;
+    private final WebhookPayload payload;
+    private final long enqueuedAtNanos;
+    private volatile long startedAtNanos;
+    private String cancellationReason;
+    private BuildProcessor processor;
+
+    /**
+     * Creates a job for the given payload and stamps it with the current time.
+     *
+     * @param payload the parsed push event to build.
+     */
+    public BuildJob(WebhookPayload payload) {
+        this.id = NEXT_ID.incrementAndGet();
+        this.payload = payload;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Recreates a job with a known id, e.g. one read back from the
+     * {@link WebhookJournal} after a restart. Ids given to new jobs stay
+     * larger than this one.
+     *
+     * @param id      the id the job had before.
+     * @param payload the parsed push event to build.
+     */
+    public BuildJob(long id, WebhookPayload payload) {
+        this.id = id;
+        this.payload = payload;
+        this.enqueuedAtNanos = System.nanoTime();
+        NEXT_ID.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Returns the unique id of this build.
+     *
+     * @return the build id.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the push event this job builds.
+     *
+     * @return the webhook payload.
+     */
+    public WebhookPayload getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the key that identifies pushes which supersede each other: the
+     * repository and the branch.
+     *
+     * @return the coalescing key.
+     */
+    public String getBranchKey() {
+        return payload.getRepoFullName() + "#" + payload.getBranch();
+    }
+
+    /**
+     * Connects the processor that runs this job, so that {@link #cancel}
+     * can stop it. If the job was cancelled before the processor existed,
+     * the processor is cancelled right away.
+     *
+     * @param processor the processor running the build.
+     */
+    public synchronized void attach(BuildProcessor processor) {
+        this.processor = processor;
+        if (cancellationReason != null) {
+            processor.cancel(cancellationReason);
+        }
+    }
+
+    /**
+     * Cancels the job, stopping its build if it is already running.
+     *
+     * @param reason a short, human-readable reason for the cancellation.
+     */
+    public synchronized void cancel(String reason) {
+        if (cancellationReason == null) {
+            cancellationReason = reason;
+        }
+        if (processor != null) {
+            processor.cancel(cancellationReason);
+        }
+    }
+
+    /**
+     * Returns whether the job has been cancelled.
+     *
+     * @return true if {@link #cancel} has been called.
+     */
+    public synchronized boolean isCancelled() {
+        return cancellationReason != null;
+    }
+
+    /**
+     * Returns why the job was cancelled.
+     *
+     * @return the reason given to {@link #cancel}, or null.
+     */
+    public synchronized String getCancellationReason() {
+        return cancellationReason;
+    }
+
+    /**
+     * Marks the job as taken by a worker.
+     */
+    void markStarted() {
+        startedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns how long the job waited in the queue. While the job is still
+     * queued this is the time waited so far.
+     *
+     * @return the queue wait time in nanoseconds.
+     */
+    public long getQueueWaitNanos() {
+        long end = startedAtNanos != 0 ? startedAtNanos : System.nanoTime();
+        return end - enqueuedAtNanos;
+    }
+
+    /**
+     * Returns how long the job waited in the queue, in milliseconds.
+     *
+     * @return the queue wait time in milliseconds.
+     */
+    public long getQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getQueueWaitNanos());
+    }
+}
@@ -0,0 +1,218 @@
+package dd2480.ciserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The output of one build, streamed to a file as it is produced.
+ *
+ * <p>Output goes to disk through a fixed-size buffer, so memory use does not
+ * grow with the size of the log. Only the first and the last few kilobytes
+ * are kept in memory, for the build result and error messages; the full log
+ * is read back from the file when it is needed.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_LOG_DIR} — directory of the log files (default
+ *       {@code build_logs}).</li>
+ *   <li>{@code CI_LOG_SUMMARY_KB} — size of the head and of the tail kept
+ *       in memory (default 32 each).</li>
+ * </ul>
+ */
+public class BuildLog implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final OutputStream out;
+    private final byte[] head;
+    private int headLength;
+    private final byte[] tail;
+    private int tailStart;
+    private int tailLength;
+    private long size;
+
+    /**
+     * Opens a log file with head and tail sizes from {@code CI_LOG_SUMMARY_KB}.
+     *
+     * @param file the file to write; created or truncated.
+     * @throws IOException if the file cannot be opened.
+     */
+    public BuildLog(Path file) throws IOException {
+        this(file, Config.getInt("CI_LOG_SUMMARY_KB", 32) * 1024);
+    }
+
+    /**
+     * Opens a log file.
+     *
+     * @param file        the file to write; created or truncated.
+     * @param summarySize the number of bytes kept in memory from the start
+     *                    and from the end of the log.
+     * @throws IOException if the file cannot be opened.
+     */
+    public BuildLog(Path file, int summarySize) throws IOException {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+        this.head = new byte[summarySize];
+        this.tail = new byte[summarySize];
+    }
+
+    /**
+     * Returns the path of the log file for a build id in {@code CI_LOG_DIR}.
+     *
+     * @param buildId the build id.
+     * @return the log file path.
+     */
+    public static Path pathFor(long buildId) {
+        return Path.of(Config.get("CI_LOG_DIR", "build_logs"), buildId + ".log");
+    }
+
+    /**
+     * Copies everything from a stream (typically a process's output) into
+     * the log until the stream ends. The file is flushed whenever the stream
+     * has no more data ready, so readers of the file see output as soon as
+     * the process pauses.
+     *
+     * @param in the stream to read.
+     * @throws IOException if reading or writing fails.
+     */
+    public void append(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            write(buffer, 0, n);
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Appends a line of text, e.g. a message from the CI server itself.
+     *
+     * @param line the text to append; a newline is added.
+     * @throws IOException if writing fails.
+     */
+    public void appendLine(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+        out.flush();
+    }
+
+    /**
+     * Writes bytes to the file and updates the in-memory head and tail.
+     */
+    private synchronized void write(byte[] bytes, int off, int len) throws IOException {
+        out.write(bytes, off, len);
+        size += len;
+
+        int toHead = Math.min(len, head.length - headLength);
+        System.arraycopy(bytes, off, head, headLength, toHead);
+        headLength += toHead;
+
+        // Bytes beyond the head go into the tail ring
+        int start = off + toHead;
+        int remaining = len - toHead;
+        int capacity = tail.length;
+        if (remaining == 0 || capacity == 0) {
+            return;
+        }
+        if (remaining >= capacity) {
+            System.arraycopy(bytes, start + remaining - capacity, tail, 0, capacity);
+            tailStart = 0;
+            tailLength = capacity;
+            return;
+        }
+        int pos = (tailStart + tailLength) % capacity;
+        int first = Math.min(remaining, capacity - pos);
+        System.arraycopy(bytes, start, tail, pos, first);
+        System.arraycopy(bytes, start + first, tail, 0, remaining - first);
+        int newLength = tailLength + remaining;
+        if (newLength > capacity) {
+            tailStart = (tailStart + newLength - capacity) % capacity;
+            tailLength = capacity;
+        } else {
+            tailLength = newLength;
+        }
+    }
+
+    /**
+     * Returns the end of the log, at most the summary size.
+     *
+     * @return the last part of the log as text.
+     */
+    public synchronized String tail() {
+        // While the tail ring is not full, the end of the head precedes it
+        int fromHead = Math.min(headLength, tail.length - tailLength);
+        byte[] bytes = new byte[fromHead + tailLength];
+        System.arraycopy(head, headLength - fromHead, bytes, 0, fromHead);
+        System.arraycopy(tailBytes(), 0, bytes, fromHead, tailLength);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the start and the end of the log, with a marker in between if
+     * anything was left out.
+     *
+     * @return a bounded summary of the log.
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder(new String(head, 0, headLength, StandardCharsets.UTF_8));
+        long omitted = size - headLength - tailLength;
+        if (omitted > 0) {
+            sb.append("\n... [").append(omitted).append(" bytes omitted, full log in ")
+                    .append(file).append("] ...\n");
+        }
+        sb.append(new String(tailBytes(), StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+
+    /**
+     * Copies the tail ring into a contiguous array.
+     */
+    private byte[] tailBytes() {
+        byte[] bytes = new byte[tailLength];
+        for (int i = 0; i < tailLength; i++) {
+            bytes[i] = tail[(tailStart + i) % tail.length];
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return the log size in bytes.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the log file.
+     *
+     * @return the path of the log file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Flushes and closes the log file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
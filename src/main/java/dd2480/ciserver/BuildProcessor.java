@@ -1,24 +1,368 @@
 package dd2480.ciserver;
 
 import dd2480.ciserver.model.CIResultObject;
+import dd2480.ciserver.model.PhaseRecord;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * Handles the CI build pipeline: clones a repository, compiles it, and
  * returns a {@link CIResultObject} containing the results.
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_CHECKOUT_MODE} — {@code branch} (default) checks out the
+ *       tip of the pushed branch; {@code sha} checks out exactly the pushed
+ *       commit, with a shallow {@code git fetch --depth=1} when no
+ *       repository cache is used.</li>
+ *   <li>{@code CI_PARTIAL_CLONE} — in {@code sha} mode, fetch with
+ *       {@code --filter=blob:none} so file contents are only downloaded when
+ *       checked out (default false).</li>
+ *   <li>{@code CI_SPARSE_PATHS} — in {@code sha} mode, a comma-separated
+ *       list of directories to check out (cone-mode sparse checkout); files
+ *       at the repository root are always included.</li>
+ *   <li>{@code CI_BUILD_RUNNER} — {@code split} (default) runs
+ *       {@code mvn compile} then {@code mvn test}; {@code single} runs one
+ *       {@code mvn test}; {@code mvnd} runs one {@code mvnd test} through a
+ *       server-owned {@link MavenDaemon}.</li>
+ *   <li>{@code CI_STEP_TIMEOUT_MINUTES} — longest time one git or Maven
+ *       step may run (default 30).</li>
+ *   <li>{@code CI_BUILD_TIMEOUT_MINUTES} — longest time a whole build may
+ *       run (default 60).</li>
+ *   <li>{@code CI_PROCESS_SAMPLE_MS} — how often the CPU time and memory of
+ *       a running step are sampled (default 250).</li>
+ * </ul>
+ *
+ * <p>A step that passes either limit is killed together with every process
+ * it started, such as forked test JVMs, and the result is marked as timed
+ * out. {@link #cancel(String)} kills the process tree in the same way.</p>
+ *
+ * <p>With a {@link BuildResultCache}, a checked-out tree that was built
+ * before is not built again: the earlier result and its log are reused.
+ * With {@link BranchWorkspaces}, the build runs in the branch's kept
+ * workspace, updated to the new commit, so Maven only recompiles what
+ * changed.</p>
  */
 public class BuildProcessor {
 
+    /** Told when the compile or test phase of a build ends. */
+    @FunctionalInterface
+    public interface PhaseListener {
+
+        /**
+         * Called on the build thread when a phase ends; must return quickly.
+         *
+         * @param phase  {@link BuildEvent.Type#COMPILED} or
+         *               {@link BuildEvent.Type#TESTED}.
+         * @param result the result so far.
+         */
+        void phaseFinished(BuildEvent.Type phase, CIResultObject result);
+    }
+
+    /** Kills steps that run past their deadline, shared by all builds. */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "build-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Reason given to {@link #cancel(String)}, or null while not cancelled. */
+    private volatile String cancellationReason;
+
+    /** The limit a step ran past, or null while none did. */
+    private volatile String timeoutReason;
+
+    /** Longest time one step may run, in milliseconds. */
+    private long stepTimeoutMillis = Config.getLong("CI_STEP_TIMEOUT_MINUTES", 30) * 60_000;
+
+    /** Longest time the whole build may run, in milliseconds. */
+    private long buildTimeoutMillis = Config.getLong("CI_BUILD_TIMEOUT_MINUTES", 60) * 60_000;
+
+    /** When {@link #runBuild} started, for the build timeout. */
+    private long buildStartNanos = System.nanoTime();
+
+    /** The child process currently running for this build, if any. */
+    private volatile Process currentProcess;
+
+    /** Local mirrors to check out from, or null to clone from the remote. */
+    private RepositoryCache repositoryCache;
+
+    /** Clone URL of the mirror this build holds, released when it ends. */
+    private String acquiredMirrorUrl;
+
+    /** Whether to check out the exact pushed commit instead of the branch tip. */
+    private boolean exactCommit = "sha".equalsIgnoreCase(Config.get("CI_CHECKOUT_MODE", "branch"));
+
+    /** Whether exact-commit fetches use a blob-less partial clone. */
+    private boolean partialClone = Config.getBoolean("CI_PARTIAL_CLONE", false);
+
+    /** Directories for a sparse checkout, or empty for a full checkout. */
+    private List<String> sparsePaths = parsePaths(Config.get("CI_SPARSE_PATHS", ""));
+
+    /** Bytes transferred by the last checkout. */
+    private long checkoutBytes;
+
+    /** Shared local Maven repository, or null to use Maven's default. */
+    private DependencyCache dependencyCache;
+
+    /** Extra Maven arguments for this build, set up after checkout. */
+    private List<String> mavenArgs = List.of();
+
+    /** Whether compile and test run as one {@code mvn test} invocation. */
+    private boolean singleInvocation = !"split".equalsIgnoreCase(Config.get("CI_BUILD_RUNNER", "split"));
+
+    /** The Maven executable, {@code mvn} or a Maven daemon client. */
+    private String mavenExecutable = "mvn";
+
+    /** Where the build output is written, or null for a temporary file. */
+    private Path logFile;
+
+    /** The output of the running build, open while {@link #runBuild} runs. */
+    private BuildLog buildLog;
+
+    /** Told when a phase ends, or null. */
+    private PhaseListener phaseListener;
+
+    /** Results of earlier builds by tree, or null to always build. */
+    private BuildResultCache resultCache;
+
+    /** Whether a cached result may be reused, rather than only recorded. */
+    private boolean reuseResults;
+
+    /** Kept per-branch workspaces, or null to build in a temporary directory. */
+    private BranchWorkspaces workspaces;
+
+    /** Source of fresh build directories, or null for a plain temporary directory. */
+    private WorkspaceManager workspaceManager;
+
+    /** Checkouts of active branches made ahead of time, or null. */
+    private WarmWorkspacePool warmPool;
+
+    /** Whether the first Maven invocation runs {@code clean} first. */
+    private boolean cleanBuild;
+
+    /** How often the processes of a step are sampled for the phase records. */
+    private long sampleIntervalMillis = Config.getLong("CI_PROCESS_SAMPLE_MS", 250);
+
+    /** Time the build waited in the queue, or -1 if unknown. */
+    private long queueWaitMillis = -1;
+
+    /** The phase being measured, or null. */
+    private String currentPhase;
+    private long phaseStartNanos;
+    private Integer phaseExitCode;
+    private long phaseCpuMillis;
+    private long phasePeakRssKb;
+
     /** Constructs a new BuildProcessor instance. */
     public BuildProcessor() {
     }
 
+    /**
+     * Makes the build check out from a local mirror kept up to date by the
+     * given cache instead of cloning from the remote.
+     *
+     * @param repositoryCache the mirror cache, or null to clone directly.
+     */
+    public void setRepositoryCache(RepositoryCache repositoryCache) {
+        this.repositoryCache = repositoryCache;
+    }
+
+    /**
+     * Cancels the build. The process that is currently running is destroyed
+     * and no further steps are started; {@link #runBuild} then returns a
+     * result marked as cancelled.
+     *
+     * @param reason a short, human-readable reason for the cancellation.
+     */
+    public void cancel(String reason) {
+        cancellationReason = reason;
+        Process process = currentProcess;
+        if (process != null) {
+            destroyTree(process.toHandle());
+        }
+    }
+
+    /**
+     * Sets the step and build time limits. Overrides the
+     * {@code CI_STEP_TIMEOUT_MINUTES} and {@code CI_BUILD_TIMEOUT_MINUTES}
+     * settings.
+     *
+     * @param stepTimeoutMillis  longest time one step may run.
+     * @param buildTimeoutMillis longest time the whole build may run.
+     */
+    public void setTimeouts(long stepTimeoutMillis, long buildTimeoutMillis) {
+        this.stepTimeoutMillis = stepTimeoutMillis;
+        this.buildTimeoutMillis = buildTimeoutMillis;
+    }
+
+    /**
+     * Returns whether {@link #cancel(String)} has been called.
+     *
+     * @return true if the build was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancellationReason != null;
+    }
+
+    /**
+     * Makes the build resolve dependencies through the given shared local
+     * Maven repository.
+     *
+     * @param dependencyCache the dependency cache, or null to use Maven's
+     *                        default local repository.
+     */
+    public void setDependencyCache(DependencyCache dependencyCache) {
+        this.dependencyCache = dependencyCache;
+    }
+
+    /**
+     * Selects how Maven is run. In single-invocation mode one
+     * {@code mvn test} compiles and tests the project, which saves a JVM
+     * start and a project model load compared to {@code mvn compile}
+     * followed by {@code mvn test}; whether compilation or tests failed is
+     * read from the output.
+     *
+     * @param singleInvocation true to run one {@code mvn test}.
+     * @param mavenExecutable  the Maven executable, e.g. {@code "mvn"} or the
+     *                         {@code mvnd} client of a {@link MavenDaemon}.
+     */
+    public void setMavenRunner(boolean singleInvocation, String mavenExecutable) {
+        this.singleInvocation = singleInvocation;
+        this.mavenExecutable = mavenExecutable;
+    }
+
+    /**
+     * Sets the file the build output is streamed to. Without a file the
+     * output goes to a temporary file.
+     *
+     * @param logFile the log file, e.g. {@link BuildLog#pathFor(long)}.
+     */
+    public void setLogFile(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Sets the listener told when the compile and test phases end.
+     *
+     * @param phaseListener the listener, or null.
+     */
+    public void setPhaseListener(PhaseListener phaseListener) {
+        this.phaseListener = phaseListener;
+    }
+
+    /**
+     * Makes the build record its result for later builds of the same tree,
+     * and reuse the result of an earlier build of the same tree.
+     *
+     * @param resultCache the result cache, or null to always build.
+     * @param reuse       false to build even if a result is cached, e.g.
+     *                    when the push asked to bypass the cache; the new
+     *                    result then replaces the cached one.
+     */
+    public void setResultCache(BuildResultCache resultCache, boolean reuse) {
+        this.resultCache = resultCache;
+        this.reuseResults = reuse;
+    }
+
+    /**
+     * Sets how long the build waited in the queue, recorded as its
+     * {@code queue} phase.
+     *
+     * @param queueWaitMillis the wait in milliseconds.
+     */
+    public void setQueueWaitMillis(long queueWaitMillis) {
+        this.queueWaitMillis = queueWaitMillis;
+    }
+
+    /**
+     * Makes the build run in the kept workspace of its branch instead of a
+     * new temporary directory.
+     *
+     * @param workspaces the workspaces, or null for a fresh checkout per
+     *                   build.
+     */
+    public void setWorkspaces(BranchWorkspaces workspaces) {
+        this.workspaces = workspaces;
+    }
+
+    /**
+     * Makes a build that does not use a kept workspace check out into a
+     * directory from the given manager, which deletes it in the background
+     * once the build is done.
+     *
+     * @param workspaceManager the manager, or null for a temporary
+     *                         directory that is left behind.
+     */
+    public void setWorkspaceManager(WorkspaceManager workspaceManager) {
+        this.workspaceManager = workspaceManager;
+    }
+
+    /**
+     * Makes a build that does not use a kept workspace start from a warm
+     * checkout of its branch when the pool has one. Needs a workspace
+     * manager, which deletes the warm workspace after the build.
+     *
+     * @param warmPool the pool, or null to always check out from scratch.
+     */
+    public void setWarmPool(WarmWorkspacePool warmPool) {
+        this.warmPool = warmPool;
+    }
+
+    /**
+     * Tells the phase listener that a phase ended. A failing listener does
+     * not fail the build.
+     *
+     * @param phase  the phase that ended.
+     * @param result the result so far.
+     */
+    private void phaseFinished(BuildEvent.Type phase, CIResultObject result) {
+        if (phaseListener == null) {
+            return;
+        }
+        try {
+            phaseListener.phaseFinished(phase, result);
+        } catch (RuntimeException e) {
+            System.err.println("Phase listener failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Selects how the repository is checked out. Overrides the
+     * {@code CI_CHECKOUT_MODE}, {@code CI_PARTIAL_CLONE} and
+     * {@code CI_SPARSE_PATHS} settings.
+     *
+     * @param exactCommit  true to check out the pushed commit rather than the
+     *                     branch tip.
+     * @param partialClone true to fetch without file contents up front.
+     * @param sparsePaths  the directories to check out, or an empty list for
+     *                     all of them.
+     */
+    public void setCheckoutMode(boolean exactCommit, boolean partialClone, List<String> sparsePaths) {
+        this.exactCommit = exactCommit;
+        this.partialClone = partialClone;
+        this.sparsePaths = List.copyOf(sparsePaths);
+    }
+
     /**
      * Clones the repository at the given URL and branch into a temporary
      * directory, then runs {@code mvn compile} to check compilation.
@@ -30,81 +374,573 @@ public class BuildProcessor {
      */
     public CIResultObject runBuild(String repoUrl, String branch, String commitSHA) {
         CIResultObject result = new CIResultObject(commitSHA, branch);
+        if (markIfStopped(result)) {
+            return result;
+        }
+        buildStartNanos = System.nanoTime();
+        if (queueWaitMillis >= 0) {
+            result.addPhase(PhaseRecord.withoutProcess("queue", queueWaitMillis));
+        }
+        String cacheKey = null;
+        Path workspace = null;
+        Path scratch = null;
+        boolean warm = false;
 
         try {
-            // Create a temporary directory for cloning the repository
-            Path tempDir = Files.createTempDirectory("ci-build-");
-            File repoDir = tempDir.toFile();
+            // Stream all output to the log file; only its head and tail stay in memory
+            buildLog = new BuildLog(logFile != null ? logFile : Files.createTempFile("ci-build-", ".log"));
+            result.setLogFile(buildLog.getFile().toString());
+
+            // Build in the branch's workspace, or in a new temporary directory
+            if (workspaces != null) {
+                workspace = workspaces.acquire(repoUrl, branch);
+            } else if (workspaceManager != null) {
+                // A sparse checkout cannot start from a full warm one
+                if (warmPool != null && sparsePaths.isEmpty()) {
+                    scratch = warmPool.take(repoUrl, branch);
+                    warm = scratch != null;
+                }
+                if (scratch == null) {
+                    scratch = workspaceManager.allocate();
+                }
+            }
+            File repoDir = (workspace != null ? workspace
+                    : scratch != null ? scratch : Files.createTempDirectory("ci-build-")).toFile();
             System.out.println("Building in: " + repoDir.getAbsolutePath());
+            buildLog.appendLine("Building " + branch + " @ " + commitSHA + " in " + repoDir.getAbsolutePath());
 
-            // Clone the repository
-            int cloneExit = runProcess(repoDir, "git", "clone", "-b", branch, repoUrl, ".");
+            // Clone the repository, or update the workspace
+            long checkoutStart = System.nanoTime();
+            startPhase("checkout");
+            int cloneExit = workspace != null || warm
+                    ? updateWorkspace(repoDir, repoUrl, branch, commitSHA)
+                    : checkout(repoDir, repoUrl, branch, commitSHA);
+            result.setCheckoutMillis((System.nanoTime() - checkoutStart) / 1_000_000);
+            endPhase(result);
+            result.setCheckoutBytes(checkoutBytes);
+            System.out.println("Checkout took " + result.getCheckoutMillis() + " ms, fetched "
+                    + checkoutBytes + " bytes");
+            if (markIfStopped(result)) {
+                return result;
+            }
             if (cloneExit != 0) {
                 result.setBuildSuccessful(false);
                 result.setErrorMessage("Git clone failed with exit code: " + cloneExit);
                 return result;
             }
 
-            // Run mvn compile
-            ProcessBuilder compilePb = new ProcessBuilder("mvn", "compile");
-            compilePb.directory(repoDir);
-            compilePb.redirectErrorStream(true);
-            Process compileProcess = compilePb.start();
+            // The same tree with the same configuration gives the same result
+            if (resultCache != null && resultCache.isEnabled()) {
+                String tree = treeHash(repoDir);
+                if (markIfStopped(result)) {
+                    return result;
+                }
+                if (tree != null) {
+                    cacheKey = BuildResultCache.key(tree, buildConfig());
+                    BuildResultCache.Entry cached = reuseResults ? resultCache.lookup(cacheKey).orElse(null) : null;
+                    if (cached != null) {
+                        reuse(cached, result);
+                        cacheKey = null;
+                        return result;
+                    }
+                }
+            }
+
+            // Point Maven at the shared dependency cache
+            DependencyCache.Settings dependencies = null;
+            if (dependencyCache != null) {
+                startPhase("dependencies");
+                dependencies = dependencyCache.prepare(repoDir, this::runProcess);
+                endPhase(result);
+                mavenArgs = dependencies.mavenArgs();
+                if (dependencies.offline()) {
+                    System.out.println("Dependencies unchanged since last green build, running offline");
+                }
+            }
 
-            String output = captureOutput(compileProcess);
-            int compileExit = compileProcess.waitFor();
+            int testExit;
+            if (singleInvocation) {
+                // One mvn test runs both phases; the output tells which one failed
+                startPhase("test");
+                Process process = startProcess(repoDir, mavenCommand(cleanFirst("test")));
+                testExit = awaitProcess(process, "mvn test");
 
-            result.appendBuildLog(output);
+                if (markIfStopped(result)) {
+                    return result;
+                }
 
-            if (compileExit == 0) {
+                if (testExit != 0 && !isTestFailure(buildLog.tail())) {
+                    result.setBuildSuccessful(false);
+                    result.setErrorMessage("Compilation failed:\n" + buildLog.tail());
+                    System.out.println("Build failed with exit code: " + testExit);
+                    phaseFinished(BuildEvent.Type.COMPILED, result);
+                    return result;
+                }
                 result.setBuildSuccessful(true);
                 System.out.println("Build successful!");
+                phaseFinished(BuildEvent.Type.COMPILED, result);
             } else {
-                result.setBuildSuccessful(false);
-                result.setErrorMessage("Compilation failed:\n" + output);
-                System.out.println("Build failed with exit code: " + compileExit);
-                return result;
-            }
+                // Run mvn compile
+                startPhase("compile");
+                Process compileProcess = startProcess(repoDir, mavenCommand(cleanFirst("compile")));
+                int compileExit = awaitProcess(compileProcess, "mvn compile");
+                endPhase(result);
+
+                if (markIfStopped(result)) {
+                    return result;
+                }
 
-            // Run mvn test
-            ProcessBuilder testPb = new ProcessBuilder("mvn", "test");
-            testPb.directory(repoDir);
-            testPb.redirectErrorStream(true);
-            Process testProcess = testPb.start();
+                if (compileExit == 0) {
+                    result.setBuildSuccessful(true);
+                    System.out.println("Build successful!");
+                    phaseFinished(BuildEvent.Type.COMPILED, result);
+                } else {
+                    result.setBuildSuccessful(false);
+                    result.setErrorMessage("Compilation failed:\n" + buildLog.tail());
+                    System.out.println("Build failed with exit code: " + compileExit);
+                    phaseFinished(BuildEvent.Type.COMPILED, result);
+                    return result;
+                }
 
-            String testOutput = captureOutput(testProcess);
-            int testExit = testProcess.waitFor();
+                // Run mvn test
+                startPhase("test");
+                Process testProcess = startProcess(repoDir, mavenCommand("test"));
+                testExit = awaitProcess(testProcess, "mvn test");
 
-            result.appendBuildLog(testOutput);
+                if (markIfStopped(result)) {
+                    return result;
+                }
+            }
 
+            endPhase(result);
             if (testExit == 0) {
                 result.setTestsSuccessful(true);
                 System.out.println("Tests passed!");
-                // [P8] Notify Discord of success
-                DiscordNotifier.notify("SUCCESS", branch, "Build and Tests passed successfully!");
+                if (dependencies != null) {
+                    dependencyCache.markGreen(dependencies.pomHash());
+                }
             } else {
                 result.setTestsSuccessful(false);
-                result.setErrorMessage("Tests failed:\n" + testOutput);
+                result.setErrorMessage("Tests failed:\n" + buildLog.tail());
                 System.out.println("Tests failed with exit code: " + testExit);
-                // [P8] Notify Discord of test failure
-                DiscordNotifier.notify("FAILURE", branch, "Tests failed. Check logs for details.");
             }
+            phaseFinished(BuildEvent.Type.TESTED, result);
 
         } catch (Exception e) {
+            if (markIfStopped(result)) {
+                return result;
+            }
             result.setBuildSuccessful(false);
             result.setErrorMessage("Build exception: " + e.getMessage());
             e.printStackTrace();
-            // [P8] Notify Discord of exception
-            DiscordNotifier.notify("ERROR", branch, "CI Server Exception: " + e.getMessage());
+        } finally {
+            // A phase cut short by a failure, cancellation or timeout
+            endPhase(result);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, result);
+            }
+            releaseMirror();
+            releaseWorkspace(workspace, result);
+            if (scratch != null) {
+                workspaceManager.release(scratch);
+            }
+            closeLog(result);
         }
 
 
         return result;
     }
 
+    /**
+     * Starts measuring a phase: its wall time, and the exit code, CPU time
+     * and memory peak of the steps run until {@link #endPhase}.
+     *
+     * @param phase the phase name.
+     */
+    private void startPhase(String phase) {
+        currentPhase = phase;
+        phaseStartNanos = System.nanoTime();
+        phaseExitCode = null;
+        phaseCpuMillis = 0;
+        phasePeakRssKb = 0;
+    }
+
+    /**
+     * Adds the record of the phase being measured to the result, if any.
+     *
+     * @param result the build result.
+     */
+    private void endPhase(CIResultObject result) {
+        if (currentPhase == null) {
+            return;
+        }
+        result.addPhase(new PhaseRecord(currentPhase, (System.nanoTime() - phaseStartNanos) / 1_000_000,
+                phaseExitCode, phaseCpuMillis, phasePeakRssKb));
+        currentPhase = null;
+    }
+
+    /**
+     * Returns the hash of the tree checked out in {@code repoDir}. Like every
+     * other step, git is killed at the step or build timeout and on
+     * {@link #cancel(String)}.
+     *
+     * @param repoDir the checked-out repository.
+     * @return the tree hash, or null if git cannot tell it.
+     * @throws Exception if the git process cannot be started or is interrupted.
+     */
+    String treeHash(File repoDir) throws Exception {
+        Process process = startProcess(repoDir, "git", "rev-parse", "HEAD^{tree}");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int exit = awaitProcess(process, "git rev-parse", output);
+        String tree = output.toString(StandardCharsets.UTF_8).trim();
+        return exit == 0 && tree.matches("[0-9a-f]{40,64}") ? tree : null;
+    }
+
+    /**
+     * Describes the settings besides the checked-out files that can change
+     * the outcome of a build, for the result cache key.
+     *
+     * @return the configuration string.
+     */
+    String buildConfig() {
+        return (singleInvocation ? "single" : "split") + " " + String.join(",", sparsePaths);
+    }
+
+    /**
+     * Fills in a result from a cached one and copies the earlier log into
+     * this build's log.
+     *
+     * @param cached the earlier result.
+     * @param result the result to fill in.
+     * @throws Exception if the log cannot be written.
+     */
+    private void reuse(BuildResultCache.Entry cached, CIResultObject result) throws Exception {
+        result.setBuildSuccessful(cached.buildSuccessful());
+        result.setTestsSuccessful(cached.testsSuccessful());
+        result.setErrorMessage(cached.errorMessage());
+        result.setCachedFrom(cached.commitSHA());
+        System.out.println("Same tree as " + cached.commitSHA() + ", reusing its result");
+        buildLog.appendLine("Same tree as " + cached.commitSHA() + " was built before, reusing its result");
+        if (cached.logFile() != null && Files.isReadable(Path.of(cached.logFile()))) {
+            try (InputStream in = Files.newInputStream(Path.of(cached.logFile()))) {
+                buildLog.append(in);
+            }
+        }
+    }
+
+    /**
+     * Brings the branch workspace or warm workspace in {@code repoDir} to
+     * the pushed code.
+     *
+     * <p>A workspace with a checkout fetches the commit (from the mirror if
+     * there is a repository cache) and checks it out, removing untracked
+     * files other than {@code target/}. If that fails, or the workspace is
+     * empty, it is checked out from scratch as by {@link #checkout}. In a
+     * kept branch workspace, the build starts with {@code mvn clean} if the
+     * {@code pom.xml} files changed since the last build there.</p>
+     *
+     * @param repoDir   the workspace directory.
+     * @param repoUrl   the HTTPS clone URL of the repository.
+     * @param branch    the branch to check out.
+     * @param commitSHA the pushed commit, used in exact-commit mode.
+     * @return the exit code of the failing git command, or 0 on success.
+     * @throws Exception if a git process cannot be started or is interrupted.
+     */
+    int updateWorkspace(File repoDir, String repoUrl, String branch, String commitSHA) throws Exception {
+        Path dir = repoDir.toPath();
+        if (BranchWorkspaces.hasCheckout(dir)) {
+            checkoutBytes = 0;
+            String source = repoUrl;
+            if (repositoryCache != null) {
+                RepositoryCache.Lease mirror = repositoryCache.acquire(repoUrl, this::runProcess);
+                acquiredMirrorUrl = repoUrl;
+                checkoutBytes = mirror.fetchedBytes();
+                source = mirror.path().toAbsolutePath().toString();
+            }
+            int exit = runProcess(repoDir, "git", "fetch", "-q", source, exactCommit ? commitSHA : branch);
+            if (exit == 0) {
+                exit = runProcess(repoDir, "git", "checkout", "-q", "--force", "--detach", "FETCH_HEAD");
+            }
+            if (exit == 0) {
+                exit = runProcess(repoDir, "git", "clean", "-q", "-d", "-f", "-e", "target/");
+            }
+            if (exit == 0 && workspaces == null) {
+                buildLog.appendLine("Updated warm workspace");
+                return 0;
+            }
+            if (exit == 0) {
+                cleanBuild = workspaces.pomsChanged(dir);
+                buildLog.appendLine(cleanBuild
+                        ? "Updated workspace, pom.xml changed: building clean"
+                        : "Updated workspace, building incrementally");
+                return 0;
+            }
+            if (isCancelled() || timeoutReason != null) {
+                return exit;
+            }
+            buildLog.appendLine("Workspace update failed with exit code " + exit + ", checking out from scratch");
+            releaseMirror();
+        }
+        BranchWorkspaces.clear(dir);
+        int exit = checkout(repoDir, repoUrl, branch, commitSHA);
+        if (exit == 0 && workspaces != null) {
+            // Nothing to clean in a fresh checkout
+            workspaces.pomsChanged(dir);
+            cleanBuild = false;
+        }
+        return exit;
+    }
+
+    /**
+     * Releases the branch workspace, if one was used. A workspace whose
+     * build did not finish normally is marked to start clean next time.
+     *
+     * @param workspace the workspace, or null.
+     * @param result    the build result.
+     */
+    private void releaseWorkspace(Path workspace, CIResultObject result) {
+        if (workspace == null) {
+            return;
+        }
+        try {
+            String error = result.getErrorMessage();
+            if (result.isCancelled() || result.isTimedOut()
+                    || (error != null && !BuildResultCache.isCacheable(result))) {
+                workspaces.invalidate(workspace);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to mark workspace " + workspace + ": " + e.getMessage());
+        } finally {
+            workspaces.release(workspace);
+        }
+    }
+
+    /**
+     * Returns the goals of the first Maven invocation: the given phase,
+     * preceded by {@code clean} when the workspace holds stale output.
+     *
+     * @param phase the phase to run.
+     * @return the goals.
+     */
+    private String[] cleanFirst(String phase) {
+        return cleanBuild ? new String[] {"clean", phase} : new String[] {phase};
+    }
+
+    /**
+     * Prepares a warm workspace: clones the head of a branch into
+     * {@code repoDir} and resolves its dependencies into the dependency
+     * cache. Unlike {@link #checkout}, the clone does not borrow the
+     * mirror's objects, so it stays usable if the mirror is evicted before
+     * a build takes it.
+     *
+     * @param repoDir the empty directory to check out into.
+     * @param repoUrl the HTTPS clone URL of the repository.
+     * @param branch  the branch to check out.
+     * @return the exit code of the failing git command, or 0 on success.
+     * @throws Exception if a process cannot be started or is interrupted.
+     */
+    public int warmUp(File repoDir, String repoUrl, String branch) throws Exception {
+        buildStartNanos = System.nanoTime();
+        String source = repoUrl;
+        try {
+            if (repositoryCache != null) {
+                source = repositoryCache.acquire(repoUrl, this::runProcess).path().toAbsolutePath().toString();
+                acquiredMirrorUrl = repoUrl;
+            }
+            int exit = runProcess(repoDir, "git", "clone", "-q", "-b", branch, source, ".");
+            if (exit == 0 && repositoryCache != null) {
+                exit = runProcess(repoDir, "git", "remote", "set-url", "origin", repoUrl);
+            }
+            if (exit == 0 && dependencyCache != null) {
+                dependencyCache.prepare(repoDir, this::runProcess);
+            }
+            return exit;
+        } finally {
+            releaseMirror();
+        }
+    }
+
+    /**
+     * Checks out the pushed code into {@code repoDir}.
+     *
+     * <p>With a repository cache the mirror is fetched and the checkout is a
+     * local clone that borrows the mirror's objects ({@code --shared}), so
+     * nothing is copied or downloaded twice; the mirror stays marked as in
+     * use until the build ends. Without a cache the branch is cloned from
+     * {@code repoUrl}, or in exact-commit mode only the pushed commit is
+     * fetched (see {@link #fetchCommit}).</p>
+     *
+     * @param repoDir   the empty directory to check out into.
+     * @param repoUrl   the HTTPS clone URL of the repository.
+     * @param branch    the branch to check out.
+     * @param commitSHA the pushed commit, used in exact-commit mode.
+     * @return the exit code of the failing git command, or 0 on success.
+     * @throws Exception if a git process cannot be started or is interrupted.
+     */
+    int checkout(File repoDir, String repoUrl, String branch, String commitSHA) throws Exception {
+        checkoutBytes = 0;
+        if (repositoryCache == null) {
+            if (exactCommit) {
+                return fetchCommit(repoDir, repoUrl, commitSHA);
+            }
+            int exit = runProcess(repoDir, "git", "clone", "-b", branch, repoUrl, ".");
+            checkoutBytes = RepositoryCache.sizeOf(repoDir.toPath().resolve(".git"));
+            return exit;
+        }
+        RepositoryCache.Lease mirror = repositoryCache.acquire(repoUrl, this::runProcess);
+        acquiredMirrorUrl = repoUrl;
+        checkoutBytes = mirror.fetchedBytes();
+        String source = mirror.path().toAbsolutePath().toString();
+        int exit;
+        if (exactCommit) {
+            exit = runProcess(repoDir, "git", "clone", "--shared", "--no-checkout", source, ".");
+            if (exit == 0) {
+                exit = sparseCheckout(repoDir);
+            }
+            if (exit == 0) {
+                exit = runProcess(repoDir, "git", "checkout", "-q", "--detach", commitSHA);
+            }
+        } else {
+            exit = runProcess(repoDir, "git", "clone", "--shared", "-b", branch, source, ".");
+        }
+        if (exit != 0) {
+            return exit;
+        }
+        return runProcess(repoDir, "git", "remote", "set-url", "origin", repoUrl);
+    }
+
+    /**
+     * Fetches exactly one commit, without history, into an empty repository
+     * and checks it out. Optionally leaves out file contents until checkout
+     * ({@code --filter=blob:none}) and restricts the checkout to
+     * {@code CI_SPARSE_PATHS}, so only the needed blobs are downloaded.
+     *
+     * @param repoDir   the empty directory to check out into.
+     * @param repoUrl   the HTTPS clone URL of the repository.
+     * @param commitSHA the commit to check out.
+     * @return the exit code of the failing git command, or 0 on success.
+     * @throws Exception if a git process cannot be started or is interrupted.
+     */
+    int fetchCommit(File repoDir, String repoUrl, String commitSHA) throws Exception {
+        int exit = runProcess(repoDir, "git", "init", "-q");
+        if (exit == 0) {
+            exit = runProcess(repoDir, "git", "remote", "add", "origin", repoUrl);
+        }
+        if (exit == 0) {
+            exit = sparseCheckout(repoDir);
+        }
+        if (exit == 0) {
+            List<String> fetch = new ArrayList<>(List.of("git", "fetch", "-q", "--depth=1"));
+            if (partialClone) {
+                fetch.add("--filter=blob:none");
+            }
+            fetch.addAll(List.of("origin", commitSHA));
+            exit = runProcess(repoDir, fetch.toArray(String[]::new));
+        }
+        if (exit == 0) {
+            exit = runProcess(repoDir, "git", "checkout", "-q", "--detach", "FETCH_HEAD");
+        }
+        // Includes blobs fetched lazily by a partial-clone checkout
+        checkoutBytes = RepositoryCache.sizeOf(repoDir.toPath().resolve(".git/objects"));
+        return exit;
+    }
+
+    /**
+     * Restricts the working tree to {@code CI_SPARSE_PATHS}, if any are set.
+     * Must run before the first checkout.
+     *
+     * @param repoDir the repository directory.
+     * @return the git exit code, or 0 if no sparse paths are configured.
+     * @throws Exception if the git process cannot be started or is interrupted.
+     */
+    private int sparseCheckout(File repoDir) throws Exception {
+        if (sparsePaths.isEmpty()) {
+            return 0;
+        }
+        List<String> command = new ArrayList<>(List.of("git", "sparse-checkout", "set", "--cone"));
+        command.addAll(sparsePaths);
+        return runProcess(repoDir, command.toArray(String[]::new));
+    }
+
+    /**
+     * Builds the Maven command line for lifecycle phases, including the
+     * dependency cache arguments.
+     *
+     * @param phases the phases to run (e.g. {@code "compile"}).
+     * @return the command and its arguments.
+     */
+    String[] mavenCommand(String... phases) {
+        List<String> command = new ArrayList<>();
+        command.add(mavenExecutable);
+        command.addAll(mavenArgs);
+        command.addAll(List.of(phases));
+        return command.toArray(String[]::new);
+    }
+
+    /**
+     * Tells from the output of a failed {@code mvn test} whether the failure
+     * happened in the test phase rather than earlier. Compiling the tests
+     * counts as the test phase, as it does when {@code mvn compile} and
+     * {@code mvn test} run separately.
+     *
+     * @param output the Maven output.
+     * @return true if the main code compiled and the tests failed.
+     */
+    static boolean isTestFailure(String output) {
+        for (String line : output.split("\n")) {
+            if (line.contains("Failed to execute goal")) {
+                return line.contains("maven-surefire-plugin") || line.contains(":testCompile");
+            }
+        }
+        return output.contains("There are test failures")
+                || output.contains("There were test failures");
+    }
+
+    /**
+     * Splits a comma-separated list of paths, dropping blanks.
+     *
+     * @param value the comma-separated paths.
+     * @return the paths, or an empty list.
+     */
+    static List<String> parsePaths(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(p -> !p.isEmpty())
+                .toList();
+    }
+
+    /**
+     * Releases the mirror used by {@link #checkout}, if any.
+     */
+    private void releaseMirror() {
+        if (acquiredMirrorUrl != null) {
+            repositoryCache.release(acquiredMirrorUrl);
+            acquiredMirrorUrl = null;
+        }
+    }
+
+    /**
+     * Closes the build log and puts its summary into the result.
+     *
+     * @param result the result to update.
+     */
+    private void closeLog(CIResultObject result) {
+        if (buildLog == null) {
+            return;
+        }
+        try {
+            buildLog.close();
+        } catch (Exception e) {
+            System.err.println("Failed to close build log " + buildLog.getFile() + ": " + e.getMessage());
+        }
+        result.setBuildLog(buildLog.summary());
+        buildLog = null;
+    }
+
     /**
      * Runs a process with the given command in the specified directory and
-     * returns the exit code.
+     * returns the exit code. While a build is running the output goes to its
+     * log; otherwise it is discarded.
      *
      * @param workDir the working directory for the process.
      * @param command the command and arguments to execute.
@@ -112,13 +948,171 @@ public class BuildProcessor {
      * @throws Exception if the process cannot be started or is interrupted.
      */
     int runProcess(File workDir, String... command) throws Exception {
+        Process process = startProcess(workDir, command);
+        return awaitProcess(process, command.length > 1 ? command[0] + " " + command[1] : command[0]);
+    }
+
+    /**
+     * Copies the output of a step to the build log (or discards it outside a
+     * build) and waits for the step to end. A step still running at its
+     * deadline, the step or the build timeout whichever comes first, is
+     * killed with its process tree and the build is marked as timed out.
+     * The exit code, CPU time and memory peak of the step count towards the
+     * current phase.
+     *
+     * @param process the running step.
+     * @param step    a short name of the step for the timeout reason, e.g.
+     *                {@code "mvn test"}.
+     * @return the exit code of the process.
+     * @throws Exception if the output cannot be read or the wait is
+     *                   interrupted.
+     */
+    int awaitProcess(Process process, String step) throws Exception {
+        return awaitProcess(process, step, null);
+    }
+
+    /**
+     * Waits for a step like {@link #awaitProcess(Process, String)}, but
+     * collects its output instead of logging it.
+     *
+     * @param process the running step.
+     * @param step    a short name of the step for the timeout reason.
+     * @param capture receives the output of the step, or null to log it.
+     * @return the exit code of the process.
+     * @throws Exception if the output cannot be read or the wait is
+     *                   interrupted.
+     */
+    int awaitProcess(Process process, String step, OutputStream capture) throws Exception {
+        long buildLeftMillis = buildTimeoutMillis - (System.nanoTime() - buildStartNanos) / 1_000_000;
+        String reason = buildLeftMillis < stepTimeoutMillis
+                ? "Build timed out after " + minutes(buildTimeoutMillis)
+                : step + " timed out after " + minutes(stepTimeoutMillis);
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> timeOut(process, reason),
+                Math.max(0, Math.min(buildLeftMillis, stepTimeoutMillis)), TimeUnit.MILLISECONDS);
+        ProcessSampler sampler = new ProcessSampler(process, WATCHDOG, sampleIntervalMillis);
+        try {
+            // Drain output to prevent blocking; ends when the process tree is gone
+            BuildLog log = buildLog;
+            if (capture != null) {
+                process.getInputStream().transferTo(capture);
+            } else if (log != null) {
+                log.append(process.getInputStream());
+            } else {
+                process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            }
+            int exit = process.waitFor();
+            phaseExitCode = exit;
+            return exit;
+        } finally {
+            watchdog.cancel(false);
+            ProcessSampler.Usage usage = sampler.stop();
+            phaseCpuMillis += usage.cpuMillis();
+            phasePeakRssKb = Math.max(phasePeakRssKb, usage.peakRssKb());
+        }
+    }
+
+    /**
+     * Stops a step that ran past its deadline.
+     *
+     * @param process the step.
+     * @param reason  the limit it passed.
+     */
+    private void timeOut(Process process, String reason) {
+        if (!process.isAlive()) {
+            return;
+        }
+        timeoutReason = reason;
+        System.out.println("Build step killed: " + reason);
+        destroyTree(process.toHandle());
+    }
+
+    /**
+     * Formats a time limit for a timeout reason.
+     */
+    private static String minutes(long millis) {
+        return millis % 60_000 == 0 ? millis / 60_000 + " min" : millis + " ms";
+    }
+
+    /**
+     * Kills a process and all of its descendants. Each process is killed
+     * after its children have been listed, so that it cannot start new ones
+     * that would be missed, and the children are still found after their
+     * parent is gone.
+     *
+     * @param root the top of the process tree.
+     */
+    static void destroyTree(ProcessHandle root) {
+        Deque<ProcessHandle> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            ProcessHandle process = pending.pop();
+            List<ProcessHandle> children = process.children().toList();
+            process.destroyForcibly();
+            children.forEach(pending::push);
+        }
+    }
+
+    /**
+     * Starts a process with stderr merged into stdout and remembers it so that
+     * {@link #cancel(String)} can destroy it.
+     *
+     * @param workDir the working directory for the process.
+     * @param command the command and arguments to execute.
+     * @return the started process.
+     * @throws Exception if the process cannot be started.
+     */
+    Process startProcess(File workDir, String... command) throws Exception {
         ProcessBuilder pb = new ProcessBuilder(command);
         pb.directory(workDir);
         pb.redirectErrorStream(true);
         Process process = pb.start();
-        // Drain output to prevent blocking
-        captureOutput(process);
-        return process.waitFor();
+        currentProcess = process;
+        // cancel() may have run between the check and start()
+        if (isCancelled()) {
+            destroyTree(process.toHandle());
+        }
+        return process;
+    }
+
+    /**
+     * Marks the result as cancelled if {@link #cancel(String)} has been
+     * called, or as timed out if a step was killed at its deadline.
+     *
+     * @param result the result to update.
+     * @return true if the build was stopped and should not go on.
+     */
+    private boolean markIfStopped(CIResultObject result) {
+        String timeout = timeoutReason;
+        if (timeout != null && cancellationReason == null) {
+            result.setTimeoutReason(timeout);
+            System.out.println("Build timed out: " + timeout);
+            appendToLog("Build timed out: " + timeout);
+            return true;
+        }
+        String reason = cancellationReason;
+        if (reason == null) {
+            return false;
+        }
+        result.setCancellationReason(reason);
+        System.out.println("Build cancelled: " + reason);
+        return true;
+    }
+
+    /**
+     * Writes a line to the build log, if one is open.
+     *
+     * @param line the text to append.
+     */
+    private void appendToLog(String line) {
+        BuildLog log = buildLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.appendLine(line);
+        } catch (IOException e) {
+            System.err.println("Failed to write build log: " + e.getMessage());
+        }
     }
 
     /**
@@ -0,0 +1,171 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the outcome of recent builds by the git tree they built, so
+ * that a commit with the same files is not compiled and tested again.
+ *
+ * <p>The key is the tree hash of the checked-out commit together with the
+ * build configuration (see {@link #key}). Two commits with the same tree,
+ * such as a new branch created from {@code main} or a rebase that changes
+ * no files, share a key. Only definite outcomes are stored: a build that
+ * compiled and was tested, or one that failed to compile. Builds that
+ * were cancelled, timed out or failed with an exception are not, since they
+ * say nothing about the code. When the cache is full the least recently
+ * used entry is evicted.</p>
+ *
+ * <p>A push whose head commit message contains {@link #BYPASS_MARKER} is
+ * built from scratch; its result then replaces the cached one.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_RESULT_CACHE_SIZE} — results kept (default 200);
+ *       {@code 0} turns the cache off.</li>
+ * </ul>
+ */
+public class BuildResultCache {
+
+    /** Commit message text that makes a push skip the cache. */
+    public static final String BYPASS_MARKER = "[no cache]";
+
+    /**
+     * A cached build outcome.
+     *
+     * @param commitSHA       the commit that was built.
+     * @param buildSuccessful whether it compiled.
+     * @param testsSuccessful whether its tests passed.
+     * @param errorMessage    the error message, or null.
+     * @param logFile         the file holding its full log, or null.
+     */
+    public record Entry(String commitSHA, boolean buildSuccessful, boolean testsSuccessful,
+            String errorMessage, String logFile) {
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache with the {@code CI_RESULT_CACHE_SIZE} capacity.
+     */
+    public BuildResultCache() {
+        this(Config.getInt("CI_RESULT_CACHE_SIZE", 200));
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity the number of results kept.
+     */
+    public BuildResultCache(int capacity) {
+        this.capacity = capacity;
+        // Access order makes the eldest entry the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > BuildResultCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns whether results are kept at all.
+     *
+     * @return true if the capacity is positive.
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Builds the cache key of a build.
+     *
+     * @param treeHash the tree hash of the checked-out commit.
+     * @param config   everything besides the files that changes the
+     *                 outcome, e.g. the sparse checkout paths.
+     * @return the key.
+     */
+    public static String key(String treeHash, String config) {
+        return treeHash + " " + config;
+    }
+
+    /**
+     * Looks up the result of an earlier build, marking it as recently used.
+     *
+     * @param key the key from {@link #key}.
+     * @return the cached result, if any.
+     */
+    public synchronized Optional<Entry> lookup(String key) {
+        Entry entry = entries.get(key);
+        (entry == null ? missCount : hitCount).incrementAndGet();
+        return Optional.ofNullable(entry);
+    }
+
+    /**
+     * Stores the result of a build, unless it was cancelled, timed out or
+     * failed with an exception.
+     *
+     * @param key    the key from {@link #key}.
+     * @param result the finished build.
+     * @return true if the result was stored.
+     */
+    public synchronized boolean put(String key, CIResultObject result) {
+        if (!isEnabled() || !isCacheable(result)) {
+            return false;
+        }
+        entries.put(key, new Entry(result.getCommitSHA(), result.isBuildSuccessful(),
+                result.isTestsSuccessful(), result.getErrorMessage(), result.getLogFile()));
+        return true;
+    }
+
+    /**
+     * Returns whether a result depends only on the code that was built.
+     *
+     * @param result the finished build.
+     * @return true for a build that was tested or failed to compile.
+     */
+    static boolean isCacheable(CIResultObject result) {
+        if (result.isCancelled() || result.isTimedOut()) {
+            return false;
+        }
+        String error = result.getErrorMessage();
+        if (result.isBuildSuccessful()) {
+            return error == null || error.startsWith("Tests failed");
+        }
+        return error != null && error.startsWith("Compilation failed");
+    }
+
+    /**
+     * Returns the number of results kept.
+     *
+     * @return the size.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found a result.
+     *
+     * @return the hit count.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups that found nothing.
+     *
+     * @return the miss count.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
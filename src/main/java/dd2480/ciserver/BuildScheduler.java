@@ -0,0 +1,570 @@
+package dd2480.ciserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Runs builds on a fixed pool of worker threads fed by a bounded queue.
+ *
+ * <p>The queue is a plain deque guarded by a lock rather than a
+ * {@code ThreadPoolExecutor}, so that the server can report the position of
+ * a newly queued build and refuse work once the queue is full.</p>
+ *
+ * <p>Pushes to the same repository and branch are coalesced: a newer push
+ * replaces a build of that branch that is still waiting (keeping its place
+ * in the queue), and cancels a build of that branch that is already running
+ * an older commit.</p>
+ *
+ * <p>A build can also be cancelled by id with {@link #cancel(long, String)}:
+ * a waiting build is taken out of the queue, a running one is stopped.</p>
+ *
+ * <p>{@link #pause(String)} stops workers from starting new builds, e.g.
+ * while the disk is nearly full; builds are still queued, and running
+ * builds finish.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_WORKERS} — number of concurrent builds (default: see
+ *       {@link #defaultWorkerCount()}).</li>
+ *   <li>{@code CI_QUEUE_CAPACITY} — maximum number of waiting builds
+ *       (default 100).</li>
+ *   <li>{@code CI_BUILD_MEMORY_MB} — memory budget of one build, used to
+ *       derive the default worker count (default 1024).</li>
+ *   <li>{@code CI_COALESCE} — whether newer pushes supersede older builds
+ *       of the same branch (default true).</li>
+ * </ul>
+ */
+public class BuildScheduler {
+
+    /** What {@link #cancel(long, String)} did. */
+    public enum CancelOutcome {
+        /** No waiting or running build has the id. */
+        NOT_FOUND,
+        /** The build was waiting and has been taken out of the queue. */
+        DEQUEUED,
+        /** The build is running and is being stopped. */
+        STOPPING
+    }
+
+    private final int workerCount;
+    private final int capacity;
+    private final Consumer<BuildJob> pipeline;
+    private final boolean coalesce;
+    private volatile BiConsumer<BuildJob, BuildJob> supersededListener = (old, newer) -> { };
+    private volatile Consumer<BuildJob> cancelledListener = job -> { };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LinkedList<BuildJob> queue = new LinkedList<>();
+    /** The newest running build of each branch, to find the build a push supersedes. */
+    private final Map<String, BuildJob> runningByBranch = new HashMap<>();
+    /** Every running build by id; a branch may have more than one without coalescing. */
+    private final Map<Long, BuildJob> runningById = new HashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean running;
+    private String pauseReason;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong runningSupersededCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a scheduler using the {@code CI_WORKERS} and
+     * {@code CI_QUEUE_CAPACITY} settings.
+     *
+     * @param pipeline the work to perform for each job.
+     */
+    public BuildScheduler(Consumer<BuildJob> pipeline) {
+        this(Config.getInt("CI_WORKERS", defaultWorkerCount()),
+                Config.getInt("CI_QUEUE_CAPACITY", 100), pipeline);
+    }
+
+    /**
+     * Creates a scheduler with an explicit pool size and queue capacity.
+     *
+     * @param workerCount the number of builds that may run at once.
+     * @param capacity    the maximum number of builds waiting in the queue.
+     * @param pipeline    the work to perform for each job.
+     * @throws IllegalArgumentException if either size is less than one.
+     */
+    public BuildScheduler(int workerCount, int capacity, Consumer<BuildJob> pipeline) {
+        if (workerCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Worker count and queue capacity must be at least 1");
+        }
+        this.workerCount = workerCount;
+        this.capacity = capacity;
+        this.pipeline = pipeline;
+        this.coalesce = Config.getBoolean("CI_COALESCE", true);
+    }
+
+    /**
+     * Sets the callback invoked when a waiting job is replaced by a newer push
+     * to the same branch. The callback receives the replaced job and the job
+     * that replaced it, and runs on the thread that submitted the newer job.
+     *
+     * @param listener the callback.
+     */
+    public void setSupersededListener(BiConsumer<BuildJob, BuildJob> listener) {
+        this.supersededListener = listener;
+    }
+
+    /**
+     * Sets the callback invoked when a waiting job is taken out of the queue
+     * by {@link #cancel(long, String)}. It runs on the cancelling thread.
+     *
+     * @param listener the callback.
+     */
+    public void setCancelledListener(Consumer<BuildJob> listener) {
+        this.cancelledListener = listener;
+    }
+
+    /**
+     * Returns the default number of concurrent builds: the number of cores,
+     * limited so that every build gets {@code CI_BUILD_MEMORY_MB} of the
+     * machine's physical memory.
+     *
+     * @return the default worker count, at least 1.
+     */
+    static int defaultWorkerCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long perBuild = Config.getLong("CI_BUILD_MEMORY_MB", 1024) * 1024 * 1024;
+        long memory = Runtime.getRuntime().maxMemory();
+        if (ManagementFactory.getOperatingSystemMXBean()
+                instanceof com.sun.management.OperatingSystemMXBean os) {
+            memory = os.getTotalMemorySize();
+        }
+        long byMemory = perBuild > 0 ? memory / perBuild : cores;
+        return (int) Math.max(1, Math.min(cores, byMemory));
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (running) {
+                return;
+            }
+            running = true;
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(this::workLoop, "build-worker-" + (i + 1));
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Build scheduler started with " + workerCount
+                + " workers and queue capacity " + capacity);
+    }
+
+    /**
+     * Stops accepting work and interrupts the workers. Jobs still in the
+     * queue are discarded.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            queue.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Adds a job to the queue. If a job for the same branch is already
+     * waiting, the new job takes its place instead; if one is running an
+     * older commit, that build is cancelled.
+     *
+     * @param job the job to queue.
+     * @return the 1-based position of the job in the queue, or {@code -1} if
+     *         the queue is full.
+     */
+    public int submit(BuildJob job) {
+        BuildJob replaced = null;
+        BuildJob stopped = null;
+        int position;
+        lock.lock();
+        try {
+            if (coalesce) {
+                ListIterator<BuildJob> it = queue.listIterator();
+                while (it.hasNext()) {
+                    BuildJob waiting = it.next();
+                    if (waiting.getBranchKey().equals(job.getBranchKey())) {
+                        it.set(job);
+                        replaced = waiting;
+                        break;
+                    }
+                }
+            }
+            if (replaced != null) {
+                position = queue.indexOf(job) + 1;
+                supersededCount.incrementAndGet();
+            } else if (queue.size() >= capacity) {
+                rejectedCount.incrementAndGet();
+                return -1;
+            } else {
+                queue.addLast(job);
+                position = queue.size();
+                notEmpty.signal();
+            }
+            if (coalesce) {
+                stopped = supersededRunning(job);
+            }
+            acceptedCount.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+
+        // Killing processes takes a while; the lock is free by now
+        if (stopped != null) {
+            stopped.cancel(supersededReason(job));
+            System.out.println("Cancelling running build " + stopped.getId()
+                    + " superseded by build " + job.getId());
+        }
+        if (replaced != null) {
+            replaced.cancel(supersededReason(job));
+            System.out.println("Build " + replaced.getId() + " superseded by build " + job.getId());
+            supersededListener.accept(replaced, job);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the running build of the same branch as {@code job}, if it is
+     * building a different commit and so is superseded. Must be called with
+     * the lock held; the caller cancels the build after releasing it.
+     *
+     * @param job the newly submitted job.
+     * @return the build to cancel, or null.
+     */
+    private BuildJob supersededRunning(BuildJob job) {
+        BuildJob current = runningByBranch.get(job.getBranchKey());
+        if (current != null && !current.getPayload().getCommitSHA()
+                .equals(job.getPayload().getCommitSHA())) {
+            runningSupersededCount.incrementAndGet();
+            return current;
+        }
+        return null;
+    }
+
+    /**
+     * Cancels a build by id. A waiting build is removed from the queue and
+     * reported to the cancelled listener; a running build is stopped and
+     * finishes with a cancelled result.
+     *
+     * @param buildId the id of the build.
+     * @param reason  a short, human-readable reason for the cancellation.
+     * @return what was done.
+     */
+    public CancelOutcome cancel(long buildId, String reason) {
+        BuildJob dequeued = null;
+        BuildJob stopping = null;
+        lock.lock();
+        try {
+            ListIterator<BuildJob> it = queue.listIterator();
+            while (it.hasNext()) {
+                BuildJob waiting = it.next();
+                if (waiting.getId() == buildId) {
+                    it.remove();
+                    dequeued = waiting;
+                    break;
+                }
+            }
+            if (dequeued == null) {
+                stopping = runningById.get(buildId);
+                if (stopping == null) {
+                    return CancelOutcome.NOT_FOUND;
+                }
+            }
+            cancelledCount.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        // Cancelling a running build kills its processes, so it is done without the lock
+        if (stopping != null) {
+            stopping.cancel(reason);
+            System.out.println("Cancelling running build " + buildId + ": " + reason);
+            return CancelOutcome.STOPPING;
+        }
+        dequeued.cancel(reason);
+        System.out.println("Build " + buildId + " removed from the queue: " + reason);
+        cancelledListener.accept(dequeued);
+        return CancelOutcome.DEQUEUED;
+    }
+
+    /**
+     * Stops starting new builds until {@link #resume()} is called. Builds
+     * that are running go on; new builds are still queued.
+     *
+     * @param reason why the scheduler is paused, for logs.
+     */
+    public void pause(String reason) {
+        lock.lock();
+        try {
+            if (pauseReason == null) {
+                System.err.println("Build scheduler paused: " + reason);
+            }
+            pauseReason = reason;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets workers start queued builds again after {@link #pause(String)}.
+     */
+    public void resume() {
+        lock.lock();
+        try {
+            if (pauseReason != null) {
+                System.out.println("Build scheduler resumed");
+            }
+            pauseReason = null;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the scheduler is paused.
+     *
+     * @return true between {@link #pause(String)} and {@link #resume()}.
+     */
+    public boolean isPaused() {
+        lock.lock();
+        try {
+            return pauseReason != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Builds the description used for a build replaced by {@code newer}.
+     *
+     * @param newer the job that supersedes the old one.
+     * @return the cancellation reason.
+     */
+    static String supersededReason(BuildJob newer) {
+        String sha = newer.getPayload().getCommitSHA();
+        return "Superseded by " + sha.substring(0, Math.min(7, sha.length()));
+    }
+
+    /**
+     * Takes jobs from the queue and runs the pipeline until shut down.
+     */
+    private void workLoop() {
+        while (true) {
+            BuildJob job;
+            lock.lock();
+            try {
+                while (running && (queue.isEmpty() || pauseReason != null)) {
+                    notEmpty.await();
+                }
+                if (!running) {
+                    return;
+                }
+                job = queue.pollFirst();
+                runningByBranch.put(job.getBranchKey(), job);
+                runningById.put(job.getId(), job);
+                activeCount.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            job.markStarted();
+            long wait = job.getQueueWaitNanos();
+            totalWaitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+
+            try {
+                pipeline.accept(job);
+            } catch (RuntimeException e) {
+                System.err.println("Build " + job.getId() + " failed: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                lock.lock();
+                try {
+                    runningByBranch.remove(job.getBranchKey(), job);
+                    runningById.remove(job.getId());
+                } finally {
+                    lock.unlock();
+                }
+                activeCount.decrementAndGet();
+                completedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of jobs waiting to be picked up by a worker.
+     *
+     * @return the current queue depth.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether a build is still waiting in the queue or running, i.e.
+     * whether its log may still grow.
+     *
+     * @param buildId the id of the build.
+     * @return true if the build has not finished yet.
+     */
+    public boolean isQueuedOrRunning(long buildId) {
+        lock.lock();
+        try {
+            if (runningById.containsKey(buildId)) {
+                return true;
+            }
+            for (BuildJob job : queue) {
+                if (job.getId() == buildId) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of builds cancelled by id.
+     *
+     * @return the cancelled count.
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Returns the number of builds currently running.
+     *
+     * @return the number of busy workers.
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Returns the size of the worker pool.
+     *
+     * @return the number of workers.
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Returns the maximum number of jobs the queue holds.
+     *
+     * @return the queue capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of jobs accepted into the queue.
+     *
+     * @return the accepted job count.
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs refused because the queue was full.
+     *
+     * @return the rejected job count.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of waiting jobs replaced in the queue by newer
+     * pushes. Running jobs stopped for a newer push are counted by
+     * {@link #getRunningSupersededCount()}.
+     *
+     * @return the superseded job count.
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * Returns the number of running jobs stopped because a newer commit was
+     * pushed to their branch.
+     *
+     * @return the count of running jobs superseded.
+     */
+    public long getRunningSupersededCount() {
+        return runningSupersededCount.get();
+    }
+
+    /**
+     * Returns the number of jobs whose pipeline has finished.
+     *
+     * @return the completed job count.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the mean time started jobs spent in the queue.
+     *
+     * @return the average queue wait in milliseconds, or 0 if no job has started.
+     */
+    public long getAverageWaitMillis() {
+        long started = completedCount.get() + activeCount.get();
+        if (started == 0) {
+            return 0;
+        }
+        return totalWaitNanos.get() / started / 1_000_000;
+    }
+
+    /**
+     * Returns the longest time a started job spent in the queue.
+     *
+     * @return the maximum queue wait in milliseconds.
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000;
+    }
+}
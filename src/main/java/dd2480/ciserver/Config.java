@@ -0,0 +1,84 @@
+package dd2480.ciserver;
+
+/**
+ * Reads server settings. A setting is looked up first in the environment
+ * (production) and then in the system properties (tests and local runs),
+ * falling back to the supplied default when neither is set.
+ */
+public final class Config {
+
+    /** Private constructor to prevent instantiation. */
+    private Config() {
+    }
+
+    /**
+     * Returns the value of a setting as a string.
+     *
+     * @param key          the setting name (e.g. {@code "CI_WORKERS"}).
+     * @param defaultValue the value to use if the setting is not present.
+     * @return the configured value, or {@code defaultValue}.
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getenv(key);
+        if (value == null || value.isBlank()) {
+            value = System.getProperty(key);
+        }
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns the value of a setting as an integer.
+     *
+     * @param key          the setting name.
+     * @param defaultValue the value to use if the setting is missing, not a
+     *                     number or out of the {@code int} range.
+     * @return the configured value, or {@code defaultValue}.
+     */
+    public static int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns the value of a setting as a long.
+     *
+     * @param key          the setting name.
+     * @param defaultValue the value to use if the setting is missing or not a number.
+     * @return the configured value, or {@code defaultValue}.
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a setting as a boolean. Only {@code "true"} (any
+     * case) is treated as true.
+     *
+     * @param key          the setting name.
+     * @param defaultValue the value to use if the setting is missing.
+     * @return the configured value, or {@code defaultValue}.
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,230 @@
+package dd2480.ciserver;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises webhooks that GitHub delivers more than once, so that a
+ * redelivery is acknowledged without queuing a second build.
+ *
+ * <p>A webhook is a duplicate if its {@code X-GitHub-Delivery} id, or its
+ * repository and commit SHA, were seen within the last
+ * {@code CI_DEDUP_TTL_MINUTES}. Both keys are kept in memory, oldest first,
+ * and the oldest are dropped once there are more than
+ * {@code CI_DEDUP_MAX_ENTRIES}. Builds of the same repository that already
+ * passed or failed are also found by SHA in the build history, so
+ * redeliveries are still caught after a restart. A build that is superseded,
+ * cancelled or times out is released, so its commit can be pushed again.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_DEDUP_TTL_MINUTES} — how long a delivery is remembered
+ *       (default 60).</li>
+ *   <li>{@code CI_DEDUP_MAX_ENTRIES} — most delivery ids and commits kept
+ *       in memory (default 10000).</li>
+ * </ul>
+ */
+public class DeliveryDeduplicator {
+
+    /** When a key was seen and which build it started. */
+    private record Seen(long buildId, long atMillis) {
+    }
+
+    private final BuildHistoryStore history;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Seen> deliveries = new LinkedHashMap<>();
+    private final Map<String, Seen> commits = new LinkedHashMap<>();
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    /**
+     * Creates a deduplicator with the {@code CI_DEDUP_*} settings.
+     *
+     * @param history the build history to check for finished builds, or
+     *                null to check memory only.
+     */
+    public DeliveryDeduplicator(BuildHistoryStore history) {
+        this(history, Config.getInt("CI_DEDUP_MAX_ENTRIES", 10_000),
+                TimeUnit.MINUTES.toMillis(Config.getLong("CI_DEDUP_TTL_MINUTES", 60)));
+    }
+
+    /**
+     * Creates a deduplicator.
+     *
+     * @param history    the build history to check for finished builds, or
+     *                   null to check memory only.
+     * @param maxEntries most delivery ids, and most commits, kept in memory.
+     * @param ttlMillis  how long a delivery is remembered.
+     */
+    public DeliveryDeduplicator(BuildHistoryStore history, int maxEntries, long ttlMillis) {
+        this.history = history;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Claims a webhook for a build, unless it is a duplicate. Checking and
+     * recording happen together, so of two concurrent deliveries of the same
+     * push only one is claimed.
+     *
+     * @param deliveryId the {@code X-GitHub-Delivery} header, or null.
+     * @param job        the build the webhook would start.
+     * @return empty if the build should run, otherwise a description of the
+     *         earlier build.
+     */
+    public synchronized Optional<String> claim(String deliveryId, BuildJob job) {
+        long now = System.currentTimeMillis();
+        expire(deliveries, now);
+        expire(commits, now);
+
+        String commitKey = commitKey(job);
+        Seen seen = deliveryId == null ? null : deliveries.get(deliveryId);
+        if (seen == null && commitKey != null) {
+            seen = commits.get(commitKey);
+        }
+        if (seen != null) {
+            duplicateCount.incrementAndGet();
+            return Optional.of("build " + seen.buildId());
+        }
+        Optional<String> saved = findInHistory(job, now);
+        if (saved.isPresent()) {
+            duplicateCount.incrementAndGet();
+            return saved;
+        }
+
+        Seen claimed = new Seen(job.getId(), now);
+        if (deliveryId != null) {
+            put(deliveries, deliveryId, claimed);
+        }
+        if (commitKey != null) {
+            put(commits, commitKey, claimed);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Records a build that is already running or queued, e.g. one resumed
+     * from the journal, so that redeliveries of its push are recognised.
+     *
+     * @param job the build.
+     */
+    public synchronized void remember(BuildJob job) {
+        String commitKey = commitKey(job);
+        if (commitKey != null) {
+            put(commits, commitKey, new Seen(job.getId(), System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Forgets a claimed webhook whose build was not queued, so that GitHub
+     * can deliver it again.
+     *
+     * @param deliveryId the {@code X-GitHub-Delivery} header, or null.
+     * @param job        the build that was not queued.
+     */
+    public synchronized void release(String deliveryId, BuildJob job) {
+        if (deliveryId != null) {
+            deliveries.remove(deliveryId);
+        }
+        String commitKey = commitKey(job);
+        if (commitKey != null) {
+            Seen seen = commits.get(commitKey);
+            if (seen != null && seen.buildId() == job.getId()) {
+                commits.remove(commitKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of webhooks recognised as duplicates.
+     *
+     * @return the duplicate count.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * Returns the number of delivery ids and commits held in memory.
+     *
+     * @return the entry count.
+     */
+    public synchronized int size() {
+        return deliveries.size() + commits.size();
+    }
+
+    /**
+     * Looks for a build of the same commit in the same repository that was
+     * saved within the time limit and passed or failed. Builds that were
+     * cancelled, timed out or ended in an error do not count, so pushing
+     * their commit again builds it again.
+     */
+    private Optional<String> findInHistory(BuildJob job, long now) {
+        String sha = job.getPayload().getCommitSHA();
+        String repo = job.getPayload().getRepoFullName();
+        if (history == null || sha == null) {
+            return Optional.empty();
+        }
+        List<BuildHistoryStore.Entry> entries = history.findBySha(sha);
+        for (BuildHistoryStore.Entry entry : entries) {
+            if (now - entry.timeMillis() >= ttlMillis
+                    || !("success".equals(entry.status()) || "failure".equals(entry.status()))) {
+                continue;
+            }
+            try {
+                // The index has no repository, so check the saved document
+                Optional<JSONObject> build = history.get(entry.id());
+                if (build.isPresent() && build.get().optString("repo", "").equals(repo)) {
+                    return Optional.of("history entry " + entry.id());
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read history entry " + entry.id() + ": " + e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Adds a key, dropping the oldest key if the map is full.
+     */
+    private void put(Map<String, Seen> map, String key, Seen seen) {
+        // Re-inserting moves the key to the end, keeping the map in time order
+        map.remove(key);
+        map.put(key, seen);
+        Iterator<Map.Entry<String, Seen>> it = map.entrySet().iterator();
+        while (map.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the keys older than the time limit. Keys are in time order, so
+     * this stops at the first key that is still fresh.
+     */
+    private void expire(Map<String, Seen> map, long now) {
+        Iterator<Map.Entry<String, Seen>> it = map.entrySet().iterator();
+        while (it.hasNext() && now - it.next().getValue().atMillis() >= ttlMillis) {
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the repository and commit key of a job, or null without a SHA.
+     */
+    private static String commitKey(BuildJob job) {
+        WebhookPayload payload = job.getPayload();
+        if (payload.getCommitSHA() == null) {
+            return null;
+        }
+        return payload.getRepoFullName() + "@" + payload.getCommitSHA();
+    }
+}
@@ -0,0 +1,198 @@
+package dd2480.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A local Maven repository shared by all builds, so that dependencies are
+ * downloaded once instead of once per build.
+ *
+ * <p>Before a build, the dependencies of the project are resolved into the
+ * shared repository ({@code mvn dependency:go-offline}) unless a project
+ * with the same {@code pom.xml} files has been prepared already. Once a
+ * build with a given set of {@code pom.xml} files has passed, later builds
+ * with the same files run Maven offline ({@code -o}) and skip remote
+ * checks entirely.</p>
+ *
+ * <p>Pre-warming of the same {@code pom.xml} hash is done once even when
+ * several builds ask for it at the same time. Every Maven process is
+ * started with the resolver's file-based locking, so concurrent builds can
+ * safely read and write the shared repository.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_CACHE_DIR} — root directory of the server caches
+ *       (default {@code ci-cache}); the repository lives in {@code m2/}.</li>
+ * </ul>
+ */
+public class DependencyCache {
+
+    /**
+     * Maven options for one build, returned by {@link #prepare}.
+     *
+     * @param mavenArgs extra arguments for every {@code mvn} invocation.
+     * @param pomHash   the hash of the project's {@code pom.xml} files.
+     * @param offline   whether the arguments put Maven in offline mode.
+     */
+    public record Settings(List<String> mavenArgs, String pomHash, boolean offline) {
+    }
+
+    private final Path repository;
+    private final Path greenFile;
+    private final Set<String> greenHashes = ConcurrentHashMap.newKeySet();
+    private final Set<String> warmedHashes = ConcurrentHashMap.newKeySet();
+    private final Map<String, ReentrantLock> warmLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache in {@code CI_CACHE_DIR}.
+     *
+     * @throws IOException if the cache directory cannot be created or read.
+     */
+    public DependencyCache() throws IOException {
+        this(Path.of(Config.get("CI_CACHE_DIR", "ci-cache")));
+    }
+
+    /**
+     * Creates a cache in the given directory. Hashes of green builds recorded
+     * by an earlier run are loaded again.
+     *
+     * @param cacheDir the directory holding the repository and its metadata.
+     * @throws IOException if the directory cannot be created or read.
+     */
+    public DependencyCache(Path cacheDir) throws IOException {
+        this.repository = cacheDir.resolve("m2").toAbsolutePath();
+        this.greenFile = cacheDir.resolve("m2-green.txt");
+        Files.createDirectories(repository);
+        if (Files.exists(greenFile)) {
+            for (String line : Files.readAllLines(greenFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    greenHashes.add(line.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Prepares the shared repository for a project and returns the Maven
+     * arguments the build should use.
+     *
+     * @param projectDir the checked-out project.
+     * @param mvn        runs the pre-warm Maven command.
+     * @return the Maven settings for the build.
+     * @throws Exception if the {@code pom.xml} files cannot be read or Maven
+     *                   cannot be started.
+     */
+    public Settings prepare(File projectDir, RepositoryCache.CommandRunner mvn) throws Exception {
+        String hash = hashPoms(projectDir.toPath());
+        List<String> args = new ArrayList<>(baseArgs());
+        if (greenHashes.contains(hash)) {
+            args.add("-o");
+            return new Settings(List.copyOf(args), hash, true);
+        }
+
+        ReentrantLock lock = warmLocks.computeIfAbsent(hash, h -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (!warmedHashes.contains(hash)) {
+                List<String> command = new ArrayList<>(List.of("mvn", "-B", "-q"));
+                command.addAll(baseArgs());
+                command.add("dependency:go-offline");
+                int exit = mvn.run(projectDir, command.toArray(String[]::new));
+                if (exit == 0) {
+                    warmedHashes.add(hash);
+                } else {
+                    // Not fatal: the build itself resolves what is missing
+                    System.err.println("Dependency pre-warm failed with exit code " + exit);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Settings(List.copyOf(args), hash, false);
+    }
+
+    /**
+     * Records that a build with the given {@code pom.xml} hash passed, so
+     * later builds with the same hash can run offline.
+     *
+     * @param pomHash the hash from {@link Settings#pomHash()}.
+     */
+    public void markGreen(String pomHash) {
+        if (!greenHashes.add(pomHash)) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                Files.writeString(greenFile, pomHash + "\n", StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to record green dependency set: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the path of the shared local repository.
+     *
+     * @return the repository directory.
+     */
+    public Path getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the arguments that point Maven at the shared repository with
+     * file-based locking enabled.
+     *
+     * @return the Maven arguments.
+     */
+    List<String> baseArgs() {
+        return List.of(
+                "-Dmaven.repo.local=" + repository,
+                "-Daether.syncContext.named.factory=file-lock",
+                "-Daether.syncContext.named.nameMapper=file-gav");
+    }
+
+    /**
+     * Hashes every {@code pom.xml} in a project (modules included), skipping
+     * {@code .git} and {@code target} directories.
+     *
+     * @param projectDir the project root.
+     * @return the hex SHA-256 of the files' paths and contents.
+     * @throws IOException if a file cannot be read.
+     */
+    static String hashPoms(Path projectDir) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        List<Path> poms;
+        try (Stream<Path> files = Files.walk(projectDir)) {
+            poms = files.filter(p -> p.getFileName().toString().equals("pom.xml"))
+                    .filter(p -> !projectDir.relativize(p).toString().matches("(.*[/\\\\])?(\\.git|target)[/\\\\].*"))
+                    .sorted()
+                    .toList();
+        }
+        for (Path pom : poms) {
+            digest.update(projectDir.relativize(pom).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(pom));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -1,57 +1,371 @@
 package dd2480.ciserver;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
+import org.json.JSONObject;
 
-public class DiscordNotifier {
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Posts build updates to a Discord channel through a webhook, without
+ * holding up the build that reports them.
+ *
+ * <p>{@link #notify(String, String, String)} only puts the message in a
+ * bounded queue; a sender thread posts it. After a post, the next post
+ * waits until the digest window has passed, and all messages that arrived
+ * meanwhile are merged into one digest message. A single update after a
+ * quiet period is therefore posted at once, while a burst of finished
+ * builds becomes one message per window instead of a run of {@code 429}
+ * responses.</p>
+ *
+ * <p>When Discord answers {@code 429}, the message is posted again after
+ * the {@code Retry-After} time. Server and network errors are retried
+ * with backoff. Messages that do not fit in the queue, or fail
+ * {@link #MAX_ATTEMPTS} times, are dropped and counted.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code DISCORD_WEBHOOK_URL} — the webhook URL. If unset, messages
+ *       are dropped.</li>
+ *   <li>{@code CI_DISCORD_DIGEST_MS} — the digest window (default
+ *       2000).</li>
+ *   <li>{@code CI_DISCORD_QUEUE} — messages that may wait (default
+ *       100).</li>
+ * </ul>
+ */
+public class DiscordNotifier implements Closeable {
+
+    /** Attempts per message before it is dropped. */
+    static final int MAX_ATTEMPTS = 5;
+
+    /** Longest message content Discord accepts. */
+    static final int MAX_CONTENT = 2000;
+
+    /** One build update. */
+    record Message(String status, String branch, String text) {
+    }
+
+    /** The notifier used by the static {@link #notify(String, String, String)}. */
+    private static DiscordNotifier shared;
+
+    private final URI webhook;
+    private final long digestWindowMillis;
+    private final BlockingQueue<Message> queue;
+    private final HttpClient client;
+    private final Thread sender;
+    private volatile boolean closed;
+    private long lastPostMillis;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong digestCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final LatencyHistogram latency = LatencyHistogram.ofMicros();
+
+    /** Updates queued or being posted. */
+    private final AtomicLong unsent = new AtomicLong();
+
+    /**
+     * Creates a notifier.
+     *
+     * @param webhook            the Discord webhook URL, or null to drop
+     *                           every message.
+     * @param digestWindowMillis the shortest time between two posts.
+     * @param queueCapacity      messages that may wait.
+     */
+    public DiscordNotifier(URI webhook, long digestWindowMillis, int queueCapacity) {
+        this.webhook = webhook;
+        this.digestWindowMillis = digestWindowMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        this.sender = new Thread(this::sendLoop, "discord-notifier");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a build update on the shared notifier, created on first use
+     * from the {@code DISCORD_WEBHOOK_URL} and {@code CI_DISCORD_*}
+     * settings. Returns at once.
+     *
+     * @param status  the build status, e.g. {@code SUCCESS}.
+     * @param branch  the built branch.
+     * @param message the details.
+     */
     public static void notify(String status, String branch, String message) {
-        // 1. Try to get from Environment (Production way)
-        String webhookUrl = System.getenv("DISCORD_WEBHOOK_URL");
+        shared().submit(status, branch, message);
+    }
 
-        // 2. If null, try to get from System Properties (Test way)
-        if (webhookUrl == null) {
-            webhookUrl = System.getProperty("DISCORD_WEBHOOK_URL");
+    /**
+     * Returns the shared notifier, creating it on first use.
+     *
+     * @return the shared notifier.
+     */
+    static synchronized DiscordNotifier shared() {
+        if (shared == null) {
+            String url = Config.get("DISCORD_WEBHOOK_URL", null);
+            if (url == null) {
+                System.err.println("DISCORD_WEBHOOK_URL is missing!");
+            }
+            shared = new DiscordNotifier(url == null ? null : URI.create(url),
+                    Config.getLong("CI_DISCORD_DIGEST_MS", 2000), Config.getInt("CI_DISCORD_QUEUE", 100));
         }
+        return shared;
+    }
 
-        if (webhookUrl == null) {
-            System.err.println("DISCORD_WEBHOOK_URL is missing!");
-            return;
+    /**
+     * Queues a build update. Returns at once; the update is dropped if the
+     * queue is full or no webhook is configured.
+     *
+     * @param status  the build status, e.g. {@code SUCCESS}.
+     * @param branch  the built branch.
+     * @param message the details.
+     * @return true if the update was queued.
+     */
+    public boolean submit(String status, String branch, String message) {
+        if (webhook == null || closed) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        unsent.incrementAndGet();
+        if (!queue.offer(new Message(status, branch, message))) {
+            unsent.decrementAndGet();
+            droppedCount.incrementAndGet();
+            return false;
         }
+        return true;
+    }
 
-        try {
-            // Escape newlines and quotes to prevent invalid JSON
-            String safeMessage = message.replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"");
+    /**
+     * Returns the number of posts Discord accepted.
+     *
+     * @return the sent count.
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
 
-            String jsonContent = String.format(
-                    "{\"content\": \"**CI Build Update**\\n**Status:** %s\\n**Branch:** %s\\n**Message:** %s\"}",
-                    status, branch, safeMessage
-            );
+    /**
+     * Returns the number of build updates that were not posted.
+     *
+     * @return the dropped count.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of posts repeated after a {@code 429} or an error.
+     *
+     * @return the retry count.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
 
-            URL url = new URL(webhookUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(5000); // Add timeout so it doesn't hang
-            connection.setReadTimeout(5000);
+    /**
+     * Returns the number of digest posts, each merging several updates.
+     *
+     * @return the digest count.
+     */
+    public long getDigestCount() {
+        return digestCount.get();
+    }
+
+    /**
+     * Returns the number of posts that failed with an error response other
+     * than {@code 429}, or without a response.
+     *
+     * @return the failed count.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonContent.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+    /**
+     * Returns the time from sending each post to its response or error.
+     *
+     * @return the post latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Waits until every queued update has been posted or dropped.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if nothing is left to post.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (unsent.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
             }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the sender thread. Updates still waiting are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sender.interrupt();
+    }
 
-            int code = connection.getResponseCode();
-            if (code >= 200 && code < 300) {
-                System.out.println("Discord notification sent! Response: " + code);
-            } else {
-                System.err.println("Discord sent error code: " + code);
+    /**
+     * Posts queued updates until the notifier is closed.
+     */
+    private void sendLoop() {
+        List<Message> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                // Let updates pile up in the bounded queue until the window has passed
+                long wait = lastPostMillis + digestWindowMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                }
+                while (queue.peek() != null) {
+                    batch.add(queue.poll());
+                }
+                post(batch);
+            } catch (InterruptedException e) {
+                droppedCount.addAndGet(batch.size());
+                return;
+            } finally {
+                unsent.addAndGet(-batch.size());
+                batch.clear();
             }
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Posts a batch as one message, retrying on rate limits and errors.
+     */
+    private void post(List<Message> batch) throws InterruptedException {
+        String body = new JSONObject().put("content", content(batch)).toString();
+        HttpRequest request = HttpRequest.newBuilder(webhook)
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            long delay;
+            long start = System.nanoTime();
+            try {
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                latency.recordNanos(System.nanoTime() - start);
+                lastPostMillis = System.currentTimeMillis();
+                int code = response.statusCode();
+                if (code >= 200 && code < 300) {
+                    sentCount.incrementAndGet();
+                    if (batch.size() > 1) {
+                        digestCount.incrementAndGet();
+                    }
+                    System.out.println("Discord notification sent! Response: " + code);
+                    return;
+                }
+                if (code == 429) {
+                    delay = retryAfterMillis(response);
+                    System.err.println("Discord rate limit, retrying in " + delay + " ms");
+                } else if (code >= 500) {
+                    failedCount.incrementAndGet();
+                    delay = StatusPublisher.backoffMillis(attempt);
+                    System.err.println("Discord sent error code: " + code);
+                } else {
+                    failedCount.incrementAndGet();
+                    System.err.println("Discord sent error code: " + code + ", dropping message");
+                    break;
+                }
+            } catch (IOException e) {
+                latency.recordNanos(System.nanoTime() - start);
+                failedCount.incrementAndGet();
+                lastPostMillis = System.currentTimeMillis();
+                delay = StatusPublisher.backoffMillis(attempt);
+                System.err.println("Discord notification failed: " + e.getMessage());
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                retryCount.incrementAndGet();
+                Thread.sleep(delay);
+            }
         }
+        droppedCount.addAndGet(batch.size());
+    }
+
+    /**
+     * Returns how long to wait after a {@code 429}: the
+     * {@code Retry-After} header, or Discord's {@code retry_after} field in
+     * the body, or one second.
+     *
+     * @param response the 429 response.
+     * @return the delay in milliseconds.
+     */
+    static long retryAfterMillis(HttpResponse<String> response) {
+        String header = response.headers().firstValue("Retry-After").orElse(null);
+        try {
+            if (header != null) {
+                return (long) Math.ceil(Double.parseDouble(header.trim()) * 1000);
+            }
+            JSONObject body = new JSONObject(response.body());
+            if (body.has("retry_after")) {
+                return (long) Math.ceil(body.getDouble("retry_after") * 1000);
+            }
+        } catch (NumberFormatException | JSONException e) {
+            // Fall back to the default
+        }
+        return 1000;
+    }
+
+    /**
+     * Formats the message content for a batch: the usual update for a
+     * single build, or a digest with one line per build, cut to
+     * {@link #MAX_CONTENT} characters.
+     *
+     * @param batch the updates, oldest first.
+     * @return the message content.
+     */
+    static String content(List<Message> batch) {
+        if (batch.size() == 1) {
+            Message message = batch.get(0);
+            return truncate("**CI Build Update**\n**Status:** " + message.status()
+                    + "\n**Branch:** " + message.branch() + "\n**Message:** " + message.text());
+        }
+        StringBuilder content = new StringBuilder("**CI Build Digest** (" + batch.size() + " updates)");
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            String line = "\n**" + message.status() + "** `" + message.branch() + "`: " + message.text();
+            String more = "\n... and " + (batch.size() - i) + " more";
+            if (content.length() + line.length() + more.length() > MAX_CONTENT) {
+                content.append(more);
+                break;
+            }
+            content.append(line);
+        }
+        return content.toString();
+    }
+
+    /**
+     * Cuts text to {@link #MAX_CONTENT} characters.
+     */
+    private static String truncate(String text) {
+        return text.length() <= MAX_CONTENT ? text : text.substring(0, MAX_CONTENT - 3) + "...";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+
+/**
+ * Posts the outcome of every finished build to Discord through a
+ * {@link DiscordNotifier}.
+ */
+public class DiscordSink implements BuildEventSink {
+
+    private final DiscordNotifier notifier;
+
+    /**
+     * Creates the sink.
+     *
+     * @param notifier the notifier that posts the messages.
+     */
+    public DiscordSink(DiscordNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    /**
+     * Posts the outcome of a finished build; other events are ignored.
+     *
+     * @param event the event.
+     */
+    @Override
+    public void accept(BuildEvent event) {
+        if (event.type() != BuildEvent.Type.FINISHED || event.result().isCancelled()) {
+            return;
+        }
+        CIResultObject result = event.result();
+        if (result.isTimedOut()) {
+            notifier.submit("TIMEOUT", event.branch(), result.getTimeoutReason() + ". Check logs for details.");
+        } else if (result.isCIResultSuccessful()) {
+            notifier.submit("SUCCESS", event.branch(), "Build and Tests passed successfully!");
+        } else if (result.getErrorMessage() != null && result.getErrorMessage().startsWith("Build exception: ")) {
+            notifier.submit("ERROR", event.branch(), "CI Server Exception: "
+                    + result.getErrorMessage().substring("Build exception: ".length()));
+        } else if (!result.isBuildSuccessful()) {
+            notifier.submit("FAILURE", event.branch(), "Compilation failed. Check logs for details.");
+        } else {
+            notifier.submit("FAILURE", event.branch(), "Tests failed. Check logs for details.");
+        }
+    }
+}
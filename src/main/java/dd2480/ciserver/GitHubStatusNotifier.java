@@ -1,11 +1,13 @@
 package dd2480.ciserver;
 
 import dd2480.ciserver.model.CIResultObject;
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Sends commit status notifications to the GitHub Status API.
@@ -18,14 +20,23 @@ import java.net.URI;
  * <p>Requires a GitHub personal access token with {@code repo:status}
  * scope, provided via the {@code GITHUB_TOKEN} environment variable.</p>
  *
+ * <p>A notifier created with a {@link StatusPublisher} only queues the
+ * status and returns {@code 202 Accepted} at once; the publisher sends it
+ * in the background. Otherwise the status is sent on the calling
+ * thread.</p>
+ *
  * @see <a href="https://docs.github.com/en/rest/commits/statuses">GitHub Commit Statuses API</a>
  */
 public class GitHubStatusNotifier {
 
     private static final String GITHUB_API_BASE = "https://api.github.com";
-    private static final String CONTEXT = "ci-server/dd2480";
+    private static final String CONTEXT = StatusPublisher.CONTEXT;
+
+    /** Connect and read timeout of a status sent on the calling thread. */
+    private static final int TIMEOUT_MILLIS = 10_000;
 
     private final String token;
+    private final StatusPublisher publisher;
 
     /**
      * Constructs a notifier using the given GitHub token.
@@ -34,6 +45,18 @@ public class GitHubStatusNotifier {
      */
     public GitHubStatusNotifier(String token) {
         this.token = token;
+        this.publisher = null;
+    }
+
+    /**
+     * Constructs a notifier that hands statuses to a publisher instead of
+     * sending them itself.
+     *
+     * @param publisher the publisher that sends statuses in the background.
+     */
+    public GitHubStatusNotifier(StatusPublisher publisher) {
+        this.token = null;
+        this.publisher = publisher;
     }
 
     /**
@@ -42,7 +65,7 @@ public class GitHubStatusNotifier {
      * @throws IllegalStateException if the environment variable is not set.
      */
     public GitHubStatusNotifier() {
-        this.token = getTokenFromEnv();
+        this(getTokenFromEnv());
     }
 
     /**
@@ -75,6 +98,18 @@ public class GitHubStatusNotifier {
         return sendStatus(repoFullName, result.getCommitSHA(), state, description);
     }
 
+    /**
+     * Sends a "pending" status to GitHub when a build is queued.
+     *
+     * @param repoFullName the full repository name.
+     * @param commitSHA    the commit SHA to set status on.
+     * @return the HTTP response code from the GitHub API.
+     * @throws IOException if the HTTP request fails.
+     */
+    public int notifyQueued(String repoFullName, String commitSHA) throws IOException {
+        return sendStatus(repoFullName, commitSHA, "pending", "Queued for CI");
+    }
+
     /**
      * Sends a "pending" status to GitHub before the build starts.
      *
@@ -87,13 +122,32 @@ public class GitHubStatusNotifier {
         return sendStatus(repoFullName, commitSHA, "pending", "CI build in progress...");
     }
 
+    /**
+     * Sends an "error" status for a commit whose build was cancelled or
+     * never ran, for example because a newer push superseded it.
+     *
+     * @param repoFullName the full repository name.
+     * @param commitSHA    the commit SHA to set status on.
+     * @param reason       the description shown on GitHub.
+     * @return the HTTP response code from the GitHub API.
+     * @throws IOException if the HTTP request fails.
+     */
+    public int notifyCancelled(String repoFullName, String commitSHA, String reason)
+            throws IOException {
+        return sendStatus(repoFullName, commitSHA, "error", reason);
+    }
+
     /**
      * Maps a {@link CIResultObject} to a GitHub commit status state string.
+     * Cancelled and timed-out runs map to {@code "error"}.
      *
      * @param result the CI result.
      * @return one of {@code "success"}, {@code "failure"}, or {@code "error"}.
      */
     static String mapResultToState(CIResultObject result) {
+        if (result.isCancelled() || result.isTimedOut()) {
+            return "error";
+        }
         if (result.isCIResultSuccessful()) {
             return "success";
         }
@@ -111,6 +165,26 @@ public class GitHubStatusNotifier {
      * @return a short description string.
      */
     static String buildDescription(CIResultObject result) {
+        if (result.isCancelled()) {
+            return result.getCancellationReason();
+        }
+        if (result.isTimedOut()) {
+            return result.getTimeoutReason();
+        }
+        if (result.getCachedFrom() != null) {
+            String sha = result.getCachedFrom();
+            return outcome(result) + ", cached from " + sha.substring(0, Math.min(7, sha.length()));
+        }
+        return outcome(result);
+    }
+
+    /**
+     * Describes whether the build compiled and its tests passed.
+     *
+     * @param result the CI result.
+     * @return a short description string.
+     */
+    private static String outcome(CIResultObject result) {
         if (result.isCIResultSuccessful()) {
             return "Build and tests passed";
         }
@@ -131,18 +205,27 @@ public class GitHubStatusNotifier {
      * @param state        the status state ({@code "pending"}, {@code "success"},
      *                     {@code "failure"}, or {@code "error"}).
      * @param description  a short description of the status.
-     * @return the HTTP response code.
+     * @return the HTTP response code, or {@code 202} if the status was
+     *         queued on the publisher.
      * @throws IOException if the request fails.
      */
     int sendStatus(String repoFullName, String commitSHA, String state,
             String description) throws IOException {
+        if (publisher != null) {
+            publisher.publish(repoFullName, commitSHA, state, description);
+            return HttpURLConnection.HTTP_ACCEPTED;
+        }
         String url = GITHUB_API_BASE + "/repos/" + repoFullName + "/statuses/" + commitSHA;
 
-        String jsonBody = String.format(
-                "{\"state\":\"%s\",\"description\":\"%s\",\"context\":\"%s\"}",
-                state, description, CONTEXT);
+        String jsonBody = new JSONObject()
+                .put("state", state)
+                .put("description", description)
+                .put("context", CONTEXT)
+                .toString();
 
         HttpURLConnection conn = createConnection(url);
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Authorization", "Bearer " + token);
         conn.setRequestProperty("Accept", "application/vnd.github+json");
@@ -150,7 +233,7 @@ public class GitHubStatusNotifier {
         conn.setDoOutput(true);
 
         try (OutputStream os = conn.getOutputStream()) {
-            os.write(jsonBody.getBytes());
+            os.write(jsonBody.getBytes(StandardCharsets.UTF_8));
         }
 
         int responseCode = conn.getResponseCode();
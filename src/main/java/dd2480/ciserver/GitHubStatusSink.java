@@ -0,0 +1,39 @@
+package dd2480.ciserver;
+
+/**
+ * Reports build events as commit statuses on GitHub: {@code pending} when
+ * a build is queued or started, the outcome when it finishes, and
+ * {@code error} when it is cancelled before running.
+ */
+public class GitHubStatusSink implements BuildEventSink {
+
+    private final GitHubStatusNotifier notifier;
+
+    /**
+     * Creates the sink.
+     *
+     * @param notifier the notifier that sends the statuses.
+     */
+    public GitHubStatusSink(GitHubStatusNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    /**
+     * Sends the status for an event; phase events are ignored.
+     *
+     * @param event the event.
+     * @throws Exception if the status cannot be sent.
+     */
+    @Override
+    public void accept(BuildEvent event) throws Exception {
+        switch (event.type()) {
+            case QUEUED -> notifier.notifyQueued(event.repoFullName(), event.commitSHA());
+            case STARTED -> notifier.notifyPending(event.repoFullName(), event.commitSHA());
+            case FINISHED -> notifier.notify(event.repoFullName(), event.result());
+            case CANCELLED -> notifier.notifyCancelled(event.repoFullName(), event.commitSHA(), event.detail());
+            default -> {
+                // Phases are not shown on GitHub
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package dd2480.ciserver;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations that can be recorded from any thread without
+ * locking or allocating.
+ *
+ * <p>Like an HDR histogram, the buckets grow with the value, so the
+ * relative error stays bounded over a wide range: there are two buckets per
+ * power of two, with upper bounds 1, 2, 3, 4, 6, 8, 12, 16, 24, …, so a
+ * value is known to within 50%. Recording finds the bucket by binary search
+ * and increments one slot of an {@link AtomicLongArray}; values above the
+ * range go into an overflow bucket.</p>
+ *
+ * <p>{@link #writeTo} prints the histogram in the Prometheus text format,
+ * with the bounds converted to seconds.</p>
+ */
+public class LatencyHistogram {
+
+    private final long nanosPerUnit;
+    private final long[] bounds;
+    private final String[] boundLabels;
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Creates a histogram.
+     *
+     * @param nanosPerUnit the unit of recorded values in nanoseconds, e.g.
+     *                     {@code 1_000_000} for milliseconds.
+     * @param maxValue     the largest value with its own bucket.
+     */
+    public LatencyHistogram(long nanosPerUnit, long maxValue) {
+        this.nanosPerUnit = nanosPerUnit;
+        long[] upper = new long[128];
+        int n = 0;
+        upper[n++] = 1;
+        for (long power = 2; upper[n - 1] < maxValue; power *= 2) {
+            upper[n++] = power;
+            upper[n++] = power + power / 2;
+        }
+        this.bounds = Arrays.copyOf(upper, n);
+        this.boundLabels = new String[n];
+        BigDecimal unitSeconds = BigDecimal.valueOf(nanosPerUnit).movePointLeft(9);
+        for (int i = 0; i < n; i++) {
+            boundLabels[i] = unitSeconds.multiply(BigDecimal.valueOf(bounds[i])).stripTrailingZeros().toPlainString();
+        }
+        this.counts = new AtomicLongArray(n + 1);
+    }
+
+    /**
+     * Creates a histogram of microseconds up to about a minute, e.g. for
+     * request latencies.
+     *
+     * @return the histogram.
+     */
+    public static LatencyHistogram ofMicros() {
+        return new LatencyHistogram(1_000, 1L << 26);
+    }
+
+    /**
+     * Creates a histogram of milliseconds up to about two hours, e.g. for
+     * build phases.
+     *
+     * @return the histogram.
+     */
+    public static LatencyHistogram ofMillis() {
+        return new LatencyHistogram(1_000_000, 1L << 23);
+    }
+
+    /**
+     * Records a value in the histogram's unit. Negative values count as 0.
+     *
+     * @param value the value.
+     */
+    public void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(index >= 0 ? index : -index - 1);
+        sum.add(Math.max(0, value));
+    }
+
+    /**
+     * Records a duration given in nanoseconds.
+     *
+     * @param nanos the duration, e.g. the difference of two
+     *              {@link System#nanoTime()} readings.
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / nanosPerUnit);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values, in the histogram's unit.
+     *
+     * @return the sum.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns an upper bound of a percentile: the upper bound of the bucket
+     * holding it.
+     *
+     * @param percentile the percentile, from 0 to 100.
+     * @return the bound in the histogram's unit, {@link Long#MAX_VALUE} if
+     *         it lies in the overflow bucket, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return bounds[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes the histogram as Prometheus {@code _bucket}, {@code _sum} and
+     * {@code _count} samples, in seconds.
+     *
+     * @param out    the output.
+     * @param name   the metric name, e.g. {@code ci_webhook_ack_seconds}.
+     * @param labels other labels, e.g. {@code phase="test"}, or an empty
+     *               string.
+     */
+    public void writeTo(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(boundLabels[i])
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(bounds.length);
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ')
+                .append(BigDecimal.valueOf(sum.sum() * nanosPerUnit).movePointLeft(9).stripTrailingZeros().toPlainString())
+                .append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
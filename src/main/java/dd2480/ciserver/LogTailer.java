@@ -0,0 +1,494 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streams the log of a build to HTTP clients while the build is running
+ * ({@code GET /builds/{id}/log}).
+ *
+ * <p>The log is read back from the file written by {@link BuildLog}, so
+ * clients see exactly the bytes of the full log on disk. A response starts
+ * at byte offset 0, or at the offset given by {@code ?offset=N}. Plain
+ * clients get the raw bytes as a chunked {@code text/plain} response.
+ * Clients that accept {@code text/event-stream}, or ask for
+ * {@code ?format=sse}, get Server-Sent Events: each event carries complete
+ * lines, and its id is the offset to resume from, which browsers send back
+ * as {@code Last-Event-ID} when they reconnect.</p>
+ *
+ * <p>The handler only sends the response headers and registers the client.
+ * One poller thread then checks every open log for new output and hands it
+ * to the client's writer, a virtual thread with a bounded buffer. A slow
+ * client only fills its own buffer; the poller stops reading its log until
+ * the buffer drains, so the other clients are not held up. A client whose
+ * write blocks for longer than {@code CI_LOG_WRITE_TIMEOUT_MS} is dropped.
+ * A response ends once the build has finished and the whole log has been
+ * sent.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_LOG_POLL_MS} — how often open logs are checked for new
+ *       output (default 250).</li>
+ *   <li>{@code CI_LOG_WRITE_TIMEOUT_MS} — how long one write to a client
+ *       may block before the client is dropped (default 30000).</li>
+ * </ul>
+ */
+public class LogTailer {
+
+    private static final Pattern PATH = Pattern.compile("/builds/(\\d+)/log/?");
+
+    /** Size of one read from a log file. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Most bytes read for one client per poll, so one client cannot starve the others. */
+    private static final int MAX_BYTES_PER_POLL = 16 * CHUNK_SIZE;
+
+    /** Most bytes waiting in the buffer of one client's writer. */
+    private static final int MAX_BUFFERED_BYTES = MAX_BYTES_PER_POLL;
+
+    /** Marks the end of a response in a writer's buffer. */
+    private static final byte[] END = new byte[0];
+
+    /** Starts the writer of each client. */
+    private static final ThreadFactory WRITERS = Thread.ofVirtual().name("log-writer-", 0).factory();
+
+    /** Idle time after which an event stream gets a comment to keep it open. */
+    private static final long HEARTBEAT_MILLIS = 15_000;
+
+    /** One client following a log. */
+    private static final class Tail {
+        final long buildId;
+        final Path file;
+        final HttpExchange exchange;
+        final OutputStream out;
+        final boolean eventStream;
+        /** Output waiting for the writer, ending with {@link #END}. */
+        final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+        final AtomicLong pendingBytes = new AtomicLong();
+        long offset;
+        FileChannel channel;
+        long lastWriteMillis = System.currentTimeMillis();
+        /** Whether {@link #END} has been queued. */
+        boolean ended;
+        /** Whether the log file was closed for good; guarded by the tail. */
+        boolean closed;
+        /** When the current write started, or 0 while the writer is not writing. */
+        volatile long writeStartedMillis;
+        Thread writer;
+
+        Tail(long buildId, Path file, HttpExchange exchange, boolean eventStream, long offset) {
+            this.buildId = buildId;
+            this.file = file;
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.eventStream = eventStream;
+            this.offset = offset;
+        }
+    }
+
+    private final LongFunction<Path> logPath;
+    private final LongPredicate unfinished;
+    private final long pollMillis;
+    private final long writeTimeoutMillis;
+    private final Queue<Tail> tails = new ConcurrentLinkedQueue<>();
+    /** Read buffer, only used by the poller thread. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private ScheduledExecutorService poller;
+
+    /**
+     * Creates a tailer for the logs in {@code CI_LOG_DIR}.
+     *
+     * @param unfinished tells whether a build id is still queued or running,
+     *                   e.g. {@link BuildScheduler#isQueuedOrRunning(long)}.
+     */
+    public LogTailer(LongPredicate unfinished) {
+        this(BuildLog::pathFor, unfinished, Config.getLong("CI_LOG_POLL_MS", 250));
+    }
+
+    /**
+     * Creates a tailer.
+     *
+     * @param logPath    maps a build id to its log file.
+     * @param unfinished tells whether a build id is still queued or running.
+     * @param pollMillis how often open logs are checked for new output.
+     */
+    public LogTailer(LongFunction<Path> logPath, LongPredicate unfinished, long pollMillis) {
+        this(logPath, unfinished, pollMillis, Config.getLong("CI_LOG_WRITE_TIMEOUT_MS", 30_000));
+    }
+
+    /**
+     * Creates a tailer.
+     *
+     * @param logPath            maps a build id to its log file.
+     * @param unfinished         tells whether a build id is still queued or
+     *                           running.
+     * @param pollMillis         how often open logs are checked for new
+     *                           output.
+     * @param writeTimeoutMillis how long one write to a client may block
+     *                           before the client is dropped.
+     */
+    public LogTailer(LongFunction<Path> logPath, LongPredicate unfinished, long pollMillis,
+            long writeTimeoutMillis) {
+        this.logPath = logPath;
+        this.unfinished = unfinished;
+        this.pollMillis = pollMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    /**
+     * Starts the poller thread.
+     */
+    public synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "log-tailer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the poller thread and the writers, and ends all open responses.
+     */
+    public synchronized void shutdown() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+        Tail tail;
+        while ((tail = tails.poll()) != null) {
+            drop(tail);
+        }
+    }
+
+    /**
+     * Handles {@code GET /builds/{id}/log}. Answers 404 for unknown builds
+     * and 400 for an invalid offset; otherwise sends the headers of a
+     * streamed response and leaves the body to the poller and a writer.
+     *
+     * @param exchange the HTTP exchange.
+     * @throws IOException if the response cannot be sent.
+     */
+    public void handle(HttpExchange exchange) throws IOException {
+        Matcher matcher = PATH.matcher(exchange.getRequestURI().getPath());
+        if (!matcher.matches()) {
+            Server.sendText(exchange, 404, "Not found");
+            return;
+        }
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            Server.sendText(exchange, 405, "Method not allowed");
+            return;
+        }
+        long buildId;
+        try {
+            buildId = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            Server.sendText(exchange, 404, "Not found");
+            return;
+        }
+        Path file = logPath.apply(buildId);
+        if (!unfinished.test(buildId) && !Files.exists(file)) {
+            Server.sendText(exchange, 404, "No log for build " + buildId);
+            return;
+        }
+
+        String query = exchange.getRequestURI().getRawQuery();
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        boolean eventStream = "sse".equals(queryParam(query, "format"))
+                || (accept != null && accept.contains("text/event-stream"));
+        long offset;
+        try {
+            offset = startOffset(queryParam(query, "offset"),
+                    exchange.getRequestHeaders().getFirst("Last-Event-ID"));
+        } catch (NumberFormatException e) {
+            Server.sendText(exchange, 400, "Invalid offset");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type",
+                eventStream ? "text/event-stream; charset=UTF-8" : "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // Length 0 selects chunked transfer encoding
+        exchange.sendResponseHeaders(200, 0);
+        Tail tail = new Tail(buildId, file, exchange, eventStream, offset);
+        tail.writer = WRITERS.newThread(() -> write(tail));
+        tails.add(tail);
+        tail.writer.start();
+    }
+
+    /**
+     * Hands new output of every open log to its writer, ends the responses
+     * whose build has finished and drops the clients that stopped reading.
+     * Runs on the poller thread.
+     */
+    void poll() {
+        long now = System.currentTimeMillis();
+        for (Tail tail : tails) {
+            long writeStarted = tail.writeStartedMillis;
+            if (writeStarted != 0 && now - writeStarted > writeTimeoutMillis) {
+                System.err.println("Dropping a client of the log of build " + tail.buildId
+                        + " that stopped reading");
+                drop(tail);
+                continue;
+            }
+            if (tail.ended) {
+                continue;
+            }
+            try {
+                synchronized (tail) {
+                    if (!tail.closed) {
+                        pump(tail);
+                    }
+                }
+            } catch (Exception e) {
+                drop(tail);
+            }
+        }
+    }
+
+    /**
+     * Queues the output written to a log since the last call for the
+     * writer, as long as the writer's buffer has room. Queues the end of the
+     * response once the build has finished and everything was read.
+     *
+     * @param tail the client to serve.
+     * @throws IOException if the log cannot be read.
+     */
+    private void pump(Tail tail) throws IOException {
+        // Checked before reading, so output written just before the build ended is not missed
+        boolean buildUnfinished = unfinished.test(tail.buildId);
+        if (tail.channel == null && Files.exists(tail.file)) {
+            tail.channel = FileChannel.open(tail.file, StandardOpenOption.READ);
+        }
+
+        int sent = 0;
+        boolean caughtUp = tail.channel == null;
+        while (!caughtUp && sent < MAX_BYTES_PER_POLL && tail.pendingBytes.get() < MAX_BUFFERED_BYTES) {
+            buffer.clear();
+            int n = tail.channel.read(buffer, tail.offset);
+            if (n <= 0) {
+                caughtUp = true;
+                break;
+            }
+            int length = n;
+            byte[] chunk;
+            if (tail.eventStream) {
+                // Events carry whole lines; a partial line waits for the rest
+                length = lastNewline(buffer.array(), n) + 1;
+                if (length == 0) {
+                    if (buildUnfinished && n < CHUNK_SIZE) {
+                        caughtUp = true;
+                        break;
+                    }
+                    length = n;
+                }
+                String text = new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+                chunk = formatEvent(text, tail.offset + length).getBytes(StandardCharsets.UTF_8);
+            } else {
+                chunk = java.util.Arrays.copyOf(buffer.array(), length);
+            }
+            enqueue(tail, chunk);
+            tail.offset += length;
+            sent += length;
+        }
+
+        long now = System.currentTimeMillis();
+        if (sent > 0) {
+            tail.lastWriteMillis = now;
+            return;
+        }
+        if (!caughtUp) {
+            // The writer's buffer is full
+            return;
+        }
+        if (!buildUnfinished) {
+            if (tail.eventStream) {
+                enqueue(tail, "event: end\ndata: \n\n".getBytes(StandardCharsets.UTF_8));
+            }
+            tail.ended = true;
+            tail.pending.add(END);
+            closeFile(tail);
+            return;
+        }
+        if (tail.eventStream && now - tail.lastWriteMillis >= HEARTBEAT_MILLIS) {
+            enqueue(tail, ": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+            tail.lastWriteMillis = now;
+        }
+    }
+
+    /**
+     * Adds output to the buffer of a client's writer.
+     */
+    private static void enqueue(Tail tail, byte[] chunk) {
+        tail.pendingBytes.addAndGet(chunk.length);
+        tail.pending.add(chunk);
+    }
+
+    /**
+     * Writes the buffered output of one client until the end of the response
+     * or until the client goes away, then closes the response. Runs on the
+     * client's writer thread.
+     *
+     * @param tail the client.
+     */
+    private void write(Tail tail) {
+        try {
+            while (true) {
+                byte[] chunk = tail.pending.take();
+                if (chunk == END) {
+                    break;
+                }
+                tail.writeStartedMillis = System.currentTimeMillis();
+                tail.out.write(chunk);
+                // Flush once the buffer is empty, so a burst goes out together
+                if (tail.pending.isEmpty()) {
+                    tail.out.flush();
+                }
+                tail.writeStartedMillis = 0;
+                tail.pendingBytes.addAndGet(-chunk.length);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away or was dropped
+        } finally {
+            tails.remove(tail);
+            closeFile(tail);
+            tail.exchange.close();
+        }
+    }
+
+    /**
+     * Stops serving a client: closes its log file and interrupts its writer,
+     * which closes the response.
+     *
+     * @param tail the client.
+     */
+    private void drop(Tail tail) {
+        tails.remove(tail);
+        closeFile(tail);
+        tail.writer.interrupt();
+    }
+
+    /**
+     * Closes the log file of a client for good.
+     *
+     * @param tail the client.
+     */
+    private static void closeFile(Tail tail) {
+        synchronized (tail) {
+            tail.closed = true;
+            try {
+                if (tail.channel != null) {
+                    tail.channel.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with the file
+            }
+        }
+    }
+
+    /**
+     * Returns the number of clients currently following a log.
+     *
+     * @return the number of open responses.
+     */
+    public int getTailCount() {
+        return tails.size();
+    }
+
+    /**
+     * Formats log text as one Server-Sent Event.
+     *
+     * @param text       the log text, normally ending with a newline.
+     * @param nextOffset the log offset just after the text.
+     * @return the event, with one {@code data:} field per line.
+     */
+    static String formatEvent(String text, long nextOffset) {
+        if (text.endsWith("\n")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        StringBuilder event = new StringBuilder("id: ").append(nextOffset).append('\n');
+        for (String line : text.split("\r?\n", -1)) {
+            event.append("data: ").append(line).append('\n');
+        }
+        return event.append('\n').toString();
+    }
+
+    /**
+     * Returns the offset a response starts at. {@code Last-Event-ID}, sent by
+     * a reconnecting event stream, takes precedence over the query parameter.
+     *
+     * @param offsetParam the {@code offset} query parameter, or null.
+     * @param lastEventId the {@code Last-Event-ID} header, or null.
+     * @return the byte offset, 0 if neither is given.
+     * @throws NumberFormatException if the offset is not a non-negative number.
+     */
+    static long startOffset(String offsetParam, String lastEventId) {
+        String value = lastEventId != null && !lastEventId.isBlank() ? lastEventId : offsetParam;
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        long offset = Long.parseLong(value.trim());
+        if (offset < 0) {
+            throw new NumberFormatException("Negative offset: " + offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the value of a query parameter.
+     *
+     * @param query the raw query string, or null.
+     * @param name  the parameter name.
+     * @return the value, or null if the parameter is absent.
+     */
+    static String queryParam(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : pair.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the last newline in the first {@code length}
+     * bytes, or -1 if there is none.
+     */
+    private static int lastNewline(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
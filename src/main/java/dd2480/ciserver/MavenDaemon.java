@@ -0,0 +1,97 @@
+package dd2480.ciserver;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the Maven daemons ({@code mvnd}) used to run builds. A daemon keeps
+ * a warm JVM with Maven and its plugins loaded, so a build run through the
+ * {@code mvnd} client skips JVM start-up and project model loading.
+ *
+ * <p>{@code mvnd} manages its own pool of daemons: it reuses an idle daemon
+ * and starts another one when all are busy, so with the build scheduler's
+ * worker pool there is at most one daemon per worker. The server checks
+ * that the client is available at start-up and stops the daemons when it
+ * shuts down.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_MVND} — the {@code mvnd} executable (default
+ *       {@code mvnd}).</li>
+ * </ul>
+ */
+public class MavenDaemon {
+
+    private final String executable;
+
+    /**
+     * Creates a daemon owner for the {@code CI_MVND} executable.
+     */
+    public MavenDaemon() {
+        this(Config.get("CI_MVND", "mvnd"));
+    }
+
+    /**
+     * Creates a daemon owner for the given executable.
+     *
+     * @param executable the {@code mvnd} client to run.
+     */
+    public MavenDaemon(String executable) {
+        this.executable = executable;
+    }
+
+    /**
+     * Returns the {@code mvnd} client executable.
+     *
+     * @return the executable name or path.
+     */
+    public String getExecutable() {
+        return executable;
+    }
+
+    /**
+     * Checks that the {@code mvnd} client can be run and registers a
+     * shutdown hook that stops the daemons with the server.
+     *
+     * @return true if {@code mvnd} is available.
+     */
+    public boolean start() {
+        if (run("--version") != 0) {
+            System.err.println("Maven daemon '" + executable + "' is not available");
+            return false;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "mvnd-stop"));
+        System.out.println("Using Maven daemon '" + executable + "'");
+        return true;
+    }
+
+    /**
+     * Stops all daemons started by the {@code mvnd} client.
+     */
+    public void stop() {
+        run("--stop");
+    }
+
+    /**
+     * Runs the client with one argument and waits up to a minute for it.
+     *
+     * @param argument the client argument.
+     * @return the exit code, or -1 if the client could not be run.
+     */
+    private int run(String argument) {
+        try {
+            Process process = new ProcessBuilder(executable, argument)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .directory(new File("."))
+                    .start();
+            if (!process.waitFor(1, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                return -1;
+            }
+            return process.exitValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
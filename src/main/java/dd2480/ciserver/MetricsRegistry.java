@@ -0,0 +1,217 @@
+package dd2480.ciserver;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics served at {@code /metrics}, in the Prometheus text format.
+ *
+ * <p>Instruments are created once, at start-up, and the code that records
+ * into them keeps the returned object: a {@link Counter} is a
+ * {@link LongAdder} and a {@link LatencyHistogram} an array of atomic
+ * longs, so recording takes no lock, allocates nothing and costs a few
+ * nanoseconds even on the webhook path. Values that components already
+ * count, such as the queue depth, are read through a supplier when the
+ * metrics are scraped.</p>
+ */
+public class MetricsRegistry {
+
+    /** A monotonically increasing count. */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        /** Adds one. */
+        public void inc() {
+            value.increment();
+        }
+
+        /**
+         * Adds an amount.
+         *
+         * @param amount the amount, not negative.
+         */
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Returns the count.
+         *
+         * @return the count.
+         */
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** Writes one sample, or one histogram, of a family. */
+    @FunctionalInterface
+    private interface Sample {
+        void writeTo(StringBuilder out, String name);
+    }
+
+    /** Metrics with the same name, differing in labels. */
+    private record Family(String help, String type, List<Sample> samples) {
+    }
+
+    /** Families by name, in registration order; guarded by {@code this}. */
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Creates and registers a counter.
+     *
+     * @param name   the metric name, ending in {@code _total}.
+     * @param help   what it counts.
+     * @param labels the labels, e.g. {@code outcome="success"}, or an empty
+     *               string.
+     * @return the counter.
+     */
+    public Counter counter(String name, String help, String labels) {
+        Counter counter = new Counter();
+        counter(name, help, labels, counter::get);
+        return counter;
+    }
+
+    /**
+     * Registers a counter kept elsewhere.
+     *
+     * @param name   the metric name, ending in {@code _total}.
+     * @param help   what it counts.
+     * @param labels the labels, or an empty string.
+     * @param value  reads the count.
+     */
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        add(name, help, "counter", (out, n) -> line(out, n, labels, Long.toString(value.getAsLong())));
+    }
+
+    /**
+     * Registers a value that can go up and down.
+     *
+     * @param name   the metric name.
+     * @param help   what it measures.
+     * @param labels the labels, or an empty string.
+     * @param value  reads the value.
+     */
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        add(name, help, "gauge", (out, n) -> line(out, n, labels, format(value.getAsDouble())));
+    }
+
+    /**
+     * Creates and registers a histogram.
+     *
+     * @param name      the metric name, ending in {@code _seconds}.
+     * @param help      what it measures.
+     * @param labels    the labels, or an empty string.
+     * @param histogram the histogram, e.g. {@link LatencyHistogram#ofMicros()}.
+     * @return the histogram.
+     */
+    public LatencyHistogram histogram(String name, String help, String labels, LatencyHistogram histogram) {
+        add(name, help, "histogram", (out, n) -> histogram.writeTo(out, n, labels));
+        return histogram;
+    }
+
+    /**
+     * Registers the heap, garbage collection, thread and uptime metrics of
+     * this JVM.
+     */
+    public void registerJvm() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_memory_heap_used_bytes", "Heap in use", "",
+                () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm_memory_heap_committed_bytes", "Heap reserved from the OS", "",
+                () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm_memory_heap_max_bytes", "Largest heap the JVM may use, or -1", "",
+                () -> memory.getHeapMemoryUsage().getMax());
+        gauge("jvm_memory_nonheap_used_bytes", "Non-heap memory in use, e.g. metaspace", "",
+                () -> memory.getNonHeapMemoryUsage().getUsed());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = label("gc", gc.getName());
+            counter("jvm_gc_collections_total", "Garbage collections", labels, gc::getCollectionCount);
+            add("jvm_gc_collection_seconds_total", "Time spent in garbage collection", "counter",
+                    (out, n) -> line(out, n, labels, format(gc.getCollectionTime() / 1000.0)));
+        }
+        gauge("jvm_threads_live", "Live threads, virtual threads excluded", "",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("process_uptime_seconds", "Time since the JVM started", "",
+                () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+
+    /**
+     * Formats one label.
+     *
+     * @param name  the label name.
+     * @param value the value; quotes, backslashes and newlines are escaped.
+     * @return the label, e.g. {@code phase="test"}.
+     */
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @return the exposition text.
+     */
+    public String render() {
+        List<Map.Entry<String, Family>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>();
+            for (Map.Entry<String, Family> entry : families.entrySet()) {
+                snapshot.add(Map.entry(entry.getKey(), new Family(entry.getValue().help(),
+                        entry.getValue().type(), List.copyOf(entry.getValue().samples()))));
+            }
+        }
+        StringBuilder out = new StringBuilder(8192);
+        for (Map.Entry<String, Family> entry : snapshot) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type()).append('\n');
+            for (Sample sample : family.samples()) {
+                sample.writeTo(out, name);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Adds a sample to its family, creating the family on first use.
+     */
+    private synchronized void add(String name, String help, String type, Sample sample) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type, new ArrayList<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type() + ", not a " + type);
+        }
+        family.samples().add(sample);
+    }
+
+    /**
+     * Writes one sample line.
+     */
+    private static void line(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Formats a gauge value without an exponent.
+     */
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+}
@@ -0,0 +1,66 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.PhaseRecord;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts finished builds by outcome and records how long their phases took
+ * in a {@link MetricsRegistry}.
+ *
+ * <p>All instruments are created up front, one per outcome and per phase,
+ * so handling an event only looks them up and records into them.</p>
+ */
+public class MetricsSink implements BuildEventSink {
+
+    /** The build outcomes, as in the build history. */
+    static final List<String> OUTCOMES = List.of("success", "failure", "error", "cancelled", "timed_out");
+
+    /** The phases measured by {@link BuildProcessor}, plus {@code notify}. */
+    static final List<String> PHASES = List.of("queue", "checkout", "dependencies", "compile", "test", "notify");
+
+    private final Map<String, MetricsRegistry.Counter> builds = new HashMap<>();
+    private final Map<String, LatencyHistogram> phases = new HashMap<>();
+
+    /**
+     * Creates the sink and registers its metrics.
+     *
+     * @param registry the registry.
+     */
+    public MetricsSink(MetricsRegistry registry) {
+        for (String outcome : OUTCOMES) {
+            builds.put(outcome, registry.counter("ci_builds_total", "Finished builds by outcome",
+                    MetricsRegistry.label("outcome", outcome)));
+        }
+        for (String phase : PHASES) {
+            phases.put(phase, registry.histogram("ci_build_phase_seconds", "Wall time of build phases",
+                    MetricsRegistry.label("phase", phase), LatencyHistogram.ofMillis()));
+        }
+    }
+
+    /**
+     * Records a finished build, or a build cancelled before it ran; other
+     * events are ignored.
+     *
+     * @param event the event.
+     */
+    @Override
+    public void accept(BuildEvent event) {
+        if (event.type() == BuildEvent.Type.CANCELLED) {
+            builds.get("cancelled").inc();
+            return;
+        }
+        if (event.type() != BuildEvent.Type.FINISHED || event.result() == null) {
+            return;
+        }
+        builds.get(Server.historyStatus(event.result())).inc();
+        for (PhaseRecord record : event.result().getPhases()) {
+            LatencyHistogram histogram = phases.get(record.phase());
+            if (histogram != null) {
+                histogram.record(record.wallMillis());
+            }
+        }
+    }
+}
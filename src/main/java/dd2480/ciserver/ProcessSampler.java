@@ -0,0 +1,133 @@
+package dd2480.ciserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU time and the memory peak of a process and all its
+ * descendants, e.g. Maven and the test JVMs it forks.
+ *
+ * <p>A process's counters vanish once it has exited, so the tree is sampled
+ * at a fixed interval while it runs. On Linux each sample reads
+ * {@code /proc/<pid>/stat} and {@code /proc/<pid>/status} of every process
+ * in the tree. A process's CPU time there includes the children it has
+ * waited for, so the CPU time of the tree is the sum over the root and its
+ * live descendants; the largest sum seen is kept. CPU used after the last
+ * sample is missed, which is at most one interval. The memory peak is the
+ * largest total resident size of the tree in one sample, and at least the
+ * highest {@code VmHWM} of a single process.</p>
+ *
+ * <p>Without {@code /proc}, only the CPU time of the root reported by
+ * {@link ProcessHandle.Info#totalCpuDuration()} is kept, and the memory
+ * peak is 0.</p>
+ */
+class ProcessSampler {
+
+    /** Clock ticks per second of {@code /proc/<pid>/stat}; USER_HZ is 100 on Linux. */
+    private static final long TICKS_PER_SECOND = 100;
+
+    /**
+     * CPU time and memory peak of a process tree.
+     *
+     * @param cpuMillis the CPU time in milliseconds.
+     * @param peakRssKb the memory peak in kilobytes, or 0 if unknown.
+     */
+    record Usage(long cpuMillis, long peakRssKb) {
+    }
+
+    private final ProcessHandle root;
+    private final ScheduledFuture<?> task;
+    private long cpuMillis;
+    private long peakRssKb;
+
+    /**
+     * Starts sampling a process.
+     *
+     * @param process        the process.
+     * @param executor       runs the samples.
+     * @param intervalMillis the time between two samples.
+     */
+    ProcessSampler(Process process, ScheduledExecutorService executor, long intervalMillis) {
+        this.root = process.toHandle();
+        sample();
+        this.task = executor.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes one sample of the tree.
+     */
+    synchronized void sample() {
+        List<ProcessHandle> tree = new ArrayList<>();
+        tree.add(root);
+        root.descendants().forEach(tree::add);
+        long cpu = 0;
+        long rss = 0;
+        boolean procfs = false;
+        for (ProcessHandle process : tree) {
+            Path proc = Path.of("/proc", Long.toString(process.pid()));
+            try {
+                cpu += cpuTicks(Files.readString(proc.resolve("stat"))) * 1000 / TICKS_PER_SECOND;
+                String status = Files.readString(proc.resolve("status"));
+                rss += statusKb(status, "VmRSS:");
+                peakRssKb = Math.max(peakRssKb, statusKb(status, "VmHWM:"));
+                procfs = true;
+            } catch (IOException | RuntimeException e) {
+                // Exited since the tree was listed, or no procfs
+            }
+        }
+        if (!procfs) {
+            cpu = root.info().totalCpuDuration().map(Duration::toMillis).orElse(0L);
+        }
+        cpuMillis = Math.max(cpuMillis, cpu);
+        peakRssKb = Math.max(peakRssKb, rss);
+    }
+
+    /**
+     * Stops sampling and returns what was measured. Call after the process
+     * has exited.
+     *
+     * @return the usage of the tree.
+     */
+    synchronized Usage stop() {
+        task.cancel(false);
+        return new Usage(cpuMillis, peakRssKb);
+    }
+
+    /**
+     * Reads the user and system CPU time of a process and of the children
+     * it waited for from a {@code /proc/<pid>/stat} line.
+     *
+     * @param stat the contents of the stat file.
+     * @return the CPU time in clock ticks.
+     */
+    static long cpuTicks(String stat) {
+        // The command name may contain spaces; the fields after it start with the state
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+        return Long.parseLong(fields[11]) + Long.parseLong(fields[12])
+                + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+    }
+
+    /**
+     * Reads a size in kilobytes from a {@code /proc/<pid>/status} file.
+     *
+     * @param status the contents of the status file.
+     * @param key    the field, e.g. {@code VmRSS:}.
+     * @return the size, or 0 if the field is missing (e.g. for a zombie).
+     */
+    static long statusKb(String status, String key) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith(key)) {
+                return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+}
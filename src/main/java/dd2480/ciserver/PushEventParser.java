@@ -0,0 +1,467 @@
+package dd2480.ciserver;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the fields of a push event that a build needs straight from the
+ * request body, without building a JSON tree.
+ *
+ * <p>Only the top-level {@code ref} and {@code after} strings, the
+ * {@code clone_url} and {@code full_name} of {@code repository} and the
+ * {@code message} of {@code head_commit} are decoded.
+ * Every other value, including the {@code commits} array that makes large
+ * pushes several megabytes, is skipped byte by byte: the parser checks the
+ * JSON grammar of skipped values but keeps none of them, so its memory use
+ * does not grow with the payload. The whole body is still read, so a
+ * truncated or malformed document is rejected.</p>
+ *
+ * <p>A body longer than the size limit fails with
+ * {@link PayloadTooLargeException} as soon as the limit is passed.</p>
+ */
+class PushEventParser {
+
+    /** Thrown when a body is longer than the parser's size limit. */
+    static class PayloadTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception.
+         *
+         * @param limit the size limit in bytes.
+         */
+        PayloadTooLargeException(long limit) {
+            super("Payload is larger than " + limit + " bytes");
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Deepest nesting of skipped objects and arrays. */
+    private static final int MAX_DEPTH = 512;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long consumed;
+    private byte[] run = new byte[64];
+
+    private String ref;
+    private String after;
+    private String cloneUrl;
+    private String fullName;
+    private String headMessage;
+    private boolean hasRepository;
+
+    /**
+     * Creates a parser for one body.
+     *
+     * @param in       the body.
+     * @param maxBytes the largest accepted body in bytes.
+     */
+    private PushEventParser(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Parses a push event from a stream. The stream is read to its end but
+     * not closed.
+     *
+     * @param in       the body.
+     * @param maxBytes the largest accepted body in bytes.
+     * @return the payload.
+     * @throws PayloadTooLargeException if the body is longer than
+     *                                  {@code maxBytes}.
+     * @throws IOException              if the body cannot be read.
+     * @throws JSONException            if the body is not valid JSON or
+     *                                  required fields are missing.
+     */
+    static WebhookPayload parse(InputStream in, long maxBytes) throws IOException {
+        PushEventParser parser = new PushEventParser(in, maxBytes);
+        parser.parseDocument();
+        return parser.toPayload();
+    }
+
+    /**
+     * Reads the top-level object and checks that nothing follows it.
+     */
+    private void parseDocument() throws IOException {
+        if (nextToken() != '{') {
+            throw error("A JSON object text must begin with '{'");
+        }
+        readObject(null);
+        if (nextToken() != -1) {
+            throw error("Unexpected data after the JSON object");
+        }
+    }
+
+    /**
+     * Reads the members of an object whose opening brace was consumed.
+     *
+     * @param parent null for the push event itself, else the key of the
+     *               object, {@code repository} or {@code head_commit}.
+     */
+    private void readObject(String parent) throws IOException {
+        int c = nextToken();
+        if (c == '}') {
+            return;
+        }
+        while (true) {
+            if (c != '"') {
+                throw error("Expected a key");
+            }
+            String key = readString();
+            if (nextToken() != ':') {
+                throw error("Expected ':' after a key");
+            }
+            readMember(key, parent);
+            c = nextToken();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+            c = nextToken();
+        }
+    }
+
+    /**
+     * Reads one member value, keeping it if it is a wanted field.
+     */
+    private void readMember(String key, String parent) throws IOException {
+        int c = nextToken();
+        if (parent == null && key.equals("ref")) {
+            ref = expectString(c, key);
+        } else if (parent == null && key.equals("after")) {
+            after = expectString(c, key);
+        } else if (parent == null && key.equals("repository")) {
+            if (c != '{') {
+                throw error("repository is not a JSON object");
+            }
+            hasRepository = true;
+            readObject(key);
+        } else if (parent == null && key.equals("head_commit") && c == '{') {
+            // null when a branch is deleted
+            readObject(key);
+        } else if ("repository".equals(parent) && key.equals("clone_url")) {
+            cloneUrl = expectString(c, key);
+        } else if ("repository".equals(parent) && key.equals("full_name")) {
+            fullName = expectString(c, key);
+        } else if ("head_commit".equals(parent) && key.equals("message")) {
+            headMessage = expectString(c, key);
+        } else {
+            skipValue(c);
+        }
+    }
+
+    /**
+     * Reads a string value whose first character is {@code c}.
+     */
+    private String expectString(int c, String key) throws IOException {
+        if (c != '"') {
+            throw error(key + " is not a string");
+        }
+        return readString();
+    }
+
+    /**
+     * Skips a value whose first character is {@code c}, checking that it is
+     * valid JSON. Nothing is allocated.
+     */
+    private void skipValue(int c) throws IOException {
+        skipValue(c, 0);
+    }
+
+    /**
+     * Skips a value nested {@code depth} levels into skipped containers.
+     */
+    private void skipValue(int c, int depth) throws IOException {
+        switch (c) {
+            case '"' -> skipString();
+            case '{', '[' -> {
+                if (depth == MAX_DEPTH) {
+                    throw error("Nesting is too deep");
+                }
+                skipContainer(c == '{' ? '}' : ']', depth + 1);
+            }
+            case 't' -> skipLiteral("rue");
+            case 'f' -> skipLiteral("alse");
+            case 'n' -> skipLiteral("ull");
+            default -> {
+                if (c != '-' && !isDigit(c)) {
+                    throw error("Expected a value");
+                }
+                skipNumber(c);
+            }
+        }
+        int next = peek();
+        if (next != -1 && next != ',' && next != '}' && next != ']' && !isWhitespace(next)) {
+            throw error("Unexpected character after a value");
+        }
+    }
+
+    /**
+     * Skips the rest of an object or array whose opening bracket was
+     * consumed.
+     *
+     * @param close the closing bracket.
+     * @param depth the nesting of the container.
+     */
+    private void skipContainer(int close, int depth) throws IOException {
+        int c = nextToken();
+        if (c == close) {
+            return;
+        }
+        while (true) {
+            if (close == '}') {
+                if (c != '"') {
+                    throw error("Expected a key");
+                }
+                skipString();
+                if (nextToken() != ':') {
+                    throw error("Expected ':' after a key");
+                }
+                c = nextToken();
+            }
+            skipValue(c, depth);
+            c = nextToken();
+            if (c == close) {
+                return;
+            }
+            if (c != ',') {
+                throw error(c == -1 ? "Unterminated object or array" : "Expected ',' or '" + (char) close + "'");
+            }
+            c = nextToken();
+        }
+    }
+
+    /**
+     * Skips the rest of {@code true}, {@code false} or {@code null} after
+     * its first letter.
+     */
+    private void skipLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw error("Invalid literal");
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a number whose first character is {@code c}.
+     */
+    private void skipNumber(int c) throws IOException {
+        if (c == '-') {
+            c = read();
+            if (!isDigit(c)) {
+                throw error("Invalid number");
+            }
+        }
+        // No leading zeros
+        if (c != '0') {
+            skipDigits();
+        }
+        if (peek() == '.') {
+            position++;
+            if (!isDigit(read())) {
+                throw error("Invalid number");
+            }
+            skipDigits();
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            position++;
+            c = read();
+            if (c == '+' || c == '-') {
+                c = read();
+            }
+            if (!isDigit(c)) {
+                throw error("Invalid number");
+            }
+            skipDigits();
+        }
+    }
+
+    /**
+     * Skips the digits that come next.
+     */
+    private void skipDigits() throws IOException {
+        while (isDigit(peek())) {
+            position++;
+        }
+    }
+
+    /**
+     * Skips the rest of a string whose opening quote was consumed.
+     */
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = read();
+            }
+            if (c == -1) {
+                throw error("Unterminated string");
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote was consumed. Bytes
+     * between escapes are collected and decoded as UTF-8 together.
+     */
+    private String readString() throws IOException {
+        StringBuilder text = null;
+        int length = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw error("Unterminated string");
+            }
+            if (c == '"') {
+                String last = new String(run, 0, length, StandardCharsets.UTF_8);
+                return text == null ? last : text.append(last).toString();
+            }
+            if (c != '\\') {
+                if (length == run.length) {
+                    run = Arrays.copyOf(run, length * 2);
+                }
+                run[length++] = (byte) c;
+                continue;
+            }
+            if (text == null) {
+                text = new StringBuilder();
+            }
+            text.append(new String(run, 0, length, StandardCharsets.UTF_8));
+            length = 0;
+            text.append(readEscape());
+        }
+    }
+
+    /**
+     * Reads the character of an escape sequence after its backslash.
+     */
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"', '\\', '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw error("Illegal escape");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            default:
+                throw error("Illegal escape");
+        }
+    }
+
+    /**
+     * Returns the next character that is not whitespace, consuming it, or
+     * -1 at the end of the body.
+     */
+    private int nextToken() throws IOException {
+        int c = read();
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at the end.
+     */
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    /**
+     * Consumes the next byte, or returns -1 at the end.
+     */
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Reads the next chunk of the body into the buffer.
+     *
+     * @return false at the end of the body.
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        consumed += n;
+        if (consumed > maxBytes) {
+            throw new PayloadTooLargeException(maxBytes);
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * Creates an error that names the byte offset.
+     */
+    private JSONException error(String message) {
+        return new JSONException(message + " at byte " + (consumed - limit + position));
+    }
+
+    /**
+     * Builds the payload from the fields read.
+     */
+    private WebhookPayload toPayload() {
+        if (ref == null || after == null) {
+            throw new JSONException("Invalid push event payload - missing required fields");
+        }
+        if (!hasRepository) {
+            throw new JSONException("JSONObject[\"repository\"] not found.");
+        }
+        if (cloneUrl == null || fullName == null) {
+            throw new JSONException("Invalid push event payload - missing repository fields");
+        }
+        return new WebhookPayload(cloneUrl, WebhookPayload.parseBranchFromRef(ref), after, fullName,
+                WebhookPayload.bypassesCache(headMessage));
+    }
+}
@@ -0,0 +1,283 @@
+package dd2480.ciserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a local bare mirror of every repository the server builds, so that a
+ * build only fetches the objects pushed since the previous build instead of
+ * cloning the whole repository over the network.
+ *
+ * <p>Each mirror has its own lock: fetches of the same repository are
+ * serialised, while different repositories are fetched in parallel. A mirror
+ * that is being used by a build checkout is never evicted. When the mirrors
+ * take more than the configured size, the least recently used ones that are
+ * not in use are deleted.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_CACHE_DIR} — root directory of the server caches
+ *       (default {@code ci-cache}); mirrors live in {@code mirrors/}.</li>
+ *   <li>{@code CI_MIRROR_MAX_MB} — size limit of all mirrors together
+ *       (default 5120).</li>
+ * </ul>
+ */
+public class RepositoryCache {
+
+    /**
+     * Runs a command in a directory and returns its exit code. Lets the cache
+     * use the caller's process handling (and cancellation).
+     */
+    @FunctionalInterface
+    public interface CommandRunner {
+        /**
+         * Runs the command.
+         *
+         * @param workDir the working directory.
+         * @param command the command and arguments.
+         * @return the exit code.
+         * @throws Exception if the command cannot be run.
+         */
+        int run(File workDir, String... command) throws Exception;
+    }
+
+    /**
+     * A mirror handed out by {@link #acquire}.
+     *
+     * @param path         the path of the bare mirror.
+     * @param fetchedBytes how much the mirror grew during this fetch, as an
+     *                     estimate of the bytes transferred.
+     */
+    public record Lease(Path path, long fetchedBytes) {
+    }
+
+    /** Book-keeping for one mirror. */
+    private static final class Mirror {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile int users;
+        volatile long sizeBytes;
+        volatile long lastUsedMillis;
+    }
+
+    private final Path root;
+    private final long maxBytes;
+    private final Map<Path, Mirror> mirrors = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache using the {@code CI_CACHE_DIR} and
+     * {@code CI_MIRROR_MAX_MB} settings.
+     *
+     * @throws IOException if the cache directory cannot be created.
+     */
+    public RepositoryCache() throws IOException {
+        this(Path.of(Config.get("CI_CACHE_DIR", "ci-cache"), "mirrors"),
+                Config.getLong("CI_MIRROR_MAX_MB", 5120) * 1024 * 1024);
+    }
+
+    /**
+     * Creates a cache in the given directory. Mirrors left there by an earlier
+     * run are picked up again.
+     *
+     * @param root     the directory holding the mirrors.
+     * @param maxBytes the size limit of all mirrors together.
+     * @throws IOException if the directory cannot be created or read.
+     */
+    public RepositoryCache(Path root, long maxBytes) throws IOException {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(root);
+        try (Stream<Path> existing = Files.list(root)) {
+            for (Path dir : existing.filter(Files::isDirectory).toList()) {
+                Mirror mirror = new Mirror();
+                mirror.sizeBytes = sizeOf(dir);
+                mirror.lastUsedMillis = Files.getLastModifiedTime(dir).toMillis();
+                mirrors.put(dir, mirror);
+            }
+        }
+    }
+
+    /**
+     * Brings the mirror of a repository up to date, creating it on first use,
+     * and marks it as in use. Every successful call must be paired with a
+     * call to {@link #release(String)}.
+     *
+     * @param cloneUrl the clone URL of the repository.
+     * @param git      runs the git commands.
+     * @return the mirror and the number of bytes fetched into it.
+     * @throws Exception if the mirror cannot be created or fetched.
+     */
+    public Lease acquire(String cloneUrl, CommandRunner git) throws Exception {
+        Path dir = mirrorPath(cloneUrl);
+        Mirror mirror;
+        while (true) {
+            mirror = mirrors.computeIfAbsent(dir, d -> new Mirror());
+            mirror.lock.lock();
+            if (mirrors.get(dir) == mirror) {
+                break;
+            }
+            // Evicted while we waited for the lock; start over with a fresh entry
+            mirror.lock.unlock();
+        }
+        long fetchedBytes;
+        try {
+            long sizeBefore = mirror.sizeBytes;
+            int exit;
+            if (Files.isDirectory(dir.resolve("objects"))) {
+                exit = git.run(dir.toFile(), "git", "fetch", "--prune", "origin");
+            } else {
+                deleteRecursively(dir);
+                exit = git.run(root.toFile(), "git", "clone", "--mirror", cloneUrl,
+                        dir.getFileName().toString());
+            }
+            if (exit != 0) {
+                throw new IOException("Updating mirror of " + cloneUrl
+                        + " failed with exit code: " + exit);
+            }
+            mirror.users++;
+            mirror.lastUsedMillis = System.currentTimeMillis();
+            mirror.sizeBytes = sizeOf(dir);
+            fetchedBytes = Math.max(0, mirror.sizeBytes - sizeBefore);
+        } finally {
+            mirror.lock.unlock();
+        }
+        evict();
+        return new Lease(dir, fetchedBytes);
+    }
+
+    /**
+     * Marks a mirror obtained from {@link #acquire} as no longer used by the
+     * caller, making it eligible for eviction again.
+     *
+     * @param cloneUrl the clone URL passed to {@code acquire}.
+     */
+    public void release(String cloneUrl) {
+        Mirror mirror = mirrors.get(mirrorPath(cloneUrl));
+        if (mirror == null) {
+            return;
+        }
+        mirror.lock.lock();
+        try {
+            mirror.users = Math.max(0, mirror.users - 1);
+            mirror.lastUsedMillis = System.currentTimeMillis();
+        } finally {
+            mirror.lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes least recently used mirrors that are not in use until the cache
+     * is within its size limit. Mirrors that are locked by a fetch are skipped.
+     */
+    void evict() {
+        while (getTotalBytes() > maxBytes) {
+            Map.Entry<Path, Mirror> oldest = mirrors.entrySet().stream()
+                    .filter(e -> e.getValue().users == 0)
+                    .min(Comparator.comparingLong(e -> e.getValue().lastUsedMillis))
+                    .orElse(null);
+            if (oldest == null) {
+                return;
+            }
+            Mirror mirror = oldest.getValue();
+            if (!mirror.lock.tryLock()) {
+                return;
+            }
+            try {
+                if (mirror.users == 0) {
+                    deleteRecursively(oldest.getKey());
+                    mirrors.remove(oldest.getKey());
+                    System.out.println("Evicted repository mirror " + oldest.getKey());
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to evict mirror " + oldest.getKey() + ": " + e.getMessage());
+                return;
+            } finally {
+                mirror.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the combined size of all mirrors as measured after their last
+     * fetch.
+     *
+     * @return the cache size in bytes.
+     */
+    public long getTotalBytes() {
+        return mirrors.values().stream().mapToLong(m -> m.sizeBytes).sum();
+    }
+
+    /**
+     * Returns the directory that holds (or will hold) the mirror of a
+     * repository. The name combines the repository name with a hash of the
+     * URL so that forks with the same name do not collide.
+     *
+     * @param cloneUrl the clone URL of the repository.
+     * @return the mirror path.
+     */
+    Path mirrorPath(String cloneUrl) {
+        String name = cloneUrl.replaceAll("/+$", "");
+        name = name.substring(name.lastIndexOf('/') + 1).replaceAll("\\.git$", "")
+                .replaceAll("[^A-Za-z0-9._-]", "_");
+        return root.resolve(name + "-" + hash(cloneUrl).substring(0, 12) + ".git");
+    }
+
+    /**
+     * Returns the hex SHA-256 of a string.
+     *
+     * @param text the text to hash.
+     * @return the lowercase hex digest.
+     */
+    static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Returns the total size of the regular files below a directory.
+     *
+     * @param dir the directory to measure.
+     * @return the size in bytes, or 0 if the directory does not exist.
+     * @throws IOException if the directory cannot be walked.
+     */
+    static long sizeOf(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Deletes a directory and everything below it. Does nothing if the path
+     * does not exist.
+     *
+     * @param dir the directory to delete.
+     * @throws IOException if a file cannot be deleted.
+     */
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which threads handle HTTP requests, so that slow dashboard
+ * requests cannot hold up webhook deliveries from GitHub.
+ *
+ * <p>Modes:</p>
+ * <ul>
+ *   <li>{@code dispatcher} — every request runs on the server's single
+ *       dispatcher thread (the JDK default).</li>
+ *   <li>{@code virtual} — every request gets its own virtual thread.</li>
+ *   <li>{@code pools} — webhook requests ({@link #ingest}) and dashboard
+ *       requests ({@link #dashboard}) run on two separate bounded pools.
+ *       When a pool and its queue are full, the request is answered with
+ *       {@code 503} straight away.</li>
+ * </ul>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_HTTP_EXECUTOR} — {@code dispatcher}, {@code virtual}
+ *       (default) or {@code pools}.</li>
+ *   <li>{@code CI_INGEST_THREADS}, {@code CI_INGEST_QUEUE} — size of the
+ *       webhook pool and its queue (default 4 and 256).</li>
+ *   <li>{@code CI_DASHBOARD_THREADS}, {@code CI_DASHBOARD_QUEUE} — size of
+ *       the dashboard pool and its queue (default 4 and 64).</li>
+ * </ul>
+ */
+public class RequestExecutors {
+
+    /** How requests are assigned to threads. */
+    public enum Mode {
+        /** All requests on the dispatcher thread. */
+        DISPATCHER,
+        /** One virtual thread per request. */
+        VIRTUAL,
+        /** Separate bounded pools for webhook and dashboard requests. */
+        POOLS
+    }
+
+    private final Mode mode;
+    private final ThreadPoolExecutor ingestPool;
+    private final ThreadPoolExecutor dashboardPool;
+    private ExecutorService serverExecutor;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates the executors described by the {@code CI_HTTP_EXECUTOR} and
+     * pool size settings.
+     */
+    public RequestExecutors() {
+        this(parseMode(Config.get("CI_HTTP_EXECUTOR", "virtual")),
+                Config.getInt("CI_INGEST_THREADS", 4), Config.getInt("CI_INGEST_QUEUE", 256),
+                Config.getInt("CI_DASHBOARD_THREADS", 4), Config.getInt("CI_DASHBOARD_QUEUE", 64));
+    }
+
+    /**
+     * Creates the executors for a mode. The pool sizes are only used in
+     * {@link Mode#POOLS} mode.
+     *
+     * @param mode             how requests are assigned to threads.
+     * @param ingestThreads    threads for webhook requests.
+     * @param ingestQueue      webhook requests that may wait for a thread.
+     * @param dashboardThreads threads for dashboard requests.
+     * @param dashboardQueue   dashboard requests that may wait for a thread.
+     */
+    public RequestExecutors(Mode mode, int ingestThreads, int ingestQueue,
+                            int dashboardThreads, int dashboardQueue) {
+        this.mode = mode;
+        if (mode == Mode.POOLS) {
+            ingestPool = boundedPool("http-ingest", ingestThreads, ingestQueue);
+            dashboardPool = boundedPool("http-dashboard", dashboardThreads, dashboardQueue);
+        } else {
+            ingestPool = null;
+            dashboardPool = null;
+        }
+    }
+
+    /**
+     * Turns off Nagle's algorithm on the connections of JDK HTTP servers
+     * created after this call, unless {@code sun.net.httpserver.nodelay} is
+     * already set. Without it, a small response written as headers plus body
+     * waits for the client's delayed ACK, which adds about 40 ms to every
+     * request.
+     */
+    public static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Parses a mode name, falling back to {@link Mode#VIRTUAL} if the name
+     * is unknown.
+     *
+     * @param name {@code dispatcher}, {@code virtual} or {@code pools}.
+     * @return the mode.
+     */
+    static Mode parseMode(String name) {
+        try {
+            return Mode.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring invalid value for CI_HTTP_EXECUTOR: " + name);
+            return Mode.VIRTUAL;
+        }
+    }
+
+    /**
+     * Returns the mode.
+     *
+     * @return the mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the server-wide executor for the mode. Must be called before the
+     * server is started.
+     *
+     * @param server the HTTP server.
+     */
+    public void install(HttpServer server) {
+        if (mode == Mode.VIRTUAL) {
+            serverExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            server.setExecutor(serverExecutor);
+        } else {
+            // In pools mode the dispatcher only hands requests over
+            server.setExecutor(null);
+        }
+    }
+
+    /**
+     * Wraps the handler of a webhook endpoint.
+     *
+     * @param handler the handler.
+     * @return a handler that runs on the webhook pool in {@link Mode#POOLS}
+     *         mode, otherwise the handler itself.
+     */
+    public HttpHandler ingest(HttpHandler handler) {
+        return ingestPool == null ? handler : offload(handler, ingestPool);
+    }
+
+    /**
+     * Wraps the handler of a dashboard endpoint.
+     *
+     * @param handler the handler.
+     * @return a handler that runs on the dashboard pool in
+     *         {@link Mode#POOLS} mode, otherwise the handler itself.
+     */
+    public HttpHandler dashboard(HttpHandler handler) {
+        return dashboardPool == null ? handler : offload(handler, dashboardPool);
+    }
+
+    /**
+     * Returns the number of requests refused with {@code 503} because their
+     * pool was full.
+     *
+     * @return the rejected request count.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Stops the executors. Requests already running are allowed to finish.
+     */
+    public void shutdown() {
+        for (ExecutorService executor : executors()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the executors owned by this instance.
+     */
+    private List<ExecutorService> executors() {
+        List<ExecutorService> executors = new ArrayList<>();
+        if (ingestPool != null) {
+            executors.add(ingestPool);
+            executors.add(dashboardPool);
+        }
+        if (serverExecutor != null) {
+            executors.add(serverExecutor);
+        }
+        return executors;
+    }
+
+    /**
+     * Returns a handler that hands the exchange to a pool, or answers
+     * {@code 503} on the calling thread if the pool is full.
+     */
+    private HttpHandler offload(HttpHandler handler, ThreadPoolExecutor pool) {
+        return exchange -> {
+            try {
+                pool.execute(() -> {
+                    try {
+                        handler.handle(exchange);
+                    } catch (Exception e) {
+                        System.err.println("Request " + exchange.getRequestURI() + " failed: " + e.getMessage());
+                        exchange.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                Server.sendText(exchange, 503, "Server busy, try again later");
+            }
+        };
+    }
+
+    /**
+     * Creates a fixed-size pool of daemon threads with a bounded queue that
+     * rejects work when full.
+     *
+     * @param name    the thread name prefix.
+     * @param threads the number of threads.
+     * @param queue   the queue capacity.
+     * @return the pool.
+     */
+    static ThreadPoolExecutor boundedPool(String name, int threads, int queue) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
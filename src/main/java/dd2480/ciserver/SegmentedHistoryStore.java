@@ -0,0 +1,473 @@
+package dd2480.ciserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A {@link BuildHistoryStore} that appends builds to segment files and keeps
+ * an index of them in memory.
+ *
+ * <p>Each build is written as a one-line JSON header with its id, time,
+ * SHA, branch, status and document length, followed by the document itself.
+ * Only the headers are read when the store is opened, to rebuild the indexes
+ * by id, SHA, branch, status and time; documents are read from disk when requested. A
+ * segment is closed and a new one started when it grows beyond the segment
+ * size, so the number of files stays small however many builds are saved.
+ * If the server stopped in the middle of a write, the incomplete build at
+ * the end of the last segment is cut off when the store is opened.</p>
+ *
+ * <p>When the directory has no segments yet, the one-file-per-build JSON
+ * files ({@code build_*.json}) of earlier versions are imported once, in
+ * the order they were written. The old files are left in place.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_HISTORY_DIR} — directory of the segment files (default
+ *       {@code build_history}).</li>
+ *   <li>{@code CI_HISTORY_SEGMENT_MB} — size at which a new segment is
+ *       started (default 64).</li>
+ * </ul>
+ */
+public class SegmentedHistoryStore implements BuildHistoryStore {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private static final NavigableSet<Long> EMPTY = new TreeSet<>();
+
+    /** Headers longer than this are treated as corrupt. */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /** Where a build's document is stored. */
+    private record Location(Entry entry, int segment, long offset, int length) {
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final NavigableMap<Long, Location> byId = new TreeMap<>();
+    private final Map<String, NavigableSet<Long>> bySha = new HashMap<>();
+    private final Map<String, NavigableSet<Long>> byBranch = new HashMap<>();
+    private final Map<String, NavigableSet<Long>> byStatus = new HashMap<>();
+    private final NavigableMap<Long, NavigableSet<Long>> byTime = new TreeMap<>();
+
+    private int segment;
+    private FileChannel writer;
+    private long writerSize;
+    private long nextId = 1;
+
+    /**
+     * Opens the store in {@code CI_HISTORY_DIR}.
+     *
+     * @throws IOException if the directory cannot be created or read.
+     */
+    public SegmentedHistoryStore() throws IOException {
+        this(Path.of(Config.get("CI_HISTORY_DIR", "build_history")),
+                Config.getLong("CI_HISTORY_SEGMENT_MB", 64) * 1024 * 1024);
+    }
+
+    /**
+     * Opens the store in a directory, creating it if needed, and rebuilds the
+     * indexes from the segments found there.
+     *
+     * @param dir          the directory of the segment files.
+     * @param segmentBytes the size at which a new segment is started.
+     * @throws IOException if the directory cannot be created or read.
+     */
+    public SegmentedHistoryStore(Path dir, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+
+        List<Integer> segments;
+        try (Stream<Path> files = Files.list(dir)) {
+            segments = files.map(p -> SEGMENT_NAME.matcher(p.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(m -> Integer.parseInt(m.group(1)))
+                    .sorted()
+                    .toList();
+        }
+        for (int number : segments) {
+            load(number);
+        }
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        openWriter();
+        if (segments.isEmpty()) {
+            importLegacyFiles();
+        }
+    }
+
+    @Override
+    public Entry append(JSONObject build) throws IOException {
+        return append(build, System.currentTimeMillis());
+    }
+
+    /**
+     * Saves a build with the given time.
+     *
+     * @param build      the build document.
+     * @param timeMillis the time to record.
+     * @return the index entry of the saved build.
+     * @throws IOException if the build cannot be written.
+     */
+    private Entry append(JSONObject build, long timeMillis) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (writerSize >= segmentBytes) {
+                writer.close();
+                segment++;
+                openWriter();
+            }
+            long id = nextId;
+            Entry entry = new Entry(id, timeMillis, build.optString("commitSHA", ""),
+                    build.optString("branch", ""), build.optString("status", ""),
+                    build.optLong("jobId", 0));
+            build.put("id", id);
+            build.put("time", timeMillis);
+            byte[] document = build.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] header = (new JSONObject()
+                    .put("id", id)
+                    .put("time", timeMillis)
+                    .put("sha", entry.commitSHA())
+                    .put("branch", entry.branch())
+                    .put("status", entry.status())
+                    .put("jobId", entry.jobId())
+                    .put("length", document.length)
+                    + "\n").getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer record = ByteBuffer.allocate(header.length + document.length + 1);
+            record.put(header).put(document).put((byte) '\n').flip();
+            try {
+                write(writer, record);
+                writer.force(false);
+            } catch (IOException e) {
+                // Cut off what was written so the next record starts at writerSize
+                writer.truncate(writerSize);
+                throw e;
+            }
+
+            index(new Location(entry, segment, writerSize + header.length, document.length));
+            writerSize += header.length + document.length + 1;
+            nextId = id + 1;
+            return entry;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<JSONObject> get(long id) throws IOException {
+        Location location;
+        lock.readLock().lock();
+        try {
+            location = byId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (location == null) {
+            return Optional.empty();
+        }
+        // Written bytes never change, so the read needs no lock
+        ByteBuffer buffer = ByteBuffer.allocate(location.length());
+        try (FileChannel channel = FileChannel.open(segmentPath(location.segment()), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset() + buffer.position()) < 0) {
+                    throw new IOException("Build " + id + " is truncated in segment " + location.segment());
+                }
+            }
+        }
+        return Optional.of(new JSONObject(new String(buffer.array(), StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public List<Entry> list(long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Entry> entries = new ArrayList<>();
+            for (Location location : byId.headMap(beforeId, false).descendingMap().values()) {
+                if (entries.size() >= limit) {
+                    break;
+                }
+                entries.add(location.entry());
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Entry> listByBranch(String branch, long beforeId, int limit) {
+        return find(branch, null, beforeId, limit);
+    }
+
+    @Override
+    public List<Entry> find(String branch, String status, long beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            // Walk the smaller index and check the other filter on each entry
+            NavigableSet<Long> branchIds = branch == null ? null : byBranch.getOrDefault(branch, EMPTY);
+            NavigableSet<Long> statusIds = status == null ? null : byStatus.getOrDefault(status, EMPTY);
+            NavigableSet<Long> ids;
+            if (branchIds == null && statusIds == null) {
+                ids = byId.navigableKeySet();
+            } else if (branchIds == null) {
+                ids = statusIds;
+            } else if (statusIds == null || branchIds.size() <= statusIds.size()) {
+                ids = branchIds;
+            } else {
+                ids = statusIds;
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            for (long id : ids.headSet(beforeId, false).descendingSet()) {
+                if (entries.size() >= limit) {
+                    break;
+                }
+                Entry entry = byId.get(id).entry();
+                if ((branch == null || branch.equals(entry.branch()))
+                        && (status == null || status.equals(entry.status()))) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Entry> findBySha(String commitSHA) {
+        lock.readLock().lock();
+        try {
+            NavigableSet<Long> ids = bySha.get(commitSHA);
+            return ids == null ? List.of() : entries(ids.descendingSet(), Integer.MAX_VALUE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Entry> listBetween(long fromMillis, long toMillis, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Entry> entries = new ArrayList<>();
+            if (fromMillis >= toMillis) {
+                return entries;
+            }
+            for (NavigableSet<Long> ids : byTime.subMap(fromMillis, true, toMillis, false).descendingMap().values()) {
+                entries.addAll(entries(ids.descendingSet(), limit - entries.size()));
+                if (entries.size() >= limit) {
+                    break;
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the segment being written.
+     *
+     * @throws IOException if the segment cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            writer.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the entries of the given ids, in iteration order. Must be
+     * called with the read lock held.
+     */
+    private List<Entry> entries(Collection<Long> ids, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        for (long id : ids) {
+            if (entries.size() >= limit) {
+                break;
+            }
+            entries.add(byId.get(id).entry());
+        }
+        return entries;
+    }
+
+    /**
+     * Adds a build to the indexes. Must be called with the write lock held
+     * or from the constructor.
+     */
+    private void index(Location location) {
+        Entry entry = location.entry();
+        byId.put(entry.id(), location);
+        bySha.computeIfAbsent(entry.commitSHA(), k -> new TreeSet<>()).add(entry.id());
+        byBranch.computeIfAbsent(entry.branch(), k -> new TreeSet<>()).add(entry.id());
+        byStatus.computeIfAbsent(entry.status(), k -> new TreeSet<>()).add(entry.id());
+        byTime.computeIfAbsent(entry.timeMillis(), k -> new TreeSet<>()).add(entry.id());
+        nextId = Math.max(nextId, entry.id() + 1);
+    }
+
+    /**
+     * Reads the headers of a segment into the indexes and cuts off an
+     * incomplete build at its end.
+     *
+     * @param number the segment number.
+     * @throws IOException if the segment cannot be read.
+     */
+    private void load(int number) throws IOException {
+        Path path = segmentPath(number);
+        long size = Files.size(path);
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            while (offset < size) {
+                byte[] header = readLine(in);
+                if (header == null) {
+                    break;
+                }
+                long documentOffset = offset + header.length + 1;
+                Entry entry;
+                int length;
+                try {
+                    JSONObject json = new JSONObject(new String(header, StandardCharsets.UTF_8));
+                    entry = new Entry(json.getLong("id"), json.getLong("time"),
+                            json.getString("sha"), json.getString("branch"),
+                            json.optString("status", ""), json.optLong("jobId", 0));
+                    length = json.getInt("length");
+                } catch (JSONException e) {
+                    break;
+                }
+                if (length < 0 || documentOffset + length + 1 > size) {
+                    break;
+                }
+                in.skipNBytes(length + 1L);
+                index(new Location(entry, number, documentOffset, length));
+                offset = documentOffset + length + 1;
+            }
+        }
+        if (offset < size) {
+            System.err.println("Cutting off incomplete build at byte " + offset + " of " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    /**
+     * Reads bytes up to the next newline.
+     *
+     * @param in the stream to read.
+     * @return the line without the newline, or null at the end of the stream
+     *         or if the line is too long to be a header.
+     * @throws IOException if reading fails.
+     */
+    private static byte[] readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 || line.size() >= MAX_HEADER_BYTES) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toByteArray();
+    }
+
+    /**
+     * Writes a whole record to the segment.
+     *
+     * @param channel the segment channel.
+     * @param record  the record to write.
+     * @throws IOException if the record cannot be written.
+     */
+    void write(FileChannel channel, ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /**
+     * Opens the current segment for appending.
+     *
+     * @throws IOException if the segment cannot be opened.
+     */
+    private void openWriter() throws IOException {
+        writer = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writerSize = writer.size();
+    }
+
+    /**
+     * Imports the one-file-per-build JSON files of earlier versions, oldest
+     * first.
+     *
+     * @throws IOException if the directory cannot be listed.
+     */
+    private void importLegacyFiles() throws IOException {
+        List<Path> legacy;
+        try (Stream<Path> files = Files.list(dir)) {
+            legacy = files.filter(p -> p.getFileName().toString().matches("build_.*\\.json"))
+                    .sorted(Comparator.comparingLong(p -> p.toFile().lastModified()))
+                    .toList();
+        }
+        for (Path file : legacy) {
+            try {
+                append(new JSONObject(Files.readString(file)), file.toFile().lastModified());
+            } catch (IOException | JSONException e) {
+                System.err.println("Skipping unreadable build file " + file + ": " + e.getMessage());
+            }
+        }
+        if (!legacy.isEmpty()) {
+            System.out.println("Imported " + legacy.size() + " builds from " + dir);
+        }
+    }
+
+    /**
+     * Returns the path of a segment file.
+     *
+     * @param number the segment number.
+     * @return the segment path.
+     */
+    private Path segmentPath(int number) {
+        return dir.resolve(String.format("segment-%06d.log", number));
+    }
+}
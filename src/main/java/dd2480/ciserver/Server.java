@@ -19,6 +19,81 @@ import java.nio.file.Files;
  */
 public class Server {
 
+    /** Queue and worker pool that runs the builds triggered by webhooks. */
+    private static BuildScheduler scheduler;
+
+    /** Local repository mirrors shared by all builds, or null if disabled. */
+    private static RepositoryCache repositoryCache;
+
+    /** Local Maven repository shared by all builds, or null if disabled. */
+    private static DependencyCache dependencyCache;
+
+    /** Whether builds run as one Maven invocation instead of compile + test. */
+    private static boolean singleInvocation;
+
+    /** Maven executable used by builds: {@code mvn} or the Maven daemon client. */
+    private static String mavenExecutable = "mvn";
+
+    /** Streams build logs to clients of {@code /builds/{id}/log}. */
+    private static LogTailer logTailer;
+
+    /** Threads that handle HTTP requests. */
+    private static RequestExecutors requestExecutors;
+
+    /** Saved build results, opened on first use by {@link #history()}. */
+    private static BuildHistoryStore history;
+
+    /** Accepted webhooks whose builds have not finished, or null if not opened. */
+    private static WebhookJournal journal;
+
+    /** Recognises redelivered webhooks, or null if not created. */
+    private static DeliveryDeduplicator deduplicator;
+
+    /** Checks webhook signatures; accepts everything until {@link #listen} reads the secret. */
+    private static WebhookSignature signature = new WebhookSignature((String) null);
+
+    /** Kept per-branch workspaces, or null unless {@code CI_INCREMENTAL} is set. */
+    private static BranchWorkspaces workspaces;
+
+    /** Hands out and cleans up the build directories, and watches the disk. */
+    private static WorkspaceManager workspaceManager;
+
+    /** Checkouts of the most active branches, or null unless {@code CI_WARM_POOL_MAX} is set. */
+    private static WarmWorkspacePool warmPool;
+
+    /** Results of earlier builds by tree, or null if {@code CI_RESULT_CACHE_SIZE} is 0. */
+    private static BuildResultCache resultCache;
+
+    /** Delivers build events to GitHub, Discord and the log, or null if not created. */
+    private static BuildEventBus events;
+
+    /** Counters, histograms and gauges served at {@code /metrics}. */
+    private static final MetricsRegistry metrics = new MetricsRegistry();
+
+    /** Time from the start of the webhook handler to its answer. */
+    private static final LatencyHistogram webhookAck = metrics.histogram("ci_webhook_ack_seconds",
+            "Time to answer a webhook", "", LatencyHistogram.ofMicros());
+
+    /** Status codes of webhook answers with their own counter; others count as {@code other}. */
+    private static final int[] WEBHOOK_CODES = {200, 202, 400, 401, 413, 503};
+
+    /** Webhook answers by code, in the order of {@link #WEBHOOK_CODES}, then {@code other}. */
+    private static final MetricsRegistry.Counter[] webhooksByCode = new MetricsRegistry.Counter[WEBHOOK_CODES.length + 1];
+
+    static {
+        for (int i = 0; i <= WEBHOOK_CODES.length; i++) {
+            String code = i < WEBHOOK_CODES.length ? Integer.toString(WEBHOOK_CODES[i]) : "other";
+            webhooksByCode[i] = metrics.counter("ci_webhooks_total", "Webhooks answered, by status code",
+                    MetricsRegistry.label("code", code));
+        }
+    }
+
+    /** Path of the cancel request of one build. */
+    private static final java.util.regex.Pattern CANCEL_PATH = java.util.regex.Pattern.compile("/builds/(\\d+)/cancel/?");
+
+    /** Number of builds on one page of {@code /builds}. */
+    private static final int HISTORY_PAGE_SIZE = 50;
+
     /** Private constructor to prevent instantiation. */
     private Server() {
     }
@@ -30,43 +105,251 @@ public class Server {
      * @throws IOException if the server cannot bind to the port.
      */
     public static void listen(int port) throws IOException {
+        RequestExecutors.enableNoDelay();
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
-        server.createContext("/webhook", Server::handleWebhook);
+        if (Config.getBoolean("CI_MIRROR_CACHE", true)) {
+            repositoryCache = new RepositoryCache();
+        }
+        if (Config.getBoolean("CI_DEPENDENCY_CACHE", true)) {
+            dependencyCache = new DependencyCache();
+        }
+        if (Config.getBoolean("CI_INCREMENTAL", false)) {
+            workspaces = new BranchWorkspaces();
+        }
+        workspaceManager = new WorkspaceManager();
+        BuildResultCache results = new BuildResultCache();
+        if (results.isEnabled()) {
+            resultCache = results;
+        }
+        // Opening the history rebuilds its index before the first request
+        history();
+        String runner = Config.get("CI_BUILD_RUNNER", "split");
+        singleInvocation = !"split".equalsIgnoreCase(runner);
+        if ("mvnd".equalsIgnoreCase(runner)) {
+            MavenDaemon daemon = new MavenDaemon();
+            if (daemon.start()) {
+                mavenExecutable = daemon.getExecutable();
+            } else {
+                System.err.println("Falling back to a single mvn invocation per build");
+            }
+        }
+        signature = new WebhookSignature();
+        if (!signature.isEnabled()) {
+            System.err.println("Warning: CI_WEBHOOK_SECRET is not set, webhook signatures are not checked");
+        }
+        events = newEventBus();
+        // Read back the builds that were queued or running at the last stop
+        journal = new WebhookJournal();
+        deduplicator = new DeliveryDeduplicator(history());
+        scheduler = new BuildScheduler(Server::runPipeline);
+        scheduler.setSupersededListener(Server::reportSuperseded);
+        scheduler.setCancelledListener(Server::reportCancelled);
+        // Stop starting builds while the disk is nearly full
+        workspaceManager.setPressureListener(scheduler::pause, scheduler::resume);
+        workspaceManager.start();
+        // Kept branch workspaces are warm already
+        WarmWorkspacePool pool = new WarmWorkspacePool(workspaceManager,
+                (dir, url, branch) -> newBuildProcessor().warmUp(dir.toFile(), url, branch),
+                () -> scheduler.getQueueDepth() == 0 && scheduler.getActiveCount() == 0);
+        if (pool.isEnabled() && workspaces == null) {
+            warmPool = pool;
+            warmPool.start();
+        }
+        registerMetrics();
+        scheduler.start();
+        resumeUnfinished(journal.getUnfinished());
+
+        // Webhooks and dashboard pages run on separate threads (CI_HTTP_EXECUTOR)
+        requestExecutors = new RequestExecutors();
+        requestExecutors.install(server);
+
+        server.createContext("/webhook", requestExecutors.ingest(Server::handleTimedWebhook));
         
         // Tell the server to listen to /builds 
-        server.createContext("/builds", Server::handleHistory);
+        server.createContext("/builds", requestExecutors.dashboard(Server::handleHistory));
+
+        // Live logs of running builds: /builds/{id}/log; cancelling: POST /builds/{id}/cancel
+        logTailer = new LogTailer(scheduler::isQueuedOrRunning);
+        logTailer.start();
+        server.createContext("/builds/", requestExecutors.dashboard(Server::handleBuild));
+
+        // JSON API over the same history
+        server.createContext("/api/builds", requestExecutors.dashboard(new BuildHistoryApi(history())::handle));
+
+        // Prometheus metrics
+        server.createContext("/metrics", requestExecutors.dashboard(Server::handleMetrics));
 
-        server.setExecutor(null);
         server.start();
 
-        System.out.println("Server started on port " + port);
+        System.out.println("Server started on port " + port + " (" + requestExecutors.getMode()
+                .name().toLowerCase(java.util.Locale.ROOT) + " request executor)");
+    }
+    /**
+     * Registers the metrics read from the server's components when
+     * {@code /metrics} is scraped: the scheduler, the caches, the workspaces,
+     * the event bus and the JVM.
+     */
+    static void registerMetrics() {
+        metrics.gauge("ci_build_queue_depth", "Builds waiting for a worker", "", scheduler::getQueueDepth);
+        metrics.gauge("ci_builds_running", "Builds running now", "", scheduler::getActiveCount);
+        metrics.gauge("ci_build_workers", "Builds that may run at once", "", scheduler::getWorkerCount);
+        metrics.gauge("ci_scheduler_paused", "1 while no new build starts for lack of disk space", "",
+                () -> scheduler.isPaused() ? 1 : 0);
+        metrics.counter("ci_scheduler_accepted_total", "Builds accepted into the queue", "",
+                scheduler::getAcceptedCount);
+        metrics.counter("ci_scheduler_rejected_total", "Builds refused because the queue was full", "",
+                scheduler::getRejectedCount);
+        metrics.counter("ci_scheduler_superseded_total", "Waiting builds replaced by a newer push", "",
+                scheduler::getSupersededCount);
+        metrics.counter("ci_scheduler_superseded_running_total", "Running builds stopped for a newer push", "",
+                scheduler::getRunningSupersededCount);
+        metrics.counter("ci_scheduler_cancelled_total", "Builds cancelled by id", "",
+                scheduler::getCancelledCount);
+        if (resultCache != null) {
+            metrics.counter("ci_result_cache_hits_total", "Builds that reused the result of the same tree", "",
+                    resultCache::getHitCount);
+            metrics.counter("ci_result_cache_misses_total", "Builds whose tree was not built before", "",
+                    resultCache::getMissCount);
+        }
+        metrics.gauge("ci_workspace_bytes", "Size of the build directories at the last disk check", "",
+                workspaceManager::getUsedBytes);
+        metrics.gauge("ci_workspaces_active", "Build directories in use", "", workspaceManager::getActiveCount);
+        if (warmPool != null) {
+            metrics.gauge("ci_warm_pool_size", "Warm workspaces ready", "", warmPool::size);
+            metrics.counter("ci_warm_pool_hits_total", "Builds that started from a warm workspace", "",
+                    warmPool::getHitCount);
+            metrics.counter("ci_warm_pool_misses_total", "Builds that found no warm workspace", "",
+                    warmPool::getMissCount);
+        }
+        for (BuildEventBus.SinkStats sink : events.getStats()) {
+            String labels = MetricsRegistry.label("sink", sink.name());
+            metrics.counter("ci_event_sink_dropped_total", "Build events a slow sink missed", labels,
+                    () -> sinkStats(sink.name()).dropped());
+            metrics.counter("ci_event_sink_failed_total", "Build events a sink threw on", labels,
+                    () -> sinkStats(sink.name()).failed());
+        }
+        metrics.registerJvm();
     }
-    /** SAVES the build result to a JSON-file. */
-    public static void saveBuildResult(dd2480.ciserver.model.CIResultObject result) {
-        try 
-        {
-            //1. Create a folder for build history if it doesn't exist
-            java.io.File folder = new java.io.File("build_history");
-            if (!folder.exists()) 
-            {
-                folder.mkdir();// Create folder if id dose not exist
 
+    /**
+     * Returns the current delivery counts of one event sink.
+     *
+     * @param name the sink name.
+     * @return its statistics.
+     */
+    private static BuildEventBus.SinkStats sinkStats(String name) {
+        for (BuildEventBus.SinkStats stats : events.getStats()) {
+            if (stats.name().equals(name)) {
+                return stats;
             }
-            
-            //2. create a UNIQUE file name
-            String filePath="build_history/build_"+ result.getCommitSHA() + "_" + System.currentTimeMillis() + ".json";
+        }
+        return new BuildEventBus.SinkStats(name, 0, 0, 0, 0);
+    }
 
-            //3. build the JSON.object
+    /**
+     * Registers the metrics of a notifier.
+     *
+     * @param name    the notifier, e.g. {@code github}.
+     * @param latency its request latency histogram.
+     * @param sent    reads the number of messages delivered.
+     * @param failed  reads the number of failed requests.
+     * @param dropped reads the number of messages given up on.
+     */
+    private static void registerNotifierMetrics(String name, LatencyHistogram latency,
+            java.util.function.LongSupplier sent, java.util.function.LongSupplier failed,
+            java.util.function.LongSupplier dropped) {
+        String labels = MetricsRegistry.label("notifier", name);
+        metrics.histogram("ci_notifier_request_seconds", "Time from sending a notification to the response",
+                labels, latency);
+        metrics.counter("ci_notifier_sent_total", "Notifications delivered", labels, sent);
+        metrics.counter("ci_notifier_failed_total", "Notification requests that failed", labels, failed);
+        metrics.counter("ci_notifier_dropped_total", "Notifications given up on", labels, dropped);
+    }
+
+    /**
+     * Answers {@code GET /metrics} with all metrics in the Prometheus text
+     * format.
+     *
+     * @param exchange the HTTP exchange.
+     * @throws IOException if the response cannot be written.
+     */
+    static void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            sendText(exchange, 405, "Method not allowed");
+            return;
+        }
+        byte[] bytes = metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Handles a webhook and records how long it took to answer and with
+     * which status code. Recording allocates nothing.
+     *
+     * @param exchange the HTTP exchange.
+     * @throws IOException if the response cannot be written.
+     */
+    static void handleTimedWebhook(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            handleWebhook(exchange);
+        } finally {
+            webhookAck.recordNanos(System.nanoTime() - start);
+            int code = exchange.getResponseCode();
+            int index = WEBHOOK_CODES.length;
+            for (int i = 0; i < WEBHOOK_CODES.length; i++) {
+                if (WEBHOOK_CODES[i] == code) {
+                    index = i;
+                    break;
+                }
+            }
+            webhooksByCode[index].inc();
+        }
+    }
+
+    /** SAVES the build result to the build history store. */
+    public static void saveBuildResult(dd2480.ciserver.model.CIResultObject result) {
+        saveBuildResult(null, result);
+    }
+
+    /**
+     * Saves the result of a build to the build history store, along with the
+     * repository it was pushed to and its job id, which links the saved
+     * build to its log.
+     *
+     * @param job    the build, or null if it is not known.
+     * @param result the build result.
+     */
+    static void saveBuildResult(BuildJob job, dd2480.ciserver.model.CIResultObject result) {
+        try 
+        {
+            //1. build the JSON.object
             org.json.JSONObject json = new org.json.JSONObject();// Create a JSON object to hold the build result
+            if (job != null) {
+                json.put("jobId", job.getId());
+                json.put("repo", job.getPayload().getRepoFullName());
+            }
             json.put("commitSHA", result.getCommitSHA());
             json.put("branch", result.getBranchName());
+            json.put("status", historyStatus(result));
+            json.put("buildSuccessful", result.isBuildSuccessful());
+            json.put("testsSuccessful", result.isTestsSuccessful());
+            json.put("errorMessage", result.getErrorMessage());
             json.put("log", result.getBuildLog());
+            json.put("logFile", result.getLogFile());
+            json.put("cachedFrom", result.getCachedFrom());
+            json.put("phases", phasesJson(result));
             json.put("date", new java.util.Date().toString());// Gives date and time of the build
 
-            //4. Write to disk 
-            java.nio.file.Files.writeString(java.nio.file.Path.of(filePath), json.toString(4));
-            System.out.println("Build result saved to " + filePath);
+            //2. Append to the history
+            BuildHistoryStore.Entry entry = history().append(json);
+            System.out.println("Build result saved as history entry " + entry.id());
 
         } catch (java.io.IOException e) 
         {
@@ -74,71 +357,179 @@ public class Server {
         }
     }
 
+    /**
+     * Converts the phase records of a build for the history.
+     *
+     * @param result the build result.
+     * @return one object per phase, in the order they ran.
+     */
+    static org.json.JSONArray phasesJson(dd2480.ciserver.model.CIResultObject result) {
+        org.json.JSONArray phases = new org.json.JSONArray();
+        for (dd2480.ciserver.model.PhaseRecord record : result.getPhases()) {
+            phases.put(new org.json.JSONObject()
+                    .put("phase", record.phase())
+                    .put("wallMillis", record.wallMillis())
+                    .put("exitCode", record.exitCode())
+                    .put("cpuMillis", record.cpuMillis())
+                    .put("peakRssKb", record.peakRssKb()));
+        }
+        return phases;
+    }
+
+    /**
+     * Returns the outcome of a build as recorded in the history:
+     * {@code cancelled}, {@code timed_out}, or else the commit status state
+     * ({@code success}, {@code failure} or {@code error}).
+     *
+     * @param result the build result.
+     * @return the status string.
+     */
+    static String historyStatus(dd2480.ciserver.model.CIResultObject result) {
+        if (result.isCancelled()) {
+            return "cancelled";
+        }
+        if (result.isTimedOut()) {
+            return "timed_out";
+        }
+        return GitHubStatusNotifier.mapResultToState(result);
+    }
+
+    /**
+     * Returns the build history store, opening it on first use.
+     *
+     * @return the store in {@code CI_HISTORY_DIR}.
+     * @throws IOException if the store cannot be opened.
+     */
+    static synchronized BuildHistoryStore history() throws IOException {
+        if (history == null) {
+            history = new SegmentedHistoryStore();
+        }
+        return history;
+    }
+
+    /**
+     * Replaces the build history store, e.g. with one in another directory.
+     *
+     * @param store the store to use, or null to open the default one on next
+     *              use.
+     */
+    static synchronized void setHistory(BuildHistoryStore store) {
+        history = store;
+    }
+
+    /**
+     * Replaces the checker of webhook signatures.
+     *
+     * @param checker the checker to use.
+     */
+    static void setSignature(WebhookSignature checker) {
+        signature = checker;
+    }
+
+    /**
+     * Replaces the deduplicator of incoming webhooks.
+     *
+     * @param dedup the deduplicator, or null to build every webhook.
+     */
+    static void setDeduplicator(DeliveryDeduplicator dedup) {
+        deduplicator = dedup;
+    }
+
     /** Handles requests to /builds endpoint, 
-     * lists all saved build results in the build_history folder and returns them as a JSON array.
+     * lists saved build results from the build history store, newest first and
+     * one page at a time ({@code ?before=<id>} continues after the given build),
+     * or shows one build ({@code ?id=<id>}).
      */
     public static void handleHistory(HttpExchange exchange) throws IOException
     {
-        //1. Path to the build history folder
-        java.io.File folder = new java.io.File("build_history");
-
-        //2. List all JSON files in the folder
-        java.io.File[] files = folder.listFiles((dir, name) -> name.endsWith(".json"));
-
-        //3. HTML response
-        StringBuilder html = new StringBuilder("<html><body><h1>Build History</h1><ul>");
+        //1. HTML response
+        StringBuilder html = new StringBuilder("<html><body><h1>Build History</h1>");
 
-        String query = exchange.getRequestURI().getQuery();
+        String query = exchange.getRequestURI().getRawQuery();
+        String idParam = LogTailer.queryParam(query, "id");
+        String beforeParam = LogTailer.queryParam(query, "before");
 
-        // IF a SPECIFIC file is requested
-        if (query != null && query.startsWith("file=")) 
+        // IF a SPECIFIC build is requested
+        if (idParam != null) 
         {
-            String fileName=query.split("file=")[1];//extract filename
-
+            html.append("<p><a href='/builds'>&larr; Back to History</a></p>"); 
             try
             {
-                // Read the content of the file
-                String content = java.nio.file.Files.readString(java.nio.file.Path.of("build_history/" + fileName));   
-                //Link to go back to the history page
-                html.append("<p><a href='/builds'>&larr; Back to History</a></p>"); 
-                //Display the name of the file
-                html.append("<h2>Build Details for ").append(fileName).append("</h2>");
-                // Display the content of the file
-                html.append("<pre style='background:#f4f4f4; padding:10px; border:1px solid #ccc;'>")
-                .append(content)
-                .append("</pre>");
-            } catch (java.io.IOException e)
+                java.util.Optional<JSONObject> build = history().get(Long.parseLong(idParam));
+                if (build.isPresent())
+                {
+                    //Display the id of the build
+                    html.append("<h2>Build Details for #").append(idParam).append("</h2>");
+                    long jobId = build.get().optLong("jobId", 0);
+                    if (jobId > 0)
+                    {
+                        html.append("<p><a href='/builds/").append(jobId).append("/log'>Full log of build ")
+                            .append(jobId).append("</a></p>");
+                    }
+                    // Display the content of the build
+                    html.append("<pre style='background:#f4f4f4; padding:10px; border:1px solid #ccc;'>")
+                    .append(escapeHtml(build.get().toString(4)))
+                    .append("</pre>");
+                }
+                else
+                {
+                    html.append("<p>No build with id ").append(escapeHtml(idParam)).append("</p>");
+                }
+            } catch (NumberFormatException | IOException e)
             {
-                html.append("<p>Error reading file: ").append(e.getMessage()).append("</p>");
-        }
+                html.append("<p>Error reading build: ").append(escapeHtml(String.valueOf(e.getMessage()))).append("</p>");
+            }
         }
-        // If no specific file is requested, list all build files
+        // If no specific build is requested, list one page of builds
         else 
         {
+            long before = Long.MAX_VALUE;
+            try
+            {
+                if (beforeParam != null)
+                {
+                    before = Long.parseLong(beforeParam);
+                }
+            } catch (NumberFormatException e)
+            {
+                // Invalid cursor: start from the newest build
+            }
+            java.util.List<BuildHistoryStore.Entry> entries = history().list(before, HISTORY_PAGE_SIZE);
+
             html.append("<p>Click on a build to see details:</p>");
             html.append("<ul style='list-style-type: none; padding: 0;'>"); // Start the list
 
-            if (files != null && files.length > 0) 
+            if (!entries.isEmpty()) 
             {
-                // Sort files by last modified date (newest first)
-                java.util.Arrays.sort(files, (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
-                
-                // Loop through each file and create a unique link for each build
-                for (java.io.File f : files) 
+                // Loop through each build and create a unique link for each build
+                for (BuildHistoryStore.Entry e : entries) 
                 {
                     html.append("<li style='margin-bottom: 10px; padding: 5px; background: #f9f9f9; border-radius: 4px;'>")
-                        .append("<a href='/builds?file=").append(f.getName()).append("' style='text-decoration: none; color: #007bff; font-weight: bold;'>")
-                        .append(f.getName())
-                        .append("</a>")
-                        .append("</li>");
+                        .append("<a href='/builds?id=").append(e.id()).append("' style='text-decoration: none; color: #007bff; font-weight: bold;'>")
+                        .append('#').append(e.id()).append(' ')
+                        .append(escapeHtml(e.branch())).append(" @ ").append(escapeHtml(e.commitSHA()))
+                        .append("</a> ")
+                        .append(escapeHtml(e.status())).append(' ')
+                        .append(new java.util.Date(e.timeMillis()));
+                    if (e.jobId() > 0)
+                    {
+                        html.append(" <a href='/builds/").append(e.jobId()).append("/log'>log</a>");
+                    }
+                    html.append("</li>");
                 }
             } 
             else 
             {
-                // If no files are found, display a friendly message
+                // If no builds are found, display a friendly message
                 html.append("<li style='color: #666;'>No build history found yet.</li>");
             }
             html.append("</ul>"); // Closing the list 
+
+            if (entries.size() == HISTORY_PAGE_SIZE)
+            {
+                long last = entries.get(entries.size() - 1).id();
+                html.append("<p><a href='/builds?before=").append(last).append("'>Older builds &rarr;</a></p>");
+            }
         }
         html.append("</body></html>");
             
@@ -152,6 +543,17 @@ public class Server {
         }
 
     }
+
+    /**
+     * Escapes text for use in HTML.
+     *
+     * @param text the text to escape.
+     * @return the escaped text.
+     */
+    static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&#39;");
+    }
     /**
      * Reads the full request body from an {@link HttpExchange} as a UTF-8 string.
      *
@@ -166,91 +568,446 @@ public class Server {
     }
 
     /**
-     * Handles incoming webhook requests. Parses the GitHub push event payload,
-     * starts a build in a background thread, and responds with 200 OK.
+     * Reads and discards the rest of a body.
+     *
+     * @param body     the body.
+     * @param maxBytes the largest accepted body in bytes.
+     * @throws IOException if the body cannot be read or is too long.
+     */
+    static void drain(InputStream body, long maxBytes) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = body.read(buffer)) > 0) {
+            total += n;
+            if (total > maxBytes) {
+                throw new PushEventParser.PayloadTooLargeException(maxBytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code Content-Length} of a request.
+     *
+     * @param exchange the HTTP exchange.
+     * @return the declared body length, or -1 if not given or not a number.
+     */
+    static long declaredLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Handles incoming webhook requests. Parses the GitHub push event payload
+     * and queues a build. Responds with 202 Accepted and the queue position,
+     * with 200 OK if the webhook is a redelivery of one already handled,
+     * with 401 Unauthorized if {@code CI_WEBHOOK_SECRET} is set and the
+     * {@code X-Hub-Signature-256} header is missing or does not match, with
+     * 413 Payload Too Large if the body is over {@code CI_MAX_PAYLOAD_KB},
+     * or with 503 Service Unavailable if the build queue is full.
      *
      * @param exchange the HTTP exchange for the incoming request.
      * @throws IOException if reading the request or writing the response fails.
      */
     private static void handleWebhook(HttpExchange exchange) throws IOException {
-        
-        //1.Check if it's a ping event and respond accordingly
+
+        // 1. Reject unsigned and oversized requests before reading the body
+        String signatureHeader = exchange.getRequestHeaders().getFirst("X-Hub-Signature-256");
+        if (signature.isEnabled() && WebhookSignature.parseHeader(signatureHeader) == null) {
+            System.err.println("Rejected webhook without a valid X-Hub-Signature-256 header");
+            sendText(exchange, 401, "Missing or malformed X-Hub-Signature-256 header");
+            return;
+        }
+        long maxBytes = Config.getLong("CI_MAX_PAYLOAD_KB", 25 * 1024) * 1024;
+        if (declaredLength(exchange) > maxBytes) {
+            sendText(exchange, 413, "Payload is larger than " + maxBytes + " bytes");
+            return;
+        }
+
+        //2.Check if it's a ping event and respond accordingly
         String eventType = exchange.getRequestHeaders().getFirst("X-GitHub-Event"); 
         if ("ping".equals(eventType)) {
+            try (WebhookSignature.SignedBody body = signature.wrap(exchange.getRequestBody())) {
+                drain(body, maxBytes);
+                if (!body.verify(signatureHeader)) {
+                    sendText(exchange, 401, "Invalid signature");
+                    return;
+                }
+            } catch (PushEventParser.PayloadTooLargeException e) {
+                sendText(exchange, 413, e.getMessage());
+                return;
+            }
             System.out.println("Received ping from GitHub");
             exchange.sendResponseHeaders(200, 0);
             exchange.close();
             return;
         }
 
-        // 2. If its not a ping, Parse the request body into a WebhookPayload object
+        // 3. If its not a ping, Parse the request body into a WebhookPayload object,
+        //    checking the signature over the bytes as they are read
         System.out.println("Received webhook request");
-        String body = readRequestBody(exchange);
         WebhookPayload payload;
-        try {
-            payload = new WebhookPayload(body);
-        } catch (Exception e) {
-            String error = "Invalid payload: " + e.getMessage();
-            System.err.println(error);
-            exchange.sendResponseHeaders(400, error.length());
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(error.getBytes());
+        try (WebhookSignature.SignedBody body = signature.wrap(exchange.getRequestBody())) {
+            try {
+                payload = WebhookPayload.parse(body, maxBytes);
+            } catch (PushEventParser.PayloadTooLargeException e) {
+                System.err.println("Rejected webhook: " + e.getMessage());
+                sendText(exchange, 413, e.getMessage());
+                return;
+            } catch (Exception e) {
+                // Only tell a signed sender what is wrong with the body,
+                // checking the signature over all of it
+                try {
+                    drain(body, maxBytes);
+                } catch (PushEventParser.PayloadTooLargeException tooLarge) {
+                    sendText(exchange, 413, tooLarge.getMessage());
+                    return;
+                }
+                if (!body.verify(signatureHeader)) {
+                    sendText(exchange, 401, "Invalid signature");
+                    return;
+                }
+                String error = "Invalid payload: " + e.getMessage();
+                System.err.println(error);
+                exchange.sendResponseHeaders(400, error.length());
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(error.getBytes());
+                }
+                return;
+            }
+            if (!body.verify(signatureHeader)) {
+                System.err.println("Rejected webhook with an invalid signature");
+                sendText(exchange, 401, "Invalid signature");
+                return;
             }
-            return;
         }
 
         System.out.println("Branch: " + payload.getBranch()
                 + " | Commit: " + payload.getCommitSHA()
                 + " | Repo: " + payload.getCloneUrl());
 
-        // 3. Start the build in a background thread
-        BuildProcessor buildProcessor = new BuildProcessor();
-        new Thread(() -> {
-            // Attempt to create notifier (non-fatal if GITHUB_TOKEN is missing)
-            GitHubStatusNotifier notifier = null;
-            try {
-                notifier = new GitHubStatusNotifier();
-                notifier.notifyPending(payload.getRepoFullName(), payload.getCommitSHA());
-            } catch (Exception e) {
-                System.err.println("Warning: GitHub notification unavailable — " + e.getMessage());
+        // 4. Acknowledge a redelivery without building again
+        BuildJob job = new BuildJob(payload);
+        String deliveryId = exchange.getRequestHeaders().getFirst("X-GitHub-Delivery");
+        if (deduplicator != null) {
+            java.util.Optional<String> earlier = deduplicator.claim(deliveryId, job);
+            if (earlier.isPresent()) {
+                System.out.println("Duplicate delivery " + deliveryId + " of " + payload.getCommitSHA()
+                        + ", already handled by " + earlier.get());
+                sendText(exchange, 200, "Duplicate delivery, already handled by " + earlier.get());
+                return;
             }
+        }
 
+        // 5. Record the build on disk before acknowledging it
+        if (journal != null) {
             try {
-                var result = buildProcessor.runBuild(
-                        payload.getCloneUrl(), payload.getBranch(), payload.getCommitSHA());
-                saveBuildResult(result);// Save the result
-                System.out.println("Build finished — success: " + result.isCIResultSuccessful());
-
-                if (result.getBuildLog() != null && !result.getBuildLog().isBlank()) {
-                    System.out.println("--- Build Log ---");
-                    System.out.println(result.getBuildLog());
-                    System.out.println("--- End Build Log ---");
-                }
+                journal.accept(job);
+            } catch (IOException e) {
+                System.err.println("Failed to record webhook: " + e.getMessage());
+                releaseDelivery(deliveryId, job);
+                exchange.getResponseHeaders().set("Retry-After", "60");
+                sendText(exchange, 503, "Could not record the build, try again later");
+                return;
+            }
+        }
 
-                if (result.getErrorMessage() != null) {
-                    System.err.println("Error: " + result.getErrorMessage());
-                }
+        // 6. Queue the build, or push back on GitHub if the queue is full
+        int position = scheduler.submit(job);
+        if (position < 0) {
+            completeJournal(job);
+            releaseDelivery(deliveryId, job);
+            String error = "Build queue is full, try again later";
+            System.err.println(error + " (dropped " + payload.getCommitSHA() + ")");
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            sendText(exchange, 503, error);
+            return;
+        }
 
-                // Noti
-                if (notifier != null) {
-                    try {
-                        notifier.notify(payload.getRepoFullName(), result);
-                    } catch (Exception e) {
-                        System.err.println("Warning: Failed to send final status — " + e.getMessage());
-                    }
+        publish(BuildEvent.of(BuildEvent.Type.QUEUED, job, null, null));
+        if (warmPool != null) {
+            warmPool.recordPush(payload.getCloneUrl(), payload.getBranch());
+        }
+
+        // 7. Send acknowledgement back to GitHub
+        String response = "Build " + job.getId() + " queued for " + payload.getBranch()
+                + " @ " + payload.getCommitSHA() + " (position " + position + ")";
+        exchange.getResponseHeaders().set("Location", "/builds/" + job.getId() + "/log");
+        sendText(exchange, 202, response);
+    }
+
+    /**
+     * Runs the CI pipeline for one queued job: publishes that it started,
+     * runs the build, publishes the outcome and saves the result with its
+     * phase records. The {@code notify} phase is the time the build spent
+     * queueing its events for the sinks before the outcome. The sinks
+     * deliver them on their own threads, so it does not include sending
+     * them and stays near zero. Called on a {@link BuildScheduler} worker
+     * thread.
+     *
+     * @param job the job to build.
+     */
+    static void runPipeline(BuildJob job) {
+        WebhookPayload payload = job.getPayload();
+        System.out.println("Build " + job.getId() + " started after waiting "
+                + job.getQueueWaitMillis() + " ms (queue depth " + scheduler.getQueueDepth()
+                + ", average wait " + scheduler.getAverageWaitMillis() + " ms)");
+
+        // Time the build thread spends queueing events for the notifiers
+        java.util.concurrent.atomic.AtomicLong notifyNanos = new java.util.concurrent.atomic.AtomicLong();
+        long start = System.nanoTime();
+        publish(BuildEvent.of(BuildEvent.Type.STARTED, job, null, null));
+        notifyNanos.addAndGet(System.nanoTime() - start);
+
+        try {
+            BuildProcessor buildProcessor = newBuildProcessor();
+            buildProcessor.setLogFile(BuildLog.pathFor(job.getId()));
+            buildProcessor.setResultCache(resultCache, !payload.isCacheBypassed());
+            buildProcessor.setQueueWaitMillis(job.getQueueWaitMillis());
+            buildProcessor.setPhaseListener((phase, partial) -> {
+                long phaseStart = System.nanoTime();
+                publish(BuildEvent.of(phase, job, partial, null));
+                notifyNanos.addAndGet(System.nanoTime() - phaseStart);
+            });
+            job.attach(buildProcessor);
+            var result = buildProcessor.runBuild(
+                    payload.getCloneUrl(), payload.getBranch(), payload.getCommitSHA());
+
+            // The notify phase goes in before FINISHED so the metrics sink sees it
+            result.addPhase(dd2480.ciserver.model.PhaseRecord.withoutProcess("notify",
+                    notifyNanos.get() / 1_000_000));
+            // Queue the outcome for GitHub, Discord and the other sinks
+            publish(BuildEvent.of(BuildEvent.Type.FINISHED, job, result, null));
+            saveBuildResult(job, result);// Save the result
+            if (result.isCancelled() || result.isTimedOut()) {
+                // A later push of the same commit must build again
+                releaseDelivery(null, job);
+            }
+            System.out.println("Build finished — success: " + result.isCIResultSuccessful());
+
+            if (result.getLogFile() != null) {
+                System.out.println("Build log: " + result.getLogFile());
+            }
+
+            if (result.getErrorMessage() != null) {
+                System.err.println("Error: " + result.getErrorMessage());
+            }
+        } catch (Exception e) {
+            System.err.println("CI pipeline error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            completeJournal(job);
+        }
+    }
+
+    /**
+     * Creates the event bus with a sink for the log, for GitHub commit
+     * statuses if {@code GITHUB_TOKEN} is set, for Discord if
+     * {@code DISCORD_WEBHOOK_URL} is set, and for the metrics.
+     *
+     * @return the event bus.
+     */
+    static BuildEventBus newEventBus() {
+        BuildEventBus bus = new BuildEventBus();
+        bus.register("log", event -> System.out.println("Event: " + event.describe()));
+        try {
+            StatusPublisher publisher = new StatusPublisher(GitHubStatusNotifier.getTokenFromEnv());
+            bus.register("github", new GitHubStatusSink(new GitHubStatusNotifier(publisher)));
+            registerNotifierMetrics("github", publisher.getLatency(), publisher::getSentCount,
+                    publisher::getFailedCount, publisher::getDroppedCount);
+        } catch (IllegalStateException e) {
+            System.err.println("Warning: GitHub notification unavailable — " + e.getMessage());
+        }
+        if (Config.get("DISCORD_WEBHOOK_URL", null) != null) {
+            DiscordNotifier discord = DiscordNotifier.shared();
+            bus.register("discord", new DiscordSink(discord));
+            registerNotifierMetrics("discord", discord.getLatency(), discord::getSentCount,
+                    discord::getFailedCount, discord::getDroppedCount);
+        }
+        bus.register("metrics", new MetricsSink(metrics));
+        return bus;
+    }
+
+    /**
+     * Publishes a build event, if the event bus has been created.
+     *
+     * @param event the event.
+     */
+    static void publish(BuildEvent event) {
+        if (events != null) {
+            events.publish(event);
+        }
+    }
+
+    /**
+     * Queues the builds read back from the journal after a restart, with
+     * their original ids. A {@code QUEUED} event marks their commits pending
+     * again, since they may wait in the queue for a while.
+     *
+     * @param jobs the unfinished builds, oldest first.
+     */
+    static void resumeUnfinished(java.util.List<BuildJob> jobs) {
+        for (BuildJob job : jobs) {
+            WebhookPayload payload = job.getPayload();
+            System.out.println("Resuming build " + job.getId() + " for " + payload.getBranch()
+                    + " @ " + payload.getCommitSHA());
+            if (scheduler.submit(job) < 0) {
+                System.err.println("Build queue is full, dropped resumed build " + job.getId());
+                completeJournal(job);
+            } else {
+                if (deduplicator != null) {
+                    deduplicator.remember(job);
                 }
-            } catch (Exception e) {
-                System.err.println("CI pipeline error: " + e.getMessage());
-                e.printStackTrace();
+                publish(BuildEvent.of(BuildEvent.Type.QUEUED, job, null, "resumed after restart"));
             }
-        }).start();
+        }
+    }
 
-        // 3. Send acknowledgement back to GitHub
-        String response = "Build started for " + payload.getBranch()
-                + " @ " + payload.getCommitSHA();
-        exchange.sendResponseHeaders(200, response.length());
+    /**
+     * Lets GitHub deliver a webhook, or push its commit, again after its
+     * build could not be queued or did not get to an outcome.
+     *
+     * @param deliveryId the {@code X-GitHub-Delivery} header, or null.
+     * @param job        the build that was not queued, or was superseded,
+     *                   cancelled or timed out.
+     */
+    private static void releaseDelivery(String deliveryId, BuildJob job) {
+        if (deduplicator != null) {
+            deduplicator.release(deliveryId, job);
+        }
+    }
+
+    /**
+     * Marks a build as finished in the journal, if the journal is open.
+     *
+     * @param job the build that ended, was superseded or was rejected.
+     */
+    static void completeJournal(BuildJob job) {
+        if (journal != null) {
+            journal.complete(job.getId());
+        }
+    }
+
+    /**
+     * Creates a processor for one build, connected to the caches shared by
+     * all builds.
+     *
+     * @return a new build processor.
+     */
+    static BuildProcessor newBuildProcessor() {
+        BuildProcessor processor = new BuildProcessor();
+        processor.setRepositoryCache(repositoryCache);
+        processor.setDependencyCache(dependencyCache);
+        processor.setMavenRunner(singleInvocation, mavenExecutable);
+        processor.setWorkspaces(workspaces);
+        processor.setWorkspaceManager(workspaceManager);
+        processor.setWarmPool(warmPool);
+        return processor;
+    }
+
+    /**
+     * Handles requests below {@code /builds/}: cancelling a build with
+     * {@code POST /builds/{id}/cancel}, or else its log.
+     *
+     * @param exchange the HTTP exchange.
+     * @throws IOException if the response cannot be sent.
+     */
+    static void handleBuild(HttpExchange exchange) throws IOException {
+        java.util.regex.Matcher matcher = CANCEL_PATH.matcher(exchange.getRequestURI().getPath());
+        if (matcher.matches()) {
+            handleCancel(exchange, matcher.group(1));
+        } else {
+            logTailer.handle(exchange);
+        }
+    }
+
+    /**
+     * Cancels a build by id: a waiting build leaves the queue, a running
+     * build is stopped along with all of its processes. If
+     * {@code CI_ADMIN_TOKEN} is set, the request must carry it as a bearer
+     * token. Responds with 200 if the build was dequeued, 202 if it is being
+     * stopped and 404 if no waiting or running build has the id.
+     *
+     * @param exchange the HTTP exchange.
+     * @param id       the build id from the path.
+     * @throws IOException if the response cannot be sent.
+     */
+    static void handleCancel(HttpExchange exchange, String id) throws IOException {
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendText(exchange, 405, "Method not allowed");
+            return;
+        }
+        String token = Config.get("CI_ADMIN_TOKEN", null);
+        if (token != null && !java.security.MessageDigest.isEqual(
+                ("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(exchange.getRequestHeaders().getFirst("Authorization"))
+                        .getBytes(StandardCharsets.UTF_8))) {
+            sendText(exchange, 401, "Missing or wrong bearer token");
+            return;
+        }
+        long buildId;
+        try {
+            buildId = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            sendText(exchange, 404, "Not found");
+            return;
+        }
+        switch (scheduler.cancel(buildId, "Cancelled on request")) {
+            case DEQUEUED -> sendText(exchange, 200, "Build " + buildId + " removed from the queue");
+            case STOPPING -> sendText(exchange, 202, "Build " + buildId + " is being cancelled");
+            default -> sendText(exchange, 404, "No queued or running build " + buildId);
+        }
+    }
+
+    /**
+     * Reports a queued build that was cancelled by id before it ran.
+     *
+     * @param job the job that will not run.
+     */
+    static void reportCancelled(BuildJob job) {
+        completeJournal(job);
+        releaseDelivery(null, job);
+        publish(BuildEvent.of(BuildEvent.Type.CANCELLED, job, null, job.getCancellationReason()));
+    }
+
+    /**
+     * Reports a queued build that was replaced by a newer push to the same
+     * branch, so that its commit does not stay pending on GitHub. The status
+     * is sent by the event sinks, so the webhook response is not delayed.
+     *
+     * @param replaced the job that will not run.
+     * @param newer    the job that took its place.
+     */
+    static void reportSuperseded(BuildJob replaced, BuildJob newer) {
+        completeJournal(replaced);
+        releaseDelivery(null, replaced);
+        String reason = BuildScheduler.supersededReason(newer);
+        publish(BuildEvent.of(BuildEvent.Type.CANCELLED, replaced, null, reason));
+    }
+
+    /**
+     * Writes a plain-text response with the given status code and closes the
+     * exchange.
+     *
+     * @param exchange the HTTP exchange to respond to.
+     * @param status   the HTTP status code.
+     * @param text     the response body.
+     * @throws IOException if writing the response fails.
+     */
+    static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+            os.write(bytes);
         }
     }
 }
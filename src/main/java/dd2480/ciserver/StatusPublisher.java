@@ -0,0 +1,571 @@
+package dd2480.ciserver;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends commit statuses to GitHub in the background, so that builds never
+ * wait on the GitHub API.
+ *
+ * <p>{@link #publish} only puts the status in an outbound queue. If the
+ * same commit already has a status waiting, it is replaced, so only the
+ * latest state of a commit is sent. One sender thread takes the statuses
+ * that are due in batches and sends them concurrently over a shared
+ * {@link HttpClient}, which keeps one HTTP/2 connection to GitHub.</p>
+ *
+ * <p>Responses are handled as follows:</p>
+ * <ul>
+ *   <li>2xx — done.</li>
+ *   <li>{@code 429}, or {@code 403} with a rate-limit header — all sending
+ *       pauses until {@code Retry-After} or {@code X-RateLimit-Reset}, or
+ *       for a minute if neither is given (a secondary rate limit), and the
+ *       status is sent again.</li>
+ *   <li>5xx or a network error — the status is sent again after an
+ *       exponential backoff with jitter, up to {@code CI_STATUS_MAX_ATTEMPTS}
+ *       attempts.</li>
+ *   <li>Any other status, e.g. {@code 404} or {@code 422} — dropped.</li>
+ * </ul>
+ *
+ * <p>{@code X-RateLimit-Remaining} is tracked on every response. When fewer
+ * than {@link #RATE_RESERVE} requests remain, statuses are sent one at a
+ * time, spread evenly over the time left until the limit resets.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code GITHUB_API_URL} — the API base URL (default
+ *       {@code https://api.github.com}).</li>
+ *   <li>{@code CI_STATUS_CONCURRENCY} — statuses sent at once (default
+ *       4).</li>
+ *   <li>{@code CI_STATUS_MAX_ATTEMPTS} — attempts per status (default
+ *       5).</li>
+ *   <li>{@code CI_STATUS_TIMEOUT_SECONDS} — timeout of one request
+ *       (default 10).</li>
+ * </ul>
+ */
+public class StatusPublisher implements Closeable {
+
+    /** Remaining requests below which sending is paced. */
+    static final int RATE_RESERVE = 100;
+
+    /** First retry delay; doubled on every further attempt. */
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+
+    /** Longest retry delay. */
+    private static final long BACKOFF_MAX_MILLIS = 60_000;
+
+    /** Pause after a secondary rate limit that gives no retry time. */
+    private static final long SECONDARY_LIMIT_PAUSE_MILLIS = 60_000;
+
+    /** Longest description GitHub accepts. */
+    private static final int MAX_DESCRIPTION = 140;
+
+    /** The commit status context shown on GitHub. */
+    static final String CONTEXT = "ci-server/dd2480";
+
+    /** A status waiting to be sent. */
+    private static final class Pending {
+        final String repoFullName;
+        final String commitSHA;
+        String state;
+        String description;
+        int attempts;
+        long notBeforeMillis;
+
+        Pending(String repoFullName, String commitSHA, String state, String description) {
+            this.repoFullName = repoFullName;
+            this.commitSHA = commitSHA;
+            this.state = state;
+            this.description = description;
+        }
+
+        String key() {
+            return repoFullName + "@" + commitSHA;
+        }
+    }
+
+    private final String token;
+    private final URI apiBase;
+    private final HttpClient client;
+    private final Duration timeout;
+    private final int concurrency;
+    private final int maxAttempts;
+
+    /** Statuses waiting, in the order they were first published; guarded by {@code this}. */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private int inFlight;
+    private long pausedUntilMillis;
+    private long rateRemaining = -1;
+    private long rateResetMillis;
+    private long nextPacedMillis;
+    private boolean closed;
+    private final Thread sender;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong collapsedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final LatencyHistogram latency = LatencyHistogram.ofMicros();
+
+    /**
+     * Creates a publisher with the {@code GITHUB_API_URL} and
+     * {@code CI_STATUS_*} settings.
+     *
+     * @param token a GitHub token with {@code repo:status} scope.
+     */
+    public StatusPublisher(String token) {
+        this(token, URI.create(Config.get("GITHUB_API_URL", "https://api.github.com")),
+                Config.getInt("CI_STATUS_CONCURRENCY", 4), Config.getInt("CI_STATUS_MAX_ATTEMPTS", 5),
+                Duration.ofSeconds(Config.getLong("CI_STATUS_TIMEOUT_SECONDS", 10)));
+    }
+
+    /**
+     * Creates a publisher.
+     *
+     * @param token       a GitHub token with {@code repo:status} scope.
+     * @param apiBase     the API base URL.
+     * @param concurrency statuses sent at once.
+     * @param maxAttempts attempts per status before it is dropped.
+     * @param timeout     timeout of one request.
+     */
+    public StatusPublisher(String token, URI apiBase, int concurrency, int maxAttempts, Duration timeout) {
+        this.token = token;
+        this.apiBase = apiBase;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.timeout = timeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(timeout)
+                .build();
+        this.sender = new Thread(this::sendLoop, "github-status");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a commit status. Returns at once; if the commit already has a
+     * status waiting, that status is replaced.
+     *
+     * @param repoFullName the full repository name (e.g. {@code "owner/repo"}).
+     * @param commitSHA    the commit SHA.
+     * @param state        {@code pending}, {@code success}, {@code failure}
+     *                     or {@code error}.
+     * @param description  a short description of the status.
+     */
+    public synchronized void publish(String repoFullName, String commitSHA, String state, String description) {
+        if (closed) {
+            System.err.println("Status publisher is closed, dropped " + state + " for " + commitSHA);
+            droppedCount.incrementAndGet();
+            return;
+        }
+        Pending status = new Pending(repoFullName, commitSHA, state, description);
+        Pending waiting = pending.get(status.key());
+        if (waiting != null) {
+            // Keep the place in the queue, send only the newest state
+            waiting.state = state;
+            waiting.description = description;
+            waiting.attempts = 0;
+            collapsedCount.incrementAndGet();
+        } else {
+            pending.put(status.key(), status);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until every queued status has been sent or dropped.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if the queue is empty.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() || inFlight > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of statuses waiting or being sent.
+     *
+     * @return the queue length.
+     */
+    public synchronized int getQueueLength() {
+        return pending.size() + inFlight;
+    }
+
+    /**
+     * Returns the number of statuses GitHub accepted.
+     *
+     * @return the sent count.
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Returns the number of statuses given up on.
+     *
+     * @return the dropped count.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of statuses replaced by a newer state of the same
+     * commit before they were sent.
+     *
+     * @return the collapsed count.
+     */
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    /**
+     * Returns the number of requests repeated after an error or rate limit.
+     *
+     * @return the retry count.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Returns the number of requests that failed: network errors, server
+     * errors and statuses GitHub rejected. Rate limits do not count.
+     *
+     * @return the failed count.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the time from sending each request to its response or error.
+     *
+     * @return the request latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the remaining requests reported by GitHub's last response.
+     *
+     * @return the remaining rate limit, or -1 if unknown.
+     */
+    public synchronized long getRateRemaining() {
+        return rateRemaining;
+    }
+
+    /**
+     * Sends what is queued, waiting up to five seconds, and stops the
+     * sender thread.
+     */
+    @Override
+    public void close() {
+        try {
+            flush(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sends batches of due statuses until the publisher is closed.
+     */
+    private void sendLoop() {
+        while (true) {
+            List<Pending> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) {
+                return;
+            }
+            List<CompletableFuture<Void>> requests = new ArrayList<>();
+            for (Pending status : batch) {
+                requests.add(send(status));
+            }
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    /**
+     * Waits for statuses that are due and takes up to a batch of them.
+     *
+     * @return the batch, or null once the publisher is closed.
+     */
+    private synchronized List<Pending> takeBatch() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            long wakeAt = Math.max(pausedUntilMillis, paced() ? nextPacedMillis : 0);
+            if (wakeAt > now) {
+                wait(wakeAt - now);
+                continue;
+            }
+
+            int limit = paced() ? 1 : concurrency;
+            List<Pending> batch = new ArrayList<>();
+            long nextDue = Long.MAX_VALUE;
+            Iterator<Pending> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < limit) {
+                Pending status = it.next();
+                if (status.notBeforeMillis <= now) {
+                    it.remove();
+                    batch.add(status);
+                } else {
+                    nextDue = Math.min(nextDue, status.notBeforeMillis);
+                }
+            }
+            if (!batch.isEmpty()) {
+                inFlight += batch.size();
+                if (paced()) {
+                    // Spread the remaining requests until the limit resets
+                    nextPacedMillis = now + Math.max(0, rateResetMillis - now) / Math.max(1, rateRemaining);
+                }
+                return batch;
+            }
+            if (nextDue == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, nextDue - now));
+            }
+        }
+    }
+
+    /**
+     * Returns whether the remaining rate limit is low enough to pace
+     * requests.
+     */
+    private boolean paced() {
+        return rateRemaining >= 0 && rateRemaining < RATE_RESERVE
+                && rateResetMillis > System.currentTimeMillis();
+    }
+
+    /**
+     * Sends one status and handles the response.
+     */
+    private CompletableFuture<Void> send(Pending status) {
+        try {
+            return sendAsync(status);
+        } catch (RuntimeException e) {
+            // E.g. a repository name that does not form a valid URL
+            finish(status, null, e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Starts the request for one status.
+     */
+    private CompletableFuture<Void> sendAsync(Pending status) {
+        status.attempts++;
+        String description = status.description == null ? "" : status.description;
+        if (description.length() > MAX_DESCRIPTION) {
+            description = description.substring(0, MAX_DESCRIPTION - 3) + "...";
+        }
+        String body = new JSONObject()
+                .put("state", status.state)
+                .put("description", description)
+                .put("context", CONTEXT)
+                .toString();
+        HttpRequest request = HttpRequest.newBuilder(statusUri(status))
+                .timeout(timeout)
+                .header("Authorization", "Bearer " + token)
+                .header("Accept", "application/vnd.github+json")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        long start = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    latency.recordNanos(System.nanoTime() - start);
+                    finish(status, response, error);
+                    return null;
+                });
+    }
+
+    /**
+     * Returns the statuses URL of a commit.
+     */
+    private URI statusUri(Pending status) {
+        String base = apiBase.toString();
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return URI.create(base + "/repos/" + status.repoFullName + "/statuses/" + status.commitSHA);
+    }
+
+    /**
+     * Records the outcome of a request: done, retried or dropped.
+     */
+    private synchronized void finish(Pending status, HttpResponse<Void> response, Throwable error) {
+        inFlight--;
+        long now = System.currentTimeMillis();
+        try {
+            if (error != null) {
+                failedCount.incrementAndGet();
+                System.err.println("GitHub status request failed for " + status.commitSHA + ": " + error);
+                retryLater(status, now + backoffMillis(status.attempts));
+                return;
+            }
+            updateRateLimit(response.headers(), now);
+            int code = response.statusCode();
+            if (code >= 200 && code < 300) {
+                sentCount.incrementAndGet();
+                System.out.println("GitHub status API response: " + code
+                        + " for state: " + status.state + " on " + status.commitSHA);
+            } else if (isRateLimited(code, response.headers())) {
+                pausedUntilMillis = Math.max(pausedUntilMillis, rateLimitedUntil(response.headers(), now));
+                System.err.println("GitHub rate limit reached, pausing status updates for "
+                        + (pausedUntilMillis - now) / 1000 + " s");
+                // A rate limit is not the status's fault
+                status.attempts--;
+                retryLater(status, pausedUntilMillis);
+            } else if (code >= 500) {
+                failedCount.incrementAndGet();
+                System.err.println("GitHub status API response: " + code + " for " + status.commitSHA);
+                retryLater(status, now + backoffMillis(status.attempts));
+            } else {
+                System.err.println("GitHub rejected status " + status.state + " for " + status.commitSHA
+                        + " with " + code + ", dropping it");
+                failedCount.incrementAndGet();
+                droppedCount.incrementAndGet();
+            }
+        } finally {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Puts a status back in the queue, unless a newer state of the same
+     * commit was published meanwhile or it has no attempts left.
+     */
+    private void retryLater(Pending status, long notBeforeMillis) {
+        if (status.attempts >= maxAttempts || closed) {
+            System.err.println("Giving up on status " + status.state + " for " + status.commitSHA
+                    + " after " + status.attempts + " attempts");
+            droppedCount.incrementAndGet();
+            return;
+        }
+        status.notBeforeMillis = notBeforeMillis;
+        if (pending.putIfAbsent(status.key(), status) == null) {
+            retryCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the rate-limit headers of a response.
+     */
+    private void updateRateLimit(HttpHeaders headers, long now) {
+        OptionalLong remaining = longHeader(headers, "X-RateLimit-Remaining");
+        OptionalLong reset = longHeader(headers, "X-RateLimit-Reset");
+        if (remaining.isPresent()) {
+            rateRemaining = remaining.getAsLong();
+        }
+        if (reset.isPresent()) {
+            rateResetMillis = TimeUnit.SECONDS.toMillis(reset.getAsLong());
+        }
+    }
+
+    /**
+     * Decides whether a response means a rate limit was hit.
+     *
+     * @param code    the response status.
+     * @param headers the response headers.
+     * @return true for {@code 429}, and for {@code 403} with no requests
+     *         remaining or a {@code Retry-After} header.
+     */
+    static boolean isRateLimited(int code, HttpHeaders headers) {
+        if (code == 429) {
+            return true;
+        }
+        if (code != 403) {
+            return false;
+        }
+        return headers.firstValue("Retry-After").isPresent()
+                || longHeader(headers, "X-RateLimit-Remaining").orElse(-1) == 0;
+    }
+
+    /**
+     * Returns when sending may resume after a rate limit.
+     *
+     * @param headers the response headers.
+     * @param now     the current time in epoch milliseconds.
+     * @return the time to resume at, in epoch milliseconds.
+     */
+    static long rateLimitedUntil(HttpHeaders headers, long now) {
+        OptionalLong retryAfter = longHeader(headers, "Retry-After");
+        if (retryAfter.isPresent()) {
+            return now + TimeUnit.SECONDS.toMillis(retryAfter.getAsLong());
+        }
+        if (longHeader(headers, "X-RateLimit-Remaining").orElse(-1) == 0) {
+            OptionalLong reset = longHeader(headers, "X-RateLimit-Reset");
+            if (reset.isPresent()) {
+                return Math.max(now, TimeUnit.SECONDS.toMillis(reset.getAsLong()));
+            }
+        }
+        return now + SECONDARY_LIMIT_PAUSE_MILLIS;
+    }
+
+    /**
+     * Returns the delay before a retry: exponential in the number of
+     * attempts, with "equal jitter" so that retries of many statuses do not
+     * arrive together.
+     *
+     * @param attempts the attempts made so far, at least 1.
+     * @return the delay in milliseconds.
+     */
+    static long backoffMillis(int attempts) {
+        long delay = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempts - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Reads a numeric header.
+     */
+    private static OptionalLong longHeader(HttpHeaders headers, String name) {
+        return headers.firstValue(name).map(value -> {
+            try {
+                return OptionalLong.of(Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                return OptionalLong.empty();
+            }
+        }).orElse(OptionalLong.empty());
+    }
+}
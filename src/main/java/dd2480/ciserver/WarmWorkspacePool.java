@@ -0,0 +1,343 @@
+package dd2480.ciserver;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps checkouts of the most active branches ready before their next push
+ * arrives, so that a build only has to fetch and check out the new commit.
+ *
+ * <p>Every accepted push is recorded with {@link #recordPush}. The pool
+ * wants one warm workspace per {@code CI_WARM_PUSHES_PER_WORKSPACE} pushes
+ * seen in the last {@code CI_WARM_WINDOW_MINUTES}, at most
+ * {@code CI_WARM_POOL_MAX}, and gives them to the branches with the most
+ * pushes in that window. A busy period thus warms more branches, and a
+ * quiet one lets the pool shrink to nothing.</p>
+ *
+ * <p>A background thread refills the pool, but only while the server is
+ * idle: provisioning a workspace clones the branch and resolves its
+ * dependencies, which would slow down running builds. Workspaces come from
+ * the {@link WorkspaceManager}, so they count against its quota, nothing
+ * is warmed under disk pressure, and a workspace taken by a build is
+ * deleted with the build's directory. Warm workspaces of branches that
+ * are no longer among the most active are given back.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_WARM_POOL_MAX} — most warm workspaces (default 0, which
+ *       turns the pool off).</li>
+ *   <li>{@code CI_WARM_WINDOW_MINUTES} — how far back pushes are counted
+ *       (default 60).</li>
+ *   <li>{@code CI_WARM_PUSHES_PER_WORKSPACE} — pushes in the window per
+ *       warm workspace (default 3).</li>
+ *   <li>{@code CI_WARM_REFILL_SECONDS} — how often the pool is refilled
+ *       when idle (default 15).</li>
+ * </ul>
+ */
+public class WarmWorkspacePool implements Closeable {
+
+    /**
+     * Prepares a warm workspace: checks out a branch and resolves its
+     * dependencies.
+     */
+    @FunctionalInterface
+    public interface Provisioner {
+        /**
+         * Checks out a branch into an empty directory.
+         *
+         * @param dir      the empty directory.
+         * @param cloneUrl the clone URL of the repository.
+         * @param branch   the branch.
+         * @return 0 on success, or the exit code of the failing command.
+         * @throws Exception if a process cannot be started or is interrupted.
+         */
+        int provision(Path dir, String cloneUrl, String branch) throws Exception;
+    }
+
+    /** A repository and branch. */
+    record Key(String cloneUrl, String branch) {
+    }
+
+    /** One recorded push. */
+    private record Push(long millis, Key key) {
+    }
+
+    private final WorkspaceManager manager;
+    private final Provisioner provisioner;
+    private final BooleanSupplier idle;
+    private final int maxSize;
+    private final long windowMillis;
+    private final int pushesPerWorkspace;
+
+    /** Recent pushes, oldest first; guarded by {@code this}. */
+    private final Deque<Push> pushes = new ArrayDeque<>();
+
+    /** Warm workspaces by branch; guarded by {@code this}. */
+    private final Map<Key, Path> ready = new HashMap<>();
+
+    private final ScheduledExecutorService refiller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "warm-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong provisionedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Creates a pool from the {@code CI_WARM_*} settings.
+     *
+     * @param manager     the source of workspace directories.
+     * @param provisioner checks out new warm workspaces.
+     * @param idle        tells whether no build is queued or running.
+     */
+    public WarmWorkspacePool(WorkspaceManager manager, Provisioner provisioner, BooleanSupplier idle) {
+        this(manager, provisioner, idle, Config.getInt("CI_WARM_POOL_MAX", 0),
+                Config.getLong("CI_WARM_WINDOW_MINUTES", 60) * 60_000,
+                Config.getInt("CI_WARM_PUSHES_PER_WORKSPACE", 3));
+    }
+
+    /**
+     * Creates a pool. Call {@link #start(long)} to begin refilling.
+     *
+     * @param manager            the source of workspace directories.
+     * @param provisioner        checks out new warm workspaces.
+     * @param idle               tells whether no build is queued or running.
+     * @param maxSize            the most warm workspaces.
+     * @param windowMillis       how far back pushes are counted.
+     * @param pushesPerWorkspace pushes in the window per warm workspace.
+     */
+    public WarmWorkspacePool(WorkspaceManager manager, Provisioner provisioner, BooleanSupplier idle,
+            int maxSize, long windowMillis, int pushesPerWorkspace) {
+        this.manager = manager;
+        this.provisioner = provisioner;
+        this.idle = idle;
+        this.maxSize = maxSize;
+        this.windowMillis = windowMillis;
+        this.pushesPerWorkspace = Math.max(1, pushesPerWorkspace);
+    }
+
+    /**
+     * Returns whether the pool keeps any workspaces.
+     *
+     * @return true if the maximum size is positive.
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Starts refilling the pool at a fixed interval.
+     *
+     * @param intervalMillis the time between two refills.
+     */
+    public void start(long intervalMillis) {
+        refiller.scheduleWithFixedDelay(this::refill, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts refilling the pool every {@code CI_WARM_REFILL_SECONDS}.
+     */
+    public void start() {
+        start(Config.getLong("CI_WARM_REFILL_SECONDS", 15) * 1000);
+    }
+
+    /**
+     * Counts a push towards the activity of its branch.
+     *
+     * @param cloneUrl the clone URL of the repository.
+     * @param branch   the pushed branch.
+     */
+    public synchronized void recordPush(String cloneUrl, String branch) {
+        long now = System.currentTimeMillis();
+        pushes.addLast(new Push(now, new Key(cloneUrl, branch)));
+        prune(now);
+    }
+
+    /**
+     * Takes the warm workspace of a branch out of the pool. The caller owns
+     * it and gives it back to the {@link WorkspaceManager} when done.
+     *
+     * @param cloneUrl the clone URL of the repository.
+     * @param branch   the branch to build.
+     * @return the workspace holding an earlier checkout of the branch, or
+     *         null if there is none.
+     */
+    public synchronized Path take(String cloneUrl, String branch) {
+        Path dir = ready.remove(new Key(cloneUrl, branch));
+        (dir == null ? missCount : hitCount).incrementAndGet();
+        return dir;
+    }
+
+    /**
+     * Returns how many warm workspaces the recent push rate asks for.
+     *
+     * @return the target size, at most the maximum size.
+     */
+    public synchronized int targetSize() {
+        prune(System.currentTimeMillis());
+        return Math.min(maxSize, (pushes.size() + pushesPerWorkspace - 1) / pushesPerWorkspace);
+    }
+
+    /**
+     * Returns the branches that should have a warm workspace: those with
+     * the most pushes in the window, the most recently pushed first on a
+     * tie.
+     *
+     * @return at most {@link #targetSize()} branches, most active first.
+     */
+    synchronized List<Key> wanted() {
+        int size = targetSize();
+        // Iterating newest first keeps the most recent branch ahead on equal counts
+        Map<Key, Integer> counts = new LinkedHashMap<>();
+        pushes.descendingIterator().forEachRemaining(push -> counts.merge(push.key(), 1, Integer::sum));
+        List<Key> keys = new ArrayList<>(counts.keySet());
+        keys.sort(Comparator.comparing(counts::get, Comparator.reverseOrder()));
+        return List.copyOf(keys.subList(0, Math.min(size, keys.size())));
+    }
+
+    /**
+     * Gives back the workspaces of branches no longer wanted and, while the
+     * server stays idle, provisions the missing ones, most active first.
+     */
+    void refill() {
+        List<Key> wanted = wanted();
+        synchronized (this) {
+            ready.entrySet().removeIf(entry -> {
+                if (wanted.contains(entry.getKey())) {
+                    return false;
+                }
+                manager.release(entry.getValue());
+                return true;
+            });
+        }
+        for (Key key : wanted) {
+            synchronized (this) {
+                if (ready.containsKey(key)) {
+                    continue;
+                }
+            }
+            if (!idle.getAsBoolean() || manager.isUnderPressure()) {
+                return;
+            }
+            provision(key);
+        }
+    }
+
+    /**
+     * Checks out a warm workspace for a branch and adds it to the pool.
+     */
+    private void provision(Key key) {
+        Path dir = null;
+        try {
+            dir = manager.allocate();
+            int exit = provisioner.provision(dir, key.cloneUrl(), key.branch());
+            if (exit != 0) {
+                failedCount.incrementAndGet();
+                System.err.println("Warming " + key.branch() + " failed with exit code " + exit);
+                manager.release(dir);
+                return;
+            }
+            synchronized (this) {
+                if (ready.putIfAbsent(key, dir) != null) {
+                    manager.release(dir);
+                    return;
+                }
+            }
+            provisionedCount.incrementAndGet();
+            System.out.println("Warmed a workspace for " + key.branch() + " of " + key.cloneUrl());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (dir != null) {
+                manager.release(dir);
+            }
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            System.err.println("Warming " + key.branch() + " failed: " + e.getMessage());
+            if (dir != null) {
+                manager.release(dir);
+            }
+        }
+    }
+
+    /**
+     * Drops pushes older than the window.
+     */
+    private void prune(long now) {
+        while (!pushes.isEmpty() && pushes.peekFirst().millis() < now - windowMillis) {
+            pushes.removeFirst();
+        }
+    }
+
+    /**
+     * Returns the number of warm workspaces ready now.
+     *
+     * @return the pool size.
+     */
+    public synchronized int size() {
+        return ready.size();
+    }
+
+    /**
+     * Returns the number of builds that found a warm workspace.
+     *
+     * @return the hit count.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of builds that found none.
+     *
+     * @return the miss count.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of warm workspaces provisioned.
+     *
+     * @return the provisioned count.
+     */
+    public long getProvisionedCount() {
+        return provisionedCount.get();
+    }
+
+    /**
+     * Returns the number of workspaces that could not be provisioned.
+     *
+     * @return the failed count.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops refilling and gives every warm workspace back.
+     */
+    @Override
+    public void close() {
+        refiller.shutdownNow();
+        synchronized (this) {
+            ready.values().forEach(manager::release);
+            ready.clear();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package dd2480.ciserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead log of accepted webhooks, so that builds which were queued or
+ * running when the server stopped are not lost.
+ *
+ * <p>A webhook is recorded with {@link #accept} before it is acknowledged,
+ * and marked finished with {@link #complete} once its build has ended or
+ * been superseded. When the journal is opened, the accepted builds without
+ * a finish record are returned by {@link #getUnfinished()} for the server
+ * to run again, and the file is rewritten with only those builds. While the
+ * server runs, the writer thread rewrites the file the same way once
+ * finished builds make up most of it, so the file stays small and a
+ * restart reads little.</p>
+ *
+ * <p>Writes are group-committed: one writer thread takes every record
+ * waiting at that moment, writes them together and syncs the file once. A
+ * caller of {@code accept} waits for that sync, so a burst of webhooks
+ * costs one {@code fsync} per batch instead of one per webhook.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_JOURNAL_FILE} — the journal file (default
+ *       {@code webhook-journal.log}).</li>
+ * </ul>
+ */
+public class WebhookJournal implements Closeable {
+
+    /** Most records written with one sync. */
+    private static final int MAX_BATCH = 1024;
+
+    /** Fewest finish records written before the file is compacted again. */
+    private static final int MIN_COMPACT_RECORDS = 256;
+
+    /**
+     * A record waiting for the writer; a null record stops the writer.
+     *
+     * @param id     the build id.
+     * @param accept whether the record accepts the build or finishes it.
+     */
+    private record Pending(byte[] record, long id, boolean accept, CompletableFuture<Void> written) {
+    }
+
+    private final Path file;
+    private final List<BuildJob> unfinished;
+    /** Accept records of the builds not finished yet, by id; only used by the writer thread. */
+    private final Map<Long, byte[]> open = new LinkedHashMap<>();
+    /** Finish records written since the file was last compacted; only used by the writer thread. */
+    private long doneSinceCompaction;
+    /** Written by the writer thread; closed by {@link #close()} once the writer has stopped. */
+    private FileChannel channel;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private boolean closed;
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    /**
+     * Opens the journal in {@code CI_JOURNAL_FILE}.
+     *
+     * @throws IOException if the journal cannot be read or written.
+     */
+    public WebhookJournal() throws IOException {
+        this(Path.of(Config.get("CI_JOURNAL_FILE", "webhook-journal.log")));
+    }
+
+    /**
+     * Opens a journal, reading back the builds that did not finish and
+     * compacting the file to just those builds.
+     *
+     * @param file the journal file; created if missing.
+     * @throws IOException if the journal cannot be read or written.
+     */
+    public WebhookJournal(Path file) throws IOException {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.unfinished = readUnfinished(file);
+        for (BuildJob job : unfinished) {
+            open.put(job.getId(), acceptRecord(job));
+        }
+        compact();
+        this.channel = openChannel(file);
+        this.writer = new Thread(this::writeLoop, "webhook-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the builds that were accepted but not finished when the
+     * journal was last used, oldest first, with their original ids.
+     *
+     * @return the builds to run again.
+     */
+    public List<BuildJob> getUnfinished() {
+        return unfinished;
+    }
+
+    /**
+     * Records an accepted build and waits until the record is on disk.
+     *
+     * @param job the accepted build.
+     * @throws IOException if the record cannot be written.
+     */
+    public void accept(BuildJob job) throws IOException {
+        try {
+            enqueue(acceptRecord(job), job.getId(), true).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write the journal: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Records that a build has ended, been superseded or been rejected, so
+     * it is not run again after a restart. Does not wait for the disk: if
+     * the record is lost, the build is only run once more.
+     *
+     * @param buildId the id of the build.
+     */
+    public void complete(long buildId) {
+        byte[] record = (new JSONObject().put("op", "done").put("id", buildId) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        enqueue(record, buildId, false);
+    }
+
+    /**
+     * Returns the number of records written since the journal was opened.
+     *
+     * @return the record count.
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * Returns the number of syncs since the journal was opened; each sync
+     * writes one batch of records.
+     *
+     * @return the batch count.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of times the file was compacted while the journal
+     * was open.
+     *
+     * @return the compaction count.
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * Writes the records still waiting and closes the file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(new Pending(null, 0, false, new CompletableFuture<>()));
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Hands a record to the writer thread.
+     *
+     * @param record the record, ending with a newline.
+     * @param id     the build id.
+     * @param accept whether the record accepts the build or finishes it.
+     * @return a future completed once the record has been synced.
+     */
+    private synchronized CompletableFuture<Void> enqueue(byte[] record, long id, boolean accept) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        if (closed) {
+            written.completeExceptionally(new IOException("Journal is closed"));
+            return written;
+        }
+        queue.add(new Pending(record, id, accept, written));
+        return written;
+    }
+
+    /**
+     * Writes batches of waiting records until the journal is closed.
+     */
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            int size = 0;
+            for (Pending pending : batch) {
+                if (pending.record() == null) {
+                    stop = true;
+                } else {
+                    size += pending.record().length;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (Pending pending : batch) {
+                if (pending.record() != null) {
+                    buffer.put(pending.record());
+                }
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                batchCount.incrementAndGet();
+                for (Pending pending : batch) {
+                    if (pending.record() != null) {
+                        recordCount.incrementAndGet();
+                        track(pending);
+                    }
+                    pending.written().complete(null);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to write webhook journal: " + e.getMessage());
+                for (Pending pending : batch) {
+                    pending.written().completeExceptionally(e);
+                }
+            }
+            batch.clear();
+            if (!stop && doneSinceCompaction >= MIN_COMPACT_RECORDS && doneSinceCompaction > 2L * open.size()) {
+                compactWhileOpen();
+            }
+        }
+    }
+
+    /**
+     * Reads the accepted builds without a finish record. A damaged line,
+     * e.g. one cut off by a crash, is skipped.
+     *
+     * @param file the journal file.
+     * @return the unfinished builds in the order they were accepted.
+     * @throws IOException if the file cannot be read.
+     */
+    static List<BuildJob> readUnfinished(Path file) throws IOException {
+        Map<Long, BuildJob> accepted = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return List.of();
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JSONObject record = new JSONObject(line);
+                long id = record.getLong("id");
+                if ("accept".equals(record.getString("op"))) {
+                    WebhookPayload payload = new WebhookPayload(record.getJSONObject("payload").toString());
+                    accepted.put(id, new BuildJob(id, payload));
+                } else {
+                    accepted.remove(id);
+                }
+            } catch (JSONException e) {
+                System.err.println("Skipping damaged journal record: " + e.getMessage());
+            }
+        }
+        return List.copyOf(accepted.values());
+    }
+
+    /**
+     * Keeps track of the builds that are still open after a record was
+     * written. Runs on the writer thread.
+     *
+     * @param pending the written record.
+     */
+    private void track(Pending pending) {
+        if (pending.accept()) {
+            open.put(pending.id(), pending.record());
+        } else {
+            open.remove(pending.id());
+            doneSinceCompaction++;
+        }
+    }
+
+    /**
+     * Compacts the file while the writer is running and appends to the new
+     * file from then on. Runs on the writer thread between batches, so no
+     * record is written meanwhile. If the compaction fails, the writer keeps
+     * appending to the old file.
+     */
+    private void compactWhileOpen() {
+        try {
+            compact();
+            FileChannel old = channel;
+            channel = openChannel(file);
+            old.close();
+            doneSinceCompaction = 0;
+            compactionCount.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Failed to compact webhook journal: " + e.getMessage());
+            // Try again after as many finished builds again
+            doneSinceCompaction = 0;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the unfinished builds, replacing the
+     * old file atomically.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] record : open.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the accept record of a build.
+     *
+     * @param job the build.
+     * @return the record, ending with a newline.
+     */
+    private static byte[] acceptRecord(BuildJob job) {
+        JSONObject record = new JSONObject()
+                .put("op", "accept")
+                .put("id", job.getId())
+                .put("payload", new JSONObject(job.getPayload().toJson()));
+        return (record + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens the journal file for appending.
+     *
+     * @param file the journal file.
+     * @return the channel.
+     * @throws IOException if the file cannot be opened.
+     */
+    private static FileChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
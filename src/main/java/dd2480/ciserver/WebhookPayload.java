@@ -2,6 +2,9 @@ package dd2480.ciserver;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Parses a GitHub push event webhook payload, extracting the repository URL,
  * branch name, and commit SHA which we need for triggering CI builds.
@@ -14,9 +17,15 @@ import org.json.JSONObject;
  *   "repository": {
  *     "clone_url": "https://github.com/owner/repo.git",
  *     "full_name": "owner/repo"
+ *   },
+ *   "head_commit": {
+ *     "message": "Fix the build [no cache]"
  *   }
  * }
  * }</pre>
+ *
+ * <p>A head commit message containing {@link BuildResultCache#BYPASS_MARKER}
+ * makes the push skip the build result cache.</p>
  */
 public class WebhookPayload {
 
@@ -24,6 +33,7 @@ public class WebhookPayload {
     private final String branch;
     private final String commitSHA;
     private final String repoFullName;
+    private final boolean cacheBypassed;
 
     /**
      * Constructs a WebhookPayload by parsing a raw JSON string from a GitHub
@@ -47,7 +57,56 @@ public class WebhookPayload {
         this.repoFullName = repo.getString("full_name");
         this.branch = parseBranchFromRef(json.getString("ref"));
         this.commitSHA = json.getString("after");
-        
+        JSONObject headCommit = json.optJSONObject("head_commit");
+        this.cacheBypassed = headCommit != null && bypassesCache(headCommit.optString("message", null));
+    }
+
+    /**
+     * Creates a payload from fields that were already extracted.
+     *
+     * @param cloneUrl     the HTTPS clone URL.
+     * @param branch       the short branch name.
+     * @param commitSHA    the SHA of the head commit.
+     * @param repoFullName the full repository name.
+     */
+    WebhookPayload(String cloneUrl, String branch, String commitSHA, String repoFullName) {
+        this(cloneUrl, branch, commitSHA, repoFullName, false);
+    }
+
+    /**
+     * Creates a payload from fields that were already extracted.
+     *
+     * @param cloneUrl      the HTTPS clone URL.
+     * @param branch        the short branch name.
+     * @param commitSHA     the SHA of the head commit.
+     * @param repoFullName  the full repository name.
+     * @param cacheBypassed whether the push skips the build result cache.
+     */
+    WebhookPayload(String cloneUrl, String branch, String commitSHA, String repoFullName,
+            boolean cacheBypassed) {
+        this.cloneUrl = cloneUrl;
+        this.branch = branch;
+        this.commitSHA = commitSHA;
+        this.repoFullName = repoFullName;
+        this.cacheBypassed = cacheBypassed;
+    }
+
+    /**
+     * Parses a push event straight from a request body. Unlike the
+     * {@link #WebhookPayload(String) String constructor}, the body is not
+     * held in memory: only the needed fields are decoded and the rest,
+     * such as the list of commits, is skipped while reading.
+     *
+     * @param body     the request body; read to its end but not closed.
+     * @param maxBytes the largest accepted body in bytes.
+     * @return the parsed payload.
+     * @throws IOException            if the body cannot be read, or is
+     *                                longer than {@code maxBytes}.
+     * @throws org.json.JSONException if required fields are missing or the
+     *                                JSON is malformed.
+     */
+    public static WebhookPayload parse(InputStream body, long maxBytes) throws IOException {
+        return PushEventParser.parse(body, maxBytes);
     }
 
     /**
@@ -65,6 +124,16 @@ public class WebhookPayload {
         return ref;
     }
 
+    /**
+     * Tells whether a head commit message asks to skip the result cache.
+     *
+     * @param message the commit message, or null.
+     * @return true if it contains {@link BuildResultCache#BYPASS_MARKER}.
+     */
+    static boolean bypassesCache(String message) {
+        return message != null && message.contains(BuildResultCache.BYPASS_MARKER);
+    }
+
     /**
      * Returns the clone URL of the repository.
      *
@@ -100,4 +169,34 @@ public class WebhookPayload {
     public String getRepoFullName() {
         return repoFullName;
     }
+
+    /**
+     * Returns whether the push skips the build result cache and is always
+     * built.
+     *
+     * @return true if the head commit message contains
+     *         {@link BuildResultCache#BYPASS_MARKER}.
+     */
+    public boolean isCacheBypassed() {
+        return cacheBypassed;
+    }
+
+    /**
+     * Returns the smallest push event JSON that parses back into an equal
+     * payload, e.g. to store the payload and rebuild it later.
+     *
+     * @return the JSON text.
+     */
+    public String toJson() {
+        JSONObject json = new JSONObject()
+                .put("ref", "refs/heads/" + branch)
+                .put("after", commitSHA)
+                .put("repository", new JSONObject()
+                        .put("clone_url", cloneUrl)
+                        .put("full_name", repoFullName));
+        if (cacheBypassed) {
+            json.put("head_commit", new JSONObject().put("message", BuildResultCache.BYPASS_MARKER));
+        }
+        return json.toString();
+    }
 }
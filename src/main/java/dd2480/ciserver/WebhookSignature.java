@@ -0,0 +1,224 @@
+package dd2480.ciserver;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Checks the {@code X-Hub-Signature-256} header that GitHub adds to every
+ * webhook when the webhook has a secret: the HMAC-SHA256 of the body, keyed
+ * with the secret, as {@code sha256=<hex>}.
+ *
+ * <p>The HMAC is computed while the body is read, through
+ * {@link #wrap(InputStream)}, so the body is never buffered just to check
+ * it. Initialised {@link Mac} instances are kept in a pool and reused; a
+ * per-thread cache would be of no use with the default virtual-thread
+ * request executor, where every request has its own thread. Signatures are
+ * compared in constant time.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_WEBHOOK_SECRET} — the webhook secret configured on
+ *       GitHub. If unset, signatures are not checked.</li>
+ * </ul>
+ */
+public class WebhookSignature {
+
+    /** Prefix of the header value. */
+    private static final String PREFIX = "sha256=";
+
+    /** Length of an HMAC-SHA256 in bytes. */
+    private static final int HMAC_LENGTH = 32;
+
+    private final SecretKeySpec key;
+    private final ConcurrentLinkedQueue<Mac> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a checker for the secret in {@code CI_WEBHOOK_SECRET}.
+     */
+    public WebhookSignature() {
+        this(Config.get("CI_WEBHOOK_SECRET", null));
+    }
+
+    /**
+     * Creates a checker for a secret.
+     *
+     * @param secret the webhook secret, or null to accept every request.
+     */
+    public WebhookSignature(String secret) {
+        this.key = secret == null || secret.isEmpty()
+                ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * Returns whether signatures are checked.
+     *
+     * @return true if a secret is configured.
+     */
+    public boolean isEnabled() {
+        return key != null;
+    }
+
+    /**
+     * Decodes a signature header.
+     *
+     * @param header the {@code X-Hub-Signature-256} value, or null.
+     * @return the HMAC bytes, or null if the header is missing or malformed.
+     */
+    static byte[] parseHeader(String header) {
+        if (header == null || !header.startsWith(PREFIX)
+                || header.length() != PREFIX.length() + 2 * HMAC_LENGTH) {
+            return null;
+        }
+        try {
+            return HexFormat.of().parseHex(header, PREFIX.length(), header.length());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a request body so that its HMAC is computed as it is read.
+     *
+     * @param body the request body.
+     * @return the wrapped body.
+     */
+    public SignedBody wrap(InputStream body) {
+        return new SignedBody(body, key == null ? null : borrow());
+    }
+
+    /**
+     * Computes the signature header for a body, e.g. to sign test requests.
+     *
+     * @param body the body.
+     * @return the {@code X-Hub-Signature-256} value.
+     * @throws IllegalStateException if no secret is configured.
+     */
+    public String sign(byte[] body) {
+        if (key == null) {
+            throw new IllegalStateException("No webhook secret configured");
+        }
+        Mac mac = borrow();
+        try {
+            return PREFIX + HexFormat.of().formatHex(mac.doFinal(body));
+        } finally {
+            idle.add(mac);
+        }
+    }
+
+    /**
+     * Takes an initialised Mac from the pool, or creates one.
+     */
+    private Mac borrow() {
+        Mac mac = idle.poll();
+        if (mac != null) {
+            return mac;
+        }
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required on every Java platform
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * A request body that feeds every byte read into an HMAC. The Mac goes
+     * back to the pool when the signature is checked or the body is closed.
+     */
+    public class SignedBody extends FilterInputStream {
+
+        private Mac mac;
+
+        /**
+         * Wraps a body.
+         *
+         * @param in  the body.
+         * @param mac the Mac to update, or null when signatures are not
+         *            checked.
+         */
+        private SignedBody(InputStream in, Mac mac) {
+            super(in);
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && mac != null) {
+                mac.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && mac != null) {
+                mac.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must still be signed, so read them
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Checks the bytes read so far against a signature header. May be
+         * called once; afterwards the body no longer computes an HMAC.
+         *
+         * @param header the {@code X-Hub-Signature-256} value, or null.
+         * @return true if signatures are not checked, or the header matches
+         *         the body.
+         */
+        public boolean verify(String header) {
+            if (key == null) {
+                return true;
+            }
+            if (mac == null) {
+                throw new IllegalStateException("Signature already checked");
+            }
+            byte[] actual = mac.doFinal();
+            release();
+            byte[] expected = parseHeader(header);
+            return expected != null && MessageDigest.isEqual(expected, actual);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mac != null) {
+                mac.reset();
+                release();
+            }
+            super.close();
+        }
+
+        /**
+         * Returns the Mac to the pool.
+         */
+        private void release() {
+            idle.add(mac);
+            mac = null;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package dd2480.ciserver;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Hands out the directories builds check out into, and deletes them again
+ * without holding up the build.
+ *
+ * <p>{@link #release(Path)} only renames a workspace into the
+ * {@code .trash} directory next to it and returns; a background thread
+ * deletes it. Workspaces and trash left behind by an earlier run are
+ * deleted at start-up.</p>
+ *
+ * <p>The same thread checks the disk every {@code CI_DISK_CHECK_SECONDS}.
+ * When the free space of the workspace file system drops below the low
+ * watermark, or the workspaces take more than the quota, the pressure
+ * listener is told, and the server pauses its scheduler until the
+ * cleaner has freed enough space: at least a quarter more than the
+ * watermark, and at most nine tenths of the quota.</p>
+ *
+ * <p>Only the directories below {@code CI_WORKSPACE_DIR} (and the tmpfs)
+ * count towards the quota. The kept branch workspaces of
+ * {@code CI_INCREMENTAL} live in {@code CI_CACHE_DIR} and are never
+ * released, so they are left out; they still count against the free disk
+ * space if they share its file system.</p>
+ *
+ * <p>With {@code CI_WORKSPACE_TMPFS}, workspaces are put on that memory
+ * file system for faster checkouts and builds, as long as it has
+ * {@code CI_TMPFS_MIN_FREE_MB} free; otherwise they go to disk.</p>
+ *
+ * <p>Settings:</p>
+ * <ul>
+ *   <li>{@code CI_WORKSPACE_DIR} — directory of the build workspaces
+ *       (default {@code ci-workspaces} in the system temporary
+ *       directory).</li>
+ *   <li>{@code CI_WORKSPACE_QUOTA_MB} — size limit of all workspaces
+ *       together (default 10240).</li>
+ *   <li>{@code CI_DISK_LOW_WATERMARK_MB} — free disk space below which no
+ *       new build starts (default 2048).</li>
+ *   <li>{@code CI_DISK_CHECK_SECONDS} — how often the disk is checked
+ *       (default 30).</li>
+ *   <li>{@code CI_WORKSPACE_TMPFS} — a tmpfs mount to put workspaces on,
+ *       e.g. {@code /dev/shm} (default unset).</li>
+ *   <li>{@code CI_TMPFS_MIN_FREE_MB} — free space the tmpfs must have for a
+ *       new workspace (default 1024).</li>
+ * </ul>
+ */
+public final class WorkspaceManager {
+
+    /** Directory that released workspaces are moved into before deletion. */
+    private static final String TRASH = ".trash";
+
+    private final Path diskRoot;
+    private final Path tmpfsRoot;
+    private final long quotaBytes;
+    private final long lowWatermarkBytes;
+    private final long tmpfsMinFreeBytes;
+    private final Set<Path> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "workspace-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Consumer<String> pressureListener = reason -> { };
+    private volatile Runnable relievedListener = () -> { };
+    private volatile boolean underPressure;
+
+    private final AtomicInteger pendingDeletes = new AtomicInteger();
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong deletedCount = new AtomicLong();
+    private final AtomicLong tmpfsCount = new AtomicLong();
+    private volatile long usedBytes;
+    private volatile long freeBytes = Long.MAX_VALUE;
+
+    /**
+     * Creates a manager from the {@code CI_WORKSPACE_*}, {@code CI_DISK_*}
+     * and {@code CI_TMPFS_*} settings.
+     *
+     * @throws IOException if a workspace directory cannot be created.
+     */
+    public WorkspaceManager() throws IOException {
+        this(Path.of(Config.get("CI_WORKSPACE_DIR",
+                        Path.of(System.getProperty("java.io.tmpdir"), "ci-workspaces").toString())),
+                tmpfsRoot(Config.get("CI_WORKSPACE_TMPFS", null)),
+                Config.getLong("CI_WORKSPACE_QUOTA_MB", 10240) * 1024 * 1024,
+                Config.getLong("CI_DISK_LOW_WATERMARK_MB", 2048) * 1024 * 1024,
+                Config.getLong("CI_TMPFS_MIN_FREE_MB", 1024) * 1024 * 1024);
+    }
+
+    /**
+     * Creates a manager. Call {@link #start(long)} to begin the disk
+     * checks.
+     *
+     * @param diskRoot          the directory of workspaces on disk.
+     * @param tmpfsRoot         the directory of workspaces on a tmpfs, or
+     *                          null to use only the disk.
+     * @param quotaBytes        size limit of all workspaces together.
+     * @param lowWatermarkBytes free disk space below which builds pause.
+     * @param tmpfsMinFreeBytes free tmpfs space needed for a new workspace.
+     * @throws IOException if a workspace directory cannot be created.
+     */
+    public WorkspaceManager(Path diskRoot, Path tmpfsRoot, long quotaBytes, long lowWatermarkBytes,
+            long tmpfsMinFreeBytes) throws IOException {
+        this.diskRoot = diskRoot.toAbsolutePath();
+        this.tmpfsRoot = tmpfsRoot == null ? null : tmpfsRoot.toAbsolutePath();
+        this.quotaBytes = quotaBytes;
+        this.lowWatermarkBytes = lowWatermarkBytes;
+        this.tmpfsMinFreeBytes = tmpfsMinFreeBytes;
+        for (Path root : roots()) {
+            Files.createDirectories(root.resolve(TRASH));
+            // Everything here is left over from an earlier run; empty the trash first
+            try (Stream<Path> trash = Files.list(root.resolve(TRASH))) {
+                trash.forEach(this::deleteLater);
+            }
+            try (Stream<Path> leftovers = Files.list(root)) {
+                for (Path leftover : leftovers.toList()) {
+                    if (!leftover.getFileName().toString().equals(TRASH)) {
+                        release(leftover);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the workspace directory below a tmpfs mount, warning if the
+     * mount is not a tmpfs.
+     *
+     * @param mount the {@code CI_WORKSPACE_TMPFS} value, or null.
+     * @return the directory, or null.
+     */
+    private static Path tmpfsRoot(String mount) {
+        if (mount == null) {
+            return null;
+        }
+        Path root = Path.of(mount, "ci-workspaces");
+        try {
+            String type = Files.getFileStore(Path.of(mount)).type();
+            if (!"tmpfs".equals(type)) {
+                System.err.println("Warning: CI_WORKSPACE_TMPFS " + mount + " is a " + type + " file system");
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: CI_WORKSPACE_TMPFS " + mount + " is unusable: " + e.getMessage());
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Starts checking the disk at a fixed interval.
+     *
+     * @param intervalMillis the time between two checks.
+     */
+    public void start(long intervalMillis) {
+        cleaner.scheduleWithFixedDelay(this::checkDisk, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts checking the disk every {@code CI_DISK_CHECK_SECONDS}.
+     */
+    public void start() {
+        start(Config.getLong("CI_DISK_CHECK_SECONDS", 30) * 1000);
+    }
+
+    /**
+     * Sets the callbacks told when disk pressure begins and ends. They run
+     * on the cleaner thread.
+     *
+     * @param onPressure told the reason when builds should stop starting.
+     * @param onRelief   told when there is room again.
+     */
+    public void setPressureListener(Consumer<String> onPressure, Runnable onRelief) {
+        this.pressureListener = onPressure;
+        this.relievedListener = onRelief;
+    }
+
+    /**
+     * Creates an empty workspace for a build, on the tmpfs if one is
+     * configured and has room.
+     *
+     * @return the new directory.
+     * @throws IOException if the directory cannot be created.
+     */
+    public Path allocate() throws IOException {
+        Path root = diskRoot;
+        if (tmpfsRoot != null && Files.getFileStore(tmpfsRoot).getUsableSpace() >= tmpfsMinFreeBytes) {
+            root = tmpfsRoot;
+            tmpfsCount.incrementAndGet();
+        }
+        Path dir = Files.createTempDirectory(root, "build-");
+        active.add(dir);
+        allocatedCount.incrementAndGet();
+        return dir;
+    }
+
+    /**
+     * Gives a workspace back. It is moved out of the way at once and
+     * deleted in the background.
+     *
+     * @param dir the directory from {@link #allocate()}.
+     */
+    public void release(Path dir) {
+        active.remove(dir);
+        Path trash = dir.resolveSibling(TRASH).resolve(dir.getFileName() + "-" + System.nanoTime());
+        try {
+            Files.move(dir, trash, StandardCopyOption.ATOMIC_MOVE);
+            deleteLater(trash);
+        } catch (AtomicMoveNotSupportedException e) {
+            deleteLater(dir);
+        } catch (IOException e) {
+            // Not moved, e.g. already gone; delete what is there
+            deleteLater(dir);
+        }
+    }
+
+    /**
+     * Queues a directory for deletion on the cleaner thread.
+     */
+    private void deleteLater(Path dir) {
+        pendingDeletes.incrementAndGet();
+        cleaner.execute(() -> {
+            try {
+                RepositoryCache.deleteRecursively(dir);
+                deletedCount.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Failed to delete workspace " + dir + ": " + e.getMessage());
+            } finally {
+                pendingDeletes.decrementAndGet();
+            }
+            if (underPressure) {
+                checkDisk();
+            }
+        });
+    }
+
+    /**
+     * Measures the workspaces and the free disk space, and tells the
+     * pressure listener when builds should pause or may resume.
+     */
+    void checkDisk() {
+        try {
+            long used = 0;
+            for (Path root : roots()) {
+                used += RepositoryCache.sizeOf(root);
+            }
+            FileStore store = Files.getFileStore(diskRoot);
+            usedBytes = used;
+            freeBytes = store.getUsableSpace();
+        } catch (IOException e) {
+            System.err.println("Failed to check workspace disk usage: " + e.getMessage());
+            return;
+        }
+        if (!underPressure) {
+            String reason = pressureReason();
+            if (reason != null) {
+                underPressure = true;
+                pressureListener.accept(reason);
+            }
+        } else if (freeBytes >= lowWatermarkBytes + lowWatermarkBytes / 4 && usedBytes <= quotaBytes / 10 * 9) {
+            underPressure = false;
+            relievedListener.run();
+        }
+    }
+
+    /**
+     * Tells why builds should pause, from the last measurement.
+     *
+     * @return the reason, or null if there is room.
+     */
+    private String pressureReason() {
+        if (freeBytes < lowWatermarkBytes) {
+            return "only " + freeBytes / (1024 * 1024) + " MiB free on " + diskRoot;
+        }
+        if (usedBytes > quotaBytes) {
+            return "workspaces take " + usedBytes / (1024 * 1024) + " MiB, over the quota of "
+                    + quotaBytes / (1024 * 1024) + " MiB";
+        }
+        return null;
+    }
+
+    /**
+     * Waits until every released workspace has been deleted.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return true if nothing is left to delete.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitCleanup(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pendingDeletes.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether builds are paused for lack of disk space.
+     *
+     * @return true while under disk pressure.
+     */
+    public boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    /**
+     * Returns the number of workspaces in use.
+     *
+     * @return the active count.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Returns the number of workspaces handed out.
+     *
+     * @return the allocated count.
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /**
+     * Returns the number of workspaces put on the tmpfs.
+     *
+     * @return the tmpfs count.
+     */
+    public long getTmpfsCount() {
+        return tmpfsCount.get();
+    }
+
+    /**
+     * Returns the number of directories deleted in the background.
+     *
+     * @return the deleted count.
+     */
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * Returns the size of all workspaces at the last check.
+     *
+     * @return the used bytes.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the workspace roots, the disk one first.
+     */
+    private Path[] roots() {
+        return tmpfsRoot == null ? new Path[] {diskRoot} : new Path[] {diskRoot, tmpfsRoot};
+    }
+}
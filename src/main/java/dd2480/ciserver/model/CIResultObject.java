@@ -1,5 +1,9 @@
 package dd2480.ciserver.model;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This class is a data object that contains the results of a CI run. It
  * includes the commit SHA, branch name, build success status, tests success
@@ -7,12 +11,29 @@ package dd2480.ciserver.model;
  */
 public class CIResultObject {
 
+    /**
+     * Maximum number of characters of build log kept in memory. Longer logs
+     * keep their start and end; the full log lives in {@link #getLogFile()}.
+     */
+    public static final int MAX_LOG_CHARS = 64 * 1024;
+
+    /** Inserted where {@link #appendBuildLog} dropped part of the log. */
+    private static final String TRUNCATION_MARKER = "\n... [log truncated] ...\n";
+
     private String commitSHA;
     private String branchName;
     private boolean buildSuccessful;
     private boolean testsSuccessful;
     private String errorMessage;
     private String buildLog;
+    private String cancellationReason;
+    private String timeoutReason;
+    private long checkoutMillis;
+    private long checkoutBytes;
+    private String logFile;
+    private boolean logTruncated;
+    private String cachedFrom;
+    private final List<PhaseRecord> phases = new ArrayList<>();
 
     /**
      * Constructor for initializing the parameters of the result object.
@@ -29,6 +50,7 @@ public class CIResultObject {
         this.testsSuccessful = false;
         this.errorMessage = null;
         this.buildLog = "";
+        this.cancellationReason = null;
     }
 
     /**
@@ -131,10 +153,13 @@ public class CIResultObject {
      */
     public void setBuildLog(String buildLog) {
         this.buildLog = buildLog;
+        this.logTruncated = false;
     }
 
     /**
-     * Appends additional output to the existing build log.
+     * Appends additional output to the existing build log. If the log grows
+     * beyond {@link #MAX_LOG_CHARS}, the middle is dropped and only its start
+     * and end are kept.
      * 
      * @param log the additional log output to append.
      */
@@ -144,6 +169,169 @@ public class CIResultObject {
         } else {
             this.buildLog += "\n" + log;
         }
+        if (this.buildLog.length() > MAX_LOG_CHARS) {
+            int half = MAX_LOG_CHARS / 2;
+            String head = this.buildLog.substring(0, half);
+            String rest = this.buildLog.substring(half);
+            if (logTruncated) {
+                // The head is fixed after the first cut; drop the old marker
+                rest = rest.substring(TRUNCATION_MARKER.length());
+            }
+            String tail = rest.substring(Math.max(0, rest.length() - half));
+            this.buildLog = head + TRUNCATION_MARKER + tail;
+            logTruncated = true;
+        }
+    }
+
+    /**
+     * Getter to retrieve the file that holds the complete build log.
+     * 
+     * @return the log file path, or null if the log was not written to a file.
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * Setter to update the file that holds the complete build log.
+     * 
+     * @param logFile the log file path.
+     */
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Method to check if the CI run was cancelled before it finished, for
+     * example because a newer push to the same branch superseded it.
+     * 
+     * @return true if the run was cancelled, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancellationReason != null;
+    }
+
+    /**
+     * Getter to retrieve the reason the run was cancelled.
+     * 
+     * @return the cancellation reason, or null if the run was not cancelled.
+     */
+    public String getCancellationReason() {
+        return cancellationReason;
+    }
+
+    /**
+     * Setter to mark the run as cancelled.
+     * 
+     * @param cancellationReason a short, human-readable reason for the
+     *                           cancellation.
+     */
+    public void setCancellationReason(String cancellationReason) {
+        this.cancellationReason = cancellationReason;
+    }
+
+    /**
+     * Method to check if the CI run was stopped because a step or the whole
+     * build took longer than allowed.
+     * 
+     * @return true if the run timed out, false otherwise.
+     */
+    public boolean isTimedOut() {
+        return timeoutReason != null;
+    }
+
+    /**
+     * Getter to retrieve which limit the run exceeded.
+     * 
+     * @return the timeout reason, or null if the run did not time out.
+     */
+    public String getTimeoutReason() {
+        return timeoutReason;
+    }
+
+    /**
+     * Setter to mark the run as timed out.
+     * 
+     * @param timeoutReason a short, human-readable description of the
+     *                      exceeded limit.
+     */
+    public void setTimeoutReason(String timeoutReason) {
+        this.timeoutReason = timeoutReason;
+    }
+
+    /**
+     * Getter to retrieve how long the repository checkout took.
+     * 
+     * @return the checkout time in milliseconds.
+     */
+    public long getCheckoutMillis() {
+        return checkoutMillis;
+    }
+
+    /**
+     * Setter to update how long the repository checkout took.
+     * 
+     * @param checkoutMillis the checkout time in milliseconds.
+     */
+    public void setCheckoutMillis(long checkoutMillis) {
+        this.checkoutMillis = checkoutMillis;
+    }
+
+    /**
+     * Getter to retrieve how many bytes were transferred by the checkout.
+     * 
+     * @return the number of bytes fetched.
+     */
+    public long getCheckoutBytes() {
+        return checkoutBytes;
+    }
+
+    /**
+     * Setter to update how many bytes were transferred by the checkout.
+     * 
+     * @param checkoutBytes the number of bytes fetched.
+     */
+    public void setCheckoutBytes(long checkoutBytes) {
+        this.checkoutBytes = checkoutBytes;
+    }
+
+    /**
+     * Getter to retrieve the commit whose result this run reused.
+     * 
+     * @return the SHA of the earlier commit with the same tree, or null if
+     *         the run built the code itself.
+     */
+    public String getCachedFrom() {
+        return cachedFrom;
+    }
+
+    /**
+     * Setter to mark the result as reused from an earlier build of the same
+     * tree.
+     * 
+     * @param cachedFrom the SHA of the earlier commit.
+     */
+    public void setCachedFrom(String cachedFrom) {
+        this.cachedFrom = cachedFrom;
+    }
+
+    /**
+     * Getter to retrieve the timing and resource records of the phases
+     * that ran.
+     * 
+     * @return the records in the order the phases ran.
+     */
+    public synchronized List<PhaseRecord> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<>(phases));
+    }
+
+    /**
+     * Adds the record of a finished phase.
+     * 
+     * @param record the phase record.
+     */
+    public synchronized void addPhase(PhaseRecord record) {
+        phases.add(record);
     }
 
 }
@@ -0,0 +1,33 @@
+package dd2480.ciserver.model;
+
+/**
+ * How long one phase of a CI run took and what its processes used.
+ *
+ * <p>The phases are {@code queue}, {@code checkout}, {@code compile},
+ * {@code test} and {@code notify}. A phase that runs several processes,
+ * like a checkout running several git commands, adds up their CPU time
+ * and keeps the highest memory peak. A phase that runs no process has no
+ * exit code and zero CPU time and memory.</p>
+ *
+ * @param phase      the phase name, e.g. {@code compile}.
+ * @param wallMillis the wall-clock time of the phase in milliseconds.
+ * @param exitCode   the exit code of the last process of the phase, or
+ *                   null if it ran none.
+ * @param cpuMillis  the user and system CPU time of its processes and their
+ *                   children in milliseconds.
+ * @param peakRssKb  the highest resident memory of a process tree of the
+ *                   phase in kilobytes, or 0 if unknown.
+ */
+public record PhaseRecord(String phase, long wallMillis, Integer exitCode, long cpuMillis, long peakRssKb) {
+
+    /**
+     * Creates the record of a phase that ran no process.
+     *
+     * @param phase      the phase name.
+     * @param wallMillis the wall-clock time of the phase in milliseconds.
+     * @return the record.
+     */
+    public static PhaseRecord withoutProcess(String phase, long wallMillis) {
+        return new PhaseRecord(phase, wallMillis, null, 0, 0);
+    }
+}
@@ -0,0 +1,145 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BranchWorkspaces} and incremental builds in them.
+ */
+public class BranchWorkspacesTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * A processor that runs git for real but only records Maven commands.
+     */
+    static class FakeMavenProcessor extends BuildProcessor {
+        final List<String> maven = new ArrayList<>();
+
+        @Override
+        Process startProcess(File workDir, String... command) throws Exception {
+            if (!command[0].equals("mvn")) {
+                return super.startProcess(workDir, command);
+            }
+            maven.add(String.join(" ", command));
+            return new ProcessBuilder("true").start();
+        }
+    }
+
+    /**
+     * Runs git in a directory and fails the test if it fails.
+     */
+    static void git(Path repo, String... args) throws Exception {
+        List<String> command = new ArrayList<>(List.of("git", "-c", "user.name=ci", "-c", "user.email=ci@example.com"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).directory(repo.toFile()).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertEquals(0, process.waitFor(), output);
+    }
+
+    static void commit(Path repo, String file, String content) throws Exception {
+        Files.writeString(repo.resolve(file), content);
+        git(repo, "add", "-A");
+        git(repo, "commit", "-q", "-m", "Change " + file);
+    }
+
+    private FakeMavenProcessor build(BranchWorkspaces workspaces, Path remote, String name) {
+        FakeMavenProcessor processor = new FakeMavenProcessor();
+        processor.setWorkspaces(workspaces);
+        processor.setLogFile(dir.resolve(name + ".log"));
+        CIResultObject result = processor.runBuild(remote.toUri().toString(), "main", "unused");
+        assertTrue(result.isCIResultSuccessful(), result.getErrorMessage());
+        return processor;
+    }
+
+    /**
+     * Verifies that later builds of a branch update the same workspace,
+     * keep {@code target/}, and start clean only when a pom changes.
+     */
+    @Test
+    public void testIncrementalBuildsInKeptWorkspace() throws Exception {
+        Path remote = Files.createDirectories(dir.resolve("remote"));
+        git(remote, "init", "-q", "-b", "main");
+        commit(remote, "pom.xml", "<project>1</project>");
+        BranchWorkspaces workspaces = new BranchWorkspaces(dir.resolve("workspaces"));
+
+        assertEquals(List.of("mvn compile", "mvn test"), build(workspaces, remote, "1").maven);
+        Path workspace;
+        try (var children = Files.list(dir.resolve("workspaces"))) {
+            workspace = children.findFirst().orElseThrow();
+        }
+        Files.createDirectories(workspace.resolve("target"));
+        Files.writeString(workspace.resolve("target/App.class"), "compiled");
+        Files.writeString(workspace.resolve("stray.txt"), "left behind");
+
+        commit(remote, "App.java", "class App {}");
+        assertEquals(List.of("mvn compile", "mvn test"), build(workspaces, remote, "2").maven);
+        assertTrue(Files.exists(workspace.resolve("App.java")));
+        assertTrue(Files.exists(workspace.resolve("target/App.class")));
+        assertFalse(Files.exists(workspace.resolve("stray.txt")));
+
+        commit(remote, "pom.xml", "<project>2</project>");
+        assertEquals(List.of("mvn clean compile", "mvn test"), build(workspaces, remote, "3").maven);
+    }
+
+    /**
+     * Verifies that an invalidated workspace starts clean and that a
+     * workspace without a record counts as changed.
+     */
+    @Test
+    public void testPomsChangedAndInvalidate() throws Exception {
+        Path workspace = Files.createDirectories(dir.resolve("ws/.git")).getParent();
+        Files.writeString(workspace.resolve("pom.xml"), "<project/>");
+        BranchWorkspaces workspaces = new BranchWorkspaces(dir.resolve("root"));
+
+        assertTrue(workspaces.pomsChanged(workspace));
+        assertFalse(workspaces.pomsChanged(workspace));
+        workspaces.invalidate(workspace);
+        assertTrue(workspaces.pomsChanged(workspace));
+
+        BranchWorkspaces.clear(workspace);
+        assertTrue(Files.isDirectory(workspace));
+        assertFalse(BranchWorkspaces.hasCheckout(workspace));
+    }
+
+    /**
+     * Verifies that a second build of the same branch waits for the
+     * workspace, while another branch gets its own.
+     */
+    @Test
+    public void testOneBuildPerWorkspace() throws Exception {
+        BranchWorkspaces workspaces = new BranchWorkspaces(dir);
+        Path main = workspaces.acquire("https://example.com/r.git", "main");
+        Path other = workspaces.acquire("https://example.com/r.git", "dev");
+        assertNotEquals(main, other);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread second = new Thread(() -> {
+            try {
+                Path again = workspaces.acquire("https://example.com/r.git", "main");
+                acquired.countDown();
+                workspaces.release(again);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        second.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        workspaces.release(main);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        workspaces.release(other);
+        second.join();
+    }
+}
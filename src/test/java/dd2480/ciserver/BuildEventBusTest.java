@@ -0,0 +1,138 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static dd2480.ciserver.BuildSchedulerTest.job;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BuildEventBus} and the notification sinks.
+ */
+public class BuildEventBusTest {
+
+    /**
+     * Verifies that every sink receives every event, in order.
+     */
+    @Test
+    public void testFansOutInOrder() throws Exception {
+        List<String> first = new CopyOnWriteArrayList<>();
+        List<String> second = new CopyOnWriteArrayList<>();
+        try (BuildEventBus bus = new BuildEventBus(10)) {
+            bus.register("first", event -> first.add(event.type() + ":" + event.commitSHA()));
+            bus.register("second", event -> second.add(event.type() + ":" + event.commitSHA()));
+            BuildJob job = job("main", "abc");
+            bus.publish(BuildEvent.of(BuildEvent.Type.QUEUED, job, null, null));
+            bus.publish(BuildEvent.of(BuildEvent.Type.STARTED, job, null, null));
+
+            assertTrue(bus.flush(5000));
+            assertEquals(List.of("QUEUED:abc", "STARTED:abc"), first);
+            assertEquals(first, second);
+        }
+    }
+
+    /**
+     * Verifies that a blocked sink neither blocks the publisher nor the
+     * other sinks, and that the events it cannot hold are dropped.
+     */
+    @Test
+    public void testSlowSinkIsIsolated() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> fast = new CopyOnWriteArrayList<>();
+        try (BuildEventBus bus = new BuildEventBus(2)) {
+            bus.register("slow", event -> release.await(10, TimeUnit.SECONDS));
+            bus.register("fast", event -> fast.add(event.buildId()));
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                bus.publish(BuildEvent.of(BuildEvent.Type.QUEUED, job("main", "s" + i), null, null));
+                // Give the fast sink time to keep its queue short
+                Thread.sleep(20);
+            }
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            assertEquals(5, fast.size());
+
+            BuildEventBus.SinkStats slow = bus.getStats().get(0);
+            assertEquals("slow", slow.name());
+            // One event is being handled, two wait, the rest are dropped
+            assertEquals(2, slow.dropped());
+            assertEquals(0, bus.getStats().get(1).dropped());
+            release.countDown();
+            assertTrue(bus.flush(5000));
+            assertEquals(3, bus.getStats().get(0).delivered());
+        }
+    }
+
+    /**
+     * Verifies that a sink that throws keeps receiving later events.
+     */
+    @Test
+    public void testFailingSinkKeepsGoing() throws Exception {
+        List<BuildEvent.Type> seen = new CopyOnWriteArrayList<>();
+        try (BuildEventBus bus = new BuildEventBus(10)) {
+            bus.register("flaky", event -> {
+                seen.add(event.type());
+                if (event.type() == BuildEvent.Type.QUEUED) {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            BuildJob job = job("main", "abc");
+            bus.publish(BuildEvent.of(BuildEvent.Type.QUEUED, job, null, null));
+            bus.publish(BuildEvent.of(BuildEvent.Type.STARTED, job, null, null));
+
+            assertTrue(bus.flush(5000));
+            assertEquals(List.of(BuildEvent.Type.QUEUED, BuildEvent.Type.STARTED), seen);
+            assertEquals(1, bus.getStats().get(0).failed());
+            assertEquals(1, bus.getStats().get(0).delivered());
+        }
+    }
+
+    /**
+     * Verifies which commit statuses the GitHub sink sends for each event.
+     */
+    @Test
+    public void testGitHubSinkMapsEvents() throws Exception {
+        List<String> statuses = new CopyOnWriteArrayList<>();
+        GitHubStatusNotifier notifier = new GitHubStatusNotifier("token") {
+            @Override
+            int sendStatus(String repoFullName, String commitSHA, String state, String description) {
+                statuses.add(repoFullName + " " + commitSHA + " " + state + " " + description);
+                return 201;
+            }
+        };
+        GitHubStatusSink sink = new GitHubStatusSink(notifier);
+        BuildJob job = job("main", "abc");
+        CIResultObject passed = new CIResultObject("abc", "main");
+        passed.setBuildSuccessful(true);
+        passed.setTestsSuccessful(true);
+
+        sink.accept(BuildEvent.of(BuildEvent.Type.QUEUED, job, null, null));
+        sink.accept(BuildEvent.of(BuildEvent.Type.STARTED, job, null, null));
+        sink.accept(BuildEvent.of(BuildEvent.Type.COMPILED, job, passed, null));
+        sink.accept(BuildEvent.of(BuildEvent.Type.FINISHED, job, passed, null));
+        sink.accept(BuildEvent.of(BuildEvent.Type.CANCELLED, job, null, "Superseded"));
+
+        assertEquals(List.of(
+                "owner/repo abc pending Queued for CI",
+                "owner/repo abc pending CI build in progress...",
+                "owner/repo abc success Build and tests passed",
+                "owner/repo abc error Superseded"), statuses);
+    }
+
+    /**
+     * Verifies the log description of an event.
+     */
+    @Test
+    public void testDescribe() {
+        CIResultObject failed = new CIResultObject("abc", "main");
+        failed.setBuildSuccessful(true);
+        failed.setTestsSuccessful(false);
+        BuildEvent event = new BuildEvent(BuildEvent.Type.TESTED, 7, "o/r", "main", "abc", failed, null, 0);
+
+        assertEquals("build 7 TESTED (main @ abc): failed", event.describe());
+    }
+}
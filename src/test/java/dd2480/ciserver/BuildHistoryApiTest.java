@@ -0,0 +1,165 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BuildHistoryApi}, served by a real
+ * {@link HttpServer} on a free port.
+ */
+public class BuildHistoryApiTest {
+
+    @TempDir
+    Path tempDir;
+
+    private SegmentedHistoryStore store;
+    private HttpServer server;
+
+    /**
+     * Starts a server over a history with five builds: ids 1, 3 and 5 on
+     * main (5 failed), ids 2 and 4 on the branch feature/x. Build i ran as
+     * job 100 + i.
+     */
+    @BeforeEach
+    public void startServer() throws Exception {
+        store = new SegmentedHistoryStore(tempDir, 1024 * 1024);
+        for (int i = 1; i <= 5; i++) {
+            store.append(new JSONObject()
+                    .put("commitSHA", "sha" + i)
+                    .put("branch", i % 2 == 1 ? "main" : "feature/x")
+                    .put("status", i == 5 ? "failure" : "success")
+                    .put("jobId", 100 + i));
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/builds", new BuildHistoryApi(store)::handle);
+        server.start();
+    }
+
+    /**
+     * Stops the server and closes the store.
+     */
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop(0);
+        store.close();
+    }
+
+    private HttpURLConnection open(String pathAndQuery) throws Exception {
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + pathAndQuery);
+        return (HttpURLConnection) uri.toURL().openConnection();
+    }
+
+    private static JSONObject json(HttpURLConnection connection) throws Exception {
+        try (InputStream in = connection.getInputStream()) {
+            return new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Verifies that pages follow each other through the cursor.
+     */
+    @Test
+    public void testCursorPagination() throws Exception {
+        JSONObject first = json(open("/api/builds?limit=2"));
+        JSONArray builds = first.getJSONArray("builds");
+        assertEquals(2, builds.length());
+        assertEquals(5, builds.getJSONObject(0).getLong("id"));
+        assertEquals(4, first.getLong("nextCursor"));
+
+        JSONObject second = json(open(first.getString("next")));
+        assertEquals(3, second.getJSONArray("builds").getJSONObject(0).getLong("id"));
+        assertEquals(2, second.getLong("nextCursor"));
+        JSONObject end = json(open("/api/builds?limit=2&before=2"));
+        assertEquals(1, end.getJSONArray("builds").length());
+        assertTrue(end.isNull("nextCursor"));
+    }
+
+    /**
+     * Verifies the branch and status filters, including an encoded branch.
+     */
+    @Test
+    public void testFilters() throws Exception {
+        JSONArray feature = json(open("/api/builds?branch=feature%2Fx")).getJSONArray("builds");
+        assertEquals(2, feature.length());
+        assertEquals("feature/x", feature.getJSONObject(0).getString("branch"));
+
+        JSONArray failed = json(open("/api/builds?branch=main&status=failure")).getJSONArray("builds");
+        assertEquals(1, failed.length());
+        assertEquals("sha5", failed.getJSONObject(0).getString("commitSHA"));
+    }
+
+    /**
+     * Verifies that listed builds link to the log of their job, and that
+     * builds saved without a job id have no link.
+     */
+    @Test
+    public void testBuildsLinkToJobLog() throws Exception {
+        store.append(new JSONObject().put("commitSHA", "sha6").put("branch", "main"));
+
+        JSONArray builds = json(open("/api/builds?limit=2")).getJSONArray("builds");
+        assertTrue(builds.getJSONObject(0).isNull("jobId"));
+        assertTrue(builds.getJSONObject(0).isNull("log"));
+        assertEquals(105, builds.getJSONObject(1).getLong("jobId"));
+        assertEquals("/builds/105/log", builds.getJSONObject(1).getString("log"));
+    }
+
+    /**
+     * Verifies that a matching If-None-Match gets 304 until a build is added.
+     */
+    @Test
+    public void testConditionalGet() throws Exception {
+        HttpURLConnection first = open("/api/builds");
+        assertEquals(200, first.getResponseCode());
+        String etag = first.getHeaderField("ETag");
+        assertNotNull(first.getHeaderField("Last-Modified"));
+
+        HttpURLConnection again = open("/api/builds?limit=10");
+        again.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, again.getResponseCode());
+
+        HttpURLConnection since = open("/api/builds");
+        since.setRequestProperty("If-Modified-Since", first.getHeaderField("Last-Modified"));
+        assertEquals(304, since.getResponseCode());
+
+        store.append(new JSONObject().put("commitSHA", "sha6").put("branch", "main"));
+        HttpURLConnection changed = open("/api/builds");
+        changed.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, changed.getResponseCode());
+        assertNotEquals(etag, changed.getHeaderField("ETag"));
+    }
+
+    /**
+     * Verifies the single-build resource and error responses.
+     */
+    @Test
+    public void testSingleBuildAndErrors() throws Exception {
+        JSONObject build = json(open("/api/builds/3"));
+        assertEquals("sha3", build.getString("commitSHA"));
+        assertEquals(404, open("/api/builds/99").getResponseCode());
+        assertEquals(400, open("/api/builds?limit=0").getResponseCode());
+        assertEquals(400, open("/api/builds?before=abc").getResponseCode());
+        assertEquals(404, open("/api/builds/3/log").getResponseCode());
+    }
+
+    /**
+     * Verifies that HTTP dates round-trip at second precision.
+     */
+    @Test
+    public void testHttpDate() {
+        assertEquals("Thu, 1 Jan 1970 00:00:01 GMT", BuildHistoryApi.httpDate(1500));
+    }
+}
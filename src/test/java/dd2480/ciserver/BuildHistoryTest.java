@@ -1,61 +1,96 @@
 package dd2480.ciserver;
 
 import dd2480.ciserver.model.CIResultObject;
+import dd2480.ciserver.model.PhaseRecord;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
-import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Unit tests for Build History persistence
  */
 public class BuildHistoryTest {
 
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Points the server at a history store in a temporary directory.
+     */
+    @BeforeEach
+    public void setup() throws Exception {
+        Server.setHistory(new SegmentedHistoryStore(tempDir.resolve("build_history"), 1024 * 1024));
+    }
+
     /**
-     * Ensures the build_history directory exists before tests run.
+     * Closes the temporary store and restores the default one.
      */
-    @BeforeAll
-    public static void setup() {
-        File folder = new File("build_history");
-        if (!folder.exists()) {
-            folder.mkdir();
-        }
+    @AfterEach
+    public void tearDown() throws Exception {
+        Server.history().close();
+        Server.setHistory(null);
     }
 
     /**
-     * Verifies that saveBuildResult creates a JSON file with the correct naming convention
+     * Verifies that saveBuildResult stores the build so it can be found by its SHA
      */
     @Test
-    public void testSaveBuildResultPersistsToFile() throws Exception {
+    public void testSaveBuildResultPersistsToStore() throws Exception {
         // 1. Setup: Create a dummy CI result
         String testSHA = "test-sha-" + System.currentTimeMillis();
         CIResultObject result = new CIResultObject(testSHA, "feature-branch");
         result.setBuildSuccessful(true);
         result.setTestsSuccessful(true);
         result.appendBuildLog("All systems go!");
+        result.addPhase(new PhaseRecord("compile", 1200, 0, 3400, 512000));
 
         // 2. Action: Save the result
         Server.saveBuildResult(result);
 
-        // 3. Verification: Check if the file was created
-        File folder = new File("build_history");
-        File[] files = folder.listFiles((dir, name) -> name.contains(testSHA));
-        
-        assertNotNull(files, "The build_history folder should be readable");
-        assertTrue(files.length > 0, "A JSON file should have been created for the SHA: " + testSHA);
+        // 3. Verification: Check if the build was indexed
+        List<BuildHistoryStore.Entry> entries = Server.history().findBySha(testSHA);
+        assertEquals(1, entries.size(), "A build should have been saved for the SHA: " + testSHA);
+        assertEquals("feature-branch", entries.get(0).branch());
+
+        // 4. Verification: Check the stored content
+        JSONObject saved = Server.history().get(entries.get(0).id()).orElseThrow();
+        assertEquals(testSHA, saved.getString("commitSHA"), "The saved build should contain the correct SHA");
+        assertEquals("feature-branch", saved.getString("branch"), "The saved build should contain the branch name");
+        assertTrue(saved.getString("log").contains("All systems go!"), "The saved build should contain the build logs");
+        assertTrue(saved.getBoolean("buildSuccessful"));
+        assertTrue(saved.getBoolean("testsSuccessful"));
+        JSONObject phase = saved.getJSONArray("phases").getJSONObject(0);
+        assertEquals("compile", phase.getString("phase"));
+        assertEquals(1200, phase.getLong("wallMillis"));
+        assertEquals(0, phase.getInt("exitCode"));
+        assertEquals(3400, phase.getLong("cpuMillis"));
+        assertEquals(512000, phase.getLong("peakRssKb"));
+    }
+
+    /**
+     * Verifies that a build saved with its job keeps the job id, in the
+     * document and in the index, and the repository.
+     */
+    @Test
+    public void testSaveBuildResultRecordsJob() throws Exception {
+        BuildJob job = new BuildJob(new WebhookPayload("{\"ref\":\"refs/heads/main\",\"after\":\"abc\","
+                + "\"repository\":{\"clone_url\":\"https://github.com/o/r.git\",\"full_name\":\"o/r\"}}"));
+        CIResultObject result = new CIResultObject("abc", "main");
 
-        // 4. Verification: Check file content
-        File savedFile = files[0];
-        String content = Files.readString(savedFile.toPath());
-        
-        assertTrue(content.contains(testSHA), "The saved file should contain the correct SHA");
-        assertTrue(content.contains("feature-branch"), "The saved file should contain the branch name");
-        assertTrue(content.contains("All systems go!"), "The saved file should contain the build logs");
+        Server.saveBuildResult(job, result);
 
-        // Cleanup: Delete the test file
-        savedFile.delete();
+        BuildHistoryStore.Entry entry = Server.history().findBySha("abc").get(0);
+        assertEquals(job.getId(), entry.jobId());
+        JSONObject saved = Server.history().get(entry.id()).orElseThrow();
+        assertEquals(job.getId(), saved.getLong("jobId"));
+        assertEquals("o/r", saved.getString("repo"));
     }
 
     /**
@@ -63,7 +98,15 @@ public class BuildHistoryTest {
      */
     @Test
     public void testHistoryFolderExists() {
-        File folder = new File("build_history");
-        assertTrue(folder.exists(), "The server should ensure the build_history folder exists");
+        assertTrue(Files.isDirectory(tempDir.resolve("build_history")),
+                "The store should ensure the build_history folder exists");
+    }
+
+    /**
+     * Verifies that HTML special characters are escaped for the dashboard.
+     */
+    @Test
+    public void testEscapeHtml() {
+        assertEquals("&lt;b&gt;a &amp; b&lt;/b&gt;", Server.escapeHtml("<b>a & b</b>"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BuildLog}.
+ */
+public class BuildLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Verifies that a short log is kept completely, in the file and in memory.
+     */
+    @Test
+    public void testShortLogIsKeptWhole() throws Exception {
+        Path file = tempDir.resolve("logs/1.log");
+        try (BuildLog log = new BuildLog(file, 16)) {
+            log.appendLine("hello");
+            assertEquals("hello\n", log.summary());
+            assertEquals("hello\n", log.tail());
+            assertEquals(6, log.size());
+        }
+        assertEquals("hello\n", Files.readString(file));
+    }
+
+    /**
+     * Verifies that a long log keeps its head and tail in memory, reports how
+     * much was left out, and still has everything in the file.
+     */
+    @Test
+    public void testLongLogKeepsHeadAndTail() throws Exception {
+        Path file = tempDir.resolve("2.log");
+        String output = "HEAD" + "x".repeat(10_000) + "TAIL";
+        try (BuildLog log = new BuildLog(file, 4)) {
+            log.append(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+
+            assertEquals("TAIL", log.tail());
+            String summary = log.summary();
+            assertTrue(summary.startsWith("HEAD"));
+            assertTrue(summary.endsWith("TAIL"));
+            assertTrue(summary.contains("[10000 bytes omitted, full log in " + file + "]"));
+        }
+        assertEquals(output, Files.readString(file));
+    }
+
+    /**
+     * Verifies that the tail includes the end of the head while the tail
+     * buffer is not yet full, across several small writes.
+     */
+    @Test
+    public void testTailSpansHeadAndRing() throws Exception {
+        try (BuildLog log = new BuildLog(tempDir.resolve("3.log"), 4)) {
+            log.append(new ByteArrayInputStream("abcdef".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("cdef", log.tail());
+            log.append(new ByteArrayInputStream("gh".getBytes(StandardCharsets.UTF_8)));
+            log.append(new ByteArrayInputStream("ijk".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("hijk", log.tail());
+            assertEquals("abcd\n... [3 bytes omitted, full log in " + tempDir.resolve("3.log")
+                    + "] ...\nhijk", log.summary());
+        }
+    }
+
+    /**
+     * Verifies that log files are named after the build id.
+     */
+    @Test
+    public void testPathForUsesBuildId() {
+        assertEquals("42.log", BuildLog.pathFor(42).getFileName().toString());
+    }
+}
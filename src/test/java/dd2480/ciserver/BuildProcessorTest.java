@@ -1,9 +1,15 @@
 package dd2480.ciserver;
 
 import dd2480.ciserver.model.CIResultObject;
+import dd2480.ciserver.model.PhaseRecord;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -209,4 +215,348 @@ public class BuildProcessorTest {
 
         assertEquals("hello", output.trim());
     }
+
+    /**
+     * Verifies that a cancelled processor returns a cancelled result without
+     * starting any process.
+     */
+    @Test
+    public void testCancelledBuildDoesNotRun() {
+        int[] calls = {0};
+        BuildProcessor bp = new BuildProcessor() {
+            @Override
+            int runProcess(File workDir, String... command) {
+                calls[0]++;
+                return 0;
+            }
+        };
+        bp.cancel("Superseded by abc1234");
+
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        assertTrue(result.isCancelled());
+        assertEquals("Superseded by abc1234", result.getCancellationReason());
+        assertFalse(result.isCIResultSuccessful());
+        assertEquals(0, calls[0]);
+    }
+
+    /**
+     * Verifies that exact-commit mode fetches only the pushed commit, with a
+     * partial clone and sparse checkout when enabled.
+     */
+    @Test
+    public void testExactCommitCheckoutFetchesOnlyThatCommit() throws Exception {
+        List<String> commands = new ArrayList<>();
+        BuildProcessor bp = new BuildProcessor() {
+            @Override
+            int runProcess(File workDir, String... command) {
+                commands.add(String.join(" ", command));
+                return 0;
+            }
+        };
+        bp.setCheckoutMode(true, true, List.of("src", "docs"));
+
+        int exit = bp.checkout(new File("."), "https://example.com/repo.git", "main", "heylol123");
+
+        assertEquals(0, exit);
+        assertEquals(List.of(
+                "git init -q",
+                "git remote add origin https://example.com/repo.git",
+                "git sparse-checkout set --cone src docs",
+                "git fetch -q --depth=1 --filter=blob:none origin heylol123",
+                "git checkout -q --detach FETCH_HEAD"), commands);
+    }
+
+    /**
+     * Verifies that exact-commit checkout stops at the first failing command.
+     */
+    @Test
+    public void testExactCommitCheckoutStopsOnFailure() throws Exception {
+        List<String> commands = new ArrayList<>();
+        BuildProcessor bp = new BuildProcessor() {
+            @Override
+            int runProcess(File workDir, String... command) {
+                commands.add(String.join(" ", command));
+                return command[1].equals("fetch") ? 128 : 0;
+            }
+        };
+        bp.setCheckoutMode(true, false, List.of());
+
+        int exit = bp.checkout(new File("."), "https://example.com/repo.git", "main", "heylol123");
+
+        assertEquals(128, exit);
+        assertEquals("git fetch -q --depth=1 origin heylol123", commands.get(commands.size() - 1));
+    }
+
+    /**
+     * A processor whose checkout always yields the same tree and whose
+     * processes exit at once, recording their commands.
+     */
+    static class SameTreeProcessor extends BuildProcessor {
+        final List<String> started = new ArrayList<>();
+
+        @Override
+        int checkout(File repoDir, String repoUrl, String branch, String commitSHA) {
+            return 0;
+        }
+
+        @Override
+        String treeHash(File repoDir) {
+            return "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+        }
+
+        @Override
+        Process startProcess(File workDir, String... command) throws Exception {
+            started.add(String.join(" ", command));
+            return new ProcessBuilder("true").start();
+        }
+    }
+
+    /**
+     * Verifies that a commit with an already built tree reuses the earlier
+     * result and log without running Maven, unless the cache is bypassed.
+     */
+    @Test
+    public void testSameTreeReusesCachedResult(@TempDir Path dir) throws Exception {
+        BuildResultCache cache = new BuildResultCache(10);
+        SameTreeProcessor first = new SameTreeProcessor();
+        first.setResultCache(cache, true);
+        first.setLogFile(dir.resolve("1.log"));
+        CIResultObject built = first.runBuild("https://example.com/repo.git", "main", "aaa111");
+
+        assertTrue(built.isCIResultSuccessful());
+        assertNull(built.getCachedFrom());
+        assertEquals(List.of("mvn compile", "mvn test"), first.started);
+
+        SameTreeProcessor second = new SameTreeProcessor();
+        second.setResultCache(cache, true);
+        second.setLogFile(dir.resolve("2.log"));
+        CIResultObject reused = second.runBuild("https://example.com/repo.git", "feature", "bbb222");
+
+        assertTrue(reused.isCIResultSuccessful());
+        assertEquals("aaa111", reused.getCachedFrom());
+        assertTrue(second.started.isEmpty());
+        assertTrue(Files.readString(dir.resolve("2.log")).contains("Building main @ aaa111"));
+
+        SameTreeProcessor bypass = new SameTreeProcessor();
+        bypass.setResultCache(cache, false);
+        bypass.setLogFile(dir.resolve("3.log"));
+        CIResultObject rebuilt = bypass.runBuild("https://example.com/repo.git", "main", "ccc333");
+
+        assertNull(rebuilt.getCachedFrom());
+        assertEquals(2, bypass.started.size());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * A processor whose Maven steps hang in a shell that has started a
+     * background child, which holds the output pipe open as a forked test
+     * JVM would.
+     */
+    static class HangingProcessor extends BuildProcessor {
+        @Override
+        int checkout(File repoDir, String repoUrl, String branch, String commitSHA) {
+            return 0;
+        }
+
+        @Override
+        Process startProcess(File workDir, String... command) throws Exception {
+            return super.startProcess(workDir, "sh", "-c", "sleep 30 & sleep 30");
+        }
+    }
+
+    /**
+     * Verifies that a step over its time limit is killed with its child
+     * processes and the result is marked as timed out.
+     */
+    @Test
+    public void testStepTimeoutKillsProcessTree(@TempDir Path dir) {
+        HangingProcessor bp = new HangingProcessor();
+        bp.setTimeouts(300, 60_000);
+        bp.setLogFile(dir.resolve("build.log"));
+
+        long start = System.nanoTime();
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 10_000, "The background child must be killed too");
+        assertTrue(result.isTimedOut());
+        assertFalse(result.isCancelled());
+        assertEquals("mvn compile timed out after 300 ms", result.getTimeoutReason());
+        assertEquals("timed_out", Server.historyStatus(result));
+        assertEquals("error", GitHubStatusNotifier.mapResultToState(result));
+    }
+
+    /**
+     * Verifies that a hanging {@code git rev-parse}, run to look up the
+     * result cache, is killed at the step timeout like the Maven steps.
+     */
+    @Test
+    public void testTreeHashTimesOut(@TempDir Path dir) {
+        HangingProcessor bp = new HangingProcessor();
+        bp.setResultCache(new BuildResultCache(10), true);
+        bp.setTimeouts(300, 60_000);
+        bp.setLogFile(dir.resolve("build.log"));
+
+        long start = System.nanoTime();
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 10_000, "git must be killed at the timeout");
+        assertTrue(result.isTimedOut());
+        assertEquals("git rev-parse timed out after 300 ms", result.getTimeoutReason());
+    }
+
+    /**
+     * A processor whose Maven steps keep a CPU busy for a moment.
+     */
+    static class BusyProcessor extends BuildProcessor {
+        @Override
+        int checkout(File repoDir, String repoUrl, String branch, String commitSHA) {
+            return 0;
+        }
+
+        @Override
+        Process startProcess(File workDir, String... command) throws Exception {
+            return super.startProcess(workDir, "sh", "-c",
+                    "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done; exit " + (command[command.length - 1].equals("test") ? 1 : 0));
+        }
+    }
+
+    /**
+     * Verifies that a build records the wall time, exit code, CPU time and
+     * memory of each phase, in the order they ran.
+     */
+    @Test
+    public void testRecordsPhases(@TempDir Path dir) {
+        BusyProcessor bp = new BusyProcessor();
+        bp.setQueueWaitMillis(42);
+        bp.setLogFile(dir.resolve("build.log"));
+
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        List<PhaseRecord> phases = result.getPhases();
+        assertEquals(List.of("queue", "checkout", "compile", "test"), phases.stream().map(PhaseRecord::phase).toList());
+        assertEquals(PhaseRecord.withoutProcess("queue", 42), phases.get(0));
+        assertNull(phases.get(1).exitCode());
+        assertEquals(0, phases.get(2).exitCode());
+        assertEquals(1, phases.get(3).exitCode());
+        PhaseRecord compile = phases.get(2);
+        assertTrue(compile.wallMillis() > 0);
+        if (Files.isDirectory(Path.of("/proc/self"))) {
+            assertTrue(compile.cpuMillis() > 0, compile.toString());
+            assertTrue(compile.peakRssKb() > 0, compile.toString());
+        }
+    }
+
+    /**
+     * Verifies that a phase cut short by a timeout is still recorded, with
+     * the exit code of the killed step.
+     */
+    @Test
+    public void testTimedOutPhaseIsRecorded(@TempDir Path dir) {
+        HangingProcessor bp = new HangingProcessor();
+        bp.setTimeouts(300, 60_000);
+        bp.setLogFile(dir.resolve("build.log"));
+
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        PhaseRecord last = result.getPhases().get(result.getPhases().size() - 1);
+        assertEquals("compile", last.phase());
+        assertNotEquals(0, last.exitCode());
+    }
+
+    /**
+     * Verifies that the build time limit applies when it ends before the
+     * step limit.
+     */
+    @Test
+    public void testBuildTimeout(@TempDir Path dir) {
+        HangingProcessor bp = new HangingProcessor();
+        bp.setTimeouts(60_000, 300);
+        bp.setLogFile(dir.resolve("build.log"));
+
+        CIResultObject result = bp.runBuild("https://example.com/repo.git", "main", "heylol123");
+
+        assertEquals("Build timed out after 300 ms", result.getTimeoutReason());
+    }
+
+    /**
+     * Verifies that cancelling a running build kills its process tree.
+     */
+    @Test
+    public void testCancelKillsProcessTree(@TempDir Path dir) throws Exception {
+        HangingProcessor bp = new HangingProcessor();
+        bp.setLogFile(dir.resolve("build.log"));
+        CIResultObject[] result = new CIResultObject[1];
+        Thread build = new Thread(() -> result[0] = bp.runBuild("https://example.com/repo.git", "main", "heylol123"));
+        build.start();
+        Thread.sleep(300);
+
+        bp.cancel("Cancelled on request");
+        build.join(10_000);
+
+        assertFalse(build.isAlive());
+        assertTrue(result[0].isCancelled());
+        assertFalse(result[0].isTimedOut());
+    }
+
+    /**
+     * Verifies parsing of the comma-separated sparse path setting.
+     */
+    @Test
+    public void testParsePathsDropsBlanks() {
+        assertEquals(List.of("src", "pom.xml"), BuildProcessor.parsePaths(" src, ,pom.xml,"));
+        assertTrue(BuildProcessor.parsePaths("").isEmpty());
+    }
+
+    /**
+     * Verifies that Maven commands are built as plain phases by default.
+     */
+    @Test
+    public void testMavenCommandWithoutDependencyCache() {
+        assertArrayEquals(new String[] {"mvn", "compile"}, new BuildProcessor().mavenCommand("compile"));
+    }
+
+    /**
+     * Verifies that a failing main compilation is not taken for a test failure.
+     */
+    @Test
+    public void testCompileErrorIsNotTestFailure() {
+        String output = """
+                [INFO] --- compiler:3.13.0:compile (default-compile) @ app ---
+                [ERROR] COMPILATION ERROR :
+                [ERROR] /src/main/java/App.java:[3,1] class, interface, enum, or record expected
+                [INFO] BUILD FAILURE
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.13.0:compile (default-compile) on project app: Compilation failure
+                """;
+        assertFalse(BuildProcessor.isTestFailure(output));
+    }
+
+    /**
+     * Verifies that failing tests and failing test compilation are recognised
+     * as test failures.
+     */
+    @Test
+    public void testSurefireAndTestCompileErrorsAreTestFailures() {
+        String failingTests = """
+                [INFO] --- surefire:3.3.0:test (default-test) @ app ---
+                [ERROR] Tests run: 3, Failures: 1, Errors: 0, Skipped: 0
+                [INFO] BUILD FAILURE
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.3.0:test (default-test) on project app: There are test failures.
+                """;
+        String failingTestCompile = """
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.13.0:testCompile (default-testCompile) on project app: Compilation failure
+                """;
+        assertTrue(BuildProcessor.isTestFailure(failingTests));
+        assertTrue(BuildProcessor.isTestFailure(failingTestCompile));
+    }
+
+    /**
+     * Verifies that the configured Maven executable is used.
+     */
+    @Test
+    public void testMavenCommandUsesConfiguredExecutable() {
+        BuildProcessor bp = new BuildProcessor();
+        bp.setMavenRunner(true, "mvnd");
+        assertArrayEquals(new String[] {"mvnd", "test"}, bp.mavenCommand("test"));
+    }
 }
@@ -0,0 +1,94 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BuildResultCache}.
+ */
+public class BuildResultCacheTest {
+
+    private static CIResultObject passed(String sha) {
+        CIResultObject result = new CIResultObject(sha, "main");
+        result.setBuildSuccessful(true);
+        result.setTestsSuccessful(true);
+        result.setLogFile("build-logs/" + sha + ".log");
+        return result;
+    }
+
+    /**
+     * Verifies that a stored result is found by the same tree and
+     * configuration only.
+     */
+    @Test
+    public void testLookupByTreeAndConfig() {
+        BuildResultCache cache = new BuildResultCache(10);
+        cache.put(BuildResultCache.key("tree1", "split "), passed("aaa"));
+
+        BuildResultCache.Entry entry = cache.lookup(BuildResultCache.key("tree1", "split ")).orElseThrow();
+        assertEquals("aaa", entry.commitSHA());
+        assertTrue(entry.buildSuccessful() && entry.testsSuccessful());
+        assertEquals("build-logs/aaa.log", entry.logFile());
+        assertTrue(cache.lookup(BuildResultCache.key("tree1", "split src")).isEmpty());
+        assertTrue(cache.lookup(BuildResultCache.key("tree2", "split ")).isEmpty());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /**
+     * Verifies that the least recently used result is evicted first.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BuildResultCache cache = new BuildResultCache(2);
+        cache.put("a", passed("aaa"));
+        cache.put("b", passed("bbb"));
+        cache.lookup("a");
+        cache.put("c", passed("ccc"));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.lookup("a").isPresent());
+        assertTrue(cache.lookup("b").isEmpty());
+        assertTrue(cache.lookup("c").isPresent());
+    }
+
+    /**
+     * Verifies that only outcomes that depend on the code are stored.
+     */
+    @Test
+    public void testStoresOnlyDefiniteOutcomes() {
+        BuildResultCache cache = new BuildResultCache(10);
+        CIResultObject compileFailure = new CIResultObject("a", "main");
+        compileFailure.setErrorMessage("Compilation failed:\n...");
+        CIResultObject testFailure = passed("b");
+        testFailure.setTestsSuccessful(false);
+        testFailure.setErrorMessage("Tests failed:\n...");
+        CIResultObject exception = new CIResultObject("c", "main");
+        exception.setErrorMessage("Build exception: disk full");
+        CIResultObject cloneFailure = new CIResultObject("d", "main");
+        cloneFailure.setErrorMessage("Git clone failed with exit code: 128");
+        CIResultObject cancelled = passed("e");
+        cancelled.setCancellationReason("Superseded by fff");
+
+        assertTrue(cache.put("1", compileFailure));
+        assertTrue(cache.put("2", testFailure));
+        assertFalse(cache.put("3", exception));
+        assertFalse(cache.put("4", cloneFailure));
+        assertFalse(cache.put("5", cancelled));
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Verifies that a cache of size 0 keeps nothing.
+     */
+    @Test
+    public void testDisabled() {
+        BuildResultCache cache = new BuildResultCache(0);
+
+        assertFalse(cache.isEnabled());
+        assertFalse(cache.put("a", passed("aaa")));
+        assertEquals(0, cache.size());
+    }
+}
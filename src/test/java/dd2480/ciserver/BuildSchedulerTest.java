@@ -0,0 +1,371 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BuildScheduler}.
+ *
+ * <p>The pipeline passed to the scheduler is a stub that blocks on a latch,
+ * so no real builds are run.</p>
+ */
+public class BuildSchedulerTest {
+
+    /**
+     * Creates a job for a push to the given branch of {@code owner/repo}.
+     * Shared by the tests of the other classes that take jobs.
+     */
+    static BuildJob job(String branch, String sha) {
+        return job("owner/repo", branch, sha);
+    }
+
+    /**
+     * Creates a job for a push to the given branch of the given repository.
+     */
+    static BuildJob job(String repo, String branch, String sha) {
+        String json = """
+                {
+                  "ref": "refs/heads/%s",
+                  "after": "%s",
+                  "repository": {
+                    "clone_url": "https://github.com/%s.git",
+                    "full_name": "%s"
+                  }
+                }
+                """.formatted(branch, sha, repo, repo);
+        return new BuildJob(new WebhookPayload(json));
+    }
+
+    /**
+     * Verifies that submitted jobs report their 1-based queue position.
+     */
+    @Test
+    public void testSubmitReturnsQueuePosition() {
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> { });
+
+        assertEquals(1, scheduler.submit(job("a", "sha1")));
+        assertEquals(2, scheduler.submit(job("b", "sha2")));
+        assertEquals(2, scheduler.getQueueDepth());
+    }
+
+    /**
+     * Verifies that the queue refuses jobs once it reaches its capacity.
+     */
+    @Test
+    public void testSubmitRejectsWhenQueueIsFull() {
+        BuildScheduler scheduler = new BuildScheduler(1, 2, job -> { });
+
+        scheduler.submit(job("a", "sha1"));
+        scheduler.submit(job("b", "sha2"));
+
+        assertEquals(-1, scheduler.submit(job("c", "sha3")));
+        assertEquals(1, scheduler.getRejectedCount());
+        assertEquals(2, scheduler.getAcceptedCount());
+    }
+
+    /**
+     * Verifies that no more jobs than workers run at the same time.
+     */
+    @Test
+    public void testConcurrencyIsBoundedByWorkerCount() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        BuildScheduler scheduler = new BuildScheduler(2, 10, job -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            done.countDown();
+        });
+        scheduler.start();
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(job("branch" + i, "sha" + i));
+        }
+
+        Thread.sleep(200);
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(3, scheduler.getQueueDepth());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, peak.get());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies that a failing pipeline does not kill the worker.
+     */
+    @Test
+    public void testWorkerSurvivesPipelineException() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> {
+            done.countDown();
+            throw new IllegalStateException("boom");
+        });
+        scheduler.start();
+        scheduler.submit(job("a", "sha1"));
+        scheduler.submit(job("b", "sha2"));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies that invalid pool sizes are refused.
+     */
+    @Test
+    public void testInvalidSizesThrow() {
+        assertThrows(IllegalArgumentException.class, () -> new BuildScheduler(0, 1, job -> { }));
+        assertThrows(IllegalArgumentException.class, () -> new BuildScheduler(1, 0, job -> { }));
+    }
+
+    /**
+     * Verifies that the default worker count is at least one and never more
+     * than the number of cores.
+     */
+    @Test
+    public void testDefaultWorkerCountIsBounded() {
+        int workers = BuildScheduler.defaultWorkerCount();
+        assertTrue(workers >= 1);
+        assertTrue(workers <= Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Verifies that a newer push replaces a waiting build of the same branch
+     * in place and notifies the listener.
+     */
+    @Test
+    public void testNewerPushReplacesWaitingBuildOfSameBranch() {
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> { });
+        List<BuildJob> superseded = new ArrayList<>();
+        scheduler.setSupersededListener((old, newer) -> superseded.add(old));
+
+        BuildJob first = job("main", "aaaaaaa1");
+        scheduler.submit(first);
+        scheduler.submit(job("dev", "bbbbbbb1"));
+        BuildJob second = job("main", "aaaaaaa2");
+
+        assertEquals(1, scheduler.submit(second));
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(List.of(first), superseded);
+        assertTrue(first.isCancelled());
+        assertEquals(1, scheduler.getSupersededCount());
+    }
+
+    /**
+     * Verifies that a replacing push is accepted even when the queue is full,
+     * since it does not grow the queue.
+     */
+    @Test
+    public void testReplacementIsAcceptedWhenQueueIsFull() {
+        BuildScheduler scheduler = new BuildScheduler(1, 1, job -> { });
+        scheduler.submit(job("main", "aaaaaaa1"));
+
+        assertEquals(1, scheduler.submit(job("main", "aaaaaaa2")));
+        assertEquals(-1, scheduler.submit(job("dev", "bbbbbbb1")));
+    }
+
+    /**
+     * Verifies that a newer push cancels the running build of the same branch.
+     */
+    @Test
+    public void testNewerPushCancelsRunningBuildOfSameBranch() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        scheduler.start();
+
+        BuildJob first = job("main", "aaaaaaa1");
+        scheduler.submit(first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit(job("main", "aaaaaaa1"));
+        assertFalse(first.isCancelled(), "Same commit must not cancel the running build");
+
+        scheduler.submit(job("main", "aaaaaaa2"));
+        assertTrue(first.isCancelled());
+        // The waiting build of aaaaaaa1 is replaced, the running one stopped
+        assertEquals(1, scheduler.getSupersededCount());
+        assertEquals(1, scheduler.getRunningSupersededCount());
+
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies cancelling by id: a waiting build leaves the queue and is
+     * reported, a running one is stopped, an unknown id is not found.
+     */
+    @Test
+    public void testCancelById() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<BuildJob> reported = new ArrayList<>();
+        scheduler.setCancelledListener(reported::add);
+        BuildJob running = job("main", "aaaaaaa1");
+        BuildJob waiting = job("dev", "bbbbbbb1");
+        scheduler.submit(running);
+        scheduler.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.submit(waiting);
+
+        assertEquals(BuildScheduler.CancelOutcome.DEQUEUED, scheduler.cancel(waiting.getId(), "Cancelled on request"));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(List.of(waiting), reported);
+        assertEquals("Cancelled on request", waiting.getCancellationReason());
+
+        assertEquals(BuildScheduler.CancelOutcome.STOPPING, scheduler.cancel(running.getId(), "Cancelled on request"));
+        assertTrue(running.isCancelled());
+        assertEquals(BuildScheduler.CancelOutcome.NOT_FOUND, scheduler.cancel(12345, "Cancelled on request"));
+        assertEquals(2, scheduler.getCancelledCount());
+
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies that a running build can be cancelled by id while a newer
+     * build of the same branch is running too, e.g. while the superseded
+     * one is still tearing down.
+     */
+    @Test
+    public void testCancelByIdFindsEveryRunningBuildOfBranch() throws Exception {
+        Semaphore started = new Semaphore(0);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(2, 10, job -> {
+            started.release();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        scheduler.start();
+        BuildJob older = job("main", "aaaaaaa1");
+        BuildJob newer = job("main", "aaaaaaa2");
+        scheduler.submit(older);
+        assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+        scheduler.submit(newer);
+        assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+
+        assertEquals(BuildScheduler.CancelOutcome.STOPPING, scheduler.cancel(older.getId(), "Cancelled on request"));
+        assertEquals(BuildScheduler.CancelOutcome.STOPPING, scheduler.cancel(newer.getId(), "Cancelled on request"));
+        assertTrue(newer.isCancelled());
+
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies that a paused scheduler keeps queueing builds without
+     * starting them, and starts them once resumed.
+     */
+    @Test
+    public void testPauseHoldsQueuedBuilds() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, job -> done.countDown());
+        scheduler.pause("disk full");
+        scheduler.start();
+        assertEquals(1, scheduler.submit(job("main", "sha1")));
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.isPaused());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        scheduler.resume();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.isPaused());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Verifies that cancelling a job cancels the processor attached to it,
+     * including one attached after the cancellation.
+     */
+    @Test
+    public void testCancelReachesAttachedProcessor() {
+        BuildJob running = job("main", "aaaaaaa1");
+        BuildProcessor processor = new BuildProcessor();
+        running.attach(processor);
+        running.cancel("Superseded by aaaaaaa2");
+        assertTrue(processor.isCancelled());
+
+        BuildJob waiting = job("main", "aaaaaaa3");
+        waiting.cancel("Superseded by aaaaaaa4");
+        BuildProcessor late = new BuildProcessor();
+        waiting.attach(late);
+        assertTrue(late.isCancelled());
+    }
+
+    /**
+     * Verifies the superseded description uses the short SHA of the newer push.
+     */
+    @Test
+    public void testSupersededReasonUsesShortSha() {
+        assertEquals("Superseded by 1234567",
+                BuildScheduler.supersededReason(job("main", "1234567890abcdef")));
+    }
+
+    /**
+     * Verifies that a build counts as unfinished while it is queued and
+     * running, and as finished afterwards.
+     */
+    @Test
+    public void testIsQueuedOrRunningTracksBuildLifecycle() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, j -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        BuildJob job = job("main", "sha1");
+        scheduler.submit(job);
+        assertTrue(scheduler.isQueuedOrRunning(job.getId()), "queued");
+
+        scheduler.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.isQueuedOrRunning(job.getId()), "running");
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.isQueuedOrRunning(job.getId()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(scheduler.isQueuedOrRunning(job.getId()), "finished");
+        assertFalse(scheduler.isQueuedOrRunning(-1));
+        scheduler.shutdown();
+    }
+}
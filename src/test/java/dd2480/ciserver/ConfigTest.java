@@ -0,0 +1,75 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Config}. Settings are supplied as system
+ * properties, which are consulted when the environment variable is absent.
+ */
+public class ConfigTest {
+
+    private static final String KEY = "CI_CONFIG_TEST_SETTING";
+
+    /**
+     * Removes the test property after each test.
+     */
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty(KEY);
+    }
+
+    /**
+     * Verifies that a missing setting falls back to the default value.
+     */
+    @Test
+    public void testMissingSettingReturnsDefault() {
+        assertEquals("fallback", Config.get(KEY, "fallback"));
+        assertEquals(7, Config.getInt(KEY, 7));
+        assertTrue(Config.getBoolean(KEY, true));
+    }
+
+    /**
+     * Verifies that a system property is read when present.
+     */
+    @Test
+    public void testSystemPropertyIsRead() {
+        System.setProperty(KEY, " 42 ");
+        assertEquals("42", Config.get(KEY, "fallback"));
+        assertEquals(42, Config.getInt(KEY, 7));
+        assertEquals(42L, Config.getLong(KEY, 7L));
+    }
+
+    /**
+     * Verifies that a non-numeric value falls back to the default.
+     */
+    @Test
+    public void testInvalidNumberReturnsDefault() {
+        System.setProperty(KEY, "many");
+        assertEquals(3, Config.getInt(KEY, 3));
+    }
+
+    /**
+     * Verifies that a number too large for an int falls back to the default
+     * instead of wrapping around.
+     */
+    @Test
+    public void testOutOfRangeIntReturnsDefault() {
+        System.setProperty(KEY, "4294967297");
+        assertEquals(3, Config.getInt(KEY, 3));
+        assertEquals(4294967297L, Config.getLong(KEY, 3L));
+    }
+
+    /**
+     * Verifies boolean parsing.
+     */
+    @Test
+    public void testBooleanParsing() {
+        System.setProperty(KEY, "TRUE");
+        assertTrue(Config.getBoolean(KEY, false));
+        System.setProperty(KEY, "no");
+        assertFalse(Config.getBoolean(KEY, true));
+    }
+}
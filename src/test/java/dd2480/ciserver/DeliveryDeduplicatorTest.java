@@ -0,0 +1,147 @@
+package dd2480.ciserver;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static dd2480.ciserver.BuildSchedulerTest.job;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link DeliveryDeduplicator}.
+ */
+public class DeliveryDeduplicatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Verifies that a second delivery with the same id is a duplicate of the
+     * first build.
+     */
+    @Test
+    public void testSameDeliveryIdIsDuplicate() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 60_000);
+        BuildJob first = job("o/r", "main", "aaa");
+
+        assertTrue(dedup.claim("d-1", first).isEmpty());
+        Optional<String> again = dedup.claim("d-1", job("o/r", "main", "bbb"));
+        assertEquals(Optional.of("build " + first.getId()), again);
+        assertEquals(1, dedup.getDuplicateCount());
+    }
+
+    /**
+     * Verifies that the same commit of the same repository is a duplicate
+     * even with a new delivery id, while other repositories are not.
+     */
+    @Test
+    public void testSameCommitIsDuplicate() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 60_000);
+
+        assertTrue(dedup.claim("d-1", job("o/r", "main", "aaa")).isEmpty());
+        assertTrue(dedup.claim("d-2", job("o/r", "main", "aaa")).isPresent());
+        assertTrue(dedup.claim("d-3", job("o/fork", "main", "aaa")).isEmpty());
+        assertTrue(dedup.claim(null, job("o/r", "main", "bbb")).isEmpty());
+    }
+
+    /**
+     * Verifies that deliveries are forgotten after the time limit.
+     */
+    @Test
+    public void testEntriesExpire() throws Exception {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 50);
+
+        assertTrue(dedup.claim("d-1", job("o/r", "main", "aaa")).isEmpty());
+        Thread.sleep(100);
+        assertTrue(dedup.claim("d-1", job("o/r", "main", "aaa")).isEmpty());
+        assertEquals(2, dedup.size());
+    }
+
+    /**
+     * Verifies that the oldest entries are dropped once the limit is reached.
+     */
+    @Test
+    public void testMemoryIsBounded() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 3, 60_000);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(dedup.claim("d-" + i, job("o/r", "main", "sha" + i)).isEmpty());
+        }
+
+        assertEquals(6, dedup.size());
+        assertTrue(dedup.claim("d-0", job("o/r", "main", "sha0")).isEmpty());
+        assertTrue(dedup.claim("d-9", job("o/r", "main", "new")).isPresent());
+    }
+
+    /**
+     * Verifies that a released delivery, whose build was not queued, can be
+     * delivered again.
+     */
+    @Test
+    public void testReleasedDeliveryCanRetry() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 60_000);
+        BuildJob rejected = job("o/r", "main", "aaa");
+
+        assertTrue(dedup.claim("d-1", rejected).isEmpty());
+        dedup.release("d-1", rejected);
+        assertTrue(dedup.claim("d-1", job("o/r", "main", "aaa")).isEmpty());
+    }
+
+    /**
+     * Verifies that a build resumed from the journal is recognised.
+     */
+    @Test
+    public void testRememberedBuildIsDuplicate() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 60_000);
+        BuildJob resumed = job("o/r", "main", "aaa");
+        dedup.remember(resumed);
+
+        assertEquals(Optional.of("build " + resumed.getId()), dedup.claim("d-1", job("o/r", "main", "aaa")));
+    }
+
+    /**
+     * Verifies that a commit built recently is found in the build history,
+     * as after a restart, but an old build is not.
+     */
+    @Test
+    public void testFinishedBuildIsFoundInHistory() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            BuildHistoryStore.Entry saved = store.append(new JSONObject().put("repo", "o/r")
+                    .put("commitSHA", "aaa").put("branch", "main").put("status", "success"));
+
+            DeliveryDeduplicator dedup = new DeliveryDeduplicator(store, 100, 60_000);
+            assertEquals(Optional.of("history entry " + saved.id()), dedup.claim("d-1", job("o/r", "main", "aaa")));
+            assertTrue(dedup.claim("d-2", job("o/r", "main", "bbb")).isEmpty());
+
+            Thread.sleep(20);
+            DeliveryDeduplicator shortLived = new DeliveryDeduplicator(store, 100, 10);
+            assertTrue(shortLived.claim("d-3", job("o/r", "main", "aaa")).isEmpty());
+        }
+    }
+
+    /**
+     * Verifies that only builds that passed or failed in the same repository
+     * are found in the build history.
+     */
+    @Test
+    public void testOnlyDefiniteOutcomesOfSameRepoAreFoundInHistory() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            store.append(new JSONObject().put("repo", "o/r")
+                    .put("commitSHA", "aaa").put("branch", "main").put("status", "cancelled"));
+            store.append(new JSONObject().put("repo", "o/r")
+                    .put("commitSHA", "bbb").put("branch", "main").put("status", "timed_out"));
+            store.append(new JSONObject().put("repo", "o/fork")
+                    .put("commitSHA", "ccc").put("branch", "main").put("status", "failure"));
+            BuildHistoryStore.Entry failed = store.append(new JSONObject().put("repo", "o/r")
+                    .put("commitSHA", "ccc").put("branch", "main").put("status", "failure"));
+
+            DeliveryDeduplicator dedup = new DeliveryDeduplicator(store, 100, 60_000);
+            assertTrue(dedup.claim("d-1", job("o/r", "main", "aaa")).isEmpty());
+            assertTrue(dedup.claim("d-2", job("o/r", "main", "bbb")).isEmpty());
+            assertTrue(dedup.claim("d-3", job("o/other", "main", "ccc")).isEmpty());
+            assertEquals(Optional.of("history entry " + failed.id()), dedup.claim("d-4", job("o/r", "main", "ccc")));
+        }
+    }
+}
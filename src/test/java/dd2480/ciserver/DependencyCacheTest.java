@@ -0,0 +1,116 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link DependencyCache}. Maven is replaced by a fake
+ * command runner that records its invocations.
+ */
+public class DependencyCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Creates a project directory containing a pom.xml with the given content.
+     */
+    private File project(String name, String pom) throws Exception {
+        Path dir = tempDir.resolve(name);
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("pom.xml"), pom);
+        return dir.toFile();
+    }
+
+    /**
+     * Verifies that the first build of a pom pre-warms the repository once
+     * and runs online against the shared repository.
+     */
+    @Test
+    public void testNewPomIsWarmedOnce() throws Exception {
+        DependencyCache cache = new DependencyCache(tempDir.resolve("cache"));
+        File project = project("a", "<project>a</project>");
+        List<String> commands = new ArrayList<>();
+        RepositoryCache.CommandRunner mvn = (dir, command) -> {
+            commands.add(String.join(" ", command));
+            return 0;
+        };
+
+        DependencyCache.Settings first = cache.prepare(project, mvn);
+        DependencyCache.Settings second = cache.prepare(project, mvn);
+
+        assertFalse(first.offline());
+        assertFalse(second.mavenArgs().contains("-o"));
+        assertTrue(first.mavenArgs().contains("-Dmaven.repo.local=" + cache.getRepository()));
+        assertEquals(1, commands.size());
+        assertTrue(commands.get(0).endsWith("dependency:go-offline"));
+    }
+
+    /**
+     * Verifies that after a green build the same pom runs offline, also after
+     * a restart, while a changed pom does not.
+     */
+    @Test
+    public void testGreenPomRunsOffline() throws Exception {
+        Path cacheDir = tempDir.resolve("cache");
+        DependencyCache cache = new DependencyCache(cacheDir);
+        File project = project("a", "<project>a</project>");
+        RepositoryCache.CommandRunner mvn = (dir, command) -> 0;
+
+        cache.markGreen(cache.prepare(project, mvn).pomHash());
+
+        DependencyCache reopened = new DependencyCache(cacheDir);
+        DependencyCache.Settings settings = reopened.prepare(project, mvn);
+        assertTrue(settings.offline());
+        assertTrue(settings.mavenArgs().contains("-o"));
+
+        File changed = project("b", "<project>b</project>");
+        assertFalse(reopened.prepare(changed, mvn).offline());
+    }
+
+    /**
+     * Verifies that the pom hash covers module poms but ignores build output.
+     */
+    @Test
+    public void testHashPomsIncludesModulesAndSkipsTarget() throws Exception {
+        File project = project("multi", "<project>root</project>");
+        String rootOnly = DependencyCache.hashPoms(project.toPath());
+
+        Path target = project.toPath().resolve("target");
+        Files.createDirectories(target);
+        Files.writeString(target.resolve("pom.xml"), "<project>copy</project>");
+        assertEquals(rootOnly, DependencyCache.hashPoms(project.toPath()));
+
+        Path module = project.toPath().resolve("module");
+        Files.createDirectories(module);
+        Files.writeString(module.resolve("pom.xml"), "<project>module</project>");
+        assertNotEquals(rootOnly, DependencyCache.hashPoms(project.toPath()));
+    }
+
+    /**
+     * Verifies that a failing pre-warm is retried by the next build.
+     */
+    @Test
+    public void testFailedWarmIsRetried() throws Exception {
+        DependencyCache cache = new DependencyCache(tempDir.resolve("cache"));
+        File project = project("a", "<project>a</project>");
+        int[] calls = {0};
+        RepositoryCache.CommandRunner failing = (dir, command) -> {
+            calls[0]++;
+            return 1;
+        };
+
+        cache.prepare(project, failing);
+        cache.prepare(project, failing);
+
+        assertEquals(2, calls[0]);
+    }
+}
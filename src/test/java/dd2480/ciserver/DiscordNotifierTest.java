@@ -0,0 +1,153 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link DiscordNotifier}, against a local HTTP server
+ * standing in for the Discord webhook.
+ */
+public class DiscordNotifierTest {
+
+    private HttpServer server;
+    private URI webhook;
+    private final List<String> posted = new CopyOnWriteArrayList<>();
+    private final AtomicInteger rateLimited = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/hook", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (rateLimited.getAndDecrement() > 0) {
+                byte[] answer = "{\"retry_after\":0.3,\"global\":false}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(429, answer.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(answer);
+                }
+                return;
+            }
+            posted.add(new JSONObject(body).getString("content"));
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        webhook = URI.create("http://localhost:" + server.getAddress().getPort() + "/hook");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * Verifies that a single update is posted right away in the usual
+     * format, with special characters escaped.
+     */
+    @Test
+    public void testSingleUpdateIsPostedAtOnce() throws Exception {
+        try (DiscordNotifier notifier = new DiscordNotifier(webhook, 60_000, 10)) {
+            long start = System.nanoTime();
+            assertTrue(notifier.submit("SUCCESS", "main", "Build \"ok\"\nall green"));
+
+            assertTrue(notifier.flush(5000));
+            assertTrue(System.nanoTime() - start < 5_000_000_000L);
+            assertEquals(List.of("**CI Build Update**\n**Status:** SUCCESS\n**Branch:** main"
+                    + "\n**Message:** Build \"ok\"\nall green"), posted);
+            assertEquals(1, notifier.getSentCount());
+            assertEquals(0, notifier.getDigestCount());
+        }
+    }
+
+    /**
+     * Verifies that updates arriving within the window after a post are
+     * merged into one digest.
+     */
+    @Test
+    public void testBurstBecomesDigest() throws Exception {
+        try (DiscordNotifier notifier = new DiscordNotifier(webhook, 500, 100)) {
+            notifier.submit("SUCCESS", "first", "done");
+            assertTrue(notifier.flush(5000));
+            for (int i = 0; i < 5; i++) {
+                notifier.submit("FAILURE", "b" + i, "Tests failed");
+            }
+
+            assertTrue(notifier.flush(5000));
+            assertEquals(2, posted.size());
+            assertTrue(posted.get(1).startsWith("**CI Build Digest** (5 updates)"));
+            assertTrue(posted.get(1).contains("**FAILURE** `b4`: Tests failed"));
+            assertEquals(1, notifier.getDigestCount());
+        }
+    }
+
+    /**
+     * Verifies that a 429 is retried after Discord's retry_after time.
+     */
+    @Test
+    public void testRetriesAfterRateLimit() throws Exception {
+        rateLimited.set(1);
+        try (DiscordNotifier notifier = new DiscordNotifier(webhook, 0, 10)) {
+            long start = System.nanoTime();
+            notifier.submit("ERROR", "main", "boom");
+
+            assertTrue(notifier.flush(5000));
+            assertTrue(System.nanoTime() - start >= 300_000_000L);
+            assertEquals(1, posted.size());
+            assertEquals(1, notifier.getRetryCount());
+            assertEquals(0, notifier.getDroppedCount());
+        }
+    }
+
+    /**
+     * Verifies that updates are dropped and counted when the queue is full
+     * or no webhook is configured.
+     */
+    @Test
+    public void testDropsWhenFullOrUnconfigured() throws Exception {
+        try (DiscordNotifier notifier = new DiscordNotifier(webhook, 60_000, 2)) {
+            // The first post opens a long window, so later updates pile up
+            notifier.submit("SUCCESS", "a", "x");
+            assertTrue(notifier.flush(5000));
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                accepted += notifier.submit("SUCCESS", "b" + i, "x") ? 1 : 0;
+            }
+            assertTrue(accepted <= 3);
+            assertEquals(10 - accepted, notifier.getDroppedCount());
+        }
+        try (DiscordNotifier unconfigured = new DiscordNotifier(null, 0, 10)) {
+            assertFalse(unconfigured.submit("SUCCESS", "main", "x"));
+            assertEquals(1, unconfigured.getDroppedCount());
+        }
+    }
+
+    /**
+     * Verifies that a long digest is cut to Discord's limit.
+     */
+    @Test
+    public void testDigestFitsDiscordLimit() {
+        List<DiscordNotifier.Message> batch = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            batch.add(new DiscordNotifier.Message("FAILURE", "branch-" + i, "Tests failed. Check logs for details."));
+        }
+        String content = DiscordNotifier.content(batch);
+
+        assertTrue(content.length() <= DiscordNotifier.MAX_CONTENT);
+        assertTrue(content.contains("more"));
+    }
+}
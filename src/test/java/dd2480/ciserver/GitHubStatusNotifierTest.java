@@ -64,6 +64,19 @@ public class GitHubStatusNotifierTest {
         assertEquals("error", GitHubStatusNotifier.mapResultToState(result));
     }
 
+    /**
+     * Verifies that a cancelled run maps to "error" state and reports its
+     * reason as the description.
+     */
+    @Test
+    public void testCancelledResultMapsToErrorWithReason() {
+        CIResultObject result = new CIResultObject("heylol123", "main");
+        result.setCancellationReason("Superseded by abc1234");
+
+        assertEquals("error", GitHubStatusNotifier.mapResultToState(result));
+        assertEquals("Superseded by abc1234", GitHubStatusNotifier.buildDescription(result));
+    }
+
     /**
      * Verifies the description for a fully successful result.
      */
@@ -76,6 +89,19 @@ public class GitHubStatusNotifierTest {
         assertEquals("Build and tests passed", GitHubStatusNotifier.buildDescription(result));
     }
 
+    /**
+     * Verifies that a reused result names the commit it came from.
+     */
+    @Test
+    public void testDescriptionForCachedResult() {
+        CIResultObject result = new CIResultObject("heylol123", "main");
+        result.setBuildSuccessful(true);
+        result.setTestsSuccessful(true);
+        result.setCachedFrom("abc1234def5678");
+
+        assertEquals("Build and tests passed, cached from abc1234", GitHubStatusNotifier.buildDescription(result));
+    }
+
     /**
      * Verifies the description for a compilation failure.
      */
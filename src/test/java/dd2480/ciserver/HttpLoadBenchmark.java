@@ -0,0 +1,144 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load benchmark for {@link RequestExecutors}: measures how long webhook
+ * deliveries take to be acknowledged while the dashboard is under load.
+ *
+ * <p>For each executor mode, a server is started with a dashboard handler
+ * that takes {@code renderMillis} per request (a slow page render or slow
+ * client) and a webhook handler that reads the payload and answers
+ * {@code 202}, like the real intake. {@code dashboardClients} clients
+ * request {@code /builds} in a loop while webhooks are posted one after
+ * another, and the acknowledgement latency percentiles are printed.</p>
+ *
+ * <p>Not a unit test; run it after {@code mvn test-compile} with:</p>
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(ls ~/.m2/repository/org/json/json/&#42;/json-&#42;.jar) \
+ *     dd2480.ciserver.HttpLoadBenchmark [webhooks] [dashboardClients] [renderMillis]
+ * </pre>
+ */
+public class HttpLoadBenchmark {
+
+    /** Private constructor to prevent instantiation. */
+    private HttpLoadBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark for every mode.
+     *
+     * @param args optional: number of webhooks (default 200), dashboard
+     *             clients (default 16) and dashboard render time in
+     *             milliseconds (default 50).
+     * @throws Exception if a server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        int webhooks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int dashboardClients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long renderMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        // Same socket settings as Server.listen
+        RequestExecutors.enableNoDelay();
+
+        System.out.printf("%d webhooks, %d dashboard clients, %d ms per dashboard request%n",
+                webhooks, dashboardClients, renderMillis);
+        System.out.printf("%-10s %10s %10s %10s %14s%n", "mode", "p50 ms", "p99 ms", "max ms", "dashboard/s");
+        for (RequestExecutors.Mode mode : RequestExecutors.Mode.values()) {
+            run(mode, webhooks, dashboardClients, renderMillis);
+        }
+    }
+
+    /**
+     * Runs one mode and prints a result line.
+     */
+    private static void run(RequestExecutors.Mode mode, int webhooks, int dashboardClients,
+                            long renderMillis) throws Exception {
+        RequestExecutors executors = new RequestExecutors(mode, 4, 256, 4, 64);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executors.install(server);
+        HttpHandler dashboard = exchange -> {
+            try {
+                Thread.sleep(renderMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Server.sendText(exchange, 200, "<html>" + "x".repeat(16 * 1024) + "</html>");
+        };
+        HttpHandler webhook = exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            Server.sendText(exchange, 202, "queued");
+        };
+        server.createContext("/builds", executors.dashboard(dashboard));
+        server.createContext("/webhook", executors.ingest(webhook));
+        server.start();
+
+        String base = "http://localhost:" + server.getAddress().getPort();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(30)).build();
+        AtomicBoolean loading = new AtomicBoolean(true);
+        AtomicLong dashboardDone = new AtomicLong();
+        ExecutorService load = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < dashboardClients; i++) {
+            load.submit(() -> {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/builds")).build();
+                while (loading.get()) {
+                    try {
+                        client.send(request, HttpResponse.BodyHandlers.discarding());
+                        dashboardDone.incrementAndGet();
+                    } catch (Exception e) {
+                        // Keep loading; failures are visible in the throughput
+                    }
+                }
+            });
+        }
+        Thread.sleep(500);
+
+        String payload = "{\"ref\":\"refs/heads/main\",\"after\":\"" + "a".repeat(40) + "\"}";
+        long[] latencies = new long[webhooks];
+        long start = System.nanoTime();
+        for (int i = 0; i < webhooks; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/webhook"))
+                    .POST(HttpRequest.BodyPublishers.ofString(payload)).build();
+            long t0 = System.nanoTime();
+            client.send(request, HttpResponse.BodyHandlers.discarding());
+            latencies[i] = System.nanoTime() - t0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        loading.set(false);
+        load.shutdown();
+        load.awaitTermination(30, TimeUnit.SECONDS);
+        server.stop(0);
+        executors.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-10s %10.1f %10.1f %10.1f %14.0f%n", mode.name().toLowerCase(java.util.Locale.ROOT),
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6, dashboardDone.get() / seconds);
+    }
+
+    /**
+     * Returns a percentile of sorted nanosecond values in milliseconds.
+     */
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
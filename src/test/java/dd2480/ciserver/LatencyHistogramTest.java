@@ -0,0 +1,83 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Verifies that values land in buckets within 50% of their value and
+     * that percentiles report the bucket bound.
+     */
+    @Test
+    public void testBucketsAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram(1_000_000, 1000);
+        for (long value : new long[] {0, 1, 5, 6, 7, 100, 1000, 5000}) {
+            histogram.record(value);
+        }
+
+        assertEquals(8, histogram.getCount());
+        assertEquals(6119, histogram.getSum());
+        assertEquals(1, histogram.getPercentile(25));
+        assertEquals(6, histogram.getPercentile(50));
+        assertEquals(128, histogram.getPercentile(75));
+        assertEquals(1024, histogram.getPercentile(87.5));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    /**
+     * Verifies the Prometheus output: cumulative buckets in seconds, an
+     * infinite bucket, the sum and the count.
+     */
+    @Test
+    public void testWriteTo() {
+        LatencyHistogram histogram = new LatencyHistogram(1_000, 4);
+        histogram.recordNanos(1_500);
+        histogram.recordNanos(3_000);
+        histogram.recordNanos(9_000_000);
+        StringBuilder out = new StringBuilder();
+
+        histogram.writeTo(out, "ci_test_seconds", "phase=\"x\"");
+
+        assertEquals("""
+                ci_test_seconds_bucket{phase="x",le="0.000001"} 1
+                ci_test_seconds_bucket{phase="x",le="0.000002"} 1
+                ci_test_seconds_bucket{phase="x",le="0.000003"} 2
+                ci_test_seconds_bucket{phase="x",le="0.000004"} 2
+                ci_test_seconds_bucket{phase="x",le="0.000006"} 2
+                ci_test_seconds_bucket{phase="x",le="+Inf"} 3
+                ci_test_seconds_sum{phase="x"} 0.009004
+                ci_test_seconds_count{phase="x"} 3
+                """, out.toString());
+    }
+
+    /**
+     * Verifies that recording allocates no memory, where the JVM can tell.
+     */
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+                || !threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        LatencyHistogram histogram = LatencyHistogram.ofMicros();
+        long thread = Thread.currentThread().threadId();
+        for (int i = 0; i < 100_000; i++) {
+            histogram.recordNanos(i * 1_000L);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100_000; i++) {
+            histogram.recordNanos(i * 1_000L);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(allocated < 1024, "Recording allocated " + allocated + " bytes");
+    }
+}
@@ -0,0 +1,206 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link LogTailer}, served by a real {@link HttpServer} on a
+ * free port.
+ */
+public class LogTailerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private HttpServer server;
+    private LogTailer tailer;
+
+    /**
+     * Starts a server whose build 1 writes its log into the temp directory.
+     */
+    @BeforeEach
+    public void startServer() throws Exception {
+        tailer = new LogTailer(id -> tempDir.resolve(id + ".log"), id -> id == 1 && running.get(), 10, 500);
+        tailer.start();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/builds/", tailer::handle);
+        server.start();
+    }
+
+    /**
+     * Stops the server and the tailer.
+     */
+    @AfterEach
+    public void stopServer() {
+        tailer.shutdown();
+        server.stop(0);
+    }
+
+    private HttpURLConnection open(String pathAndQuery) throws Exception {
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + pathAndQuery);
+        return (HttpURLConnection) uri.toURL().openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws Exception {
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Verifies that the log of a finished build is sent whole, and from the
+     * requested offset.
+     */
+    @Test
+    public void testFinishedLogIsSentFromOffset() throws Exception {
+        Files.writeString(tempDir.resolve("1.log"), "line1\nline2\n");
+
+        assertEquals("line1\nline2\n", read(open("/builds/1/log")));
+        assertEquals("line2\n", read(open("/builds/1/log?offset=6")));
+    }
+
+    /**
+     * Verifies that output written while the build runs reaches a client
+     * that is already connected, and that the response ends with the build.
+     */
+    @Test
+    public void testRunningLogIsStreamed() throws Exception {
+        Path log = tempDir.resolve("1.log");
+        Files.writeString(log, "line1\n");
+        running.set(true);
+
+        HttpURLConnection connection = open("/builds/1/log");
+        CompletableFuture<String> body = CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(connection);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tailer.getTailCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Files.writeString(log, "line2\n", StandardOpenOption.APPEND);
+        Thread.sleep(50);
+        assertFalse(body.isDone(), "Response must stay open while the build runs");
+        running.set(false);
+
+        assertEquals("line1\nline2\n", body.get(5, TimeUnit.SECONDS));
+        assertEquals(0, tailer.getTailCount());
+    }
+
+    /**
+     * Verifies that event-stream clients get one event per batch of lines
+     * with the resume offset as id, and resume from Last-Event-ID.
+     */
+    @Test
+    public void testEventStreamResumesFromLastEventId() throws Exception {
+        Files.writeString(tempDir.resolve("1.log"), "line1\nline2\n");
+
+        HttpURLConnection first = open("/builds/1/log");
+        first.setRequestProperty("Accept", "text/event-stream");
+        assertEquals("id: 12\ndata: line1\ndata: line2\n\nevent: end\ndata: \n\n", read(first));
+        assertEquals("text/event-stream; charset=UTF-8", first.getContentType());
+
+        HttpURLConnection resumed = open("/builds/1/log?format=sse");
+        resumed.setRequestProperty("Last-Event-ID", "6");
+        assertEquals("id: 12\ndata: line2\n\nevent: end\ndata: \n\n", read(resumed));
+    }
+
+    /**
+     * Verifies that a client that stops reading neither holds up the other
+     * clients nor stays connected past the write timeout.
+     */
+    @Test
+    public void testStalledClientDoesNotBlockOthers() throws Exception {
+        Path log = tempDir.resolve("1.log");
+        Files.write(log, new byte[8 * 1024 * 1024]);
+        running.set(true);
+
+        try (Socket stalled = new Socket("localhost", server.getAddress().getPort())) {
+            stalled.setReceiveBufferSize(4096);
+            OutputStream request = stalled.getOutputStream();
+            request.write("GET /builds/1/log HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            request.flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (tailer.getTailCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            HttpURLConnection other = open("/builds/1/log?offset=" + (8 * 1024 * 1024));
+            CompletableFuture<String> body = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(other);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(100);
+            Files.writeString(log, "done\n", StandardOpenOption.APPEND);
+            Thread.sleep(100);
+            running.set(false);
+
+            assertEquals("done\n", body.get(5, TimeUnit.SECONDS));
+            deadline = System.currentTimeMillis() + 5000;
+            while (tailer.getTailCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, tailer.getTailCount(), "The stalled client must be dropped");
+        }
+    }
+
+    /**
+     * Verifies the error responses for unknown builds, bad paths and offsets.
+     */
+    @Test
+    public void testErrors() throws Exception {
+        assertEquals(404, open("/builds/2/log").getResponseCode());
+        assertEquals(404, open("/builds/1/other").getResponseCode());
+        running.set(true);
+        assertEquals(400, open("/builds/1/log?offset=-5").getResponseCode());
+        assertEquals(400, open("/builds/1/log?offset=abc").getResponseCode());
+    }
+
+    /**
+     * Verifies that every line of an event gets its own data field.
+     */
+    @Test
+    public void testFormatEvent() {
+        assertEquals("id: 8\ndata: a\ndata: b\n\n", LogTailer.formatEvent("a\r\nb\n", 8));
+    }
+
+    /**
+     * Verifies query parsing and that Last-Event-ID takes precedence.
+     */
+    @Test
+    public void testStartOffset() {
+        assertEquals(0, LogTailer.startOffset(null, null));
+        assertEquals(10, LogTailer.startOffset("10", null));
+        assertEquals(20, LogTailer.startOffset("10", "20"));
+        assertEquals("42", LogTailer.queryParam("format=sse&offset=42", "offset"));
+        assertNull(LogTailer.queryParam("format=sse", "offset"));
+    }
+}
@@ -0,0 +1,94 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+import dd2480.ciserver.model.PhaseRecord;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link MetricsRegistry} and {@link MetricsSink}.
+ */
+public class MetricsRegistryTest {
+
+    /**
+     * Verifies that samples with the same name share one HELP and TYPE
+     * line, in registration order.
+     */
+    @Test
+    public void testRenderGroupsFamilies() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter success = registry.counter("ci_builds_total", "Builds", "outcome=\"success\"");
+        registry.counter("ci_builds_total", "Builds", "outcome=\"failure\"");
+        registry.gauge("ci_build_queue_depth", "Queue", "", () -> 3);
+        registry.gauge("ci_load", "Load", "", () -> 0.25);
+        success.inc();
+        success.add(2);
+
+        assertEquals("""
+                # HELP ci_builds_total Builds
+                # TYPE ci_builds_total counter
+                ci_builds_total{outcome="success"} 3
+                ci_builds_total{outcome="failure"} 0
+                # HELP ci_build_queue_depth Queue
+                # TYPE ci_build_queue_depth gauge
+                ci_build_queue_depth 3
+                # HELP ci_load Load
+                # TYPE ci_load gauge
+                ci_load 0.25
+                """, registry.render());
+    }
+
+    /**
+     * Verifies label escaping and that a name cannot change its type.
+     */
+    @Test
+    public void testLabelsAndTypeConflict() {
+        assertEquals("gc=\"a \\\"b\\\" \\\\ c\"", MetricsRegistry.label("gc", "a \"b\" \\ c"));
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("ci_x_total", "X", "");
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("ci_x_total", "X", "", () -> 1));
+    }
+
+    /**
+     * Verifies that the JVM metrics include the heap and the collectors.
+     */
+    @Test
+    public void testJvmMetrics() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.registerJvm();
+
+        String text = registry.render();
+
+        assertTrue(text.contains("# TYPE jvm_memory_heap_used_bytes gauge\njvm_memory_heap_used_bytes "), text);
+        assertTrue(text.contains("jvm_gc_collections_total{gc=\""), text);
+        assertTrue(text.contains("process_uptime_seconds "), text);
+    }
+
+    /**
+     * Verifies that the sink counts builds by outcome and records their
+     * phases.
+     */
+    @Test
+    public void testSinkCountsOutcomesAndPhases() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsSink sink = new MetricsSink(registry);
+        CIResultObject result = new CIResultObject("abc", "main");
+        result.setBuildSuccessful(true);
+        result.setTestsSuccessful(true);
+        result.addPhase(new PhaseRecord("compile", 1500, 0, 900, 1024));
+        result.addPhase(PhaseRecord.withoutProcess("unknown", 5));
+
+        sink.accept(new BuildEvent(BuildEvent.Type.FINISHED, 1, "owner/repo", "main", "abc", result, null, 0));
+        sink.accept(new BuildEvent(BuildEvent.Type.CANCELLED, 2, "owner/repo", "main", "def", null, "Superseded", 0));
+        sink.accept(new BuildEvent(BuildEvent.Type.STARTED, 3, "owner/repo", "main", "ghi", null, null, 0));
+
+        String text = registry.render();
+        assertTrue(text.contains("ci_builds_total{outcome=\"success\"} 1\n"), text);
+        assertTrue(text.contains("ci_builds_total{outcome=\"cancelled\"} 1\n"), text);
+        assertTrue(text.contains("ci_builds_total{outcome=\"failure\"} 0\n"), text);
+        assertTrue(text.contains("ci_build_phase_seconds_count{phase=\"compile\"} 1\n"), text);
+        assertTrue(text.contains("ci_build_phase_seconds_sum{phase=\"compile\"} 1.5\n"), text);
+        assertTrue(text.contains("ci_build_phase_seconds_count{phase=\"test\"} 0\n"), text);
+    }
+}
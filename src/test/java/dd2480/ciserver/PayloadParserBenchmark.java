@@ -0,0 +1,86 @@
+package dd2480.ciserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark of the two ways to parse a push event: the
+ * {@link WebhookPayload#WebhookPayload(String) String constructor}, which
+ * reads the whole body into a string and builds a JSON tree, and the
+ * streaming {@link WebhookPayload#parse(InputStream, long)}.
+ *
+ * <p>For push events with a growing number of commits, each parser is
+ * warmed up and then timed over many iterations. The time per parse and
+ * the bytes allocated per parse (measured with
+ * {@code com.sun.management.ThreadMXBean}) are printed. The String
+ * constructor is timed including the decoding of the body, as in the old
+ * {@code Server.readRequestBody} path.</p>
+ *
+ * <p>Not a unit test; run it after {@code mvn test-compile} with:</p>
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(ls ~/.m2/repository/org/json/json/&#42;/json-&#42;.jar) \
+ *     dd2480.ciserver.PayloadParserBenchmark [iterations]
+ * </pre>
+ */
+public class PayloadParserBenchmark {
+
+    /** Private constructor to prevent instantiation. */
+    private PayloadParserBenchmark() {
+    }
+
+    /** A parser under test. */
+    private interface Parser {
+        WebhookPayload parse(byte[] body) throws IOException;
+    }
+
+    /** Keeps results alive so the JIT cannot drop the work. */
+    private static long sink;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional: iterations per measurement (default 200).
+     * @throws Exception if parsing fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Parser tree = body -> new WebhookPayload(new String(body, StandardCharsets.UTF_8));
+        Parser streaming = body -> WebhookPayload.parse(new ByteArrayInputStream(body), Long.MAX_VALUE);
+
+        System.out.printf("%8s %10s %14s %14s %14s %14s%n", "commits", "body KiB",
+                "tree us", "stream us", "tree KiB/op", "stream KiB/op");
+        for (int commits : new int[] {1, 20, 200, 2000, 20_000}) {
+            byte[] body = PushEventParserTest.pushEvent(commits).getBytes(StandardCharsets.UTF_8);
+            int rounds = Math.max(5, iterations * 20 / Math.max(20, commits));
+            measure(tree, body, rounds);
+            measure(streaming, body, rounds);
+            double[] treeResult = measure(tree, body, rounds);
+            double[] streamResult = measure(streaming, body, rounds);
+            System.out.printf("%8d %10.1f %14.1f %14.1f %14.1f %14.1f%n", commits, body.length / 1024.0,
+                    treeResult[0], streamResult[0], treeResult[1], streamResult[1]);
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    /**
+     * Parses a body repeatedly.
+     *
+     * @return microseconds per parse and KiB allocated per parse.
+     */
+    private static double[] measure(Parser parser, byte[] body, int rounds) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sink += parser.parse(body).getCommitSHA().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new double[] {elapsed / 1e3 / rounds, allocated / 1024.0 / rounds};
+    }
+}
@@ -0,0 +1,34 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ProcessSampler}.
+ */
+public class ProcessSamplerTest {
+
+    /**
+     * Verifies that the CPU time is read from the fields after the command
+     * name, even when the name contains spaces and parentheses.
+     */
+    @Test
+    public void testCpuTicksFromStat() {
+        String stat = "4242 (java (main) x) S 1 4242 4242 0 -1 4194560 100 0 0 0 "
+                + "150 30 12 8 20 0 40 0 1000 123456 789";
+        assertEquals(150 + 30 + 12 + 8, ProcessSampler.cpuTicks(stat));
+    }
+
+    /**
+     * Verifies that sizes are read from status fields, and that a missing
+     * field counts as 0.
+     */
+    @Test
+    public void testStatusKb() {
+        String status = "Name:\tjava\nVmHWM:\t  204800 kB\nVmRSS:\t  102400 kB\n";
+        assertEquals(204800, ProcessSampler.statusKb(status, "VmHWM:"));
+        assertEquals(102400, ProcessSampler.statusKb(status, "VmRSS:"));
+        assertEquals(0, ProcessSampler.statusKb("Name:\tzombie\n", "VmRSS:"));
+    }
+}
@@ -0,0 +1,158 @@
+package dd2480.ciserver;
+
+import org.json.JSONException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link PushEventParser}.
+ */
+public class PushEventParserTest {
+
+    /**
+     * Builds a push event with the given number of commits; the wanted
+     * fields come after the commits, as in GitHub's payloads.
+     *
+     * @param commits the number of commits.
+     * @return the JSON text.
+     */
+    static String pushEvent(int commits) {
+        StringBuilder json = new StringBuilder("{\"before\":\"0000\",\"created\":false,\"forced\":true,"
+                + "\"size\":" + commits + ",\"commits\":[");
+        for (int i = 0; i < commits; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"c").append(i).append("\",\"message\":\"Fix \\\"quotes\\\" and {braces} [")
+                    .append(i).append("]\",\"ref\":\"refs/heads/wrong\",\"added\":[\"a.java\",\"b.java\"],"
+                            + "\"author\":{\"name\":\"Dev\",\"email\":null},\"distinct\":true,\"score\":-1.5e3}");
+        }
+        json.append("],\"ref\":\"refs/heads/feature/x\",\"after\":\"abc123\",\"repository\":{\"id\":7,"
+                + "\"owner\":{\"full_name\":\"wrong/owner\"},\"clone_url\":\"https://github.com/owner/repo.git\","
+                + "\"full_name\":\"owner/repo\",\"topics\":[]},\"pusher\":{\"name\":\"dev\"}}");
+        return json.toString();
+    }
+
+    private static WebhookPayload parse(String json, long maxBytes) throws IOException {
+        return PushEventParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), maxBytes);
+    }
+
+    /**
+     * Verifies that the wanted fields are found next to and after values
+     * that are skipped, and match what the JSON tree parser reads.
+     */
+    @Test
+    public void testMatchesTreeParser() throws Exception {
+        String json = pushEvent(3);
+        WebhookPayload streamed = parse(json, Long.MAX_VALUE);
+        WebhookPayload tree = new WebhookPayload(json);
+
+        assertEquals("feature/x", streamed.getBranch());
+        assertEquals("abc123", streamed.getCommitSHA());
+        assertEquals("https://github.com/owner/repo.git", streamed.getCloneUrl());
+        assertEquals("owner/repo", streamed.getRepoFullName());
+        assertEquals(tree.toJson(), streamed.toJson());
+    }
+
+    /**
+     * Verifies that the cache bypass marker is read from the head commit
+     * message only, and that a null head commit is accepted.
+     */
+    @Test
+    public void testHeadCommitBypassesCache() throws Exception {
+        String base = pushEvent(1);
+        String marked = base.substring(0, base.length() - 1)
+                + ",\"head_commit\":{\"id\":\"abc123\",\"message\":\"Rebuild [no cache]\"}}";
+        String deleted = base.substring(0, base.length() - 1) + ",\"head_commit\":null}";
+
+        assertFalse(parse(base, Long.MAX_VALUE).isCacheBypassed());
+        assertTrue(parse(marked, Long.MAX_VALUE).isCacheBypassed());
+        assertTrue(new WebhookPayload(marked).isCacheBypassed());
+        assertFalse(parse(deleted, Long.MAX_VALUE).isCacheBypassed());
+        assertFalse(new WebhookPayload(deleted).isCacheBypassed());
+        // The journal keeps the flag
+        assertTrue(new WebhookPayload(parse(marked, Long.MAX_VALUE).toJson()).isCacheBypassed());
+    }
+
+    /**
+     * Verifies that a large payload is read across many buffer refills.
+     */
+    @Test
+    public void testLargePayload() throws Exception {
+        String json = pushEvent(20_000);
+        assertTrue(json.length() > 1024 * 1024);
+
+        // A stream that returns a few bytes at a time, like a slow socket
+        InputStream slow = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        WebhookPayload payload = PushEventParser.parse(slow, Long.MAX_VALUE);
+        assertEquals("abc123", payload.getCommitSHA());
+    }
+
+    /**
+     * Verifies that escapes and multi-byte characters are decoded.
+     */
+    @Test
+    public void testDecodesEscapesAndUnicode() throws Exception {
+        String json = "{\"ref\":\"refs/heads/caf\\u00e9-été-\\ud83d\\ude00\\/x\","
+                + "\"after\":\"a\\tb\",\"repository\":{\"clone_url\":\"u\",\"full_name\":\"o/漢\"}}";
+        WebhookPayload payload = parse(json, Long.MAX_VALUE);
+
+        assertEquals("café-été-😀/x", payload.getBranch());
+        assertEquals("a\tb", payload.getCommitSHA());
+        assertEquals("o/漢", payload.getRepoFullName());
+    }
+
+    /**
+     * Verifies that a body over the limit is rejected.
+     */
+    @Test
+    public void testRejectsOversizedBody() {
+        String json = pushEvent(1000);
+        assertThrows(PushEventParser.PayloadTooLargeException.class, () -> parse(json, 4096));
+        assertDoesNotThrow(() -> parse(json, json.length()));
+    }
+
+    /**
+     * Verifies that malformed and incomplete documents are rejected.
+     */
+    @Test
+    public void testRejectsMalformedJson() {
+        String json = pushEvent(2);
+        assertThrows(JSONException.class, () -> parse("not valid json", 1024));
+        assertThrows(JSONException.class, () -> parse(json.substring(0, json.length() - 1), Long.MAX_VALUE));
+        assertThrows(JSONException.class, () -> parse(json + "{}", Long.MAX_VALUE));
+        assertThrows(JSONException.class, () -> parse("{\"commits\":[1,2}", 1024));
+        assertThrows(JSONException.class, () -> parse("{\"ref\":\"refs/heads/main\"}", 1024));
+        assertThrows(JSONException.class, () -> parse("{\"ref\":\"r\",\"after\":\"a\"}", 1024));
+        assertThrows(JSONException.class, () -> parse("{\"ref\":1,\"after\":\"a\",\"repository\":{}}", 1024));
+    }
+
+    /**
+     * Verifies that skipped values must be valid JSON, also inside skipped
+     * arrays and objects.
+     */
+    @Test
+    public void testRejectsMalformedSkippedValues() {
+        String base = pushEvent(1);
+        String prefix = base.substring(0, base.length() - 1) + ",\"extra\":";
+        for (String value : new String[] {"tru", "nul", "falsey", "1.2.3", "01", "-", "1.", "1e", "+1",
+                "[1,]", "[true false]", "{\"a\" 1}", "{\"a\":[tru]}", "{1:2}"}) {
+            assertThrows(JSONException.class, () -> parse(prefix + value + "}", Long.MAX_VALUE), value);
+        }
+        for (String value : new String[] {"true", "false", "null", "0", "-12.5e+3", "1E9",
+                "[]", "{}", "[1, [true, {\"a\": null}], \"s\"]"}) {
+            assertDoesNotThrow(() -> parse(prefix + value + "}", Long.MAX_VALUE), value);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RepositoryCache}.
+ *
+ * <p>Git is replaced by a fake command runner that records the commands and
+ * creates a mirror directory of a fixed size, so no network access or real
+ * repository is needed.</p>
+ */
+public class RepositoryCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * A fake git that creates a bare-looking mirror with a 1000-byte pack.
+     */
+    static class FakeGit implements RepositoryCache.CommandRunner {
+        final List<String> commands = new ArrayList<>();
+        int exitCode = 0;
+
+        @Override
+        public int run(File workDir, String... command) throws Exception {
+            commands.add(String.join(" ", command));
+            if (exitCode == 0 && command[1].equals("clone")) {
+                Path mirror = workDir.toPath().resolve(command[command.length - 1]);
+                Files.createDirectories(mirror.resolve("objects"));
+                Files.write(mirror.resolve("objects/pack"), new byte[1000]);
+            }
+            return exitCode;
+        }
+    }
+
+    /**
+     * Verifies that the first use clones a mirror and later uses only fetch.
+     */
+    @Test
+    public void testFirstAcquireClonesThenFetches() throws Exception {
+        RepositoryCache cache = new RepositoryCache(tempDir, 1_000_000);
+        FakeGit git = new FakeGit();
+
+        RepositoryCache.Lease first = cache.acquire("https://github.com/owner/repo.git", git);
+        cache.release("https://github.com/owner/repo.git");
+        RepositoryCache.Lease second = cache.acquire("https://github.com/owner/repo.git", git);
+
+        assertTrue(Files.isDirectory(first.path().resolve("objects")));
+        assertEquals(1000, first.fetchedBytes());
+        assertEquals(0, second.fetchedBytes());
+        assertEquals(2, git.commands.size());
+        assertTrue(git.commands.get(0).startsWith("git clone --mirror"));
+        assertEquals("git fetch --prune origin", git.commands.get(1));
+        assertEquals(1000, cache.getTotalBytes());
+    }
+
+    /**
+     * Verifies that a failing git command is reported as an exception.
+     */
+    @Test
+    public void testFailedFetchThrows() throws Exception {
+        RepositoryCache cache = new RepositoryCache(tempDir, 1_000_000);
+        FakeGit git = new FakeGit();
+        git.exitCode = 128;
+
+        assertThrows(java.io.IOException.class,
+                () -> cache.acquire("https://github.com/owner/repo.git", git));
+    }
+
+    /**
+     * Verifies that the least recently used mirror is evicted once the cache
+     * is over its limit, and that mirrors in use are kept.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsedMirrorNotInUse() throws Exception {
+        RepositoryCache cache = new RepositoryCache(tempDir, 2500);
+        FakeGit git = new FakeGit();
+
+        Path first = cache.acquire("https://github.com/owner/first.git", git).path();
+        cache.release("https://github.com/owner/first.git");
+        Thread.sleep(5);
+        Path second = cache.acquire("https://github.com/owner/second.git", git).path();
+        Thread.sleep(5);
+        Path third = cache.acquire("https://github.com/owner/third.git", git).path();
+
+        assertFalse(Files.exists(first), "Oldest unused mirror should be evicted");
+        assertTrue(Files.exists(second), "Mirror in use must not be evicted");
+        assertTrue(Files.exists(third));
+        assertEquals(2000, cache.getTotalBytes());
+    }
+
+    /**
+     * Verifies that mirrors from an earlier run are picked up again.
+     */
+    @Test
+    public void testExistingMirrorsAreReused() throws Exception {
+        new RepositoryCache(tempDir, 1_000_000)
+                .acquire("https://github.com/owner/repo.git", new FakeGit());
+
+        RepositoryCache reopened = new RepositoryCache(tempDir, 1_000_000);
+        FakeGit git = new FakeGit();
+        reopened.acquire("https://github.com/owner/repo.git", git);
+
+        assertEquals(List.of("git fetch --prune origin"), git.commands);
+    }
+
+    /**
+     * Verifies that forks with the same repository name get different mirrors.
+     */
+    @Test
+    public void testMirrorPathDistinguishesForks() throws Exception {
+        RepositoryCache cache = new RepositoryCache(tempDir, 1_000_000);
+        Path a = cache.mirrorPath("https://github.com/alice/repo.git");
+        Path b = cache.mirrorPath("https://github.com/bob/repo.git");
+
+        assertNotEquals(a, b);
+        assertTrue(a.getFileName().toString().startsWith("repo-"));
+    }
+}
@@ -0,0 +1,129 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RequestExecutors}, served by a real
+ * {@link HttpServer} on a free port whose dashboard handler blocks until
+ * released.
+ */
+public class RequestExecutorsTest {
+
+    /**
+     * Starts a server with a blocking /builds and an instant /webhook.
+     */
+    private static HttpServer start(RequestExecutors executors, CountDownLatch release,
+                                    CountDownLatch entered) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executors.install(server);
+        HttpHandler slow = exchange -> {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Server.sendText(exchange, 200, "history");
+        };
+        server.createContext("/builds", executors.dashboard(slow));
+        server.createContext("/webhook", executors.ingest(exchange -> Server.sendText(exchange, 202, "queued")));
+        server.start();
+        return server;
+    }
+
+    private static int status(HttpServer server, String path) throws Exception {
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        connection.setReadTimeout(5000);
+        return connection.getResponseCode();
+    }
+
+    /**
+     * Verifies that webhooks are answered while dashboard requests are stuck,
+     * in both modes that separate them.
+     */
+    @Test
+    public void testWebhookIsNotBlockedBySlowDashboard() throws Exception {
+        for (RequestExecutors.Mode mode : new RequestExecutors.Mode[] {
+                RequestExecutors.Mode.VIRTUAL, RequestExecutors.Mode.POOLS}) {
+            RequestExecutors executors = new RequestExecutors(mode, 2, 10, 2, 10);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch entered = new CountDownLatch(2);
+            HttpServer server = start(executors, release, entered);
+            try {
+                CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> quietStatus(server, "/builds"));
+                CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> quietStatus(server, "/builds"));
+                assertTrue(entered.await(5, TimeUnit.SECONDS), mode + ": dashboard requests should start");
+
+                assertEquals(202, status(server, "/webhook"), mode + ": webhook must not wait");
+
+                release.countDown();
+                assertEquals(200, first.get(5, TimeUnit.SECONDS));
+                assertEquals(200, second.get(5, TimeUnit.SECONDS));
+            } finally {
+                release.countDown();
+                server.stop(0);
+                executors.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Verifies that a full dashboard pool answers 503 instead of queueing
+     * without bound.
+     */
+    @Test
+    public void testFullPoolAnswers503() throws Exception {
+        RequestExecutors executors = new RequestExecutors(RequestExecutors.Mode.POOLS, 1, 1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch entered = new CountDownLatch(1);
+        HttpServer server = start(executors, release, entered);
+        try {
+            CompletableFuture<Integer> running = CompletableFuture.supplyAsync(() -> quietStatus(server, "/builds"));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Integer> queued = CompletableFuture.supplyAsync(() -> quietStatus(server, "/builds"));
+            // Give the second request time to take the only queue slot
+            Thread.sleep(300);
+            assertEquals(503, status(server, "/builds"));
+            assertTrue(executors.getRejectedCount() >= 1);
+
+            release.countDown();
+            assertEquals(200, running.get(5, TimeUnit.SECONDS));
+            assertEquals(200, queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            server.stop(0);
+            executors.shutdown();
+        }
+    }
+
+    /**
+     * Verifies that mode names are parsed case-insensitively and that an
+     * unknown name falls back to virtual threads.
+     */
+    @Test
+    public void testParseMode() {
+        assertEquals(RequestExecutors.Mode.POOLS, RequestExecutors.parseMode(" Pools "));
+        assertEquals(RequestExecutors.Mode.DISPATCHER, RequestExecutors.parseMode("dispatcher"));
+        assertEquals(RequestExecutors.Mode.VIRTUAL, RequestExecutors.parseMode("threads"));
+    }
+
+    private static int quietStatus(HttpServer server, String path) {
+        try {
+            return status(server, path);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package dd2480.ciserver;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link SegmentedHistoryStore}.
+ */
+public class SegmentedHistoryStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static JSONObject build(String sha, String branch) {
+        return new JSONObject().put("commitSHA", sha).put("branch", branch).put("log", "log of " + sha);
+    }
+
+    private static List<Long> ids(List<BuildHistoryStore.Entry> entries) {
+        return entries.stream().map(BuildHistoryStore.Entry::id).toList();
+    }
+
+    /**
+     * Verifies that saved builds get increasing ids and can be read back.
+     */
+    @Test
+    public void testAppendAndGet() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            BuildHistoryStore.Entry first = store.append(build("a1", "main"));
+            BuildHistoryStore.Entry second = store.append(build("b2", "main"));
+
+            assertEquals(1, first.id());
+            assertEquals(2, second.id());
+            JSONObject saved = store.get(2).orElseThrow();
+            assertEquals("b2", saved.getString("commitSHA"));
+            assertEquals("log of b2", saved.getString("log"));
+            assertEquals(2, saved.getLong("id"));
+            assertTrue(store.get(3).isEmpty());
+        }
+    }
+
+    /**
+     * Verifies newest-first pagination and the branch, SHA and time indexes.
+     */
+    @Test
+    public void testListingsAndIndexes() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            store.append(build("a1", "main"));
+            store.append(build("b2", "feature"));
+            store.append(build("a1", "main"));
+            store.append(build("c3", "main"));
+
+            assertEquals(List.of(4L, 3L), ids(store.list(Long.MAX_VALUE, 2)));
+            assertEquals(List.of(2L, 1L), ids(store.list(3, 2)));
+            assertEquals(List.of(3L, 1L), ids(store.listByBranch("main", 4, 10)));
+            assertEquals(List.of(3L, 1L), ids(store.findBySha("a1")));
+            assertEquals(List.of(), store.findBySha("unknown"));
+            assertEquals(4, store.listBetween(0, Long.MAX_VALUE, 10).size());
+            assertEquals(List.of(), store.listBetween(0, 1, 10));
+            assertEquals(4, store.size());
+        }
+    }
+
+    /**
+     * Verifies that the indexes are rebuilt from the segments on reopening
+     * and that new ids continue after the old ones.
+     */
+    @Test
+    public void testReopenRebuildsIndex() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 200)) {
+            for (int i = 0; i < 10; i++) {
+                store.append(build("sha" + i, i % 2 == 0 ? "main" : "dev"));
+            }
+        }
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertTrue(files.count() > 1, "Small segments should roll over");
+        }
+
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 200)) {
+            assertEquals(10, store.size());
+            assertEquals("log of sha7", store.get(8).orElseThrow().getString("log"));
+            assertEquals(5, store.listByBranch("dev", Long.MAX_VALUE, 10).size());
+            assertEquals(11, store.append(build("new", "main")).id());
+        }
+    }
+
+    /**
+     * Verifies that a build cut off in the middle of a write is dropped and
+     * the segment can be appended to again.
+     */
+    @Test
+    public void testIncompleteBuildIsCutOff() throws Exception {
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            store.append(build("a1", "main"));
+        }
+        Path segment = tempDir.resolve("segment-000001.log");
+        Files.writeString(segment, "{\"id\":2,\"time\":1,\"sha\":\"b2\",\"branch\":\"main\",\"length\":500}\n{\"com",
+                StandardOpenOption.APPEND);
+
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            assertEquals(1, store.size());
+            assertEquals(2, store.append(build("c3", "main")).id());
+            assertEquals("c3", store.get(2).orElseThrow().getString("commitSHA"));
+        }
+    }
+
+    /**
+     * Verifies that a failed write leaves no partial record behind, so the
+     * next build is stored at the right place.
+     */
+    @Test
+    public void testFailedWriteIsCutOff() throws Exception {
+        AtomicBoolean fail = new AtomicBoolean();
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024) {
+            @Override
+            void write(FileChannel channel, ByteBuffer record) throws IOException {
+                if (fail.getAndSet(false)) {
+                    channel.write(record.limit(record.limit() / 2));
+                    throw new IOException("Disk full");
+                }
+                super.write(channel, record);
+            }
+        }) {
+            store.append(build("a1", "main"));
+            fail.set(true);
+            assertThrows(IOException.class, () -> store.append(build("b2", "main")));
+            assertEquals(2, store.append(build("c3", "main")).id());
+            assertEquals("c3", store.get(2).orElseThrow().getString("commitSHA"));
+        }
+
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            assertEquals(List.of(2L, 1L), ids(store.list(Long.MAX_VALUE, 10)));
+            assertEquals("c3", store.get(2).orElseThrow().getString("commitSHA"));
+        }
+    }
+
+    /**
+     * Verifies that one-file-per-build JSON files are imported once.
+     */
+    @Test
+    public void testImportsLegacyFiles() throws Exception {
+        Files.writeString(tempDir.resolve("build_old_1.json"), build("old", "main").toString(4));
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            assertEquals(List.of(1L), ids(store.findBySha("old")));
+        }
+        try (SegmentedHistoryStore store = new SegmentedHistoryStore(tempDir, 1024 * 1024)) {
+            assertEquals(1, store.size(), "Legacy files must not be imported twice");
+        }
+    }
+}
@@ -2,11 +2,14 @@ package dd2480.ciserver;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
 import static org.mockito.Mockito.*;
+import static dd2480.ciserver.BuildSchedulerTest.job;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
@@ -45,4 +48,90 @@ public class ServerTest {
         String mockResult = Server.readRequestBody(mockExchange);
         assertEquals(testRequestBody, mockResult);
     }
+
+    /**
+     * Checks that GET /metrics answers in the Prometheus text format and that
+     * other methods are refused.
+     *
+     * @throws Exception if an error occurs during test execution.
+     */
+    @Test
+    public void testMetricsEndpoint() throws Exception {
+        HttpExchange get = mock(HttpExchange.class);
+        Headers headers = new Headers();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        when(get.getRequestMethod()).thenReturn("GET");
+        when(get.getResponseHeaders()).thenReturn(headers);
+        when(get.getResponseBody()).thenReturn(body);
+
+        Server.handleMetrics(get);
+
+        verify(get).sendResponseHeaders(eq(200), anyLong());
+        assertTrue(headers.getFirst("Content-Type").startsWith("text/plain; version=0.0.4"));
+        assertTrue(body.toString(StandardCharsets.UTF_8).contains("# TYPE ci_webhook_ack_seconds histogram"));
+
+        HttpExchange post = mock(HttpExchange.class);
+        when(post.getRequestMethod()).thenReturn("POST");
+        when(post.getResponseHeaders()).thenReturn(new Headers());
+        when(post.getResponseBody()).thenReturn(new ByteArrayOutputStream());
+        Server.handleMetrics(post);
+        verify(post).sendResponseHeaders(eq(405), anyLong());
+    }
+
+    /**
+     * Checks that a push returning to the commit of a superseded or
+     * cancelled build is built again instead of being taken for a
+     * redelivery.
+     */
+    @Test
+    public void testRepushOfSupersededCommitIsBuilt() {
+        DeliveryDeduplicator dedup = new DeliveryDeduplicator(null, 100, 60_000);
+        Server.setDeduplicator(dedup);
+        try {
+            BuildJob replaced = job("main", "aaa");
+            BuildJob newer = job("main", "bbb");
+            assertTrue(dedup.claim("d-1", replaced).isEmpty());
+            assertTrue(dedup.claim("d-2", newer).isEmpty());
+
+            Server.reportSuperseded(replaced, newer);
+            assertTrue(dedup.claim("d-3", job("main", "aaa")).isEmpty());
+
+            newer.cancel("Cancelled on request");
+            Server.reportCancelled(newer);
+            assertTrue(dedup.claim("d-4", job("main", "bbb")).isEmpty());
+        } finally {
+            Server.setDeduplicator(null);
+        }
+    }
+
+    /**
+     * Checks that a correctly signed body that is not a push event is
+     * answered with 400, not with 401: the signature is checked over the
+     * whole body, not just the part the parser read.
+     *
+     * @throws Exception if an error occurs during test execution.
+     */
+    @Test
+    public void testSignedMalformedPayloadIsBadRequest() throws Exception {
+        WebhookSignature checker = new WebhookSignature("secret");
+        Server.setSignature(checker);
+        try {
+            byte[] body = "{\"ref\": 12, \"after\": [1, 2, 3], \"padding\": \"tail of the body\"}"
+                    .getBytes(StandardCharsets.UTF_8);
+            HttpExchange exchange = mock(HttpExchange.class);
+            Headers headers = new Headers();
+            headers.set("X-GitHub-Event", "push");
+            headers.set("X-Hub-Signature-256", checker.sign(body));
+            when(exchange.getRequestHeaders()).thenReturn(headers);
+            when(exchange.getResponseHeaders()).thenReturn(new Headers());
+            when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(body));
+            when(exchange.getResponseBody()).thenReturn(new ByteArrayOutputStream());
+
+            Server.handleTimedWebhook(exchange);
+
+            verify(exchange).sendResponseHeaders(eq(400), anyLong());
+        } finally {
+            Server.setSignature(new WebhookSignature((String) null));
+        }
+    }
 }
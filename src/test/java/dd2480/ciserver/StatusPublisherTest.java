@@ -0,0 +1,234 @@
+package dd2480.ciserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link StatusPublisher}, against a local HTTP server
+ * standing in for the GitHub API.
+ */
+public class StatusPublisherTest {
+
+    /** Answers one status request; returns the response code. */
+    private interface Responder {
+        int respond(HttpExchange exchange, int requestNumber) throws Exception;
+    }
+
+    private HttpServer server;
+    private StatusPublisher publisher;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Responder responder = (exchange, n) -> 201;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/repos/", exchange -> {
+            try {
+                JSONObject body = new JSONObject(new String(exchange.getRequestBody().readAllBytes(),
+                        StandardCharsets.UTF_8));
+                String path = exchange.getRequestURI().getPath();
+                received.add(path.substring(path.lastIndexOf('/') + 1) + ":" + body.getString("state"));
+                int code = responder.respond(exchange, requests.incrementAndGet());
+                exchange.sendResponseHeaders(code, -1);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+            exchange.close();
+        });
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+        publisher = new StatusPublisher("token",
+                URI.create("http://localhost:" + server.getAddress().getPort()), 4, 3, Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        publisher.close();
+        server.stop(0);
+    }
+
+    /**
+     * Verifies that statuses are sent with the token and context.
+     */
+    @Test
+    public void testSendsStatus() throws Exception {
+        CountDownLatch seen = new CountDownLatch(1);
+        responder = (exchange, n) -> {
+            assertEquals("Bearer token", exchange.getRequestHeaders().getFirst("Authorization"));
+            assertEquals("/repos/o/r/statuses/abc", exchange.getRequestURI().getPath());
+            seen.countDown();
+            return 201;
+        };
+        publisher.publish("o/r", "abc", "pending", "CI build in progress...");
+
+        assertTrue(publisher.flush(5000));
+        assertTrue(seen.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of("abc:pending"), received);
+        assertEquals(1, publisher.getSentCount());
+    }
+
+    /**
+     * Verifies that states published for a commit while it waits are
+     * collapsed, so only the latest state is sent.
+     */
+    @Test
+    public void testCollapsesStatesOfSameCommit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        responder = (exchange, n) -> {
+            // Hold the first request so the next states queue up behind it
+            if (n == 1) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return 201;
+        };
+        publisher.publish("o/r", "first", "pending", "");
+        waitFor(() -> requests.get() == 1);
+        publisher.publish("o/r", "abc", "pending", "");
+        publisher.publish("o/r", "abc", "success", "");
+        publisher.publish("o/r", "def", "pending", "");
+        release.countDown();
+
+        assertTrue(publisher.flush(5000));
+        // Statuses of different commits are sent in parallel, in any order
+        assertEquals(3, received.size());
+        assertEquals("first:pending", received.get(0));
+        assertEquals(Set.of("abc:success", "def:pending"), Set.copyOf(received.subList(1, 3)));
+        assertEquals(1, publisher.getCollapsedCount());
+    }
+
+    /**
+     * Verifies that a server error is retried and a client error dropped.
+     */
+    @Test
+    public void testRetriesServerErrorsAndDropsClientErrors() throws Exception {
+        responder = (exchange, n) -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("bad")) {
+                return 422;
+            }
+            return n == 1 ? 502 : 201;
+        };
+        publisher.publish("o/r", "flaky", "success", "");
+
+        assertTrue(publisher.flush(10_000));
+        assertEquals(List.of("flaky:success", "flaky:success"), received);
+        assertEquals(1, publisher.getRetryCount());
+        assertEquals(1, publisher.getSentCount());
+
+        publisher.publish("o/r", "bad", "success", "");
+        assertTrue(publisher.flush(5000));
+        assertEquals(1, publisher.getDroppedCount());
+    }
+
+    /**
+     * Verifies that sending pauses for the time given by a rate-limit
+     * response and then resumes.
+     */
+    @Test
+    public void testPausesOnRateLimit() throws Exception {
+        responder = (exchange, n) -> {
+            if (n == 1) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.getResponseHeaders().set("X-RateLimit-Remaining", "0");
+                return 429;
+            }
+            exchange.getResponseHeaders().set("X-RateLimit-Remaining", "4999");
+            return 201;
+        };
+        long start = System.nanoTime();
+        publisher.publish("o/r", "abc", "success", "");
+
+        assertTrue(publisher.flush(10_000));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 900, "resumed after " + elapsedMillis + " ms");
+        assertEquals(List.of("abc:success", "abc:success"), received);
+        assertEquals(4999, publisher.getRateRemaining());
+    }
+
+    /**
+     * Verifies which responses count as rate limits and when to resume.
+     */
+    @Test
+    public void testRateLimitHeaders() {
+        HttpHeaders exhausted = headers(Map.of("X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "2000"));
+        HttpHeaders retryAfter = headers(Map.of("Retry-After", "30"));
+        HttpHeaders forbidden = headers(Map.of("X-RateLimit-Remaining", "12"));
+
+        assertTrue(StatusPublisher.isRateLimited(403, exhausted));
+        assertTrue(StatusPublisher.isRateLimited(403, retryAfter));
+        assertTrue(StatusPublisher.isRateLimited(429, forbidden));
+        assertFalse(StatusPublisher.isRateLimited(403, forbidden));
+        assertEquals(2_000_000, StatusPublisher.rateLimitedUntil(exhausted, 1_000_000));
+        assertEquals(1_030_000, StatusPublisher.rateLimitedUntil(retryAfter, 1_000_000));
+        assertEquals(1_060_000, StatusPublisher.rateLimitedUntil(headers(Map.of()), 1_000_000));
+    }
+
+    /**
+     * Verifies that the retry delay grows with the attempts, stays within
+     * its jitter range and is capped.
+     */
+    @Test
+    public void testBackoffIsJitteredAndCapped() {
+        for (int i = 0; i < 100; i++) {
+            long first = StatusPublisher.backoffMillis(1);
+            long third = StatusPublisher.backoffMillis(3);
+            long late = StatusPublisher.backoffMillis(30);
+            assertTrue(first >= 500 && first <= 1000);
+            assertTrue(third >= 2000 && third <= 4000);
+            assertTrue(late >= 30_000 && late <= 60_000);
+        }
+    }
+
+    /**
+     * Verifies that a notifier with a publisher returns without waiting.
+     */
+    @Test
+    public void testNotifierQueuesOnPublisher() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        responder = (exchange, n) -> {
+            release.await(5, TimeUnit.SECONDS);
+            return 201;
+        };
+        GitHubStatusNotifier notifier = new GitHubStatusNotifier(publisher);
+
+        assertEquals(202, notifier.notifyPending("o/r", "abc"));
+        release.countDown();
+        assertTrue(publisher.flush(5000));
+        assertEquals(List.of("abc:pending"), received);
+    }
+
+    private static HttpHeaders headers(Map<String, String> values) {
+        Map<String, List<String>> map = new java.util.HashMap<>();
+        values.forEach((k, v) -> map.put(k, List.of(v)));
+        return HttpHeaders.of(map, (k, v) -> true);
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,143 @@
+package dd2480.ciserver;
+
+import dd2480.ciserver.model.CIResultObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static dd2480.ciserver.BranchWorkspacesTest.commit;
+import static dd2480.ciserver.BranchWorkspacesTest.git;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link WarmWorkspacePool}.
+ */
+public class WarmWorkspacePoolTest {
+
+    private static final String REPO = "https://github.com/owner/repo.git";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Verifies that the pool wants one workspace per few pushes, up to its
+     * maximum, and forgets pushes older than the window.
+     */
+    @Test
+    public void testTargetSizeFollowsPushRate() throws Exception {
+        WorkspaceManager manager = new WorkspaceManager(dir, null, Long.MAX_VALUE, 0, 0);
+        WarmWorkspacePool pool = new WarmWorkspacePool(manager, (d, url, branch) -> 0, () -> true, 2, 200, 2);
+        assertEquals(0, pool.targetSize());
+
+        pool.recordPush(REPO, "main");
+        assertEquals(1, pool.targetSize());
+        pool.recordPush(REPO, "dev");
+        pool.recordPush(REPO, "main");
+        assertEquals(2, pool.targetSize());
+        for (int i = 0; i < 10; i++) {
+            pool.recordPush(REPO, "main");
+        }
+        assertEquals(2, pool.targetSize());
+
+        Thread.sleep(300);
+        assertEquals(0, pool.targetSize());
+    }
+
+    /**
+     * Verifies that the most pushed branches are warmed only while the
+     * server is idle, that builds take them, and that branches that fall
+     * out of the wanted set are given back.
+     */
+    @Test
+    public void testWarmsMostActiveBranchesWhenIdle() throws Exception {
+        WorkspaceManager manager = new WorkspaceManager(dir, null, Long.MAX_VALUE, 0, 0);
+        List<String> provisioned = new ArrayList<>();
+        AtomicBoolean idle = new AtomicBoolean(false);
+        WarmWorkspacePool pool = new WarmWorkspacePool(manager, (d, url, branch) -> {
+            provisioned.add(branch);
+            return 0;
+        }, idle::get, 1, 60_000, 2);
+        pool.recordPush(REPO, "main");
+        pool.recordPush(REPO, "dev");
+        pool.recordPush(REPO, "dev");
+
+        pool.refill();
+        assertEquals(0, pool.size());
+
+        idle.set(true);
+        pool.refill();
+        pool.refill();
+        assertEquals(List.of("dev"), provisioned);
+        assertNull(pool.take(REPO, "main"));
+        Path warm = pool.take(REPO, "dev");
+        assertNotNull(warm);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        pool.refill();
+        assertEquals(1, pool.size());
+        for (int i = 0; i < 3; i++) {
+            pool.recordPush(REPO, "main");
+        }
+        pool.refill();
+        assertEquals(List.of("dev", "dev", "main"), provisioned);
+        assertEquals(1, pool.size());
+        assertNotNull(pool.take(REPO, "main"));
+        assertTrue(manager.awaitCleanup(5000));
+        assertEquals(1, manager.getDeletedCount());
+    }
+
+    /**
+     * Verifies that a failed provisioning leaves nothing in the pool.
+     */
+    @Test
+    public void testFailedWarmUpIsDiscarded() throws Exception {
+        WorkspaceManager manager = new WorkspaceManager(dir, null, Long.MAX_VALUE, 0, 0);
+        WarmWorkspacePool pool = new WarmWorkspacePool(manager, (d, url, branch) -> 128, () -> true, 1, 60_000, 1);
+        pool.recordPush(REPO, "main");
+
+        pool.refill();
+
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.getFailedCount());
+        assertEquals(0, manager.getActiveCount());
+    }
+
+    /**
+     * Verifies that a build starts from the warm checkout of its branch,
+     * fetches the pushed commit into it, and deletes it afterwards.
+     */
+    @Test
+    public void testBuildStartsFromWarmCheckout() throws Exception {
+        Path remote = Files.createDirectories(dir.resolve("remote"));
+        git(remote, "init", "-q", "-b", "main");
+        commit(remote, "pom.xml", "<project>1</project>");
+        String url = remote.toUri().toString();
+        WorkspaceManager manager = new WorkspaceManager(dir.resolve("workspaces"), null, Long.MAX_VALUE, 0, 0);
+        WarmWorkspacePool pool = new WarmWorkspacePool(manager,
+                (d, cloneUrl, branch) -> new BuildProcessor().warmUp(d.toFile(), cloneUrl, branch),
+                () -> true, 1, 60_000, 1);
+        pool.recordPush(url, "main");
+        pool.refill();
+        assertEquals(1, pool.getProvisionedCount());
+
+        commit(remote, "App.java", "class App {}");
+        BranchWorkspacesTest.FakeMavenProcessor processor = new BranchWorkspacesTest.FakeMavenProcessor();
+        processor.setWorkspaceManager(manager);
+        processor.setWarmPool(pool);
+        processor.setLogFile(dir.resolve("build.log"));
+        CIResultObject result = processor.runBuild(url, "main", "unused");
+
+        assertTrue(result.isCIResultSuccessful(), result.getErrorMessage());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(List.of("mvn compile", "mvn test"), processor.maven);
+        assertTrue(Files.readString(dir.resolve("build.log")).contains("Updated warm workspace"));
+        assertTrue(manager.awaitCleanup(5000));
+        assertEquals(0, manager.getActiveCount());
+    }
+}
@@ -0,0 +1,162 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static dd2480.ciserver.BuildSchedulerTest.job;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link WebhookJournal}.
+ */
+public class WebhookJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Verifies that builds accepted but not completed are returned after the
+     * journal is reopened, with their ids and payloads, and that the file is
+     * compacted to just those builds.
+     */
+    @Test
+    public void testUnfinishedBuildsSurviveRestart() throws Exception {
+        Path file = tempDir.resolve("journal.log");
+        BuildJob first = job("main", "aaa");
+        BuildJob second = job("dev", "bbb");
+        BuildJob third = job("main", "ccc");
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            assertTrue(journal.getUnfinished().isEmpty());
+            journal.accept(first);
+            journal.accept(second);
+            journal.accept(third);
+            journal.complete(first.getId());
+        }
+
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            List<BuildJob> unfinished = journal.getUnfinished();
+            assertEquals(2, unfinished.size());
+            assertEquals(second.getId(), unfinished.get(0).getId());
+            assertEquals("dev", unfinished.get(0).getPayload().getBranch());
+            assertEquals("bbb", unfinished.get(0).getPayload().getCommitSHA());
+            assertEquals("owner/repo", unfinished.get(0).getPayload().getRepoFullName());
+            assertEquals(third.getId(), unfinished.get(1).getId());
+            assertEquals("ccc", unfinished.get(1).getPayload().getCommitSHA());
+        }
+        assertEquals(2, Files.readAllLines(file).size());
+    }
+
+    /**
+     * Verifies that the file is compacted while the journal is open once
+     * finished builds dominate it, without losing the open builds.
+     */
+    @Test
+    public void testCompactsWhileOpen() throws Exception {
+        Path file = tempDir.resolve("journal.log");
+        BuildJob kept = job("main", "kept");
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            journal.accept(kept);
+            for (int i = 0; i < 600; i++) {
+                BuildJob done = job("main", "sha" + i);
+                journal.accept(done);
+                journal.complete(done.getId());
+            }
+            journal.accept(job("main", "last"));
+
+            assertTrue(journal.getCompactionCount() > 0);
+            assertTrue(Files.readAllLines(file).size() < 600, "The journal must not keep every record");
+        }
+
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            List<BuildJob> unfinished = journal.getUnfinished();
+            assertEquals(2, unfinished.size());
+            assertEquals(kept.getId(), unfinished.get(0).getId());
+            assertEquals("last", unfinished.get(1).getPayload().getCommitSHA());
+        }
+    }
+
+    /**
+     * Verifies that new jobs get ids above those read back from the journal.
+     */
+    @Test
+    public void testNewIdsFollowResumedIds() throws Exception {
+        Path file = tempDir.resolve("journal.log");
+        Files.writeString(file, "{\"op\":\"accept\",\"id\":1000000,\"payload\":"
+                + job("main", "aaa").getPayload().toJson() + "}\n");
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            assertEquals(1000000, journal.getUnfinished().get(0).getId());
+        }
+        assertTrue(job("main", "bbb").getId() > 1000000);
+    }
+
+    /**
+     * Verifies that a record cut off by a crash is skipped and the records
+     * before it are kept.
+     */
+    @Test
+    public void testTornRecordIsSkipped() throws Exception {
+        Path file = tempDir.resolve("journal.log");
+        BuildJob job = job("main", "aaa");
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            journal.accept(job);
+        }
+        Files.writeString(file, "{\"op\":\"accept\",\"id\":", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            assertEquals(1, journal.getUnfinished().size());
+            assertEquals(job.getId(), journal.getUnfinished().get(0).getId());
+        }
+    }
+
+    /**
+     * Verifies that concurrent accepts are all written, sharing syncs.
+     */
+    @Test
+    public void testConcurrentAcceptsAreGroupCommitted() throws Exception {
+        Path file = tempDir.resolve("journal.log");
+        int count = 200;
+        List<BuildJob> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            jobs.add(job("b" + i, "sha" + i));
+        }
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            ExecutorService pool = Executors.newFixedThreadPool(16);
+            List<Future<?>> futures = new ArrayList<>();
+            for (BuildJob job : jobs) {
+                futures.add(pool.submit(() -> {
+                    journal.accept(job);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+            assertEquals(count, journal.getRecordCount());
+            assertTrue(journal.getBatchCount() <= count);
+        }
+        try (WebhookJournal journal = new WebhookJournal(file)) {
+            assertEquals(count, journal.getUnfinished().size());
+        }
+    }
+
+    /**
+     * Verifies that writing to a closed journal fails.
+     */
+    @Test
+    public void testAcceptAfterCloseFails() throws Exception {
+        WebhookJournal journal = new WebhookJournal(tempDir.resolve("journal.log"));
+        journal.close();
+        assertThrows(java.io.IOException.class, () -> journal.accept(job("main", "aaa")));
+    }
+}
@@ -117,4 +117,26 @@ public class WebhookPayloadTest {
             new WebhookPayload(incomplete);
         });
     }
+
+    /**
+     * Verifies that toJson parses back into the same payload.
+     */
+    @Test
+    public void testToJsonRoundTrip() {
+        WebhookPayload original = new WebhookPayload("""
+                {
+                  "ref": "refs/heads/feature/x",
+                  "after": "abc123",
+                  "repository": {
+                    "clone_url": "https://github.com/owner/repo.git",
+                    "full_name": "owner/repo"
+                  }
+                }
+                """);
+        WebhookPayload copy = new WebhookPayload(original.toJson());
+        assertEquals("feature/x", copy.getBranch());
+        assertEquals("abc123", copy.getCommitSHA());
+        assertEquals("https://github.com/owner/repo.git", copy.getCloneUrl());
+        assertEquals("owner/repo", copy.getRepoFullName());
+    }
 }
@@ -0,0 +1,127 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link WebhookSignature}.
+ */
+public class WebhookSignatureTest {
+
+    /** The example from GitHub's webhook documentation. */
+    private static final String SECRET = "It's a Secret to Everybody";
+    private static final byte[] BODY = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+    private static final String HEADER =
+            "sha256=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e17";
+
+    /**
+     * Reads a signed body to its end and checks it.
+     */
+    private static boolean readAndVerify(WebhookSignature signature, byte[] body, String header)
+            throws Exception {
+        try (WebhookSignature.SignedBody in = signature.wrap(new ByteArrayInputStream(body))) {
+            in.readAllBytes();
+            return in.verify(header);
+        }
+    }
+
+    /**
+     * Verifies that the signature of GitHub's documented example matches.
+     */
+    @Test
+    public void testMatchesGitHubExample() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+
+        assertEquals(HEADER, signature.sign(BODY));
+        assertTrue(readAndVerify(signature, BODY, HEADER));
+    }
+
+    /**
+     * Verifies that a changed body, a wrong secret or a bad header fails.
+     */
+    @Test
+    public void testRejectsMismatches() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+
+        assertFalse(readAndVerify(signature, "Hello, World?".getBytes(StandardCharsets.UTF_8), HEADER));
+        assertFalse(readAndVerify(new WebhookSignature("other"), BODY, HEADER));
+        assertFalse(readAndVerify(signature, BODY, null));
+        assertFalse(readAndVerify(signature, BODY, HEADER.replace("sha256=", "sha1=")));
+    }
+
+    /**
+     * Verifies that only well-formed headers are decoded.
+     */
+    @Test
+    public void testParseHeader() {
+        assertEquals(32, WebhookSignature.parseHeader(HEADER).length);
+        assertNull(WebhookSignature.parseHeader(null));
+        assertNull(WebhookSignature.parseHeader("sha256=abc"));
+        assertNull(WebhookSignature.parseHeader("sha256=" + "zz".repeat(32)));
+        assertNull(WebhookSignature.parseHeader("sha1=" + "ab".repeat(32)));
+    }
+
+    /**
+     * Verifies that the HMAC covers every byte however the body is read.
+     */
+    @Test
+    public void testSignsWhileStreaming() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        try (WebhookSignature.SignedBody in = signature.wrap(new ByteArrayInputStream(BODY))) {
+            assertEquals('H', in.read());
+            byte[] buffer = new byte[4];
+            assertEquals(4, in.read(buffer, 0, 4));
+            assertEquals(2, in.skip(2));
+            in.readAllBytes();
+            assertTrue(in.verify(HEADER));
+        }
+    }
+
+    /**
+     * Verifies that without a secret every request is accepted.
+     */
+    @Test
+    public void testDisabledAcceptsEverything() throws Exception {
+        WebhookSignature signature = new WebhookSignature((String) null);
+
+        assertFalse(signature.isEnabled());
+        assertTrue(readAndVerify(signature, BODY, null));
+    }
+
+    /**
+     * Verifies that pooled Mac instances give correct results when shared
+     * by concurrent requests, including requests closed without a check.
+     */
+    @Test
+    public void testConcurrentVerifications() throws Exception {
+        WebhookSignature signature = new WebhookSignature(SECRET);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] body = ("payload " + i).getBytes(StandardCharsets.UTF_8);
+            String header = signature.sign(body);
+            boolean tamper = i % 3 == 0;
+            results.add(pool.submit(() -> {
+                // An abandoned body must not leave state in its Mac
+                try (InputStream abandoned = signature.wrap(new ByteArrayInputStream(BODY))) {
+                    abandoned.read();
+                }
+                return readAndVerify(signature, body, tamper ? HEADER : header) != tamper;
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        pool.shutdown();
+    }
+}
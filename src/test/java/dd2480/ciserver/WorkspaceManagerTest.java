@@ -0,0 +1,120 @@
+package dd2480.ciserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link WorkspaceManager}.
+ */
+public class WorkspaceManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Verifies that a released workspace is gone at once and deleted in
+     * the background.
+     */
+    @Test
+    public void testReleaseDeletesInBackground() throws Exception {
+        Path root = tempDir.resolve("workspaces");
+        WorkspaceManager manager = new WorkspaceManager(root, null, Long.MAX_VALUE, 0, 0);
+        Path dir = manager.allocate();
+        Files.createDirectories(dir.resolve("target/classes"));
+        Files.writeString(dir.resolve("target/classes/A.class"), "x");
+        assertEquals(1, manager.getActiveCount());
+
+        manager.release(dir);
+
+        assertFalse(Files.exists(dir));
+        assertEquals(0, manager.getActiveCount());
+        assertTrue(manager.awaitCleanup(5000));
+        assertEquals(1, manager.getDeletedCount());
+        try (var left = Files.list(root.resolve(".trash"))) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    /**
+     * Verifies that workspaces and trash left by an earlier run are
+     * deleted at start-up.
+     */
+    @Test
+    public void testDeletesLeftoversAtStart() throws Exception {
+        Path root = tempDir.resolve("workspaces");
+        Files.createDirectories(root.resolve("build-1/src"));
+        Files.createDirectories(root.resolve(".trash/build-2-5"));
+
+        WorkspaceManager manager = new WorkspaceManager(root, null, Long.MAX_VALUE, 0, 0);
+
+        assertTrue(manager.awaitCleanup(5000));
+        assertFalse(Files.exists(root.resolve("build-1")));
+        assertFalse(Files.exists(root.resolve(".trash/build-2-5")));
+        assertEquals(2, manager.getDeletedCount());
+    }
+
+    /**
+     * Verifies that going over the quota reports pressure, and that
+     * freeing space relieves it.
+     */
+    @Test
+    public void testQuotaPausesUntilCleanedUp() throws Exception {
+        WorkspaceManager manager = new WorkspaceManager(tempDir.resolve("workspaces"), null, 1000, 0, 0);
+        List<String> events = new ArrayList<>();
+        manager.setPressureListener(reason -> events.add("pause: " + reason), () -> events.add("resume"));
+        Path dir = manager.allocate();
+        Files.write(dir.resolve("big"), new byte[2000]);
+
+        manager.checkDisk();
+        manager.checkDisk();
+        assertTrue(manager.isUnderPressure());
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).contains("over the quota"), events.get(0));
+
+        manager.release(dir);
+        assertTrue(manager.awaitCleanup(5000));
+        manager.checkDisk();
+        assertFalse(manager.isUnderPressure());
+        assertEquals("resume", events.get(1));
+    }
+
+    /**
+     * Verifies that too little free disk space reports pressure.
+     */
+    @Test
+    public void testLowWatermarkPauses() throws Exception {
+        WorkspaceManager manager = new WorkspaceManager(tempDir.resolve("workspaces"), null,
+                Long.MAX_VALUE, Long.MAX_VALUE / 2, 0);
+        List<String> reasons = new ArrayList<>();
+        manager.setPressureListener(reasons::add, () -> { });
+
+        manager.checkDisk();
+
+        assertTrue(manager.isUnderPressure());
+        assertTrue(reasons.get(0).startsWith("only "), reasons.get(0));
+    }
+
+    /**
+     * Verifies that workspaces go to the memory file system while it has
+     * room, and to disk otherwise.
+     */
+    @Test
+    public void testTmpfsUsedWhileItHasRoom() throws Exception {
+        Path disk = tempDir.resolve("disk");
+        Path memory = tempDir.resolve("memory");
+        WorkspaceManager roomy = new WorkspaceManager(disk, memory, Long.MAX_VALUE, 0, 0);
+        assertEquals(memory, roomy.allocate().getParent());
+        assertEquals(1, roomy.getTmpfsCount());
+
+        WorkspaceManager full = new WorkspaceManager(disk, memory, Long.MAX_VALUE, 0, Long.MAX_VALUE);
+        assertEquals(disk, full.allocate().getParent());
+        assertEquals(0, full.getTmpfsCount());
+    }
+}
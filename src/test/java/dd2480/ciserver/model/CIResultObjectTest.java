@@ -112,4 +112,78 @@ public class CIResultObjectTest {
         assertEquals("new", result.getBuildLog());
     }
 
+    /**
+     * Unit test to check that setting a cancellation reason marks the result as
+     * cancelled.
+     */
+    @Test
+    public void testSetCancellationReason() {
+        CIResultObject result = new CIResultObject("sha", "main");
+        assertFalse(result.isCancelled());
+        result.setCancellationReason("Superseded by abc1234");
+        assertTrue(result.isCancelled());
+        assertEquals("Superseded by abc1234", result.getCancellationReason());
+    }
+
+    /**
+     * Unit test to check the checkout statistics setters and getters.
+     */
+    @Test
+    public void testCheckoutStatistics() {
+        CIResultObject result = new CIResultObject("sha", "main");
+        assertEquals(0, result.getCheckoutMillis());
+        result.setCheckoutMillis(1500);
+        result.setCheckoutBytes(4096);
+        assertEquals(1500, result.getCheckoutMillis());
+        assertEquals(4096, result.getCheckoutBytes());
+    }
+
+    /**
+     * Unit test to check that a long log keeps its start and end and stays
+     * within the in-memory limit, however often it is appended to.
+     */
+    @Test
+    public void testAppendBuildLogIsBounded() {
+        CIResultObject result = new CIResultObject("sha", "main");
+        result.appendBuildLog("FIRST LINE");
+        for (int i = 0; i < 100; i++) {
+            result.appendBuildLog("x".repeat(10_000));
+        }
+        result.appendBuildLog("LAST LINE");
+
+        String log = result.getBuildLog();
+        assertTrue(log.length() <= CIResultObject.MAX_LOG_CHARS + 100);
+        assertTrue(log.startsWith("FIRST LINE"));
+        assertTrue(log.endsWith("LAST LINE"));
+        assertEquals(1, log.split("log truncated", -1).length - 1);
+    }
+
+    /**
+     * Unit test to check the log file setter and getter.
+     */
+    @Test
+    public void testLogFile() {
+        CIResultObject result = new CIResultObject("sha", "main");
+        assertNull(result.getLogFile());
+        result.setLogFile("build_logs/42.log");
+        assertEquals("build_logs/42.log", result.getLogFile());
+    }
+
+
+    /**
+     * Unit test to check that phase records are kept in the order they were
+     * added and cannot be changed through the returned list.
+     */
+    @Test
+    public void testPhases() {
+        CIResultObject mockResult = new CIResultObject("commitSHA", "branch name");
+        assertTrue(mockResult.getPhases().isEmpty());
+        mockResult.addPhase(PhaseRecord.withoutProcess("queue", 5));
+        mockResult.addPhase(new PhaseRecord("checkout", 100, 0, 20, 4096));
+
+        assertEquals("queue", mockResult.getPhases().get(0).phase());
+        assertEquals(4096, mockResult.getPhases().get(1).peakRssKb());
+        assertThrows(UnsupportedOperationException.class,
+                () -> mockResult.getPhases().add(PhaseRecord.withoutProcess("notify", 1)));
+    }
 }